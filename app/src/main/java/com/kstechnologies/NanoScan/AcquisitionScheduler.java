@@ -0,0 +1,496 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Unattended acquisition on one Nano, following a timetable.
+ *
+ * A {@link Job} runs a number of repetitions, one every interval. Each repetition scans once with
+ * every scan configuration of the job in turn, making each one active first, or once with the
+ * active configuration if the job lists none. Repetitions are due at fixed times from the start
+ * of the job, and a repetition that is late, as after a reconnection, starts as soon as the
+ * previous one is done.
+ *
+ * The scheduler drives an additional session of the {@link NanoBLEService} through the events it
+ * posts to the {@link NanoEventBus}, so it needs no activity:
+ * <pre>
+ *   CONNECTING --connected--&gt; LOADING_REFERENCE --reference--&gt; WAITING --due--&gt; SETTING_CONF
+ *       ^                                                         ^                  |
+ *       |                                                         |             active conf
+ *       +------------- disconnected or step timeout ------------- +--scan data-- SCANNING
+ * </pre>
+ * When the device disconnects, or a step gets no response within the step timeout, the session
+ * is closed and a new one is opened after a backoff that doubles with every failed attempt. The
+ * interrupted step is then repeated.
+ *
+ * Every scan is written under {@code files/acquisitions/<address>/<job start>/}, as the serialized
+ * scan data ({@code .dat}) and, once interpreted against the reference calibration, as CSV in the
+ * same columns as the SD card downloads. Files are written on a background thread. All listener
+ * calls are made on the main thread.
+ */
+public class AcquisitionScheduler {
+
+    private static final String TAG = "__ACQUISITION";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    private static final String ACQUISITION_DIR = "acquisitions";
+    private static final String RAW_SUFFIX = ".dat";
+    private static final String CSV_SUFFIX = ".csv";
+
+    //Time allowed for a connection, a reference calibration, a configuration change or a scan
+    public static final long DEFAULT_STEP_TIMEOUT_MS = 2 * 60 * 1000;
+
+    //Delay before the first reconnection. Every further attempt waits twice as long, up to the maximum
+    public static final long RECONNECT_DELAY_MS = 2000;
+    public static final long MAX_RECONNECT_DELAY_MS = 5 * 60 * 1000;
+
+    /**
+     * The scans to run and their timetable
+     */
+    public static class Job {
+        public final String address;
+        public final long intervalMs;
+        public final int repetitions;
+        public final List<byte[]> confIndices;
+
+        /**
+         * @param address     the Bluetooth address of the device
+         * @param intervalMs  the time from the start of one repetition to the start of the next
+         * @param repetitions the number of repetitions
+         * @param confIndices the indices of the stored scan configurations to scan with in each
+         *                    repetition, or an empty list to scan with the active configuration
+         */
+        public Job(String address, long intervalMs, int repetitions, List<byte[]> confIndices) {
+            this.address = address;
+            this.intervalMs = intervalMs;
+            this.repetitions = repetitions;
+            this.confIndices = Collections.unmodifiableList(new ArrayList<>(confIndices));
+        }
+
+        /**
+         * @return the number of scans in each repetition
+         */
+        public int scansPerRepetition() {
+            return Math.max(1, confIndices.size());
+        }
+    }
+
+    /**
+     * States of the scheduler
+     */
+    public enum State {
+        IDLE,
+        CONNECTING,
+        LOADING_REFERENCE,
+        WAITING,
+        SETTING_CONF,
+        SCANNING,
+        FINISHED
+    }
+
+    /**
+     * Callback for the progress of the job
+     */
+    public interface Listener {
+        /**
+         * Called whenever the state changes or a scan is received
+         */
+        void onProgress(AcquisitionScheduler scheduler);
+
+        /**
+         * Called once every repetition is done. Not called if the scheduler is stopped
+         */
+        void onFinished(AcquisitionScheduler scheduler);
+    }
+
+    private final NanoBLEService mService;
+    private final Job mJob;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private NanoSession mSession;
+    private State mState = State.IDLE;
+    private long mStepTimeoutMs = DEFAULT_STEP_TIMEOUT_MS;
+    private long mReconnectDelayMs = RECONNECT_DELAY_MS;
+    private long mStartedAt;
+    private long mStartedAtElapsed;
+    private File mDir;
+    private HandlerThread mWriterThread;
+    private Handler mWriter;
+
+    //Position in the timetable
+    private int mRepetition;
+    private int mConfPosition;
+
+    //Counters
+    private int mScans;
+    private int mReconnects;
+
+    //Reference calibration of the device, used to interpret the scans
+    private byte[] mRefCoefficients;
+    private byte[] mRefMatrix;
+
+    private final NanoEventBus.Subscriber<NanoEventBus.ConnectionEvent> mConnectionSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.ConnectionEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.ConnectionEvent event) {
+                    onConnection(event);
+                }
+            };
+
+    private final NanoEventBus.Subscriber<NanoEventBus.RefCalEvent> mRefCalSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.RefCalEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.RefCalEvent event) {
+                    onReferenceCalibration(event);
+                }
+            };
+
+    private final NanoEventBus.Subscriber<NanoEventBus.ActiveConfEvent> mActiveConfSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.ActiveConfEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.ActiveConfEvent event) {
+                    onActiveConf(event);
+                }
+            };
+
+    private final NanoEventBus.Subscriber<NanoEventBus.ScanDataEvent> mScanDataSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.ScanDataEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.ScanDataEvent event) {
+                    onScanData(event);
+                }
+            };
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onLost(mState + " timed out");
+        }
+    };
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+
+    /**
+     * @param service  the service to open the session with
+     * @param job      the job to run
+     * @param listener the listener for the progress of the job
+     */
+    public AcquisitionScheduler(NanoBLEService service, Job job, Listener listener) {
+        mService = service;
+        mJob = job;
+        mListener = listener;
+    }
+
+    /**
+     * @param stepTimeoutMs the time allowed for a connection, a reference calibration, a
+     *                      configuration change or a scan
+     */
+    public void setStepTimeout(long stepTimeoutMs) {
+        mStepTimeoutMs = stepTimeoutMs;
+    }
+
+    /**
+     * Connect to the device and start the first repetition. Must be called on the main thread
+     */
+    public void start() {
+        if (mState != State.IDLE) {
+            return;
+        }
+        mStartedAt = System.currentTimeMillis();
+        mStartedAtElapsed = SystemClock.elapsedRealtime();
+        mDir = new File(new File(new File(mService.getFilesDir(), ACQUISITION_DIR),
+                mJob.address.replaceAll("[^A-Za-z0-9]", "")), Long.toString(mStartedAt));
+        mWriterThread = new HandlerThread(TAG);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+
+        NanoEventBus bus = NanoEventBus.getDefault();
+        bus.register(NanoEventBus.ConnectionEvent.class, mConnectionSubscriber, NanoEventBus.ThreadMode.MAIN);
+        bus.register(NanoEventBus.RefCalEvent.class, mRefCalSubscriber, NanoEventBus.ThreadMode.MAIN);
+        bus.register(NanoEventBus.ActiveConfEvent.class, mActiveConfSubscriber, NanoEventBus.ThreadMode.MAIN);
+        bus.register(NanoEventBus.ScanDataEvent.class, mScanDataSubscriber, NanoEventBus.ThreadMode.MAIN);
+
+        if (debug)
+            Log.d(TAG, "Starting " + mJob.repetitions + " repetitions of " + mJob.scansPerRepetition()
+                    + " scans every " + mJob.intervalMs + "ms on " + mJob.address);
+        connect();
+    }
+
+    /**
+     * Stop the job and close the session. Scans already received are still written
+     */
+    public void stop() {
+        if (mState == State.IDLE || mState == State.FINISHED) {
+            return;
+        }
+        end();
+        if (debug)
+            Log.d(TAG, "Stopped after " + mScans + " scans");
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public Job getJob() {
+        return mJob;
+    }
+
+    /**
+     * @return the number of the running repetition, starting at 1
+     */
+    public int getRepetition() {
+        return Math.min(mRepetition + 1, mJob.repetitions);
+    }
+
+    /**
+     * @return the number of scans received since the job was started
+     */
+    public int getScans() {
+        return mScans;
+    }
+
+    /**
+     * @return the number of times the device was reconnected
+     */
+    public int getReconnects() {
+        return mReconnects;
+    }
+
+    /**
+     * @return the directory the scans are written to, or null until the job is started
+     */
+    public File getDirectory() {
+        return mDir;
+    }
+
+    private void setState(State state) {
+        mState = state;
+        mListener.onProgress(this);
+    }
+
+    private void arm() {
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.postDelayed(mTimeout, mStepTimeoutMs);
+    }
+
+    private void connect() {
+        setState(State.CONNECTING);
+        mSession = mService.openSession(mJob.address);
+        if (mSession == null) {
+            onLost("unable to connect");
+            return;
+        }
+        arm();
+    }
+
+    /**
+     * Close the session and schedule a new connection. The interrupted step is repeated once the
+     * device is connected again
+     */
+    private void onLost(String reason) {
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mStep);
+        if (mSession != null) {
+            mService.closeSession(mSession);
+            mSession = null;
+        }
+        Log.w(TAG, mJob.address + " " + reason + ", reconnecting in " + mReconnectDelayMs + "ms");
+        mReconnects++;
+        mHandler.postDelayed(mReconnect, mReconnectDelayMs);
+        mReconnectDelayMs = Math.min(mReconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        setState(State.CONNECTING);
+    }
+
+    private boolean isOwn(String address) {
+        return mSession != null && mSession.getAddress().equals(address);
+    }
+
+    private void onConnection(NanoEventBus.ConnectionEvent event) {
+        if (!isOwn(event.address)) {
+            return;
+        }
+        if (!event.connected) {
+            onLost("disconnected");
+        } else if (mState == State.CONNECTING) {
+            //Setting the time also writes the scan name stub and loads the reference calibration
+            setState(State.LOADING_REFERENCE);
+            arm();
+            mSession.setTime();
+        }
+    }
+
+    private void onReferenceCalibration(NanoEventBus.RefCalEvent event) {
+        if (!isOwn(event.address) || mState != State.LOADING_REFERENCE) {
+            return;
+        }
+        mHandler.removeCallbacks(mTimeout);
+        mRefCoefficients = event.coefficients;
+        mRefMatrix = event.matrix;
+        mReconnectDelayMs = RECONNECT_DELAY_MS;
+        schedule();
+    }
+
+    /**
+     * Wait for the next step. Steps of a repetition run back to back, and the first step of a
+     * repetition waits until the repetition is due
+     */
+    private void schedule() {
+        if (mRepetition >= mJob.repetitions) {
+            finish();
+            return;
+        }
+        long delay = 0;
+        if (mConfPosition == 0) {
+            long due = mStartedAtElapsed + mRepetition * mJob.intervalMs;
+            delay = Math.max(0, due - SystemClock.elapsedRealtime());
+        }
+        setState(State.WAITING);
+        mHandler.postDelayed(mStep, delay);
+    }
+
+    private void step() {
+        if (mState != State.WAITING || mSession == null) {
+            return;
+        }
+        if (mJob.confIndices.isEmpty()) {
+            scan();
+            return;
+        }
+        byte[] conf = mJob.confIndices.get(mConfPosition);
+        if (debug)
+            Log.d(TAG, "Repetition " + (mRepetition + 1) + ", setting active configuration " + NanoLog.toHex(conf, false));
+        setState(State.SETTING_CONF);
+        arm();
+        mSession.setActiveConf(conf);
+    }
+
+    private void onActiveConf(NanoEventBus.ActiveConfEvent event) {
+        if (isOwn(event.address) && mState == State.SETTING_CONF) {
+            scan();
+        }
+    }
+
+    private void scan() {
+        setState(State.SCANNING);
+        arm();
+        mSession.prepareScan();
+    }
+
+    private void onScanData(NanoEventBus.ScanDataEvent event) {
+        if (!isOwn(event.address) || mState != State.SCANNING) {
+            return;
+        }
+        mHandler.removeCallbacks(mTimeout);
+        mScans++;
+        save(event, fileName(System.currentTimeMillis()));
+
+        mConfPosition++;
+        if (mConfPosition >= mJob.scansPerRepetition()) {
+            mConfPosition = 0;
+            mRepetition++;
+        }
+        schedule();
+    }
+
+    private void finish() {
+        end();
+        if (debug)
+            Log.d(TAG, "Finished " + mJob.repetitions + " repetitions, " + mScans + " scans, "
+                    + mReconnects + " reconnections");
+        mListener.onFinished(this);
+    }
+
+    private void end() {
+        NanoEventBus.getDefault().unregister(mConnectionSubscriber);
+        NanoEventBus.getDefault().unregister(mRefCalSubscriber);
+        NanoEventBus.getDefault().unregister(mActiveConfSubscriber);
+        NanoEventBus.getDefault().unregister(mScanDataSubscriber);
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mStep);
+        mHandler.removeCallbacks(mReconnect);
+        if (mSession != null) {
+            mService.closeSession(mSession);
+            mSession = null;
+        }
+        if (mWriterThread != null) {
+            mWriterThread.quitSafely();
+            mWriterThread = null;
+        }
+        mState = State.FINISHED;
+        mListener.onProgress(this);
+    }
+
+    /**
+     * @return the file name of a scan, without suffix: the repetition, the configuration index
+     * and the time the scan was received
+     */
+    private String fileName(long receivedAt) {
+        String conf = mJob.confIndices.isEmpty() ? "active" : NanoLog.toHex(mJob.confIndices.get(mConfPosition), false);
+        return String.format(Locale.US, "%04d_%s_%d", mRepetition + 1, conf, receivedAt);
+    }
+
+    /**
+     * Write the scan data, then interpret it and write it as CSV, on the writer thread
+     */
+    private void save(final NanoEventBus.ScanDataEvent event, final String name) {
+        final File dir = mDir;
+        final byte[] coefficients = mRefCoefficients;
+        final byte[] matrix = mRefMatrix;
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!dir.exists() && !dir.mkdirs()) {
+                    Log.e(TAG, "Unable to create " + dir);
+                    return;
+                }
+                writeRaw(new File(dir, name + RAW_SUFFIX), event.data);
+                KSTNanoSDK.ScanResults results = KSTNanoSDK.KSTNanoSDK_dlpSpecScanInterpReference(event.data, coefficients, matrix);
+                if (results == null) {
+                    Log.w(TAG, "Unable to interpret " + name + ", only the raw data was saved");
+                    return;
+                }
+                StoredScanDownloader.writeCsv(new File(dir, name + CSV_SUFFIX), results);
+            }
+        });
+    }
+
+    private static void writeRaw(File file, byte[] data) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + file + ": " + e.getMessage());
+        } finally {
+            FileHelper.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.kstechnologies.NanoScan;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Foreground service running an {@link AcquisitionScheduler} without any activity open, for long
+ * unattended runs on a dedicated phone.
+ *
+ * The service binds to the {@link NanoBLEService} and runs the job on an additional session, so
+ * it does not get in the way of the activities. It holds a partial wake lock while the job runs,
+ * so the timetable keeps going with the screen off, and shows the progress in its notification,
+ * which has a button to stop the job.
+ *
+ * A job is started with {@link #start(Context, AcquisitionScheduler.Job)}, as from the menu of the
+ * {@link ScanListActivity}, and stopped with {@link #stop(Context)} or the notification. Only one job runs at a time. If the process is killed, the job is
+ * started again from its first repetition.
+ */
+public class AcquisitionService extends Service {
+
+    private static final String TAG = "__ACQUISITION_SERVICE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    private static final int NOTIFICATION_ID = 1;
+
+    //Start a job. Carries NanoBLEService.EXTRA_DEVICE_ADDRESS, EXTRA_INTERVAL_MS, EXTRA_REPETITIONS
+    //and optionally EXTRA_SCAN_CONF_INDICES
+    public static final String ACTION_START = "com.kstechnologies.NanoScan.acquisition.ACTION_START";
+
+    //Stop the running job
+    public static final String ACTION_STOP = "com.kstechnologies.NanoScan.acquisition.ACTION_STOP";
+
+    //Long extra, the time from the start of one repetition to the start of the next
+    public static final String EXTRA_INTERVAL_MS = "com.kstechnologies.NanoScan.acquisition.EXTRA_INTERVAL_MS";
+
+    //Int extra, the number of repetitions
+    public static final String EXTRA_REPETITIONS = "com.kstechnologies.NanoScan.acquisition.EXTRA_REPETITIONS";
+
+    //ArrayList<byte[]> of the indices of the stored scan configurations to scan with in each
+    //repetition. Without it, every repetition scans once with the active configuration
+    public static final String EXTRA_SCAN_CONF_INDICES = "com.kstechnologies.NanoScan.acquisition.EXTRA_SCAN_CONF_INDICES";
+
+    private AcquisitionScheduler.Job mJob;
+    private AcquisitionScheduler mScheduler;
+    private NotificationManager mNotificationManager;
+    private PowerManager.WakeLock mWakeLock;
+    private boolean mBound;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            NanoBLEService bleService = ((NanoBLEService.LocalBinder) service).getService();
+            if (!bleService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                stopSelf();
+                return;
+            }
+            mScheduler = new AcquisitionScheduler(bleService, mJob, mSchedulerListener);
+            mScheduler.start();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            if (mScheduler != null) {
+                mScheduler.stop();
+                mScheduler = null;
+            }
+        }
+    };
+
+    private final AcquisitionScheduler.Listener mSchedulerListener = new AcquisitionScheduler.Listener() {
+        @Override
+        public void onProgress(AcquisitionScheduler scheduler) {
+            if (scheduler.getState() != AcquisitionScheduler.State.FINISHED) {
+                mNotificationManager.notify(NOTIFICATION_ID, notification(progress(scheduler), true));
+            }
+        }
+
+        @Override
+        public void onFinished(AcquisitionScheduler scheduler) {
+            stopForeground(true);
+            mNotificationManager.notify(NOTIFICATION_ID,
+                    notification(getString(R.string.acquisition_finished, scheduler.getScans()), false));
+            stopSelf();
+        }
+    };
+
+    /**
+     * Start a job, unless one is already running
+     *
+     * @param context the context to start the service from
+     * @param job     the job to run
+     */
+    public static void start(Context context, AcquisitionScheduler.Job job) {
+        Intent intent = new Intent(context, AcquisitionService.class);
+        intent.setAction(ACTION_START);
+        intent.putExtra(NanoBLEService.EXTRA_DEVICE_ADDRESS, job.address);
+        intent.putExtra(EXTRA_INTERVAL_MS, job.intervalMs);
+        intent.putExtra(EXTRA_REPETITIONS, job.repetitions);
+        intent.putExtra(EXTRA_SCAN_CONF_INDICES, new ArrayList<>(job.confIndices));
+        context.startService(intent);
+    }
+
+    /**
+     * Stop the running job, if any
+     *
+     * @param context the context to stop the service from
+     */
+    public static void stop(Context context) {
+        Intent intent = new Intent(context, AcquisitionService.class);
+        intent.setAction(ACTION_STOP);
+        context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || ACTION_STOP.equals(intent.getAction())) {
+            if (debug)
+                Log.d(TAG, "Stopping acquisition");
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (!ACTION_START.equals(intent.getAction())) {
+            return START_NOT_STICKY;
+        }
+        if (mJob != null) {
+            Log.w(TAG, "A job is already running, ignoring the new job");
+            return START_NOT_STICKY;
+        }
+
+        String address = intent.getStringExtra(NanoBLEService.EXTRA_DEVICE_ADDRESS);
+        long intervalMs = intent.getLongExtra(EXTRA_INTERVAL_MS, 0);
+        int repetitions = intent.getIntExtra(EXTRA_REPETITIONS, 0);
+        ArrayList<byte[]> confIndices = (ArrayList<byte[]>) intent.getSerializableExtra(EXTRA_SCAN_CONF_INDICES);
+        if (address == null || repetitions <= 0 || intervalMs < 0) {
+            Log.e(TAG, "Invalid job: " + address + ", " + repetitions + " repetitions every " + intervalMs + "ms");
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        mJob = new AcquisitionScheduler.Job(address, intervalMs, repetitions,
+                confIndices != null ? confIndices : new ArrayList<byte[]>());
+
+        startForeground(NOTIFICATION_ID, notification(getString(R.string.acquisition_connecting, address), true));
+        mWakeLock.acquire();
+        mBound = bindService(new Intent(this, NanoBLEService.class), mConnection, Context.BIND_AUTO_CREATE);
+        if (!mBound) {
+            Log.e(TAG, "Unable to bind to the BLE service");
+            stopSelf();
+        }
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mScheduler != null) {
+            mScheduler.stop();
+            mScheduler = null;
+        }
+        if (mBound) {
+            unbindService(mConnection);
+            mBound = false;
+        }
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+        //Does nothing once a finished job has left the foreground with its final notification
+        stopForeground(true);
+        mJob = null;
+    }
+
+    private String progress(AcquisitionScheduler scheduler) {
+        if (scheduler.getState() == AcquisitionScheduler.State.CONNECTING) {
+            return getString(R.string.acquisition_connecting, scheduler.getJob().address);
+        }
+        return getString(R.string.acquisition_progress, scheduler.getRepetition(),
+                scheduler.getJob().repetitions, scheduler.getScans());
+    }
+
+    private Notification notification(String text, boolean running) {
+        Notification.Builder builder = new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_connect)
+                .setContentTitle(getString(R.string.acquisition_title))
+                .setContentText(text)
+                .setShowWhen(false)
+                .setOngoing(running);
+        if (running) {
+            Intent stop = new Intent(this, AcquisitionService.class).setAction(ACTION_STOP);
+            builder.addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(R.string.acquisition_stop),
+                    PendingIntent.getService(this, 0, stop, PendingIntent.FLAG_UPDATE_CURRENT));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,161 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * {@link NanoGatt} for a connection to a real Nano. Every call is passed straight to the
+ * {@link BluetoothGatt} the connection was made with.
+ *
+ * Unlike {@code KSTNanoSDK.enumerateServices}, which stores the characteristics of a single
+ * connection in static fields, the characteristics are kept per connection.
+ */
+public class BluetoothNanoGatt implements NanoGatt {
+
+    private static final String TAG = "__BT_NANO_GATT";
+
+    //Characteristics the NanoSession reads, writes or subscribes to
+    private static final UUID[] REQUIRED = {
+            KSTNanoSDK.NanoGATT.DIS_MANUF_NAME,
+            KSTNanoSDK.NanoGATT.DIS_MODEL_NUMBER,
+            KSTNanoSDK.NanoGATT.DIS_SERIAL_NUMBER,
+            KSTNanoSDK.NanoGATT.DIS_HW_REV,
+            KSTNanoSDK.NanoGATT.DIS_TIVA_FW_REV,
+            KSTNanoSDK.NanoGATT.DIS_SPECC_REV,
+            KSTNanoSDK.NanoGATT.BAS_BATT_LVL,
+            KSTNanoSDK.NanoGATT.GGIS_TEMP_MEASUREMENT,
+            KSTNanoSDK.NanoGATT.GGIS_HUMID_MEASUREMENT,
+            KSTNanoSDK.NanoGATT.GGIS_DEV_STATUS,
+            KSTNanoSDK.NanoGATT.GGIS_ERR_STATUS,
+            KSTNanoSDK.NanoGATT.GGIS_TEMP_THRESH,
+            KSTNanoSDK.NanoGATT.GGIS_HUMID_THRESH,
+            KSTNanoSDK.NanoGATT.GDTS_TIME,
+            KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_COEFF,
+            KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_COEFF,
+            KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_MATRIX,
+            KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_MATRIX,
+            KSTNanoSDK.NanoGATT.GSCIS_NUM_STORED_CONF,
+            KSTNanoSDK.NanoGATT.GSCIS_REQ_STORED_CONF_LIST,
+            KSTNanoSDK.NanoGATT.GSCIS_RET_STORED_CONF_LIST,
+            KSTNanoSDK.NanoGATT.GSCIS_REQ_SCAN_CONF_DATA,
+            KSTNanoSDK.NanoGATT.GSCIS_RET_SCAN_CONF_DATA,
+            KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF,
+            KSTNanoSDK.NanoGATT.GSDIS_NUM_SD_STORED_SCANS,
+            KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST,
+            KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST_DATA,
+            KSTNanoSDK.NanoGATT.GSDIS_SET_SCAN_NAME_STUB,
+            KSTNanoSDK.NanoGATT.GSDIS_START_SCAN,
+            KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN,
+            KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_NAME,
+            KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_NAME,
+            KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_TYPE,
+            KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_TYPE,
+            KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_DATE,
+            KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_DATE,
+            KSTNanoSDK.NanoGATT.GSDIS_REQ_PKT_FMT_VER,
+            KSTNanoSDK.NanoGATT.GSDIS_RET_PKT_FMT_VER,
+            KSTNanoSDK.NanoGATT.GSDIS_REQ_SER_SCAN_DATA_STRUCT,
+            KSTNanoSDK.NanoGATT.GSDIS_RET_SER_SCAN_DATA_STRUCT};
+
+    private final BluetoothGatt mGatt;
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+
+    /**
+     * @param gatt the connection returned by {@code BluetoothDevice#connectGatt}
+     */
+    public BluetoothNanoGatt(BluetoothGatt gatt) {
+        mGatt = gatt;
+    }
+
+    /**
+     * @return the wrapped connection
+     */
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    /**
+     * @return true if the device is bonded, in which case it keeps its CCCD values across
+     * connections
+     */
+    public boolean isBonded() {
+        return mGatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public synchronized boolean enumerateServices() {
+        mCharacteristics.clear();
+        for (BluetoothGattService service : mGatt.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                mCharacteristics.put(characteristic.getUuid(), characteristic);
+            }
+        }
+        boolean complete = true;
+        for (UUID uuid : REQUIRED) {
+            if (!mCharacteristics.containsKey(uuid)) {
+                Log.e(TAG, "Missing characteristic " + uuid);
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    @Override
+    public synchronized BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        return mCharacteristics.get(uuid);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return mGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return mGatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return mGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mGatt.close();
+    }
+}
@@ -0,0 +1,346 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Replays a {@link PacketTrace} capture through the GATT callback of a {@link NanoSession}.
+ *
+ * Every read, write and notification in the capture is delivered to the callback as if it came
+ * from a device, so the reassembly, interpretation and persistence paths run on recorded traffic.
+ * The records are delivered at the recorded speed, or back to back with
+ * {@link #setRealTime(boolean)} set to false.
+ *
+ * Since the responses come from the capture, the reads and writes the session issues during the
+ * replay are accepted and dropped. Descriptor writes, service discovery and MTU requests are not
+ * in the capture, and are completed right away so that the session reaches the connected state.
+ *
+ * Records are matched by their 16-bit short UUID to a set of characteristics created like those
+ * of the {@link SimulatedNano}.
+ */
+public class CaptureReplay implements NanoGatt {
+
+    private static final String TAG = "__CAPTURE_REPLAY";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    /**
+     * Callback for the end of the replay. Called on the replay thread
+     */
+    public interface Listener {
+        /**
+         * @param records   the number of records delivered to the callback
+         * @param elapsedMs the time from the first to the last record
+         * @param error     the error that ended the replay early, or null
+         */
+        void onReplayComplete(int records, long elapsedMs, IOException error);
+    }
+
+    private final File mFile;
+    private final String mAddress;
+    private final Object mLock = new Object();
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+    private final HashMap<Integer, BluetoothGattCharacteristic> mShortUuids = new HashMap<>();
+    private boolean mRealTime = true;
+    private Listener mListener;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private BluetoothGattCallback mCallback;
+    private PacketTrace.Reader mReader;
+    private long mStartedAt;
+    private int mRecords;
+
+    /**
+     * @param file the capture to replay
+     */
+    public CaptureReplay(File file) {
+        this(file, SimulatedNano.DEFAULT_ADDRESS);
+    }
+
+    /**
+     * @param file    the capture to replay
+     * @param address the Bluetooth address reported for the replayed device. Files kept per
+     *                device by the session are stored under this address
+     */
+    public CaptureReplay(File file, String address) {
+        mFile = file;
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @param realTime true to deliver the records at the recorded speed, false to deliver them
+     *                 as fast as the callback handles them
+     */
+    public void setRealTime(boolean realTime) {
+        mRealTime = realTime;
+    }
+
+    /**
+     * @param listener the listener for the end of the replay, may be null
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Open the capture and report the connection through {@code onConnectionStateChange}. The
+     * records are delivered once services have been discovered
+     *
+     * @param callback the callback to deliver the capture to
+     * @throws IOException if the capture could not be opened
+     */
+    public void connect(BluetoothGattCallback callback) throws IOException {
+        PacketTrace.Reader reader = new PacketTrace.Reader(mFile);
+        synchronized (mLock) {
+            mCallback = callback;
+            mReader = reader;
+            mRecords = 0;
+            if (mThread == null) {
+                mThread = new HandlerThread(TAG);
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+            }
+        }
+        post(0, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return post(0, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback == null) {
+                    return;
+                }
+                callback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS);
+                mStartedAt = SystemClock.elapsedRealtime();
+                next();
+            }
+        });
+    }
+
+    /**
+     * Map the short UUIDs of the capture to a set of simulated Nano characteristics
+     */
+    @Override
+    public boolean enumerateServices() {
+        synchronized (mLock) {
+            mCharacteristics.clear();
+            mShortUuids.clear();
+            mCharacteristics.putAll(SimulatedNano.createCharacteristics());
+            for (BluetoothGattCharacteristic characteristic : mCharacteristics.values()) {
+                mShortUuids.put(PacketTrace.shortUuid(characteristic.getUuid()), characteristic);
+            }
+            return !mCharacteristics.isEmpty();
+        }
+    }
+
+    @Override
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        synchronized (mLock) {
+            return mCharacteristics.get(uuid);
+        }
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        return post(0, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onDescriptorWrite(null, descriptor, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        return post(0, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onMtuChanged(null, mtu, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return true;
+    }
+
+    /**
+     * Stop the replay and report the disconnection
+     */
+    @Override
+    public void disconnect() {
+        synchronized (mLock) {
+            if (mHandler != null) {
+                mHandler.removeCallbacksAndMessages(null);
+            }
+        }
+        post(0, new Runnable() {
+            @Override
+            public void run() {
+                closeReader();
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            mCallback = null;
+            if (mThread != null) {
+                mThread.quit();
+                mThread = null;
+                mHandler = null;
+            }
+        }
+        closeReader();
+    }
+
+    /**
+     * Read the next record and schedule its delivery
+     */
+    private void next() {
+        PacketTrace.Record record;
+        try {
+            PacketTrace.Reader reader;
+            synchronized (mLock) {
+                reader = mReader;
+            }
+            record = reader == null ? null : reader.next();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile + ": " + e.getMessage());
+            finish(e);
+            return;
+        }
+        if (record == null) {
+            finish(null);
+            return;
+        }
+
+        final PacketTrace.Record current = record;
+        long delay = mRealTime ? mStartedAt + record.timeMs - SystemClock.elapsedRealtime() : 0;
+        post(Math.max(0, delay), new Runnable() {
+            @Override
+            public void run() {
+                deliver(current);
+                next();
+            }
+        });
+    }
+
+    /**
+     * Deliver a record to the callback as the matching GATT event
+     */
+    private void deliver(PacketTrace.Record record) {
+        BluetoothGattCallback callback = callback();
+        BluetoothGattCharacteristic characteristic;
+        synchronized (mLock) {
+            characteristic = mShortUuids.get(record.shortUuid);
+        }
+        if (callback == null) {
+            return;
+        }
+        if (characteristic == null) {
+            if (debug)
+                Log.d(TAG, "Skipping record for unknown characteristic " + Integer.toHexString(record.shortUuid));
+            return;
+        }
+
+        mRecords++;
+        characteristic.setValue(record.data);
+        switch (record.direction) {
+            case PacketTrace.DIR_NOTIFY:
+                callback.onCharacteristicChanged(null, characteristic);
+                break;
+            case PacketTrace.DIR_READ:
+                callback.onCharacteristicRead(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+                break;
+            case PacketTrace.DIR_WRITE:
+                callback.onCharacteristicWrite(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+                break;
+        }
+    }
+
+    private void finish(IOException error) {
+        closeReader();
+        long elapsed = SystemClock.elapsedRealtime() - mStartedAt;
+        if (debug)
+            Log.d(TAG, "Replayed " + mRecords + " records in " + elapsed + "ms");
+        if (mListener != null) {
+            mListener.onReplayComplete(mRecords, elapsed, error);
+        }
+    }
+
+    private void closeReader() {
+        PacketTrace.Reader reader;
+        synchronized (mLock) {
+            reader = mReader;
+            mReader = null;
+        }
+        FileHelper.closeQuietly(reader);
+    }
+
+    private boolean post(long delayMs, Runnable runnable) {
+        synchronized (mLock) {
+            return mHandler != null && mHandler.postDelayed(runnable, delayMs);
+        }
+    }
+
+    private BluetoothGattCallback callback() {
+        synchronized (mLock) {
+            return mCallback;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Back to back scanning on a {@link NanoSession}, with processing overlapped with acquisition.
+ *
+ * The next scan is started as soon as the data of the previous one has been received, on the
+ * thread the {@link NanoEventBus.ScanDataEvent} is posted on. The received data goes through a
+ * bounded pipeline:
+ * <pre>
+ *   device --scan data--&gt; queue --&gt; processing thread --&gt; main thread
+ *      ^                     |     (interpret, persist)     (plot the newest scan)
+ *      +--next scan----------+
+ * </pre>
+ * Every scan is interpreted and handed to {@link Listener#onScanProcessed} in order on the
+ * processing thread. Only the newest processed scan is handed to {@link Listener#onScanDisplayed}
+ * on the main thread, so a slow chart never holds back acquisition or persistence.
+ *
+ * When the processing thread falls behind and the queue is full, the next scan is held back until
+ * a queued scan has been taken off, so no scan data is ever dropped. The scan rate is then set by
+ * the processing time, and every held back scan is counted as a stall. Scan data that still
+ * arrives while acquisition is held back, such as a scan started from elsewhere, is kept aside
+ * and queued in order as soon as there is room.
+ *
+ * If the scan data of a scan cannot be received, the engine stops and tells
+ * {@link Listener#onScanFailed()}, since the next scan would only be started from that data.
+ *
+ * Where the native library has it, scans are interpreted through a {@link ScanInterpreter}
+ * owned by the processing thread, which reuses its native buffers for every scan.
+ */
+public class ContinuousScanEngine {
+
+    private static final String TAG = "__CONTINUOUS_SCAN";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Number of received scans that may wait for processing before acquisition is held back
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    /**
+     * Callback for processed scans
+     */
+    public interface Listener {
+        /**
+         * Called on the processing thread for every scan, in the order the scans were received.
+         * Results should be persisted here
+         *
+         * @param event      the received scan data
+         * @param results    the interpreted scan
+         * @param receivedAt the wall clock time the scan data was received at
+         */
+        void onScanProcessed(NanoEventBus.ScanDataEvent event, KSTNanoSDK.ScanResults results, long receivedAt);
+
+        /**
+         * Called on the main thread with the newest processed scan. Scans processed while the
+         * main thread was busy are skipped
+         *
+         * @param event      the received scan data
+         * @param results    the interpreted scan
+         * @param receivedAt the wall clock time the scan data was received at
+         */
+        void onScanDisplayed(NanoEventBus.ScanDataEvent event, KSTNanoSDK.ScanResults results, long receivedAt);
+
+        /**
+         * Called on the main thread once the engine has stopped because the scan data of a scan
+         * could not be received
+         */
+        void onScanFailed();
+    }
+
+    private static class Scan {
+        final NanoEventBus.ScanDataEvent event;
+        final long receivedAt;
+        KSTNanoSDK.ScanResults results;
+
+        Scan(NanoEventBus.ScanDataEvent event, long receivedAt) {
+            this.event = event;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final NanoSession mSession;
+    private final Listener mListener;
+    private final byte[] mRefCoefficients;
+    private final byte[] mRefMatrix;
+    private final ArrayBlockingQueue<Scan> mQueue;
+    //Scans received while the queue was full, queued before any later scan
+    private final ArrayDeque<Scan> mOverflow = new ArrayDeque<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicReference<Scan> mNewest = new AtomicReference<>();
+
+    private boolean mRunning;
+    private boolean mSaveToSd;
+    private boolean mHeldBack;
+    private Thread mThread;
+
+    //Throughput counters
+    private int mReceived;
+    private int mProcessed;
+    private int mStalls;
+    private long mFirstReceivedAt;
+    private long mLastReceivedAt;
+
+    private final NanoEventBus.Subscriber<NanoEventBus.ScanDataEvent> mScanDataSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.ScanDataEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.ScanDataEvent event) {
+                    onScanData(event);
+                }
+            };
+
+    private final NanoEventBus.Subscriber<NanoEventBus.TransferFailedEvent> mTransferFailedSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.TransferFailedEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.TransferFailedEvent event) {
+                    onTransferFailed(event);
+                }
+            };
+
+    private final Runnable mDisplay = new Runnable() {
+        @Override
+        public void run() {
+            Scan scan = mNewest.getAndSet(null);
+            if (scan != null && isRunning()) {
+                mListener.onScanDisplayed(scan.event, scan.results, scan.receivedAt);
+            }
+        }
+    };
+
+    /**
+     * @param session         the session to scan with
+     * @param refCoefficients the reference calibration coefficients to interpret scans with
+     * @param refMatrix       the reference calibration matrix to interpret scans with
+     * @param listener        the listener for processed scans
+     */
+    public ContinuousScanEngine(NanoSession session, byte[] refCoefficients, byte[] refMatrix, Listener listener) {
+        this(session, refCoefficients, refMatrix, listener, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param session         the session to scan with
+     * @param refCoefficients the reference calibration coefficients to interpret scans with
+     * @param refMatrix       the reference calibration matrix to interpret scans with
+     * @param listener        the listener for processed scans
+     * @param queueDepth      the number of scans that may wait for processing
+     */
+    public ContinuousScanEngine(NanoSession session, byte[] refCoefficients, byte[] refMatrix, Listener listener, int queueDepth) {
+        mSession = session;
+        mRefCoefficients = refCoefficients;
+        mRefMatrix = refMatrix;
+        mListener = listener;
+        mQueue = new ArrayBlockingQueue<>(queueDepth);
+    }
+
+    /**
+     * Write the scan name stub and start the first scan. Like a single scan, the first scan is
+     * stored on the SD card if the save to SD setting is on
+     *
+     * @param saveToSd true to also store the following scans on the SD card of the device. This
+     *                 should match the save to SD setting
+     */
+    public void start(boolean saveToSd) {
+        synchronized (this) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mHeldBack = false;
+            mSaveToSd = saveToSd;
+            mReceived = 0;
+            mProcessed = 0;
+            mStalls = 0;
+            mQueue.clear();
+            mOverflow.clear();
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    process();
+                }
+            }, TAG);
+            mThread.start();
+        }
+        NanoEventBus.getDefault().register(NanoEventBus.ScanDataEvent.class, mScanDataSubscriber, NanoEventBus.ThreadMode.POSTING);
+        NanoEventBus.getDefault().register(NanoEventBus.TransferFailedEvent.class, mTransferFailedSubscriber, NanoEventBus.ThreadMode.MAIN);
+        mSession.prepareScan();
+    }
+
+    /**
+     * Stop starting new scans. A scan that is running is still received, but not processed, and
+     * scans already queued are dropped
+     */
+    public void stop() {
+        NanoEventBus.getDefault().unregister(mScanDataSubscriber);
+        NanoEventBus.getDefault().unregister(mTransferFailedSubscriber);
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            mQueue.clear();
+            mOverflow.clear();
+            if (mThread != null) {
+                mThread.interrupt();
+                mThread = null;
+            }
+        }
+        mMainHandler.removeCallbacks(mDisplay);
+        mNewest.set(null);
+        if (debug)
+            Log.d(TAG, "Stopped after " + mProcessed + " scans, " + getScansPerMinute() + " scans/min, " + mStalls + " stalls");
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return the number of scans received since the engine was started
+     */
+    public synchronized int getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @return the number of scans processed since the engine was started
+     */
+    public synchronized int getProcessed() {
+        return mProcessed;
+    }
+
+    /**
+     * @return the number of scans that were held back because the queue was full
+     */
+    public synchronized int getStalls() {
+        return mStalls;
+    }
+
+    /**
+     * @return the acquisition rate from the first to the last received scan, or 0 until two scans
+     * have been received
+     */
+    public synchronized float getScansPerMinute() {
+        if (mReceived < 2 || mLastReceivedAt == mFirstReceivedAt) {
+            return 0;
+        }
+        return (mReceived - 1) * 60000f / (mLastReceivedAt - mFirstReceivedAt);
+    }
+
+    /**
+     * Queue the received data and start the next scan, unless the queue is full
+     */
+    private void onScanData(NanoEventBus.ScanDataEvent event) {
+        if (!mSession.getAddress().equals(event.address)) {
+            return;
+        }
+        boolean next;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (mReceived == 0) {
+                mFirstReceivedAt = now;
+            }
+            mLastReceivedAt = now;
+            mReceived++;
+            Scan scan = new Scan(event, System.currentTimeMillis());
+            if (!mOverflow.isEmpty() || !mQueue.offer(scan)) {
+                if (debug)
+                    Log.d(TAG, "Processing queue full, keeping scan " + event.name + " aside");
+                mOverflow.add(scan);
+            }
+            next = mOverflow.isEmpty() && mQueue.remainingCapacity() > 0;
+            if (!next && !mHeldBack) {
+                mHeldBack = true;
+                mStalls++;
+                if (debug)
+                    Log.d(TAG, "Processing queue full, holding back the next scan");
+            }
+        }
+        if (next) {
+            mSession.startScan(mSaveToSd);
+        }
+    }
+
+    /**
+     * Stop once the scan data of a scan has been given up, since no further scan would be started
+     */
+    private void onTransferFailed(NanoEventBus.TransferFailedEvent event) {
+        if (event.phase != TransferWatchdog.Phase.SCAN_DATA || !mSession.getAddress().equals(event.address)
+                || !isRunning()) {
+            return;
+        }
+        Log.e(TAG, "Scan data transfer failed, stopping after " + getReceived() + " scans");
+        stop();
+        mListener.onScanFailed();
+    }
+
+    /**
+     * Processing thread. Takes the queued scans off in order, interprets them and hands them to
+     * the listener
+     */
+    private void process() {
+        ScanInterpreter interpreter = null;
+        if (ScanInterpreter.isAvailable()) {
+            interpreter = new ScanInterpreter();
+            interpreter.setReference(mRefCoefficients, mRefMatrix);
+        }
+        while (true) {
+            Scan scan;
+            try {
+                scan = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            boolean resume;
+            synchronized (this) {
+                if (!mRunning || mThread != Thread.currentThread()) {
+                    return;
+                }
+                while (!mOverflow.isEmpty() && mQueue.offer(mOverflow.peek())) {
+                    mOverflow.poll();
+                }
+                resume = mHeldBack && mOverflow.isEmpty();
+                if (resume) {
+                    mHeldBack = false;
+                }
+            }
+            if (resume) {
+                mSession.startScan(mSaveToSd);
+            }
+
+            if (interpreter != null && interpreter.interpret(scan.event.data)) {
+                scan.results = interpreter.toScanResults();
+            } else {
+                scan.results = KSTNanoSDK.KSTNanoSDK_dlpSpecScanInterpReference(scan.event.data, mRefCoefficients, mRefMatrix);
+            }
+            mListener.onScanProcessed(scan.event, scan.results, scan.receivedAt);
+            synchronized (this) {
+                mProcessed++;
+            }
+
+            if (mNewest.getAndSet(scan) == null) {
+                mMainHandler.post(mDisplay);
+            }
+        }
+    }
+}
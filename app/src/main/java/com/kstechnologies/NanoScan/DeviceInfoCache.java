@@ -0,0 +1,225 @@
+package com.kstechnologies.NanoScan;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * On-disk cache of the device information service values of each Nano, keyed by the Bluetooth
+ * address of the device.
+ *
+ * The manufacturer, model, serial number, hardware revision and firmware revisions of a device
+ * take six sequential reads, and only the firmware revisions can ever change. With a cached
+ * entry, a {@link NanoSession} answers a device information request right away, and checks the
+ * entry once per connection by reading the two firmware revisions only. The six values are read
+ * again when either revision differs from the cached one, as after a firmware update.
+ *
+ * Entries are also kept in memory once loaded. The least recently used files are removed once
+ * more than {@link #MAX_DEVICES} devices are cached.
+ */
+public class DeviceInfoCache {
+
+    private static final String TAG = "__DEVICE_INFO_CACHE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Directory inside the app files directory holding one file per device
+    private static final String CACHE_DIR = "device_info_cache";
+    private static final String FILE_SUFFIX = ".info";
+
+    private static final int MAGIC = 0x4E444946; //"NDIF"
+    private static final int VERSION = 1;
+
+    //Maximum number of devices kept in the cache
+    public static final int MAX_DEVICES = 16;
+
+    /**
+     * The device information values of a device
+     */
+    public static class Entry {
+        private final String manufName;
+        private final String modelNum;
+        private final String serialNum;
+        private final String hardwareRev;
+        private final String tivaRev;
+        private final String spectrumRev;
+
+        public Entry(String manufName, String modelNum, String serialNum, String hardwareRev,
+                     String tivaRev, String spectrumRev) {
+            this.manufName = manufName;
+            this.modelNum = modelNum;
+            this.serialNum = serialNum;
+            this.hardwareRev = hardwareRev;
+            this.tivaRev = tivaRev;
+            this.spectrumRev = spectrumRev;
+        }
+
+        public String getManufName() {
+            return manufName;
+        }
+
+        public String getModelNum() {
+            return modelNum;
+        }
+
+        public String getSerialNum() {
+            return serialNum;
+        }
+
+        public String getHardwareRev() {
+            return hardwareRev;
+        }
+
+        public String getTivaRev() {
+            return tivaRev;
+        }
+
+        public String getSpectrumRev() {
+            return spectrumRev;
+        }
+
+        /**
+         * @param tivaRev     the Tiva firmware revision read from the device
+         * @param spectrumRev the Spectrum C revision read from the device
+         * @return true if both revisions are the cached ones
+         */
+        public boolean hasFirmware(String tivaRev, String spectrumRev) {
+            return this.tivaRev.equals(tivaRev) && this.spectrumRev.equals(spectrumRev);
+        }
+    }
+
+    private final File mDir;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * @param context the context used to locate the app files directory
+     */
+    public DeviceInfoCache(Context context) {
+        mDir = new File(context.getFilesDir(), CACHE_DIR);
+    }
+
+    /**
+     * Get the cached device information of a device
+     *
+     * @param address the Bluetooth address of the device
+     * @return the cached values, or null if there is no valid entry for the device
+     */
+    public synchronized Entry get(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            return entry;
+        }
+        File file = fileFor(address);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown cache file format");
+            }
+            entry = new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+            file.setLastModified(System.currentTimeMillis());
+            mEntries.put(address, entry);
+            if (debug)
+                Log.d(TAG, "Cache hit for " + address + ", serial:" + entry.serialNum);
+            return entry;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding cache entry for " + address + ": " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Store the device information of a device, replacing any existing entry. Entries with a
+     * value that could not be read are not stored
+     *
+     * @param address the Bluetooth address of the device
+     * @param entry   the values read from the device
+     */
+    public synchronized void put(String address, final Entry entry) {
+        if (entry.manufName == null || entry.modelNum == null || entry.serialNum == null
+                || entry.hardwareRev == null || entry.tivaRev == null || entry.spectrumRev == null) {
+            invalidate(address);
+            return;
+        }
+        mEntries.put(address, entry);
+        File file = fileFor(address);
+        if (file == null || (!mDir.exists() && !mDir.mkdirs())) {
+            return;
+        }
+
+        try {
+            FileHelper.writeAtomically(file, new FileHelper.Writer() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(stream);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(entry.manufName);
+                    out.writeUTF(entry.modelNum);
+                    out.writeUTF(entry.serialNum);
+                    out.writeUTF(entry.hardwareRev);
+                    out.writeUTF(entry.tivaRev);
+                    out.writeUTF(entry.spectrumRev);
+                    out.flush();
+                }
+            });
+            if (debug)
+                Log.d(TAG, "Cached device information for " + address + ", serial:" + entry.serialNum);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to cache device information for " + address + ": " + e.getMessage());
+        }
+        if (FileHelper.trim(mDir, MAX_DEVICES) > 0) {
+            //Entries in memory may no longer have a file, drop them so they are not served forever
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Remove the cached device information of a device, so the next request reads it again
+     *
+     * @param address the Bluetooth address of the device
+     */
+    public synchronized void invalidate(String address) {
+        mEntries.remove(address);
+        File file = fileFor(address);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Remove every cached device information
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Map an address to its cache file, without the colons of the address
+     */
+    private File fileFor(String address) {
+        if (address == null || address.trim().isEmpty()) {
+            return null;
+        }
+        return new File(mDir, address.trim().replaceAll("[^A-Za-z0-9_-]", "") + FILE_SUFFIX);
+    }
+}
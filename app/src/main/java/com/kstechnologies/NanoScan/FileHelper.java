@@ -0,0 +1,96 @@
+package com.kstechnologies.NanoScan;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * File handling shared by the caches and stores that keep their state in the app directories.
+ */
+final class FileHelper {
+
+    /**
+     * Writes the content of a file
+     */
+    interface Writer {
+        /**
+         * @param out the stream to write to. Streams wrapped around it must be flushed before
+         *            returning
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private FileHelper() {
+    }
+
+    /**
+     * Write a file through a temporary file that is renamed over it, so that a failed or
+     * interrupted write never leaves a partial file behind
+     *
+     * @param file   the file to write
+     * @param writer writes the content
+     * @throws IOException if the file could not be written. The previous file is then unchanged
+     */
+    static void writeAtomically(File file, Writer writer) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            writer.writeTo(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            closeQuietly(out);
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Remove the least recently modified files of a directory until at most a number remain
+     *
+     * @param dir the directory to trim
+     * @param max the number of files to keep
+     * @return the number of files removed
+     */
+    static int trim(File dir, int max) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= max) {
+            return 0;
+        }
+        long[] modified = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+        }
+        Arrays.sort(modified);
+        long cutoff = modified[files.length - max];
+        int removed = 0;
+        for (File file : files) {
+            if (file.lastModified() < cutoff && file.delete()) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Close a stream, ignoring any error
+     *
+     * @param closeable the stream to close, may be null
+     */
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Nothing left to do with a stream that fails to close
+            }
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serialized GATT operation queue used by the {@link NanoBLEService}.
+ *
+ * The Android BLE stack can only have one outstanding GATT operation at a time. Instead of having
+ * each GATT callback start the next operation by hand, operations are added to this queue and
+ * issued back-to-back: as soon as the callback for the operation in flight returns, the next
+ * operation is started.
+ *
+ * The service is responsible for forwarding the read, write, descriptor write, and MTU callbacks to
+ * {@link #onCharacteristicRead(BluetoothGattCharacteristic, int)},
+ * {@link #onCharacteristicWrite(BluetoothGattCharacteristic, int)},
+ * {@link #onDescriptorWrite(BluetoothGattDescriptor, int)}, and {@link #onMtuChanged(int, int)}. Callbacks for operations that were not
+ * issued by this queue are ignored, so they are safe to forward unconditionally.
+ *
+ * An operation that was issued but never called back, as when the stack drops the callback, is
+ * completed with GATT_FAILURE after {@link #DEFAULT_TIMEOUT_MS}, so that it never holds up the
+ * operations behind it.
+ *
+ * Operations can be grouped into a named batch (for example "subscribe all" or "read device
+ * info"). A batch reports once when its last operation completes, along with the total time the
+ * batch took so that whole sequences can be measured.
+ */
+public class GattOperationQueue {
+
+    private static final String TAG = "__GATT_QUEUE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //CCCD UUID as a string. The hyphens and lower case letters are intentional and must remain as provided.
+    public static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    //Time an issued operation may wait for its callback before it is completed with GATT_FAILURE
+    public static final long DEFAULT_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * Types of GATT operations supported by the queue
+     */
+    public enum Type {
+        READ,
+        WRITE,
+        DESCRIPTOR_WRITE,
+        NOTIFY,
+        MTU
+    }
+
+    /**
+     * Callback for the completion of a single operation
+     */
+    public interface OperationCallback {
+        /**
+         * Called when the operation has completed, or failed to start
+         *
+         * @param operation the operation that completed
+         * @param status    the GATT status of the operation
+         */
+        void onOperationComplete(Operation operation, int status);
+    }
+
+    /**
+     * Callback for the completion of a batch of operations
+     */
+    public interface BatchCallback {
+        /**
+         * Called once every operation in the batch has completed
+         *
+         * @param name      the name the batch was submitted with
+         * @param count     the number of operations in the batch
+         * @param failures  the number of operations that did not complete with GATT_SUCCESS
+         * @param elapsedMs the time from submitting the batch to the last completion
+         */
+        void onBatchComplete(String name, int count, int failures, long elapsedMs);
+    }
+
+    /**
+     * A single GATT operation. Operations are created with the static factory methods
+     * and then passed to {@link #enqueue(Operation)} or {@link #enqueueBatch(String, List, BatchCallback)}
+     */
+    public static class Operation {
+        private final Type type;
+        private final BluetoothGattCharacteristic characteristic;
+        private final BluetoothGattDescriptor descriptor;
+        private final byte[] value;
+        private int mtu;
+        private OperationCallback callback;
+        private Batch batch;
+        private long startedAt;
+        private long completedAt;
+
+        private Operation(Type type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+        }
+
+        /**
+         * Create a characteristic read operation
+         *
+         * @param characteristic the characteristic to read
+         * @return the new operation
+         */
+        public static Operation read(BluetoothGattCharacteristic characteristic) {
+            return new Operation(Type.READ, characteristic, null, null);
+        }
+
+        /**
+         * Create a characteristic write operation
+         *
+         * @param characteristic the characteristic to write
+         * @param value          the value to write to the characteristic
+         * @return the new operation
+         */
+        public static Operation write(BluetoothGattCharacteristic characteristic, byte[] value) {
+            return new Operation(Type.WRITE, characteristic, null, value);
+        }
+
+        /**
+         * Create a descriptor write operation
+         *
+         * @param descriptor the descriptor to write
+         * @param value      the value to write to the descriptor
+         * @return the new operation
+         */
+        public static Operation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+            return new Operation(Type.DESCRIPTOR_WRITE, null, descriptor, value);
+        }
+
+        /**
+         * Create an operation that enables notifications for a characteristic. This enables the
+         * notification locally and writes the CCCD of the characteristic
+         *
+         * @param characteristic the characteristic to subscribe to
+         * @return the new operation
+         */
+        public static Operation notify(BluetoothGattCharacteristic characteristic) {
+            return new Operation(Type.NOTIFY, characteristic, null, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        }
+
+        /**
+         * Create an operation that requests a new ATT MTU for the connection. The MTU that was
+         * actually negotiated is available from {@link #getMtu()} once the operation completes
+         *
+         * @param mtu the requested MTU
+         * @return the new operation
+         */
+        public static Operation requestMtu(int mtu) {
+            Operation operation = new Operation(Type.MTU, null, null, null);
+            operation.mtu = mtu;
+            return operation;
+        }
+
+        /**
+         * Set the callback to be notified when this operation completes
+         *
+         * @param callback the callback to notify
+         * @return this operation
+         */
+        public Operation setCallback(OperationCallback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return characteristic;
+        }
+
+        public BluetoothGattDescriptor getDescriptor() {
+            return descriptor;
+        }
+
+        /**
+         * @return for an MTU operation, the requested MTU before completion and the negotiated
+         * MTU after completion
+         */
+        public int getMtu() {
+            return mtu;
+        }
+
+        /**
+         * @return the time in milliseconds between issuing the operation and its completion
+         */
+        public long getDuration() {
+            return completedAt - startedAt;
+        }
+
+        /**
+         * @return the UUID of the characteristic this operation targets, or null for operations
+         * that do not target a characteristic
+         */
+        public UUID getUuid() {
+            if (characteristic != null) {
+                return characteristic.getUuid();
+            } else if (descriptor != null) {
+                return descriptor.getCharacteristic().getUuid();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Bookkeeping for a group of operations submitted together
+     */
+    private static class Batch {
+        private final String name;
+        private final int count;
+        private final BatchCallback callback;
+        private final long submittedAt;
+        private int completed;
+        private int failures;
+
+        Batch(String name, int count, BatchCallback callback) {
+            this.name = name;
+            this.count = count;
+            this.callback = callback;
+            this.submittedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final LinkedList<Operation> mQueue = new LinkedList<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Operation mCurrent;
+    private NanoGatt mGatt;
+    private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    //Completes the operation in flight if its callback does not arrive in time
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    /**
+     * @param timeoutMs the time an issued operation may wait for its callback
+     */
+    public synchronized void setTimeout(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Set the GATT connection that operations are issued on. Setting a new connection drops all
+     * operations that were queued for the previous one, completing them with GATT_FAILURE.
+     *
+     * @param gatt the GATT connection to use, or null when disconnected
+     */
+    public void setGatt(NanoGatt gatt) {
+        synchronized (this) {
+            mGatt = gatt;
+        }
+        clear();
+    }
+
+    /**
+     * Add a single operation to the end of the queue
+     *
+     * @param operation the operation to add
+     */
+    public void enqueue(Operation operation) {
+        synchronized (this) {
+            mQueue.add(operation);
+        }
+        next();
+    }
+
+    /**
+     * Add a group of operations to the end of the queue. The operations are issued in order,
+     * and the batch callback is called after the last one completes
+     *
+     * @param name       a name for the batch, used for logging and the batch callback
+     * @param operations the operations to add
+     * @param callback   the callback for batch completion, may be null
+     */
+    public void enqueueBatch(String name, List<Operation> operations, BatchCallback callback) {
+        Batch batch = new Batch(name, operations.size(), callback);
+        if (operations.isEmpty()) {
+            finishBatch(batch);
+            return;
+        }
+        synchronized (this) {
+            for (Operation operation : operations) {
+                operation.batch = batch;
+                mQueue.add(operation);
+            }
+        }
+        next();
+    }
+
+    /**
+     * Drop every pending operation, including the one in flight. Used when the connection is lost.
+     * Each dropped operation is completed with GATT_FAILURE, so that its callback and the callback
+     * of its batch are still called
+     */
+    public void clear() {
+        LinkedList<Operation> dropped;
+        synchronized (this) {
+            dropped = new LinkedList<>();
+            if (mCurrent != null) {
+                dropped.add(mCurrent);
+                mCurrent = null;
+            }
+            dropped.addAll(mQueue);
+            mQueue.clear();
+        }
+        mHandler.removeCallbacks(mTimeout);
+        for (Operation operation : dropped) {
+            finish(operation, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    /**
+     * @return true if no operation is queued or in flight
+     */
+    public synchronized boolean isIdle() {
+        return mCurrent == null && mQueue.isEmpty();
+    }
+
+    /**
+     * Forward a characteristic read callback to the queue
+     *
+     * @param characteristic the characteristic that was read
+     * @param status         the status of the read
+     */
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(Type.READ, characteristic.getUuid(), status);
+    }
+
+    /**
+     * Forward a characteristic write callback to the queue
+     *
+     * @param characteristic the characteristic that was written
+     * @param status         the status of the write
+     */
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(Type.WRITE, characteristic.getUuid(), status);
+    }
+
+    /**
+     * Forward a descriptor write callback to the queue
+     *
+     * @param descriptor the descriptor that was written
+     * @param status     the status of the write
+     */
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+        }
+        if (operation != null && operation.type == Type.NOTIFY) {
+            complete(Type.NOTIFY, descriptor.getCharacteristic().getUuid(), status);
+        } else {
+            complete(Type.DESCRIPTOR_WRITE, descriptor.getCharacteristic().getUuid(), status);
+        }
+    }
+
+    /**
+     * Forward an MTU changed callback to the queue
+     *
+     * @param mtu    the MTU of the connection
+     * @param status the status of the MTU request
+     */
+    public void onMtuChanged(int mtu, int status) {
+        Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+        }
+        if (operation != null && operation.type == Type.MTU) {
+            operation.mtu = mtu;
+            complete(Type.MTU, null, status);
+        }
+    }
+
+    /**
+     * Complete the operation in flight if it matches the callback that was received, then
+     * start the next operation
+     */
+    private void complete(Type type, UUID uuid, int status) {
+        Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null || operation.type != type
+                    || (uuid != null && !uuid.equals(operation.getUuid()))) {
+                return;
+            }
+            mCurrent = null;
+        }
+        mHandler.removeCallbacks(mTimeout);
+        finish(operation, status);
+        next();
+    }
+
+    /**
+     * Complete the operation in flight with GATT_FAILURE after its callback did not arrive, then
+     * start the next operation
+     */
+    private void onTimeout() {
+        Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null) {
+                return;
+            }
+            mCurrent = null;
+        }
+        Log.w(TAG, operation.type + " for " + operation.getUuid() + " timed out");
+        finish(operation, BluetoothGatt.GATT_FAILURE);
+        next();
+    }
+
+    /**
+     * Start the next operation if nothing is in flight. Operations that fail to start are
+     * completed immediately with GATT_FAILURE so that the queue never stalls on them
+     */
+    private void next() {
+        while (true) {
+            Operation operation;
+            NanoGatt gatt;
+            synchronized (this) {
+                if (mCurrent != null || mQueue.isEmpty()) {
+                    return;
+                }
+                operation = mQueue.poll();
+                mCurrent = operation;
+                gatt = mGatt;
+            }
+
+            operation.startedAt = SystemClock.elapsedRealtime();
+            long timeoutMs;
+            synchronized (this) {
+                timeoutMs = mTimeoutMs;
+            }
+            mHandler.removeCallbacks(mTimeout);
+            mHandler.postDelayed(mTimeout, timeoutMs);
+            if (gatt != null && start(gatt, operation)) {
+                return;
+            }
+            mHandler.removeCallbacks(mTimeout);
+
+            if (debug)
+                Log.e(TAG, "Failed to start " + operation.type + " for " + operation.getUuid());
+            synchronized (this) {
+                if (mCurrent == operation) {
+                    mCurrent = null;
+                }
+            }
+            finish(operation, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    /**
+     * Issue the GATT call for an operation
+     *
+     * @return true if the Android stack accepted the operation
+     */
+    private boolean start(NanoGatt gatt, Operation operation) {
+        switch (operation.type) {
+            case READ:
+                return operation.characteristic != null && gatt.readCharacteristic(operation.characteristic);
+            case WRITE:
+                if (operation.characteristic == null) {
+                    return false;
+                }
+                operation.characteristic.setValue(operation.value);
+                return gatt.writeCharacteristic(operation.characteristic);
+            case DESCRIPTOR_WRITE:
+                if (operation.descriptor == null) {
+                    return false;
+                }
+                operation.descriptor.setValue(operation.value);
+                return gatt.writeDescriptor(operation.descriptor);
+            case NOTIFY:
+                if (operation.characteristic == null) {
+                    return false;
+                }
+                BluetoothGattDescriptor cccd = operation.characteristic.getDescriptor(CCCD_UUID);
+                if (cccd == null || !gatt.setCharacteristicNotification(operation.characteristic, true)) {
+                    return false;
+                }
+                cccd.setValue(operation.value);
+                return gatt.writeDescriptor(cccd);
+            case MTU:
+                return gatt.requestMtu(operation.mtu);
+        }
+        return false;
+    }
+
+    /**
+     * Report the completion of an operation to its callback and its batch
+     */
+    private void finish(Operation operation, int status) {
+        operation.completedAt = SystemClock.elapsedRealtime();
+        if (operation.callback != null) {
+            operation.callback.onOperationComplete(operation, status);
+        }
+
+        Batch batch = operation.batch;
+        if (batch != null) {
+            batch.completed++;
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                batch.failures++;
+            }
+            if (batch.completed == batch.count) {
+                finishBatch(batch);
+            }
+        }
+    }
+
+    private void finishBatch(Batch batch) {
+        long elapsed = SystemClock.elapsedRealtime() - batch.submittedAt;
+        if (debug)
+            Log.d(TAG, "Batch " + batch.name + " completed " + batch.count + " operations in " + elapsed + "ms, failures:" + batch.failures);
+        if (batch.callback != null) {
+            batch.callback.onBatchComplete(batch.name, batch.count, batch.failures, elapsed);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Per-device record of the GATT services of previously connected Nanos, for fast reconnection.
+ *
+ * Without it, the GATT cache of the Android stack is cleared after every disconnection, so each
+ * reconnection repeats a full service discovery over the air and writes every CCCD again. With a
+ * cache, a {@link NanoSession} keeps the stack cache, and records here:
+ * <ul>
+ * <li>a fingerprint of the service map of the device: the UUID, instance id and properties of
+ * every service and characteristic. A service map found on reconnection, whether reused from the
+ * previous connection or served from the stack cache, is only used if it has the recorded
+ * fingerprint. Otherwise the entry is dropped and the services are discovered again from the
+ * device</li>
+ * <li>the characteristics whose notifications were enabled on a bonded device. A bonded
+ * peripheral keeps its CCCD values across connections, so those CCCDs are not written again.
+ * Unbonded peripherals reset their CCCDs on disconnection and are always subscribed in full</li>
+ * </ul>
+ * The cache is shared by every session of the {@link NanoBLEService} and lives as long as the
+ * service.
+ */
+public class GattServiceCache {
+
+    private static final String TAG = "__GATT_SERVICE_CACHE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    /**
+     * Cached state of a device
+     */
+    public static class Entry {
+        private final long fingerprint;
+        private final Set<UUID> subscribed = new HashSet<>();
+
+        Entry(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return the characteristics whose CCCD the device is known to keep enabled
+         */
+        public synchronized Set<UUID> getSubscribed() {
+            return Collections.unmodifiableSet(new HashSet<>(subscribed));
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * Compute the fingerprint of a service map
+     *
+     * @param services the services of a connection
+     * @return the CRC32 of the UUID, instance id and properties of every service and characteristic
+     */
+    public static long fingerprint(List<BluetoothGattService> services) {
+        StringBuilder map = new StringBuilder();
+        for (BluetoothGattService service : services) {
+            map.append(service.getUuid()).append('/').append(service.getInstanceId()).append('\n');
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                map.append(' ').append(characteristic.getUuid()).append('/').append(characteristic.getInstanceId())
+                        .append('/').append(characteristic.getProperties()).append('\n');
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(map.toString().getBytes(Charset.forName("US-ASCII")));
+        return crc.getValue();
+    }
+
+    /**
+     * @param address the Bluetooth address of the device
+     * @return the cached state of the device, or null if it has none
+     */
+    public synchronized Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    /**
+     * Check a service map against the recorded fingerprint of the device. A device without an
+     * entry gets one with the fingerprint of the map. A map with another fingerprint drops the
+     * entry
+     *
+     * @param address  the Bluetooth address of the device
+     * @param services the services of the connection
+     * @return true if the map has the recorded fingerprint, or was recorded now
+     */
+    public synchronized boolean validate(String address, List<BluetoothGattService> services) {
+        long fingerprint = fingerprint(services);
+        Entry entry = mEntries.get(address);
+        if (entry == null) {
+            mEntries.put(address, new Entry(fingerprint));
+            if (debug)
+                Log.d(TAG, "Recorded services of " + address + ", fingerprint:" + Long.toHexString(fingerprint));
+            return true;
+        }
+        if (entry.fingerprint == fingerprint) {
+            return true;
+        }
+        Log.w(TAG, "Services of " + address + " changed, fingerprint:" + Long.toHexString(fingerprint)
+                + ", expected:" + Long.toHexString(entry.fingerprint));
+        mEntries.remove(address);
+        return false;
+    }
+
+    /**
+     * Record the characteristics whose CCCD was enabled on a bonded device
+     *
+     * @param address the Bluetooth address of the device
+     * @param uuids   the characteristics that were subscribed
+     */
+    public synchronized void setSubscribed(String address, Set<UUID> uuids) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.subscribed.addAll(uuids);
+            }
+        }
+    }
+
+    /**
+     * Forget the subscriptions of a device, as when it is no longer bonded
+     *
+     * @param address the Bluetooth address of the device
+     */
+    public synchronized void clearSubscribed(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.subscribed.clear();
+            }
+        }
+    }
+
+    /**
+     * Forget everything about a device
+     *
+     * @param address the Bluetooth address of the device
+     */
+    public synchronized void invalidate(String address) {
+        mEntries.remove(address);
+    }
+}
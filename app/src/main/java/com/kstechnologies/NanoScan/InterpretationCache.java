@@ -0,0 +1,335 @@
+package com.kstechnologies.NanoScan;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of interpreted scans, so that interpreting the same serialized scan again with the same
+ * reference calibration is a lookup instead of a native call.
+ *
+ * Entries are keyed by the SHA-1 digest of the serialized scan data and by the
+ * {@link RefCalCache#fingerprint(byte[], byte[])} of the reference calibration, so a scan
+ * interpreted with another reference calibration is a miss. The CRC32 carried by
+ * {@link NanoEventBus.ScanDataEvent} is not used for the key, since two scans of the same length
+ * can share it. The reference fingerprint carried by {@link NanoEventBus.RefCalEvent} can be
+ * passed in instead of being computed again.
+ *
+ * The memory tier holds up to {@link #DEFAULT_MAX_BYTES} of results and evicts the least recently
+ * used entries. The optional disk tier keeps the results in the app cache directory, checked
+ * with a CRC32 on every load like the {@link RefCalCache}. Files written are counted, and once
+ * more than {@link #MAX_DISK_ENTRIES} are kept the least recently used files are removed down to
+ * {@link #TRIM_DISK_ENTRIES}, so the directory is only listed once every few hundred stores.
+ *
+ * Cached {@link KSTNanoSDK.ScanResults} are shared between callers and must not be modified.
+ */
+public class InterpretationCache {
+
+    private static final String TAG = "__INTERPRETATION_CACHE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Directory inside the app cache directory holding one file per entry
+    private static final String CACHE_DIR = "interpretations";
+    private static final String FILE_SUFFIX = ".interp";
+
+    private static final int MAGIC = 0x4E495350; //"NISP"
+    private static final int VERSION = 2;
+
+    //Default size of the results kept in memory
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    //Maximum number of entries kept on disk, and the number left after trimming
+    public static final int MAX_DISK_ENTRIES = 512;
+    public static final int TRIM_DISK_ENTRIES = MAX_DISK_ENTRIES * 3 / 4;
+
+    //Estimated size of an entry besides its arrays
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static InterpretationCache sDefault;
+
+    private final LinkedHashMap<String, KSTNanoSDK.ScanResults> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long mMaxBytes;
+    private final File mDir;
+    private long mBytes;
+    //Number of files in the disk tier, -1 until the directory is first counted
+    private int mDiskEntries = -1;
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * Get the cache shared by the app, with a disk tier
+     *
+     * @param context the context used to locate the app cache directory
+     * @return the shared cache
+     */
+    public static synchronized InterpretationCache getDefault(Context context) {
+        if (sDefault == null) {
+            sDefault = new InterpretationCache(DEFAULT_MAX_BYTES, new File(context.getCacheDir(), CACHE_DIR));
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param maxBytes the size of the results kept in memory
+     * @param dir      the directory of the disk tier, or null to keep the results in memory only
+     */
+    public InterpretationCache(long maxBytes, File dir) {
+        mMaxBytes = maxBytes;
+        mDir = dir;
+    }
+
+    /**
+     * Interpret a scan, or look it up if it was interpreted with the same reference calibration
+     * before. The reference fingerprint is computed
+     *
+     * @param scanData     the serialized scan data
+     * @param coefficients the serialized reference calibration coefficients
+     * @param matrix       the serialized reference calibration matrix
+     * @return the interpreted scan, which must not be modified
+     */
+    public KSTNanoSDK.ScanResults interpret(byte[] scanData, byte[] coefficients, byte[] matrix) {
+        return interpret(scanData, coefficients, matrix, RefCalCache.fingerprint(coefficients, matrix));
+    }
+
+    /**
+     * Interpret a scan, or look it up if it was interpreted with the same reference calibration
+     * before
+     *
+     * @param scanData       the serialized scan data
+     * @param coefficients   the serialized reference calibration coefficients
+     * @param matrix         the serialized reference calibration matrix
+     * @param refFingerprint the {@link RefCalCache#fingerprint(byte[], byte[])} of the reference
+     *                       calibration
+     * @return the interpreted scan, which must not be modified
+     */
+    public KSTNanoSDK.ScanResults interpret(byte[] scanData, byte[] coefficients, byte[] matrix, long refFingerprint) {
+        String key = key(scanData, refFingerprint);
+        KSTNanoSDK.ScanResults results = get(key);
+        if (results != null) {
+            return results;
+        }
+        results = KSTNanoSDK.KSTNanoSDK_dlpSpecScanInterpReference(scanData, coefficients, matrix);
+        if (results != null) {
+            put(key, results);
+        }
+        return results;
+    }
+
+    /**
+     * Look up an interpreted scan
+     *
+     * @param key the {@link #key(byte[], long)} of the scan
+     * @return the interpreted scan, or null if it is not cached
+     */
+    public synchronized KSTNanoSDK.ScanResults get(String key) {
+        KSTNanoSDK.ScanResults results = mEntries.get(key);
+        if (results == null) {
+            results = load(key);
+            if (results != null) {
+                add(key, results);
+            }
+        }
+        if (results != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return results;
+    }
+
+    /**
+     * Store an interpreted scan in both tiers
+     *
+     * @param key     the {@link #key(byte[], long)} of the scan
+     * @param results the interpreted scan, which must not be modified afterwards
+     */
+    public synchronized void put(String key, KSTNanoSDK.ScanResults results) {
+        add(key, results);
+        store(key, results);
+    }
+
+    /**
+     * @param scanData       the serialized scan data
+     * @param refFingerprint the {@link RefCalCache#fingerprint(byte[], byte[])} of the reference
+     *                       calibration
+     * @return the key of the scan interpreted with the reference calibration
+     */
+    public static String key(byte[] scanData, long refFingerprint) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return NanoLog.toHex(digest.digest(scanData), false) + String.format("%08x", refFingerprint & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the number of lookups that found an entry
+     */
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return the number of lookups that found no entry
+     */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Remove every entry of both tiers
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+        mDiskEntries = 0;
+        File[] files = mDir == null ? null : mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Add an entry to the memory tier, evicting the least recently used entries over the size
+     */
+    private void add(String key, KSTNanoSDK.ScanResults results) {
+        KSTNanoSDK.ScanResults previous = mEntries.put(key, results);
+        if (previous != null) {
+            mBytes -= sizeOf(previous);
+        }
+        mBytes += sizeOf(results);
+        Iterator<Map.Entry<String, KSTNanoSDK.ScanResults>> eldest = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            mBytes -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(KSTNanoSDK.ScanResults results) {
+        return ENTRY_OVERHEAD + results.getWavelength().length * (8 + 4 + 4);
+    }
+
+    /**
+     * Load an entry from the disk tier
+     *
+     * @return the interpreted scan, or null if there is no valid file for the key
+     */
+    private KSTNanoSDK.ScanResults load(String key) {
+        if (mDir == null) {
+            return null;
+        }
+        File file = new File(mDir, key + FILE_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown cache file format");
+            }
+            long crc = in.readLong();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            CRC32 check = new CRC32();
+            check.update(payload);
+            if (check.getValue() != crc) {
+                throw new IOException("Checksum mismatch");
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int length = buffer.getInt();
+            int points = buffer.getInt();
+            double[] wavelength = new double[points];
+            int[] intensity = new int[points];
+            int[] uncalibratedIntensity = new int[points];
+            buffer.asDoubleBuffer().get(wavelength);
+            buffer.position(buffer.position() + points * 8);
+            buffer.asIntBuffer().get(intensity);
+            buffer.position(buffer.position() + points * 4);
+            buffer.asIntBuffer().get(uncalibratedIntensity);
+            file.setLastModified(System.currentTimeMillis());
+            if (debug)
+                Log.d(TAG, "Disk hit for " + key);
+            return new KSTNanoSDK.ScanResults(wavelength, intensity, uncalibratedIntensity, length);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding cache entry " + key + ": " + e.getMessage());
+            if (file.delete() && mDiskEntries > 0) {
+                mDiskEntries--;
+            }
+            return null;
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write an entry to the disk tier, replacing any existing file
+     */
+    private void store(String key, KSTNanoSDK.ScanResults results) {
+        if (mDir == null || (!mDir.exists() && !mDir.mkdirs())) {
+            return;
+        }
+        //The length reported by the library may differ from the number of points of the arrays
+        int points = results.getWavelength().length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + points * (8 + 4 + 4));
+        buffer.putInt(results.getLength());
+        buffer.putInt(points);
+        buffer.asDoubleBuffer().put(results.getWavelength(), 0, points);
+        buffer.position(buffer.position() + points * 8);
+        buffer.asIntBuffer().put(results.getIntensity(), 0, points);
+        buffer.position(buffer.position() + points * 4);
+        buffer.asIntBuffer().put(results.getUncalibratedIntensity(), 0, points);
+        final byte[] payload = buffer.array();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        final ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 4);
+        header.putInt(MAGIC).putInt(VERSION).putLong(crc.getValue()).putInt(payload.length);
+        File file = new File(mDir, key + FILE_SUFFIX);
+        boolean added = !file.exists();
+        try {
+            FileHelper.writeAtomically(file, new FileHelper.Writer() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(header.array());
+                    out.write(payload);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to cache " + key + ": " + e.getMessage());
+            return;
+        }
+
+        if (mDiskEntries < 0) {
+            String[] names = mDir.list();
+            mDiskEntries = names == null ? 0 : names.length;
+        } else if (added) {
+            mDiskEntries++;
+        }
+        if (mDiskEntries > MAX_DISK_ENTRIES) {
+            mDiskEntries -= FileHelper.trim(mDir, TRIM_DISK_ENTRIES);
+            if (debug)
+                Log.d(TAG, "Trimmed the disk tier to " + mDiskEntries + " entries");
+        }
+    }
+}
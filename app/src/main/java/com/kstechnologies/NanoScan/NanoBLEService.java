@@ -2,26 +2,24 @@ package com.kstechnologies.NanoScan;
 
 import android.app.Service;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Binder;
-import android.os.Build;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Method;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.UUID;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
 import com.kstechnologies.nirscannanolibrary.SettingsManager;
@@ -34,6 +32,10 @@ import com.kstechnologies.nirscannanolibrary.SettingsManager;
  * This service manages the BLE connection the a Nano, while the SDK provides the command interface.
  * This means that the service is in charge of
  *
+ * Each connected device is handled by its own {@link NanoSession}. The primary session is the one
+ * the activities talk to through broadcasts, and additional sessions can be opened with
+ * {@link #openSession(String)} to run several devices from one phone.
+ *
  * Commands are send from app to user using the functions in this class. Since the service handles
  * enumeration, it is important that the GATT operation return codes are checked to see if a
  * characteristic is null when issuing a command.
@@ -47,49 +49,8 @@ import com.kstechnologies.nirscannanolibrary.SettingsManager;
 public class NanoBLEService extends Service {
 
     public static final long SCAN_PERIOD = 6000;
-    ByteArrayOutputStream scanData = new ByteArrayOutputStream();
-    ByteArrayOutputStream refConf = new ByteArrayOutputStream();
-    ByteArrayOutputStream refMatrix = new ByteArrayOutputStream();
-    ByteArrayOutputStream scanConf = new ByteArrayOutputStream();
-
-    //Scan and reference calibration information variables
-    int size;
-    int refSize;
-    int refSizeIndex;
-    int refMatrixSize;
-    int scanConfSize;
-    int scanConfIndexSize;
-    int scanConfIndex;
-    int storedSDScanSize;
-    private String scanName;
-    private byte[] storedScanName;
-    private String scanType;
-    private String scanDate;
-    private String scanPktFmtVer;
-
-    //Device information variables
-    private String manufName;
-    private String modelNum;
-    private String serialNum;
-    private String hardwareRev;
-    private String tivaRev;
-    private String spectrumRev;
-
-    //Device status variables
-    private int battLevel;
-    private float temp;
-    private float humidity;
-    private String devStatus;
-    private String errStatus;
-    private byte[] tempThresh;
-    private byte[] humidThresh;
-
-    //Logic control flags
-    private boolean readingStoredScans = false;
-    private boolean scanStarted = false;
-    private boolean activeConfRequested = false;
-
-    private static final boolean debug = true;
+
+    private static final boolean debug = BuildConfig.DEBUG;
 
     public NanoBLEService() {
     }
@@ -106,14 +67,6 @@ public class NanoBLEService extends Service {
     // Android system
     private BluetoothManager mBluetoothManager;
 
-
-    //String containing the Address of the device we wish to connect to
-    private String mBluetoothDeviceAddress;
-
-    //Array list that will hold all of the GATT characteristics retrieved from the connected device
-    private ArrayList<byte[]> scanConfList = new ArrayList<>();
-    private ArrayList<byte[]> storedScanList = new ArrayList<>();
-
     private static BroadcastReceiver mDataReceiver;
     private static BroadcastReceiver mInfoRequestReceiver;
     private static BroadcastReceiver mStatusRequestReceiver;
@@ -126,807 +79,105 @@ public class NanoBLEService extends Service {
     private static BroadcastReceiver mSetActiveScanConfReceiver;
     private static BroadcastReceiver mUpdateThresholdReceiver;
     private static BroadcastReceiver mRequestActiveConfReceiver;
+    private static BroadcastReceiver mDownloadStoredScansReceiver;
 
     public static final String ACTION_SCAN_STARTED = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_SCAN_STARTED";
 
-    //Initialize the current scan index to a four-byte zero array
-    private byte scanIndex[] = {0x00, 0x00, 0x00, 0x00};
-
-    //CCID UUID as a string. The hyphens and lower case letters are intentional and must remain as provided.
-    UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-
-    /**
-     * Implements callback methods for GATT events that the app cares about.  These include
-     * connection/disconnection, services discovered, and characteristic read/write/notify.
-     */
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-
-        /**
-         * Callback handler for connection state changes. If the new state is connected, a call to
-         * discover services is made immediately
-         *
-         * @param gatt the Gatt of the Bluetooth Device that we care about
-         * @param status The returned value of the connect/disconnect operation
-         * @param newState The new connection state of the Bluetooth Device
-         */
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                if (debug) {
-                    Log.i(TAG, "Connected to GATT server.");
-                }
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        KSTNanoSDK.mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = KSTNanoSDK.ACTION_GATT_DISCONNECTED;
-                refresh();
-                if (debug) {
-                    Log.i(TAG, "Disconnected from GATT server.");
-                }
-                broadcastUpdate(intentAction);
-            }
-        }
-
-        /**
-         * Callback handler for Gatt enumeration
-         * @param gatt the Gatt profile that was enumerated after connection
-         * @param status The status of the enumeration operation
-         */
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-
-            boolean enumerated = KSTNanoSDK.enumerateServices(gatt);
-
-            /*If enumeration was a success, send a broadcast to indicate that the enumeration is
-             * complete. This should also kick off the process of subscribing to characteristic
-             * notifications.
-             *
-             * If enumeration is not a success, print a warning if debug is enabled
-             */
-            if (status == BluetoothGatt.GATT_SUCCESS && enumerated) {
-                if (debug)
-                    Log.d(TAG, "Services discovered:SUCCESS");
-                broadcastUpdate(KSTNanoSDK.ACTION_GATT_SERVICES_DISCOVERED);
-
-                BluetoothGattDescriptor descriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGCISRetRefCalCoefficients.getDescriptor(CCCD_UUID);
-                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(descriptor);
-
-            } else {
-                if (debug)
-                    Log.e(TAG, "onServicesDiscovered received: " + status);
-            }
-        }
-
-        /*
-         * Handle descriptor write events.
-         *
-         * This process is kick-started when the GATT enumeration is complete. This allows for a
-         * sequential characteristic subscription process. After all notifications have been set
-         * up, send a broadcast to indicate that an activity can now kick off another process.
-         *
-         * It is important that these processes occur without interruption, as the BLE stack can
-         * only handle one event at a time.
-         */
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
-            if (debug)
-                Log.d("__onDescriptorWrite", "descriptor: " + descriptor.getUuid() + ". characteristic: " + descriptor.getCharacteristic().getUuid() + ". status: " + status);
-
-            if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_COEFF) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GCIS_RET_REF_CAL_COEFF");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGCISRetRefCalMatrix.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_MATRIX) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GCIS_RET_REF_CAL_MATRIX");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISStartScanNotify.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_START_SCAN");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetScanName.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_NAME) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_RET_SCAN_NAME");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetScanType.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_TYPE) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_RET_SCAN_TYPE");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetScanDate.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_DATE) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_RET_SCAN_DATE");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetPacketFormatVersion.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_RET_PKT_FMT_VER) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_RET_PKT_FMT_VER");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetSerialScanDataStruct.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_RET_SER_SCAN_DATA_STRUCT) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_RET_SER_SCAN_DATA_STRUCT");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSCISRetStoredConfList.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSCIS_RET_STORED_CONF_LIST) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSCIS_RET_STORED_CONF_LIST");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISSDStoredScanIndicesListData.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST_DATA) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_SD_STORED_SCAN_IND_LIST_DATA");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISClearScanNotify.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSDIS_CLEAR_SCAN");
-                BluetoothGattDescriptor mDescriptor = KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSCISRetScanConfData.getDescriptor(CCCD_UUID);
-                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                KSTNanoSDK.mBluetoothGatt.writeDescriptor(mDescriptor);
-            } else if (descriptor.getCharacteristic().getUuid().compareTo(KSTNanoSDK.NanoGATT.GSCIS_RET_SCAN_CONF_DATA) == 0) {
-                if (debug)
-                    Log.d(TAG, "Wrote Notify request for GSCIS_RET_SCAN_CONF_DATA");
-                Intent notifyCompleteIntent = new Intent(KSTNanoSDK.ACTION_NOTIFY_DONE);
-                LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(notifyCompleteIntent);
-            }
-        }
-
-        /**
-         * Callback handler for characteristic reads
-         *
-         * It is important to note that some characteristic reads will kick off others. This is
-         * because the calling activity requires more information, and the number of broadcasts
-         * needed is reduced if all of the needed information is attached to a single broadcast
-         *
-         * @param gatt the Gatt of the connected device
-         * @param characteristic the characteristic that was written
-         * @param status the returned value of the read operation
-         */
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_MANUF_NAME)) {
-                    manufName = new String(characteristic.getValue());
-                    KSTNanoSDK.getModelNumber();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_MODEL_NUMBER)) {
-                    modelNum = new String(characteristic.getValue());
-                    KSTNanoSDK.getSerialNumber();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_SERIAL_NUMBER)) {
-                    serialNum = new String(characteristic.getValue());
-                    KSTNanoSDK.getHardwareRev();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_HW_REV)) {
-                    hardwareRev = new String(characteristic.getValue());
-                    KSTNanoSDK.getFirmwareRev();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_TIVA_FW_REV)) {
-                    tivaRev = new String(characteristic.getValue());
-                    KSTNanoSDK.getSpectrumCRev();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_SPECC_REV)) {
-                    spectrumRev = new String(characteristic.getValue());
-                    final Intent intent = new Intent(KSTNanoSDK.ACTION_INFO);
-                    intent.putExtra(KSTNanoSDK.EXTRA_MANUF_NAME, manufName);
-                    intent.putExtra(KSTNanoSDK.EXTRA_MODEL_NUM, modelNum);
-                    intent.putExtra(KSTNanoSDK.EXTRA_SERIAL_NUM, serialNum);
-                    intent.putExtra(KSTNanoSDK.EXTRA_HW_REV, hardwareRev);
-                    intent.putExtra(KSTNanoSDK.EXTRA_TIVA_REV, tivaRev);
-                    intent.putExtra(KSTNanoSDK.EXTRA_SPECTRUM_REV, spectrumRev);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.BAS_BATT_LVL)) {
-                    byte[] data = characteristic.getValue();
-                    final StringBuilder stringBuilder = new StringBuilder(data.length);
-                    for (byte byteChar : data)
-                        stringBuilder.append(String.format("%02X", byteChar));
-                    if (debug)
-                        Log.d(TAG, "batt level:" + stringBuilder.toString());
-                    battLevel = data[0];
-                    KSTNanoSDK.getTemp();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_TEMP_MEASUREMENT)) {
-                    byte[] data = characteristic.getValue();
-                    final StringBuilder stringBuilder = new StringBuilder(data.length);
-                    for (byte byteChar : data)
-                        stringBuilder.append(String.format("%02X", byteChar));
-                    if (debug)
-                        Log.d(TAG, "temp level string:" + stringBuilder.toString());
-                    temp = (float) (data[1] << 8 | (data[0] & 0xff)) / 100;
-                    if (debug)
-                        Log.d(TAG, "temp level int:" + temp);
-                    KSTNanoSDK.getHumidity();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_HUMID_MEASUREMENT)) {
-                    byte[] data = characteristic.getValue();
-                    final StringBuilder stringBuilder = new StringBuilder(data.length);
-                    for (byte byteChar : data)
-                        stringBuilder.append(String.format("%02X", byteChar));
-                    if (debug)
-                        Log.d(TAG, "humid level:" + stringBuilder.toString());
-                    humidity = (float) (data[1] << 8 | (data[0] & 0xff)) / 100;
-                    KSTNanoSDK.getDeviceStatus();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_DEV_STATUS)) {
-                    byte[] data = characteristic.getValue();
-                    final StringBuilder stringBuilder = new StringBuilder(data.length);
-                    for (byte byteChar : data)
-                        stringBuilder.append(String.format("%02X", byteChar));
-                    if (debug)
-                        Log.d(TAG, "dev status:" + stringBuilder.toString());
-                    devStatus = stringBuilder.toString();
-                    KSTNanoSDK.getErrorStatus();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_ERR_STATUS)) {
-                    byte[] data = characteristic.getValue();
-                    final StringBuilder stringBuilder = new StringBuilder(data.length);
-                    for (byte byteChar : data)
-                        stringBuilder.append(String.format("%02X", byteChar));
-                    if (debug)
-                        Log.d(TAG, "error status:" + stringBuilder.toString());
-                    errStatus = stringBuilder.toString();
-
-                    final Intent intent = new Intent(KSTNanoSDK.ACTION_STATUS);
-                    intent.putExtra(KSTNanoSDK.EXTRA_BATT, battLevel);
-                    intent.putExtra(KSTNanoSDK.EXTRA_TEMP, temp);
-                    intent.putExtra(KSTNanoSDK.EXTRA_HUMID, humidity);
-                    intent.putExtra(KSTNanoSDK.EXTRA_DEV_STATUS, devStatus);
-                    intent.putExtra(KSTNanoSDK.EXTRA_ERR_STATUS, errStatus);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_NUM_STORED_CONF)) {
-                    byte[] data = characteristic.getValue();
-
-                    scanConfIndex = 0;
-                    scanConfIndexSize = (((data[1]) << 8) | (data[0] & 0xFF));
-                    Intent scanConfSizeIntent = new Intent(KSTNanoSDK.SCAN_CONF_SIZE);
-                    scanConfSizeIntent.putExtra(KSTNanoSDK.EXTRA_CONF_SIZE, scanConfIndexSize);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(scanConfSizeIntent);
-                    if (debug)
-                        Log.d(TAG, "Num stored scan configs:" + scanConfIndexSize);
-
-                    KSTNanoSDK.requestStoredConfigurationList();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_NUM_SD_STORED_SCANS)) {
-                    byte[] data = characteristic.getValue();
-
-                    storedSDScanSize = (((data[1]) << 8) | (data[0] & 0xFF));
-                    if (debug)
-                        Log.d(TAG, "Num stored SD scans:" + storedSDScanSize);
-                    Intent sdScanSizeIntent = new Intent(KSTNanoSDK.SD_SCAN_SIZE);
-                    sdScanSizeIntent.putExtra(KSTNanoSDK.EXTRA_INDEX_SIZE, storedSDScanSize);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(sdScanSizeIntent);
-                    KSTNanoSDK.requestScanIndicesList();
-                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF)) {
-                    byte[] data = characteristic.getValue();
-                    if (!activeConfRequested) {
-                        final StringBuilder stringBuilder = new StringBuilder(data.length);
-                        for (byte byteChar : data)
-                            stringBuilder.append(String.format("%02X", byteChar));
-                        if (debug)
-                            Log.d(TAG, "Active scan conf index:" + stringBuilder.toString());
-                        Intent sendActiveConfIntent = new Intent(KSTNanoSDK.SEND_ACTIVE_CONF);
-                        sendActiveConfIntent.putExtra(KSTNanoSDK.EXTRA_ACTIVE_CONF, data);
-                        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(sendActiveConfIntent);
-                    } else {
-                        byte[] confIndex = {data[0], data[1]};
-                        if (debug)
-                            Log.d(TAG, "Writing request for scan conf at index:" + confIndex[0] + "-" + confIndex[1]);
-                        KSTNanoSDK.requestScanConfiguration(confIndex);
-                    }
-                }
-            }
-        }
-
-        /**
-         * Callback handler for characteristic notify/indicate updates
-         *
-         * It is important to note that some characteristic reads will kick off others. This is
-         * because the calling activity requires more information, and the number of broadcasts
-         * needed is reduced if all of the needed information is attached to a single broadcast
-         *
-         * @param gatt the Gatt profile of the connected device
-         * @param characteristic the characteristic that provided the notify/indicate
-         */
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            if (debug)
-                Log.d(TAG, "onCharacteristic changed for characteristic:" + characteristic.getUuid().toString());
-
-            if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISStartScanNotify) {
-                Intent scanStartedIntent = new Intent(ACTION_SCAN_STARTED);
-                LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(scanStartedIntent);
-                scanData.reset();
-                refConf.reset();
-                refMatrix.reset();
-                size = 0;
-                refSize = 0;
-                refMatrixSize = 0;
-                final byte[] data = characteristic.getValue();
-                if (data[0] == (byte) 0xff) {
-                    if (debug)
-                        Log.d(TAG, "Scan data is ready to be read");
-                    scanIndex[0] = data[1];
-                    scanIndex[1] = data[2];
-                    scanIndex[2] = data[3];
-                    scanIndex[3] = data[4];
-                    if (debug)
-                        Log.d(TAG, "the scan index is:" + scanIndex[0] + " " + scanIndex[1] + " " + scanIndex[2] + " " + scanIndex[3]);
-
-                    KSTNanoSDK.requestScanName(scanIndex);
-                }
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetScanName) {
-                final byte[] data = characteristic.getValue();
-
-                if (debug)
-                    Log.d(TAG, "Received scan name:" + new String(data));
-                scanName = new String(data);
-
-                if (readingStoredScans) {
-                    storedScanName = data;
-                    KSTNanoSDK.requestScanDate(storedScanList.get(0));
-                } else {
-                    KSTNanoSDK.requestScanType(scanIndex);
-                }
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetScanType) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received scan type:" + stringBuilder.toString());
-                scanType = stringBuilder.toString();
-                KSTNanoSDK.requestScanDate(scanIndex);
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetScanDate) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02d", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received scan date:" + stringBuilder.toString());
-                scanDate = stringBuilder.toString();
-                if (readingStoredScans) {
-
-                    broadcastUpdate(KSTNanoSDK.STORED_SCAN_DATA, scanDate, storedScanList.get(0));
-                    storedScanList.remove(0);
-                    if (storedScanList.size() > 0) {
-                        KSTNanoSDK.requestScanName(storedScanList.get(0));
-                    } else {
-                        readingStoredScans = false;
+    //Long extra of the SCAN_DATA and REF_CONF_DATA broadcasts, a content fingerprint for downstream
+    //caching: the CRC32 of the scan data, or the RefCalCache fingerprint of the coefficients and
+    //matrix. It is not a check of the transfer
+    public static final String EXTRA_CHECKSUM = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_CHECKSUM";
+
+    //Boolean extra of the REF_CONF_DATA broadcast, true if the reference calibration came from the cache
+    public static final String EXTRA_REF_CAL_CACHED = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_REF_CAL_CACHED";
+
+    //Start or resume a bulk download of SD card scans. EXTRA_STORED_SCAN_INDICES holds an
+    //ArrayList<byte[]> of the four byte scan indices to add. Without it, an interrupted download is resumed
+    public static final String ACTION_DOWNLOAD_STORED_SCANS = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_DOWNLOAD_STORED_SCANS";
+    public static final String EXTRA_STORED_SCAN_INDICES = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_STORED_SCAN_INDICES";
+
+    //Sent for every downloaded SD card scan once it has been interpreted and saved. Carries
+    //KSTNanoSDK.EXTRA_SCAN_INDEX, EXTRA_CSV_PATH (absent if the scan could not be interpreted)
+    //and EXTRA_DOWNLOAD_REMAINING
+    public static final String ACTION_STORED_SCAN_SAVED = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_STORED_SCAN_SAVED";
+    public static final String EXTRA_CSV_PATH = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_CSV_PATH";
+    public static final String EXTRA_DOWNLOAD_REMAINING = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_DOWNLOAD_REMAINING";
+
+    //Sent when a chunked transfer was given up after timing out on every retry. EXTRA_TRANSFER
+    //holds the name of the TransferWatchdog.Phase that failed
+    public static final String ACTION_TRANSFER_FAILED = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_TRANSFER_FAILED";
+    public static final String EXTRA_TRANSFER = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_TRANSFER";
+
+    //Debug builds only. Run a SimulatedBenchmark against a new SimulatedNano, started with
+    //adb shell am startservice -a <action> -n com.kstechnologies.NanoScan/.NanoBLEService.
+    //EXTRA_BENCHMARK_SCANS (int) sets the number of scans, EXTRA_LATENCY_MS and
+    //EXTRA_PACKET_INTERVAL_MS (int) and EXTRA_DROP_RATE (float) shape the simulated link
+    public static final String ACTION_BENCHMARK = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_BENCHMARK";
+    public static final String EXTRA_BENCHMARK_SCANS = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_BENCHMARK_SCANS";
+    public static final String EXTRA_LATENCY_MS = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_LATENCY_MS";
+    public static final String EXTRA_PACKET_INTERVAL_MS = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_PACKET_INTERVAL_MS";
+    public static final String EXTRA_DROP_RATE = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_DROP_RATE";
+
+    //Start or stop a capture of the traffic of every session, with startCapture and stopCapture,
+    //started with adb shell am startservice -a <action> -n com.kstechnologies.NanoScan/.NanoBLEService.
+    //EXTRA_CAPTURE_PATH optionally holds the capture file
+    public static final String ACTION_START_CAPTURE = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_START_CAPTURE";
+    public static final String ACTION_STOP_CAPTURE = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_STOP_CAPTURE";
+
+    //Debug builds only. Replay the capture in EXTRA_CAPTURE_PATH with connectReplay, in place of
+    //the primary session
+    public static final String ACTION_REPLAY = "com.kstechnologies.NanoScan.bluetooth.service.ACTION_REPLAY";
+    public static final String EXTRA_CAPTURE_PATH = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_CAPTURE_PATH";
+
+    //Directory inside the app files directory holding the captures started by startCapture
+    private static final String CAPTURE_DIR = "captures";
+    private static final String CAPTURE_SUFFIX = ".ntrc";
+
+    //Boolean preference, stored with SettingsManager and set from the SettingsActivity. When on,
+    //every session samples the device status every TelemetrySampler.DEFAULT_PERIOD_MS
+    public static final String PREF_TELEMETRY = "telemetry";
+
+    //Boolean preference, stored with SettingsManager and set from the SettingsActivity. Turns
+    //fast reconnection on for every session, see setFastReconnect
+    public static final String PREF_FAST_RECONNECT = "fastReconnect";
+
+    //Bluetooth address extra of every broadcast sent by the primary session
+    public static final String EXTRA_DEVICE_ADDRESS = "com.kstechnologies.NanoScan.bluetooth.service.EXTRA_DEVICE_ADDRESS";
+
+    //Reference calibrations of previously connected devices, shared by all sessions
+    private RefCalCache mRefCalCache;
+
+    //Device information of previously connected devices, shared by all sessions
+    private DeviceInfoCache mDeviceInfoCache;
+
+    //Session of the device the activities talk to. Its results are also sent as broadcasts
+    private NanoSession mSession;
+
+    //Additional sessions opened with openSession, by address. These only post to the NanoEventBus
+    private final LinkedHashMap<String, NanoSession> mSessions = new LinkedHashMap<>();
+
+    //Benchmark started with ACTION_BENCHMARK, null if none was run
+    private SimulatedBenchmark mBenchmark;
+
+    //Time between two device status samples of every session, 0 while sampling is off as by default
+    private long mTelemetryPeriodMs;
+
+    //Applies the settings changed while the service is running
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (PREF_TELEMETRY.equals(key)) {
+                        applyTelemetryPref();
+                    } else if (PREF_FAST_RECONNECT.equals(key)) {
+                        setFastReconnect(SettingsManager.getBooleanPref(NanoBLEService.this, PREF_FAST_RECONNECT, false));
                     }
-                } else {
-                    KSTNanoSDK.requestPacketFormatVersion(scanIndex);
                 }
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetPacketFormatVersion) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received Packet Format Version:" + stringBuilder.toString());
-                scanPktFmtVer = stringBuilder.toString();
-                KSTNanoSDK.requestSerializedScanDataStruct(scanIndex);
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISRetSerialScanDataStruct) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received Serialized Scan Data Struct:" + stringBuilder.toString());
-                if (data[0] == 0x00) {
-                    size = (((data[2]) << 8) | (data[1] & 0xFF));
-                } else {
-                    int i;
-                    for (i = 1; i < data.length; i++) {
-                        scanData.write(data[i]);
-                    }
-                }
-
-                if (scanData.size() == size) {
-                    size = 0;
-                    if (debug)
-                        Log.d(TAG, "Done collecting scan data, sending broadcast");
-                    broadcastUpdate(KSTNanoSDK.SCAN_DATA, scanData.toByteArray());
-                }
-                if (debug)
-                    Log.d("__SIZE", "new ScanData size:" + scanData.size());
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGCISRetRefCalCoefficients) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received Reference calibration coefficients:" + stringBuilder.toString());
-
-                if (data[0] == 0x00) {
-                    refConf.reset();
-                    refSizeIndex = 0;
-                    refSize = (((data[2]) << 8) | (data[1] & 0xFF));
-                    Intent requestCalCoef = new Intent(KSTNanoSDK.ACTION_REQ_CAL_COEFF);
-                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE, refSize);
-                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE_PACKET, true);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(requestCalCoef);
-                } else {
-                    int i;
-                    for (i = 1; i < data.length; i++) {
-                        refConf.write(data[i]);
-                    }
-                    Intent requestCalCoef = new Intent(KSTNanoSDK.ACTION_REQ_CAL_COEFF);
-                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE, data.length - 1);
-                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE_PACKET, false);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(requestCalCoef);
-                }
-
-                if (refConf.size() == refSize) {
-                    refSize = 0;
-                    if (debug)
-                        Log.d(TAG, "Done collecting reference, sending broadcast");
-                    KSTNanoSDK.requestRefCalMatrix();
-                }
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGCISRetRefCalMatrix) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received Reference calibration matrix:" + stringBuilder.toString());
-
-                if (data[0] == 0x00) {
-                    refMatrix.reset();
-                    refMatrixSize = (((data[2]) << 8) | (data[1] & 0xFF));
-                    Intent requestCalMatrix = new Intent(KSTNanoSDK.ACTION_REQ_CAL_MATRIX);
-                    requestCalMatrix.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE, refMatrixSize);
-                    requestCalMatrix.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE_PACKET, true);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(requestCalMatrix);
-                } else {
-                    int i;
-                    for (i = 1; i < data.length; i++) {
-                        refMatrix.write(data[i]);
-                    }
-                    Intent requestCalCoef = new Intent(KSTNanoSDK.ACTION_REQ_CAL_MATRIX);
-                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE, data.length - 1);
-                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE_PACKET, false);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(requestCalCoef);
-                }
-
-                if (refMatrix.size() == refMatrixSize) {
-                    refSize = 0;
-                    if (debug)
-                        Log.d(TAG, "Done collecting reference Matrix, sending broadcast");
-                    broadcastUpdate(KSTNanoSDK.REF_CONF_DATA, refConf.toByteArray(), refMatrix.toByteArray());
-                }
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSCISRetStoredConfList) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received Scan Conf index:" + stringBuilder.toString());
+            };
 
-                scanConfIndex++;
-                scanConfList.add(data);
-
-                if(scanConfIndexSize == 1 && scanConfList.size() > 1) {
-
-                    scanConfIndex = 1;
-                    byte[] confIndex = {0, 0};
-                    confIndex[0] = scanConfList.get(scanConfIndex)[1];
-                    confIndex[1] = scanConfList.get(scanConfIndex)[2];
-
-                    if (debug)
-                        Log.d(TAG, "Writing request for scan conf at index:" + confIndex[0] + "-" + confIndex[1]);
-                    KSTNanoSDK.requestScanConfiguration(confIndex);
-
-                }
-
-                if (scanConfIndex == scanConfIndexSize && scanConfIndexSize != 1) {
-                    scanConfIndex = 1;
-                    byte[] confIndex = {0, 0};
-                    confIndex[0] = scanConfList.get(scanConfIndex)[1];
-                    confIndex[1] = scanConfList.get(scanConfIndex)[2];
-
-                    if (debug)
-                        Log.d(TAG, "Writing request for scan conf at index:" + confIndex[0] + "-" + confIndex[1]);
-                    KSTNanoSDK.requestScanConfiguration(confIndex);
-                }
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISSDStoredScanIndicesListData) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received SD scan indices list:" + stringBuilder.toString());
-                int index;
-                for (index = 0; index < data.length / 4; index++) {
-                    byte[] sdIndex = {data[index * 4], data[(index * 4) + 1], data[(index * 4) + 2], data[(index * 4) + 3]};
-
-                    storedScanList.add(sdIndex);
-                    if (debug)
-                        Log.d(TAG, "new storedScanList size:" + storedScanList.size());
-                }
-                if (storedScanList.size() == storedSDScanSize) {
-                    byte[] indexData = storedScanList.get(0);
-                    readingStoredScans = true;
-                    KSTNanoSDK.requestScanName(indexData);
-                }
-
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSCISRetScanConfData) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received Scan Conf Data:" + stringBuilder.toString());
-
-                if (data[0] == 0x00) {
-                    scanConf.reset();
-                    scanConfSize = (((data[2]) << 8) | (data[1] & 0xFF));
-                } else {
-                    int i;
-                    for (i = 1; i < data.length; i++) {
-                        scanConf.write(data[i]);
-                    }
-                }
-
-                if (scanConf.size() == scanConfSize) {
-                    if (!activeConfRequested) {
-                        scanConfSize = 0;
-                        if (debug)
-                            Log.d(TAG, "Done collecting scanConfiguration, sending broadcast");
-                        broadcastScanConfig(KSTNanoSDK.SCAN_CONF_DATA, scanConf.toByteArray());
-
-                        if (scanConfIndex < scanConfIndexSize) {
-                            scanConfIndex++;
-                            byte[] confIndex = {0, 0};
-                            if (debug)
-                                Log.d(TAG, "Retrieving scan at index:" + scanConfIndex + " Size is:" + scanConfList.size());
-                            confIndex[0] = scanConfList.get(1)[scanConfIndex + 1];
-                            confIndex[1] = scanConfList.get(1)[scanConfIndex + 2];
-                            if (debug)
-                                Log.d(TAG, "Writing request for scan conf at index:" + confIndex[0] + "-" + confIndex[1]);
-                            KSTNanoSDK.requestScanConfiguration(confIndex);
-                        } else {
-                            scanConfIndex = 0;
-                        }
-                    } else {
-                        scanConfSize = 0;
-                        if (debug)
-                            Log.d(TAG, "Done collecting active scanConfiguration");
-                        broadcastScanConfig(KSTNanoSDK.SCAN_CONF_DATA, scanConf.toByteArray());
-                        scanConfIndex = 0;
-                        activeConfRequested = false;
-                    }
-                }
-            } else if (characteristic == KSTNanoSDK.NanoGattCharacteristic.mBleGattCharGSDISClearScanNotify) {
-                final byte[] data = characteristic.getValue();
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                if (debug)
-                    Log.d(TAG, "Received status from clear scan:" + stringBuilder.toString());
-            } else {
-                if (debug)
-                    Log.d(TAG, "Received notify/indicate from unknown characteristic:" + characteristic.getUuid().toString());
-            }
-        }
-
-        /**
-         * Callback handler for characteristic writes
-         *
-         * It is important to note that some characteristic reads will kick off others. This is
-         * because the calling activity requires more information, and the number of broadcasts
-         * needed is reduced if all of the needed information is attached to a single broadcast
-         *
-         * @param gatt the Gatt profile of the connected device
-         * @param characteristic the characteristic that was written
-         * @param status the status of the write operation
-         */
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-
-            if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN)) {
-                if (debug)
-                    Log.d(TAG, "Wrote start scan! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SER_SCAN_DATA_STRUCT)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Scan Data Struct! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_TYPE)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Scan Type! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_NAME)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Scan Name! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_DATE)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Scan Date! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_PKT_FMT_VER)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Packet Format Version! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_COEFF)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Reference Calibration Coefficients! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_MATRIX)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Reference Calibration Matrix! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_REQ_STORED_CONF_LIST)) {
-                Log.d(TAG, "Wrote Request for Scan configuration list! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for SD Stored scan indices list! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_REQ_SCAN_CONF_DATA)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Request for Scan Conf data! Status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GDTS_TIME)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Time! Status=" + status);
-                String dataString = SettingsManager.getStringPref(getApplicationContext(), SettingsManager.SharedPreferencesKeys.prefix, "Data");
-                if (dataString.equals("")) {
-                    dataString = "Data";
-                }
-                byte[] data = new StringBuilder(dataString).reverse().toString().getBytes();
-                if (debug)
-                    Log.d(TAG, "Writing scan stub to:" + dataString);
-                KSTNanoSDK.setStub(data);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_SET_SCAN_NAME_STUB)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Scan Name Stub! Status=" + status);
-                if (!scanStarted) {
-                    if (debug)
-                        Log.d(TAG, "Requesting Calibration Data");
-                    KSTNanoSDK.requestRefCalCoefficients();
-                } else {
-                    scanStarted = false;
-                    if (debug)
-                        Log.d(TAG, "Starting Scan");
-                    byte[] data = {0x00};
-                    if (SettingsManager.getBooleanPref(getApplicationContext(), SettingsManager.SharedPreferencesKeys.saveSD, false)) {
-                        data[0] = 0x01;
-                        if (debug)
-                            Log.d(TAG, "Save to SD selected, writing 1");
-                    } else {
-                        data[0] = 0x00;
-                        if (debug)
-                            Log.d(TAG, "Save to SD not selected, writing 0");
-                    }
-                    scanData.reset();
-                    refConf.reset();
-                    refMatrix.reset();
-                    size = 0;
-                    refSize = 0;
-                    refMatrixSize = 0;
-
-                    KSTNanoSDK.startScan(data);
-                }
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN)) {
-                if (debug)
-                    Log.d(TAG, "wrote clear scan! status=" + status);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF)) {
-                if (debug)
-                    Log.d(TAG, "Wrote set active scan conf! status=" + status);
-                KSTNanoSDK.getActiveConf();
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_TEMP_THRESH)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Temperature threshold! status=" + status);
-                KSTNanoSDK.setHumidityThreshold(humidThresh);
-            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_HUMID_THRESH)) {
-                if (debug)
-                    Log.d(TAG, "Wrote Humidity threshold! status=" + status);
-            } else {
-                if (debug)
-                    Log.d(TAG, "Unknown characteristic");
-            }
-        }
-    };
-
-    /**
-     * Sends the desired broadcast action without any extras
-     *
-     * @param action the action to broadcast
-     */
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-    }
-
-    /**
-     * Sends the desired broadcast action with the data read from the specified characteristic as
-     * an extra. If a particular characteristic has a particular format, the characteristic can be
-     * examined to determine how to properly format and send the data from the characteristic
-     *
-     * @param action         the action to broadcast
-     * @param characteristic the characteristic to retrieve data from to send
-     */
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
-        // For all other profiles, writes the data formatted in HEX.
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for (byte byteChar : data)
-                stringBuilder.append(String.format("%02X ", byteChar));
-            if (debug)
-                Log.d(TAG, "Notify characteristic:" + characteristic.getUuid().toString() + " -- Notify data:" + stringBuilder.toString());
-            intent.putExtra(KSTNanoSDK.EXTRA_DATA, stringBuilder.toString());
-        }
-
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-    }
-
-    /**
-     * Sends the desired broadcast action with the data provided by scanData
-     *
-     * @param action   the action to broadcast
-     * @param scanData the data to add to the broadcast
-     */
-    private void broadcastUpdate(final String action,
-                                 byte[] scanData) {
-        final Intent intent = new Intent(action);
-        intent.putExtra(KSTNanoSDK.EXTRA_DATA, scanData);
-        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_NAME, scanName);
-        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_TYPE, scanType);
-        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_DATE, scanDate);
-        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_FMT_VER, scanPktFmtVer);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-    }
-
-    /**
-     * Sends the desired broadcast action with the data provided parameters
-     *
-     * @param action   the action to broadcast
-     * @param scanData byte array of data to broadcast
-     */
-    private void broadcastScanConfig(final String action,
-                                     byte[] scanData) {
-        final Intent intent = new Intent(action);
-        intent.putExtra(KSTNanoSDK.EXTRA_DATA, scanData);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-    }
-
-    /**
-     * Sends the desired broadcast action with the data provided parameters
-     *
-     * @param action    the action to broadcast
-     * @param refCoeff  byte array of reference coefficients
-     * @param refMatrix byte array of reference calibration matrix
-     */
-    private void broadcastUpdate(final String action,
-                                 byte[] refCoeff, byte[] refMatrix) {
-        final Intent intent = new Intent(action);
-        intent.putExtra(KSTNanoSDK.EXTRA_DATA, scanData.toByteArray());
-        intent.putExtra(KSTNanoSDK.EXTRA_REF_COEF_DATA, refCoeff);
-        intent.putExtra(KSTNanoSDK.EXTRA_REF_MATRIX_DATA, refMatrix);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-    }
-
-    /**
-     * Sends the desired broadcast action with the data provided parameters
-     *
-     * @param action   the action to broadcast
-     * @param scanDate the scan date to be added to the broadcast
-     * @param index    the scan index to be added to the broadcast
-     */
-    private void broadcastUpdate(final String action, String scanDate, byte[] index) {
-        final Intent intent = new Intent(action);
-        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_NAME, nameToUTF8(storedScanName));
-        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_DATE, scanDate);
-        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_INDEX, index);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-    }
+    //Service maps of previously connected devices, used by every session while fast reconnection is on
+    private final GattServiceCache mServiceCache = new GattServiceCache();
+    private boolean mFastReconnect;
 
     /**
      * Instance of the binder to be used when binding to the service in app
@@ -951,6 +202,26 @@ public class NanoBLEService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    /**
+     * Get the transfer metrics of the primary session. The metrics are reset on every connection
+     *
+     * @return the {@link TransferMetrics} of the primary session, or null if there is none
+     */
+    public TransferMetrics getTransferMetrics() {
+        return mSession == null ? null : mSession.getTransferMetrics();
+    }
+
+    /**
+     * Print the transfer metrics of every session. Available through
+     * {@code adb shell dumpsys activity service com.kstechnologies.NanoScan/.NanoBLEService}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        for (NanoSession session : getSessions()) {
+            session.dump(writer);
+        }
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -993,11 +264,8 @@ public class NanoBLEService extends Service {
         }
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && KSTNanoSDK.mBluetoothGatt != null) {
-            if (debug)
-                Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            return KSTNanoSDK.mBluetoothGatt.connect();
+        if (mSession != null && address.equals(mSession.getAddress()) && mSession.reconnect()) {
+            return true;
         }
 
         final BluetoothDevice device = KSTNanoSDK.mBluetoothAdapter.getRemoteDevice(address);
@@ -1006,18 +274,225 @@ public class NanoBLEService extends Service {
                 Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            Log.d(TAG, "Using LE Transport");
-            KSTNanoSDK.mBluetoothGatt = device.connectGatt(this, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+        return newPrimarySession(address).connect(device);
+    }
+
+    /**
+     * Connects to a {@link SimulatedNano} instead of a device. Everything after the connection
+     * takes the same path as for a real Nano, so this is used to benchmark the service offline.
+     * The simulator replaces the primary session
+     *
+     * @param nano the simulated device to connect to
+     * @return always true. The connection is reported through the GATT callback as for a device
+     */
+    public boolean connectSimulated(SimulatedNano nano) {
+        newPrimarySession(nano.getAddress()).connect(nano);
+        return true;
+    }
+
+    /**
+     * Connects to a {@link CaptureReplay} instead of a device. The reads, writes and notifications
+     * in the capture are delivered to the same callback as those of a real Nano. Any connection to
+     * a real device should be closed first
+     *
+     * @param replay the capture to replay
+     * @return true if the capture was opened. The connection is reported through the GATT
+     * callback as for a device
+     */
+    public boolean connectReplay(CaptureReplay replay) {
+        try {
+            newPrimarySession(replay.getAddress()).connect(replay);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open capture: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Open an additional session to a device, alongside the primary session. Each session has
+     * its own connection, so scans and downloads on several devices run in parallel. The results
+     * of additional sessions are posted to the {@link NanoEventBus} only
+     *
+     * @param address the device address
+     * @return the session, already connecting, or null if the connection could not be initiated
+     */
+    public NanoSession openSession(String address) {
+        if (KSTNanoSDK.mBluetoothAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return null;
+        }
+        NanoSession session = mSessions.get(address);
+        if (session != null && session.reconnect()) {
+            return session;
+        }
+        BluetoothDevice device = KSTNanoSDK.mBluetoothAdapter.getRemoteDevice(address);
+        session = newSession(address);
+        if (!session.connect(device)) {
+            closeSession(session);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Open an additional session to a {@link SimulatedNano}. Several simulators with different
+     * addresses can be connected at the same time
+     *
+     * @param nano the simulated device to connect to
+     * @return the session, already connecting
+     */
+    public NanoSession openSession(SimulatedNano nano) {
+        NanoSession session = newSession(nano.getAddress());
+        session.connect(nano);
+        return session;
+    }
+
+    /**
+     * Close an additional session opened with {@link #openSession(String)}. The primary session
+     * is closed with {@link #close()}
+     *
+     * @param session the session to close
+     */
+    public void closeSession(NanoSession session) {
+        if (mSessions.get(session.getAddress()) == session) {
+            mSessions.remove(session.getAddress());
+        }
+        session.close();
+    }
+
+    /**
+     * @return the primary session, or null if no device has been connected
+     */
+    public NanoSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * @return the primary session followed by the additional sessions
+     */
+    public List<NanoSession> getSessions() {
+        ArrayList<NanoSession> sessions = new ArrayList<>();
+        if (mSession != null) {
+            sessions.add(mSession);
+        }
+        sessions.addAll(mSessions.values());
+        return sessions;
+    }
+
+    /**
+     * Set the time between two device status samples. The period applies to every open session
+     * and to the sessions opened later. The {@link #PREF_TELEMETRY} setting calls this with
+     * {@link TelemetrySampler#DEFAULT_PERIOD_MS}, or 0 when it is off as by default
+     *
+     * @param periodMs the time between two samples, or 0 to stop sampling
+     */
+    public void setTelemetryPeriod(long periodMs) {
+        mTelemetryPeriodMs = periodMs;
+        for (NanoSession session : getSessions()) {
+            startTelemetry(session);
+        }
+    }
+
+    /**
+     * Turn fast reconnection on or off for every open session and the sessions opened later. See
+     * {@link NanoSession#setServiceCache(GattServiceCache)}. This follows the
+     * {@link #PREF_FAST_RECONNECT} setting, off by default
+     *
+     * @param fastReconnect true to keep the GATT cache of the devices between connections
+     */
+    public void setFastReconnect(boolean fastReconnect) {
+        mFastReconnect = fastReconnect;
+        for (NanoSession session : getSessions()) {
+            session.setServiceCache(mFastReconnect ? mServiceCache : null);
+        }
+    }
+
+    /**
+     * @return true if fast reconnection is on
+     */
+    public boolean isFastReconnect() {
+        return mFastReconnect;
+    }
+
+    /**
+     * Turn device status sampling on or off from the {@link #PREF_TELEMETRY} setting
+     */
+    private void applyTelemetryPref() {
+        boolean telemetry = SettingsManager.getBooleanPref(this, PREF_TELEMETRY, false);
+        setTelemetryPeriod(telemetry ? TelemetrySampler.DEFAULT_PERIOD_MS : 0);
+    }
+
+    private void startTelemetry(NanoSession session) {
+        if (mTelemetryPeriodMs > 0) {
+            session.getTelemetry().start(mTelemetryPeriodMs);
         } else {
-            KSTNanoSDK.mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+            session.getTelemetry().stop();
+        }
+    }
+
+    /**
+     * Close the primary session, if any, and replace it with a new session
+     */
+    private NanoSession newPrimarySession(String address) {
+        close();
+        mSession = new NanoSession(this, address, mRefCalCache, true);
+        mSession.setServiceCache(mFastReconnect ? mServiceCache : null);
+        mSession.setDeviceInfoCache(mDeviceInfoCache);
+        startTelemetry(mSession);
+        return mSession;
+    }
+
+    /**
+     * Close the additional session to a device, if any, and replace it with a new session
+     */
+    private NanoSession newSession(String address) {
+        NanoSession previous = mSessions.remove(address);
+        if (previous != null) {
+            previous.close();
+        }
+        NanoSession session = new NanoSession(this, address, mRefCalCache, false);
+        session.setServiceCache(mFastReconnect ? mServiceCache : null);
+        session.setDeviceInfoCache(mDeviceInfoCache);
+        mSessions.put(address, session);
+        startTelemetry(session);
+        return session;
+    }
+
+    /**
+     * Start recording every characteristic read, write and notification to a binary capture.
+     * See {@link PacketTrace} for the format. Captures can be replayed with
+     * {@link #connectReplay(CaptureReplay)}
+     *
+     * @param file the capture file, or null for a new file named after the current time under
+     *             {@code files/captures}
+     * @return the capture file, or null if it could not be opened
+     */
+    public File startCapture(File file) {
+        if (file == null) {
+            File dir = new File(getFilesDir(), CAPTURE_DIR);
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.e(TAG, "Unable to create " + dir);
+                return null;
+            }
+            file = new File(dir, System.currentTimeMillis() + CAPTURE_SUFFIX);
+        }
+        try {
+            NanoLog.startTrace(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start capture: " + e.getMessage());
+            return null;
         }
         if (debug)
-            Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        return true;
+            Log.d(TAG, "Capturing to " + file);
+        return file;
+    }
+
+    /**
+     * Stop the running capture, if any, and flush it to disk
+     */
+    public void stopCapture() {
+        NanoLog.stopTrace();
     }
 
     @Override
@@ -1026,30 +501,17 @@ public class NanoBLEService extends Service {
         if (debug)
             Log.d(TAG, "onCreate called");
 
+        mRefCalCache = new RefCalCache(this);
+        mDeviceInfoCache = new DeviceInfoCache(this);
+        applyTelemetryPref();
+        setFastReconnect(SettingsManager.getBooleanPref(this, PREF_FAST_RECONNECT, false));
+        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(mPrefListener);
+
         mDataReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent i) {
-                if (i != null) {
-                    if (debug)
-                        Log.d(TAG, "Starting Scan");
-                    byte[] data = {0x00};
-                    if (SettingsManager.getBooleanPref(context, SettingsManager.SharedPreferencesKeys.saveSD, false)) {
-                        data[0] = 0x01;
-                        if (debug)
-                            Log.e(TAG, "Save to SD selected, writing 1");
-                    } else {
-                        data[0] = 0x00;
-                        if (debug)
-                            Log.e(TAG, "Save to SD not selected, writing 0");
-                    }
-                    scanData.reset();
-                    refConf.reset();
-                    refMatrix.reset();
-                    size = 0;
-                    refSize = 0;
-                    refMatrixSize = 0;
-
-                    KSTNanoSDK.startScan(data);
+                if (i != null && mSession != null) {
+                    mSession.startScan(SettingsManager.getBooleanPref(context, SettingsManager.SharedPreferencesKeys.saveSD, false));
                 }
             }
         };
@@ -1057,10 +519,10 @@ public class NanoBLEService extends Service {
         mInfoRequestReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (intent != null) {
+                if (intent != null && mSession != null) {
                     if (debug)
                         Log.d(TAG, "Requesting Device Info");
-                    KSTNanoSDK.getManufacturerName();
+                    mSession.readDeviceInfo();
                 }
             }
         };
@@ -1068,10 +530,10 @@ public class NanoBLEService extends Service {
         mStatusRequestReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (intent != null) {
+                if (intent != null && mSession != null) {
                     if (debug)
                         Log.d(TAG, "Requesting Device Status");
-                    KSTNanoSDK.getBatteryLevel();
+                    mSession.readDeviceStatus();
                 }
             }
         };
@@ -1079,10 +541,10 @@ public class NanoBLEService extends Service {
         mScanConfRequestReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (intent != null) {
+                if (intent != null && mSession != null) {
                     if (debug)
                         Log.d(TAG, "Requesting Device Status");
-                    KSTNanoSDK.getNumberStoredConfigurations();
+                    mSession.requestScanConfigurations();
                 }
             }
         };
@@ -1090,10 +552,10 @@ public class NanoBLEService extends Service {
         mStoredScanRequestReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (intent != null) {
+                if (intent != null && mSession != null) {
                     if (debug)
                         Log.d(TAG, "Requesting Stored Scans");
-                    KSTNanoSDK.getNumberStoredScans();
+                    mSession.requestStoredScans();
                 }
             }
         };
@@ -1101,10 +563,8 @@ public class NanoBLEService extends Service {
         mSetTimeReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (intent != null) {
-                    if (debug)
-                        Log.d(TAG, "writing time to nano");
-                    KSTNanoSDK.setTime();
+                if (intent != null && mSession != null) {
+                    mSession.setTime();
                 }
             }
         };
@@ -1112,15 +572,9 @@ public class NanoBLEService extends Service {
         mStartScanReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                scanStarted = true;
-                String dataString = SettingsManager.getStringPref(getApplicationContext(), SettingsManager.SharedPreferencesKeys.prefix, "Nano");
-                if (dataString.equals("")) {
-                    dataString = "Nano";
+                if (mSession != null) {
+                    mSession.prepareScan();
                 }
-                byte[] data = new StringBuilder(dataString).reverse().toString().getBytes();
-                if (debug)
-                    Log.d(TAG, "Writing scan stub to:" + dataString);
-                KSTNanoSDK.setStub(data);
             }
         };
 
@@ -1128,9 +582,9 @@ public class NanoBLEService extends Service {
             @Override
             public void onReceive(Context context, Intent intent) {
                 byte[] index = intent.getByteArrayExtra(KSTNanoSDK.EXTRA_SCAN_INDEX);
-                if (debug)
-                    Log.d(TAG, "deleting index:" + index[0] + "-" + index[1] + "-" + index[2] + "-" + index[3]);
-                KSTNanoSDK.deleteScan(index);
+                if (mSession != null) {
+                    mSession.deleteScan(index);
+                }
             }
         };
 
@@ -1139,8 +593,9 @@ public class NanoBLEService extends Service {
             public void onReceive(Context context, Intent intent) {
                 if (debug)
                     Log.d(TAG, "Reading active scan conf");
-                KSTNanoSDK.getActiveConf();
-
+                if (mSession != null) {
+                    mSession.readActiveConf();
+                }
             }
         };
 
@@ -1150,7 +605,9 @@ public class NanoBLEService extends Service {
                 if (debug)
                     Log.d(TAG, "Setting active scan conf");
                 byte[] data = intent.getByteArrayExtra(KSTNanoSDK.EXTRA_SCAN_INDEX);
-                KSTNanoSDK.setActiveConf(data);
+                if (mSession != null) {
+                    mSession.setActiveConf(data);
+                }
             }
         };
         mUpdateThresholdReceiver = new BroadcastReceiver() {
@@ -1158,17 +615,30 @@ public class NanoBLEService extends Service {
             public void onReceive(Context context, Intent intent) {
                 if (debug)
                     Log.d(TAG, "Updating Thresholds");
-                tempThresh = intent.getByteArrayExtra(KSTNanoSDK.EXTRA_TEMP_THRESH);
-                humidThresh = intent.getByteArrayExtra(KSTNanoSDK.EXTRA_HUMID_THRESH);
-                KSTNanoSDK.setTemperatureThreshold(tempThresh);
+                if (mSession != null) {
+                    mSession.setThresholds(intent.getByteArrayExtra(KSTNanoSDK.EXTRA_TEMP_THRESH),
+                            intent.getByteArrayExtra(KSTNanoSDK.EXTRA_HUMID_THRESH));
+                }
             }
         };
 
         mRequestActiveConfReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                activeConfRequested = true;
-                KSTNanoSDK.getActiveConf();
+                if (mSession != null) {
+                    mSession.requestActiveConf();
+                }
+            }
+        };
+
+        mDownloadStoredScansReceiver = new BroadcastReceiver() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onReceive(Context context, Intent intent) {
+                ArrayList<byte[]> indices = (ArrayList<byte[]>) intent.getSerializableExtra(EXTRA_STORED_SCAN_INDICES);
+                if (mSession != null) {
+                    mSession.downloadStoredScans(indices);
+                }
             }
         };
 
@@ -1185,6 +655,7 @@ public class NanoBLEService extends Service {
         LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(mSetActiveScanConfReceiver, new IntentFilter(KSTNanoSDK.SET_ACTIVE_CONF));
         LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(mUpdateThresholdReceiver, new IntentFilter(KSTNanoSDK.UPDATE_THRESHOLD));
         LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(mRequestActiveConfReceiver, new IntentFilter(KSTNanoSDK.REQUEST_ACTIVE_CONF));
+        LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(mDownloadStoredScansReceiver, new IntentFilter(ACTION_DOWNLOAD_STORED_SCANS));
     }
 
     @Override
@@ -1192,6 +663,8 @@ public class NanoBLEService extends Service {
         super.onDestroy();
         if (debug)
             Log.d(TAG, "onDestroy called");
+        NanoLog.stopTrace();
+        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(mPrefListener);
 
         //Clean up the registered receivers
         LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(mDataReceiver);
@@ -1206,6 +679,12 @@ public class NanoBLEService extends Service {
         LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(mSetActiveScanConfReceiver);
         LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(mUpdateThresholdReceiver);
         LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(mRequestActiveConfReceiver);
+        LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(mDownloadStoredScansReceiver);
+
+        close();
+        for (NanoSession session : new ArrayList<>(mSessions.values())) {
+            closeSession(session);
+        }
     }
 
     @Override
@@ -1213,9 +692,49 @@ public class NanoBLEService extends Service {
         if (debug)
             Log.d(TAG, "onStartCommand called");
 
+        String action = intent != null ? intent.getAction() : null;
+        String path = intent != null ? intent.getStringExtra(EXTRA_CAPTURE_PATH) : null;
+        if (ACTION_START_CAPTURE.equals(action)) {
+            File file = startCapture(path != null ? new File(path) : null);
+            if (file != null) {
+                Log.i(TAG, "Capturing to " + file);
+            }
+        } else if (ACTION_STOP_CAPTURE.equals(action)) {
+            stopCapture();
+        } else if (debug && ACTION_REPLAY.equals(action)) {
+            if (path == null) {
+                Log.w(TAG, "No capture to replay");
+            } else {
+                connectReplay(new CaptureReplay(new File(path)));
+            }
+        } else if (debug && ACTION_BENCHMARK.equals(action)) {
+            startBenchmark(intent);
+        }
         return super.onStartCommand(intent, flags, startId);
     }
 
+    /**
+     * Run a {@link SimulatedBenchmark} with the settings of an {@link #ACTION_BENCHMARK} intent.
+     * The simulator replaces the primary session
+     */
+    private void startBenchmark(Intent intent) {
+        if (mBenchmark != null && mBenchmark.isRunning()) {
+            Log.w(TAG, "Benchmark already running");
+            return;
+        }
+        SimulatedNano nano = new SimulatedNano();
+        if (intent.hasExtra(EXTRA_LATENCY_MS)) {
+            nano.setLatencyMs(intent.getIntExtra(EXTRA_LATENCY_MS, 0));
+        }
+        if (intent.hasExtra(EXTRA_PACKET_INTERVAL_MS)) {
+            nano.setPacketIntervalMs(intent.getIntExtra(EXTRA_PACKET_INTERVAL_MS, 0));
+        }
+        nano.setDropRate(intent.getFloatExtra(EXTRA_DROP_RATE, 0));
+        mBenchmark = new SimulatedBenchmark(this, nano,
+                intent.getIntExtra(EXTRA_BENCHMARK_SCANS, SimulatedBenchmark.DEFAULT_SCANS));
+        mBenchmark.start();
+    }
+
     @Override
     public void onTaskRemoved(Intent rootIntent) {
         if (debug)
@@ -1223,92 +742,29 @@ public class NanoBLEService extends Service {
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
+     * Disconnects the primary session or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
     public void disconnect() {
-        if (KSTNanoSDK.mBluetoothAdapter == null) {
-            Log.w(TAG, "BluetoothAdapter is null");
-        }
-        if (KSTNanoSDK.mBluetoothGatt == null) {
+        if (mSession == null) {
             Log.w(TAG, "BluetoothGatt is null");
-        }
-        if (KSTNanoSDK.mBluetoothAdapter == null || KSTNanoSDK.mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        KSTNanoSDK.mBluetoothGatt.disconnect();
+        mSession.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly. Closes the primary session; additional sessions are closed with
+     * {@link #closeSession(NanoSession)}
      */
     public void close() {
-        if (KSTNanoSDK.mBluetoothGatt == null) {
+        if (mSession == null) {
             return;
         }
-        KSTNanoSDK.mBluetoothGatt.close();
-        KSTNanoSDK.mBluetoothGatt = null;
-    }
-
-    /**
-     * Convert byte array of name to UTF8 string
-     *
-     * @param data the scan name as a byte array
-     * @return String in UTF8 of scan name bytes
-     */
-    private String nameToUTF8(byte[] data) {
-
-        byte[] byteChars = new byte[data.length];
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        for (byte b : byteChars) {
-            byteChars[b] = 0x00;
-        }
-        String s = null;
-        for (int i = 0; i < data.length; i++) {
-
-            byteChars[i] = data[i];
-
-            if (data[i] == 0x00) {
-                break;
-            }
-
-            os.write(data[i]);
-        }
-
-        try {
-            s = new String(os.toByteArray(), "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return s;
-    }
-
-    /**
-     * @param gatt the Bluetooth GATT object to call the refresh reflection method on
-     * @return Boolean status of refresh operation; true = success, false = failure.
-     */
-    private boolean refreshDeviceCache(BluetoothGatt gatt) {
-        try {
-            BluetoothGatt localBluetoothGatt = gatt;
-            Method localMethod = localBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
-            if (localMethod != null) {
-                boolean bool = ((Boolean) localMethod.invoke(localBluetoothGatt, new Object[0])).booleanValue();
-                return bool;
-            }
-        } catch (Exception localException) {
-            Log.e(TAG, "An exception occurred while refreshing device");
-        }
-        return false;
-    }
-
-    /**
-     * Method to refresh GATT device cache using known BluetoothGatt {@link KSTNanoSDK#mBluetoothGatt}
-     */
-    private void refresh() {
-        refreshDeviceCache(KSTNanoSDK.mBluetoothGatt);
+        mSession.close();
+        mSession = null;
     }
 }
@@ -0,0 +1,216 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.util.Calendar;
+import java.util.UUID;
+
+/**
+ * The Nano requests used by a {@link NanoSession}, issued through its {@link GattOperationQueue}.
+ *
+ * Each method writes or reads the same characteristic, with the same value, as the
+ * {@link KSTNanoSDK} helper of the same name. The SDK helpers always go through
+ * {@link KSTNanoSDK#mBluetoothGatt} and its static characteristics, so they cannot be used with a
+ * {@link SimulatedNano} or with more than one device at a time.
+ *
+ * Every request is queued as a single write or read operation, so a request never collides with
+ * an operation the session has in flight, such as a device status batch. A request that cannot
+ * be issued is completed with a failure by the queue and logged here.
+ *
+ * Most requests are answered by a notification, and the session sends the next request of a
+ * sequence from that notification. {@link #isAwaitingResponse()} tells whether such a request
+ * has been sent and not answered yet, so that unrelated reads can wait for the end of the
+ * sequence.
+ */
+public class NanoCommands {
+
+    private static final String TAG = "__NANO_COMMANDS";
+
+    //Time after which a request that was never answered no longer counts as awaiting its response
+    public static final long RESPONSE_TIMEOUT_MS = 2 * 60 * 1000;
+
+    private final GattOperationQueue mQueue;
+    private NanoGatt mGatt;
+
+    //Time the last unanswered request was sent, 0 if every request was answered
+    private long mAwaitingSince;
+
+    private final GattOperationQueue.OperationCallback mLogFailure = new GattOperationQueue.OperationCallback() {
+        @Override
+        public void onOperationComplete(GattOperationQueue.Operation operation, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, operation.getType() + " of " + operation.getUuid() + " failed, status:" + status);
+            }
+        }
+    };
+
+    /**
+     * @param queue the queue that requests are issued through
+     */
+    public NanoCommands(GattOperationQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Set the connection that the characteristics of requests are looked up on
+     *
+     * @param gatt the connection to use, or null when disconnected
+     */
+    public synchronized void setGatt(NanoGatt gatt) {
+        mGatt = gatt;
+        mAwaitingSince = 0;
+    }
+
+    /**
+     * Called by the session for every notification received from the device
+     */
+    public synchronized void onResponse() {
+        mAwaitingSince = 0;
+    }
+
+    /**
+     * @return true if a request answered by a notification was sent and its notification has not
+     * been received yet, for at most {@link #RESPONSE_TIMEOUT_MS}
+     */
+    public synchronized boolean isAwaitingResponse() {
+        return mAwaitingSince != 0 && SystemClock.elapsedRealtime() - mAwaitingSince < RESPONSE_TIMEOUT_MS;
+    }
+
+    /**
+     * Write the current phone time to the device
+     */
+    public boolean setTime() {
+        Calendar calendar = Calendar.getInstance();
+        byte[] time = {
+                (byte) (calendar.get(Calendar.YEAR) - 2000),
+                (byte) (calendar.get(Calendar.MONTH) + 1),
+                (byte) calendar.get(Calendar.DAY_OF_MONTH),
+                (byte) (calendar.get(Calendar.DAY_OF_WEEK) - 1),
+                (byte) calendar.get(Calendar.HOUR_OF_DAY),
+                (byte) calendar.get(Calendar.MINUTE),
+                (byte) calendar.get(Calendar.SECOND)};
+        return write(KSTNanoSDK.NanoGATT.GDTS_TIME, time);
+    }
+
+    public boolean setStub(byte[] stub) {
+        return write(KSTNanoSDK.NanoGATT.GSDIS_SET_SCAN_NAME_STUB, stub);
+    }
+
+    public boolean startScan(byte[] saveToSd) {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN, saveToSd);
+    }
+
+    public boolean deleteScan(byte[] index) {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN, index);
+    }
+
+    public boolean setTemperatureThreshold(byte[] threshold) {
+        return write(KSTNanoSDK.NanoGATT.GGIS_TEMP_THRESH, threshold);
+    }
+
+    public boolean setHumidityThreshold(byte[] threshold) {
+        return write(KSTNanoSDK.NanoGATT.GGIS_HUMID_THRESH, threshold);
+    }
+
+    public boolean setActiveConf(byte[] confIndex) {
+        return write(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF, confIndex);
+    }
+
+    public boolean getActiveConf() {
+        return read(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF);
+    }
+
+    public boolean getNumberStoredConfigurations() {
+        return read(KSTNanoSDK.NanoGATT.GSCIS_NUM_STORED_CONF);
+    }
+
+    public boolean getNumberStoredScans() {
+        return read(KSTNanoSDK.NanoGATT.GSDIS_NUM_SD_STORED_SCANS);
+    }
+
+    public boolean requestStoredConfigurationList() {
+        return request(KSTNanoSDK.NanoGATT.GSCIS_REQ_STORED_CONF_LIST, new byte[]{0x00});
+    }
+
+    public boolean requestScanConfiguration(byte[] confIndex) {
+        return request(KSTNanoSDK.NanoGATT.GSCIS_REQ_SCAN_CONF_DATA, confIndex);
+    }
+
+    public boolean requestScanIndicesList() {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST, new byte[]{0x00});
+    }
+
+    public boolean requestScanName(byte[] index) {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_NAME, index);
+    }
+
+    public boolean requestScanType(byte[] index) {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_TYPE, index);
+    }
+
+    public boolean requestScanDate(byte[] index) {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_DATE, index);
+    }
+
+    public boolean requestPacketFormatVersion(byte[] index) {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_REQ_PKT_FMT_VER, index);
+    }
+
+    public boolean requestSerializedScanDataStruct(byte[] index) {
+        return request(KSTNanoSDK.NanoGATT.GSDIS_REQ_SER_SCAN_DATA_STRUCT, index);
+    }
+
+    public boolean requestRefCalCoefficients() {
+        return request(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_COEFF, new byte[]{0x00});
+    }
+
+    public boolean requestRefCalMatrix() {
+        return request(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_MATRIX, new byte[]{0x00});
+    }
+
+    /**
+     * Write a request that the device answers with a notification
+     */
+    private boolean request(UUID uuid, byte[] value) {
+        if (!write(uuid, value)) {
+            return false;
+        }
+        synchronized (this) {
+            mAwaitingSince = SystemClock.elapsedRealtime();
+        }
+        return true;
+    }
+
+    private boolean write(UUID uuid, byte[] value) {
+        NanoGatt gatt;
+        synchronized (this) {
+            gatt = mGatt;
+        }
+        BluetoothGattCharacteristic characteristic = gatt == null ? null : gatt.getCharacteristic(uuid);
+        if (characteristic == null || gatt == null) {
+            Log.e(TAG, "Unable to write, not connected");
+            return false;
+        }
+        mQueue.enqueue(GattOperationQueue.Operation.write(characteristic, value).setCallback(mLogFailure));
+        return true;
+    }
+
+    private boolean read(UUID uuid) {
+        NanoGatt gatt;
+        synchronized (this) {
+            gatt = mGatt;
+        }
+        BluetoothGattCharacteristic characteristic = gatt == null ? null : gatt.getCharacteristic(uuid);
+        if (characteristic == null || gatt == null) {
+            Log.e(TAG, "Unable to read, not connected");
+            return false;
+        }
+        mQueue.enqueue(GattOperationQueue.Operation.read(characteristic).setCallback(mLogFailure));
+        return true;
+    }
+}
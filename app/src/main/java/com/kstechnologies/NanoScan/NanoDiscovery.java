@@ -0,0 +1,297 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * BLE discovery of advertising Nanos.
+ *
+ * The scan is filtered on the advertised Nano name, or on a single address, so the controller
+ * drops the advertisements of other devices instead of waking the app for each of them. Where
+ * the controller supports it, results are delivered in batches every report delay.
+ *
+ * Found devices are kept by address with an exponentially smoothed RSSI, and the listener is
+ * called at most once per frame, with the devices that changed since the last call. All
+ * listener calls are made on the main thread.
+ */
+public class NanoDiscovery {
+
+    private static final String TAG = "__NANO_DISCOVERY";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Name advertised by every Nano
+    public static final String DEVICE_NAME = "NIRScanNano";
+
+    //Delay for batched results when listing devices
+    public static final long DEFAULT_REPORT_DELAY_MS = 500;
+
+    //Weight of a new RSSI reading in the smoothed RSSI
+    private static final float RSSI_ALPHA = 0.25f;
+
+    /**
+     * Callback for discovered devices
+     */
+    public interface Listener {
+        /**
+         * Called at most once per frame while devices are being found
+         *
+         * @param devices every device found so far, in the order they were first found
+         * @param changed the devices that were found or whose RSSI changed since the last call
+         */
+        void onDevicesChanged(List<KSTNanoSDK.NanoDevice> devices, List<KSTNanoSDK.NanoDevice> changed);
+
+        /**
+         * Called once the scan period has expired
+         *
+         * @param devices every device found
+         */
+        void onDiscoveryFinished(List<KSTNanoSDK.NanoDevice> devices);
+    }
+
+    private static class Found {
+        final KSTNanoSDK.NanoDevice device;
+        float rssi;
+        int shownRssi;
+        boolean changed;
+
+        Found(KSTNanoSDK.NanoDevice device, int rssi) {
+            this.device = device;
+            this.rssi = rssi;
+            this.shownRssi = rssi;
+        }
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothLeScanner mScanner;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, Found> mDevices = new LinkedHashMap<>();
+
+    private String mAddress;
+    private long mReportDelayMs = DEFAULT_REPORT_DELAY_MS;
+    private int mScanMode = ScanSettings.SCAN_MODE_BALANCED;
+    private boolean mScanning;
+    private boolean mFramePosted;
+    private int mResults;
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onResult(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan failed: " + errorCode);
+            stop();
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePosted = false;
+            dispatch();
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanning) {
+                stop();
+                mListener.onDiscoveryFinished(getDevices());
+            }
+        }
+    };
+
+    /**
+     * @param adapter  the adapter to scan with
+     * @param listener the listener for found devices
+     */
+    public NanoDiscovery(BluetoothAdapter adapter, Listener listener) {
+        mAdapter = adapter;
+        mScanner = adapter.getBluetoothLeScanner();
+        mListener = listener;
+    }
+
+    /**
+     * @param address the only device address to look for, or null to look for every Nano
+     */
+    public void setAddress(String address) {
+        mAddress = address;
+    }
+
+    /**
+     * @return the only device address looked for, or null if every Nano is looked for
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @param reportDelayMs the delay for batched results, or 0 to receive every result right away,
+     *                      as when connecting to the first device found
+     */
+    public void setReportDelay(long reportDelayMs) {
+        mReportDelayMs = reportDelayMs;
+    }
+
+    /**
+     * @param scanMode one of the {@code ScanSettings.SCAN_MODE_} constants
+     */
+    public void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * @return false if the adapter has no LE scanner, as when Bluetooth is off
+     */
+    public boolean isAvailable() {
+        return mScanner != null;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Forget the devices found so far and start scanning
+     *
+     * @param periodMs the time after which the scan is stopped
+     * @return false if the adapter has no LE scanner
+     */
+    public boolean start(long periodMs) {
+        if (mScanner == null) {
+            return false;
+        }
+        stop();
+        mDevices.clear();
+        mResults = 0;
+
+        ScanFilter.Builder filter = new ScanFilter.Builder();
+        if (mAddress != null) {
+            filter.setDeviceAddress(mAddress);
+        } else {
+            filter.setDeviceName(DEVICE_NAME);
+        }
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(filter.build());
+
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(mScanMode);
+        if (mReportDelayMs > 0 && mAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(mReportDelayMs);
+        }
+
+        if (debug)
+            Log.d(TAG, "Scanning for " + (mAddress != null ? mAddress : DEVICE_NAME) + ", hardware filtering: "
+                    + mAdapter.isOffloadedFilteringSupported() + ", batching: " + mAdapter.isOffloadedScanBatchingSupported());
+        mScanner.startScan(filters, settings.build(), mScanCallback);
+        mScanning = true;
+        mHandler.postDelayed(mTimeout, periodMs);
+        return true;
+    }
+
+    /**
+     * Stop scanning. No listener calls are made after this returns
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mTimeout);
+        if (mFramePosted) {
+            Choreographer.getInstance().removeFrameCallback(mFrame);
+            mFramePosted = false;
+        }
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (mScanner != null) {
+            mScanner.stopScan(mScanCallback);
+        }
+        if (debug)
+            Log.d(TAG, "Stopped after " + mResults + " results from " + mDevices.size() + " devices");
+    }
+
+    /**
+     * @return every device found, in the order they were first found
+     */
+    public List<KSTNanoSDK.NanoDevice> getDevices() {
+        ArrayList<KSTNanoSDK.NanoDevice> devices = new ArrayList<>(mDevices.size());
+        for (Found found : mDevices.values()) {
+            devices.add(found.device);
+        }
+        return devices;
+    }
+
+    /**
+     * Record a result. The scanner calls back on the main thread
+     */
+    private void onResult(ScanResult result) {
+        if (!mScanning) {
+            return;
+        }
+        BluetoothDevice device = result.getDevice();
+        String name = device.getName();
+        //Controllers without hardware filtering may still report other devices
+        if (mAddress != null ? !mAddress.equals(device.getAddress()) : !DEVICE_NAME.equals(name)) {
+            return;
+        }
+        mResults++;
+
+        Found found = mDevices.get(device.getAddress());
+        if (found == null) {
+            byte[] scanRecord = result.getScanRecord() == null ? null : result.getScanRecord().getBytes();
+            found = new Found(new KSTNanoSDK.NanoDevice(device, result.getRssi(), scanRecord), result.getRssi());
+            found.changed = true;
+            mDevices.put(device.getAddress(), found);
+        } else {
+            found.rssi += RSSI_ALPHA * (result.getRssi() - found.rssi);
+            int rssi = Math.round(found.rssi);
+            if (rssi != found.shownRssi) {
+                found.shownRssi = rssi;
+                found.device.setRssi(rssi);
+                found.changed = true;
+            }
+        }
+
+        if (found.changed && !mFramePosted) {
+            mFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(mFrame);
+        }
+    }
+
+    private void dispatch() {
+        ArrayList<KSTNanoSDK.NanoDevice> changed = new ArrayList<>();
+        for (Found found : mDevices.values()) {
+            if (found.changed) {
+                found.changed = false;
+                changed.add(found.device);
+            }
+        }
+        if (!changed.isEmpty()) {
+            mListener.onDevicesChanged(getDevices(), changed);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In-process event channel for the data-bearing events of the {@link NanoBLEService}.
+ *
+ * The service sends scan data, reference calibrations, scan configurations and stored scan
+ * metadata as {@code LocalBroadcastManager} broadcasts, which copies every byte array into the
+ * Intent and again for every receiver, and always delivers on the main thread. The same events are
+ * also posted here as typed objects holding direct references to the data, and each subscriber
+ * chooses the thread it is called on.
+ *
+ * The arrays carried by an event are shared by every subscriber and must not be modified.
+ *
+ * The broadcasts are still sent, so existing receivers keep working. Broadcasts are only sent for
+ * the primary {@link NanoSession}, while every session posts here, so each event carries the
+ * address of the device it came from.
+ */
+public final class NanoEventBus {
+
+    /**
+     * The thread a subscriber is called on
+     */
+    public enum ThreadMode {
+        //Called directly on the thread that posted the event (the BLE callback thread for the service)
+        POSTING,
+        //Called on the main thread
+        MAIN,
+        //Called on a single shared background thread, in the order the events were posted
+        BACKGROUND
+    }
+
+    /**
+     * Subscriber for a single event type
+     *
+     * @param <T> the event type
+     */
+    public interface Subscriber<T> {
+        void onEvent(T event);
+    }
+
+    /**
+     * Reassembled serialized scan data of a new scan. Also broadcast as {@code KSTNanoSDK.SCAN_DATA}
+     */
+    public static class ScanDataEvent {
+        public final String address;
+        public final byte[] data;
+        public final String name;
+        public final String type;
+        public final String date;
+        public final String packetFormatVersion;
+        //CRC32 of the data, a content fingerprint for downstream caching
+        public final long checksum;
+
+        public ScanDataEvent(String address, byte[] data, String name, String type, String date, String packetFormatVersion, long checksum) {
+            this.address = address;
+            this.data = data;
+            this.name = name;
+            this.type = type;
+            this.date = date;
+            this.packetFormatVersion = packetFormatVersion;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Reference calibration of a device. Also broadcast as
+     * {@code KSTNanoSDK.REF_CONF_DATA}
+     */
+    public static class RefCalEvent {
+        public final String address;
+        public final byte[] coefficients;
+        public final byte[] matrix;
+        //RefCalCache fingerprint of the coefficients followed by the matrix
+        public final long checksum;
+        public final boolean cached;
+
+        public RefCalEvent(String address, byte[] coefficients, byte[] matrix, long checksum, boolean cached) {
+            this.address = address;
+            this.coefficients = coefficients;
+            this.matrix = matrix;
+            this.checksum = checksum;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * A serialized scan configuration. Also broadcast as {@code KSTNanoSDK.SCAN_CONF_DATA}
+     */
+    public static class ScanConfEvent {
+        public final String address;
+        public final byte[] data;
+
+        public ScanConfEvent(String address, byte[] data) {
+            this.address = address;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Change of the connection of a session. A session is connected once its notifications are
+     * subscribed and it can take requests. Also broadcast as {@code KSTNanoSDK.ACTION_NOTIFY_DONE}
+     * and {@code KSTNanoSDK.ACTION_GATT_DISCONNECTED}
+     */
+    public static class ConnectionEvent {
+        public final String address;
+        public final boolean connected;
+
+        public ConnectionEvent(String address, boolean connected) {
+            this.address = address;
+            this.connected = connected;
+        }
+    }
+
+    /**
+     * Index of the active scan configuration, read after it was set or on request. Also
+     * broadcast as {@code KSTNanoSDK.SEND_ACTIVE_CONF}
+     */
+    public static class ActiveConfEvent {
+        public final String address;
+        public final byte[] index;
+
+        public ActiveConfEvent(String address, byte[] index) {
+            this.address = address;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Device information service values of a device, from the {@link DeviceInfoCache} or read
+     * from the device. Also broadcast as {@code KSTNanoSDK.ACTION_INFO}
+     */
+    public static class DeviceInfoEvent {
+        public final String address;
+        public final DeviceInfoCache.Entry info;
+        public final boolean cached;
+
+        public DeviceInfoEvent(String address, DeviceInfoCache.Entry info, boolean cached) {
+            this.address = address;
+            this.info = info;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * Name and date of a scan stored on the SD card. Also broadcast as
+     * {@code KSTNanoSDK.STORED_SCAN_DATA}
+     */
+    public static class StoredScanEvent {
+        public final String address;
+        public final byte[] index;
+        public final String name;
+        public final String date;
+
+        public StoredScanEvent(String address, byte[] index, String name, String date) {
+            this.address = address;
+            this.index = index;
+            this.name = name;
+            this.date = date;
+        }
+    }
+
+    /**
+     * A chunked transfer given up after timing out on every retry. Also broadcast as
+     * {@code NanoBLEService.ACTION_TRANSFER_FAILED}
+     */
+    public static class TransferFailedEvent {
+        public final String address;
+        public final TransferWatchdog.Phase phase;
+
+        public TransferFailedEvent(String address, TransferWatchdog.Phase phase) {
+            this.address = address;
+            this.phase = phase;
+        }
+    }
+
+    private static class Registration {
+        final Subscriber<?> subscriber;
+        final ThreadMode mode;
+
+        Registration(Subscriber<?> subscriber, ThreadMode mode) {
+            this.subscriber = subscriber;
+            this.mode = mode;
+        }
+    }
+
+    private static final NanoEventBus sDefault = new NanoEventBus();
+
+    private final HashMap<Class<?>, List<Registration>> mSubscribers = new HashMap<>();
+    private Handler mMainHandler;
+    private Handler mBackgroundHandler;
+
+    /**
+     * @return the bus used by the {@link NanoBLEService}
+     */
+    public static NanoEventBus getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Subscribe to an event type
+     *
+     * @param type       the event class to subscribe to
+     * @param subscriber the subscriber to call
+     * @param mode       the thread to call the subscriber on
+     * @param <T>        the event type
+     */
+    public synchronized <T> void register(Class<T> type, Subscriber<T> subscriber, ThreadMode mode) {
+        List<Registration> registrations = mSubscribers.get(type);
+        if (registrations == null) {
+            registrations = new ArrayList<>();
+            mSubscribers.put(type, registrations);
+        }
+        registrations.add(new Registration(subscriber, mode));
+    }
+
+    /**
+     * Remove a subscriber from every event type it was registered for
+     *
+     * @param subscriber the subscriber to remove
+     */
+    public synchronized void unregister(Subscriber<?> subscriber) {
+        for (List<Registration> registrations : mSubscribers.values()) {
+            for (int i = registrations.size() - 1; i >= 0; i--) {
+                if (registrations.get(i).subscriber == subscriber) {
+                    registrations.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param type the event class
+     * @return true if any subscriber is registered for the event type
+     */
+    public synchronized boolean hasSubscribers(Class<?> type) {
+        List<Registration> registrations = mSubscribers.get(type);
+        return registrations != null && !registrations.isEmpty();
+    }
+
+    /**
+     * Deliver an event to every subscriber of its class
+     *
+     * @param event the event to deliver
+     */
+    public void post(final Object event) {
+        List<Registration> registrations;
+        synchronized (this) {
+            List<Registration> current = mSubscribers.get(event.getClass());
+            if (current == null || current.isEmpty()) {
+                return;
+            }
+            registrations = new ArrayList<>(current);
+        }
+
+        for (final Registration registration : registrations) {
+            switch (registration.mode) {
+                case POSTING:
+                    deliver(registration, event);
+                    break;
+                case MAIN:
+                    mainHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(registration, event);
+                        }
+                    });
+                    break;
+                case BACKGROUND:
+                    backgroundHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(registration, event);
+                        }
+                    });
+                    break;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void deliver(Registration registration, Object event) {
+        ((Subscriber<Object>) registration.subscriber).onEvent(event);
+    }
+
+    private synchronized Handler mainHandler() {
+        if (mMainHandler == null) {
+            mMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mMainHandler;
+    }
+
+    private synchronized Handler backgroundHandler() {
+        if (mBackgroundHandler == null) {
+            HandlerThread thread = new HandlerThread("NanoEventBus");
+            thread.start();
+            mBackgroundHandler = new Handler(thread.getLooper());
+        }
+        return mBackgroundHandler;
+    }
+}
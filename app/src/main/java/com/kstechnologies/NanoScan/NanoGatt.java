@@ -0,0 +1,89 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.UUID;
+
+/**
+ * The GATT calls a {@link NanoSession} makes on a connected Nano.
+ *
+ * The methods mirror the {@code android.bluetooth.BluetoothGatt} methods of the same name, and
+ * the results are reported through the {@code BluetoothGattCallback} the connection was made with.
+ * A connection to a real device is wrapped by {@link BluetoothNanoGatt}, and
+ * {@link SimulatedNano} answers the same calls without a device so that the transfer paths of the
+ * service can be benchmarked offline.
+ *
+ * Implementations may pass a null {@code BluetoothGatt} to the callback, so callbacks must not
+ * depend on that argument.
+ */
+public interface NanoGatt {
+
+    /**
+     * Start service discovery. The result is reported through {@code onServicesDiscovered}
+     *
+     * @return true if discovery was started
+     */
+    boolean discoverServices();
+
+    /**
+     * Look up the Nano characteristics of the discovered services. The characteristics belong to
+     * this connection only, so several connections can be open at the same time
+     *
+     * @return true if every Nano characteristic was found
+     */
+    boolean enumerateServices();
+
+    /**
+     * @param uuid one of the {@code KSTNanoSDK.NanoGATT} characteristic UUIDs
+     * @return the characteristic found by {@link #enumerateServices()}, or null if the device
+     * does not have it
+     */
+    BluetoothGattCharacteristic getCharacteristic(UUID uuid);
+
+    /**
+     * @return true if the read was started
+     */
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    /**
+     * Write the current value of a characteristic
+     *
+     * @return true if the write was started
+     */
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    /**
+     * Write the current value of a descriptor
+     *
+     * @return true if the write was started
+     */
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    /**
+     * @return true if notifications were enabled or disabled locally
+     */
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+
+    /**
+     * Request an MTU. The result is reported through {@code onMtuChanged}
+     *
+     * @return true if the request was started
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * @return true if the connection priority request was accepted
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Disconnect from the device. The result is reported through {@code onConnectionStateChange}
+     */
+    void disconnect();
+
+    /**
+     * Release the connection. No callbacks are made after this returns
+     */
+    void close();
+}
@@ -0,0 +1,181 @@
+package com.kstechnologies.NanoScan;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Level-gated logging for the BLE data path.
+ *
+ * The {@link NanoBLEService} receives a notification for every 20 byte packet of a scan or
+ * reference calibration transfer. Building a log message for each of these packets is expensive,
+ * so all formatting is done inside this class and only after the level has been checked. Callers
+ * pass the raw packet and a constant prefix, and no string is built when the level is disabled.
+ *
+ * Packet hex dumps are logged at {@link #VERBOSE}, general service events at {@link #DEBUG}.
+ * The default level is {@link #DEBUG} for debug builds and {@link #WARN} for release builds.
+ *
+ * For looking at the packet stream without the cost of text logging, a compact binary trace can
+ * be started with {@link #startTrace(File)}. See {@link PacketTrace} for the file format.
+ */
+public final class NanoLog {
+
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Integer.MAX_VALUE;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static volatile int sLevel = BuildConfig.DEBUG ? DEBUG : WARN;
+    private static volatile PacketTrace sTrace;
+
+    private NanoLog() {
+    }
+
+    /**
+     * Set the minimum level that will be logged
+     *
+     * @param level one of {@link #VERBOSE}, {@link #DEBUG}, {@link #INFO}, {@link #WARN},
+     *              {@link #ERROR}, or {@link #NONE}
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * @param level the level to check
+     * @return true if messages at this level will be logged
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    /**
+     * @return true if debug messages will be logged
+     */
+    public static boolean isDebug() {
+        return DEBUG >= sLevel;
+    }
+
+    public static void v(String tag, String msg) {
+        if (VERBOSE >= sLevel)
+            Log.v(tag, msg);
+    }
+
+    public static void d(String tag, String msg) {
+        if (DEBUG >= sLevel)
+            Log.d(tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        if (WARN >= sLevel)
+            Log.w(tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        if (ERROR >= sLevel)
+            Log.e(tag, msg);
+    }
+
+    /**
+     * Log a message followed by a hex dump of a packet at the verbose level. The hex dump is only
+     * built if verbose logging is enabled
+     *
+     * @param tag    the log tag
+     * @param prefix the text to print before the hex dump
+     * @param data   the packet to dump
+     */
+    public static void v(String tag, String prefix, byte[] data) {
+        if (VERBOSE >= sLevel)
+            Log.v(tag, prefix + toHex(data, true));
+    }
+
+    /**
+     * Log a message followed by a hex dump of a packet at the debug level. The hex dump is only
+     * built if debug logging is enabled
+     *
+     * @param tag    the log tag
+     * @param prefix the text to print before the hex dump
+     * @param data   the packet to dump
+     */
+    public static void d(String tag, String prefix, byte[] data) {
+        if (DEBUG >= sLevel)
+            Log.d(tag, prefix + toHex(data, true));
+    }
+
+    /**
+     * Format a byte array as upper case hex without String.format
+     *
+     * @param data   the bytes to format
+     * @param spaced true to follow every byte with a space, matching the "%02X " format
+     * @return the formatted string
+     */
+    public static String toHex(byte[] data, boolean spaced) {
+        if (data == null) {
+            return "";
+        }
+        char[] out = new char[data.length * (spaced ? 3 : 2)];
+        int i = 0;
+        for (byte b : data) {
+            out[i++] = HEX_DIGITS[(b >> 4) & 0x0F];
+            out[i++] = HEX_DIGITS[b & 0x0F];
+            if (spaced) {
+                out[i++] = ' ';
+            }
+        }
+        return new String(out);
+    }
+
+    /**
+     * Start writing every packet passed to {@link #trace(int, UUID, byte[])} to a binary trace
+     * file. Any trace already running is stopped first
+     *
+     * @param file the file to write the trace to
+     * @throws IOException if the file could not be opened
+     */
+    public static synchronized void startTrace(File file) throws IOException {
+        stopTrace();
+        sTrace = new PacketTrace(file);
+    }
+
+    /**
+     * Stop the running binary trace, if any, and flush it to disk
+     */
+    public static synchronized void stopTrace() {
+        PacketTrace trace = sTrace;
+        sTrace = null;
+        if (trace != null) {
+            trace.close();
+        }
+    }
+
+    /**
+     * @return true if a binary trace is running
+     */
+    public static boolean isTracing() {
+        return sTrace != null;
+    }
+
+    /**
+     * Add a packet to the binary trace. This is a no-op when no trace is running
+     *
+     * @param direction one of the direction constants in {@link PacketTrace}
+     * @param uuid      the characteristic the packet belongs to
+     * @param data      the packet payload
+     */
+    public static void trace(int direction, UUID uuid, byte[] data) {
+        PacketTrace trace = sTrace;
+        if (trace != null) {
+            trace.record(direction, uuid, data);
+        }
+    }
+}
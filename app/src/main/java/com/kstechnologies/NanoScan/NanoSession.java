@@ -0,0 +1,1871 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+import com.kstechnologies.nirscannanolibrary.SettingsManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The connection to a single Nano. A session owns everything that belongs to one device: the
+ * GATT connection and its characteristics, the reassembly buffers, the reference calibration, the
+ * {@link GattOperationQueue} and the per-device stores. Sessions share nothing but the
+ * {@link RefCalCache}, so the {@link NanoBLEService} can run several of them at the same time.
+ *
+ * Results are posted to the {@link NanoEventBus} with the address of the device. Only the
+ * primary session of the service also sends the {@code KSTNanoSDK} broadcasts the activities
+ * listen for, since those do not say which device they came from. Every broadcast carries
+ * {@link NanoBLEService#EXTRA_DEVICE_ADDRESS}.
+ */
+public class NanoSession {
+
+    //Tag for logging events in the session
+    private static final String TAG = "__NANO_SESSION";
+
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Time for the stack to drop its GATT cache before services are discovered again
+    private static final long REFRESH_DELAY_MS = 500;
+
+    private final Context mContext;
+
+    //Address of the device this session connects to
+    private final String mAddress;
+
+    //True if results are also sent as local broadcasts
+    private final boolean mBroadcast;
+
+    //Reassembly buffers for the chunked scan, reference calibration, and configuration transfers
+    PacketAssembler scanData = new PacketAssembler();
+    PacketAssembler refConf = new PacketAssembler();
+    PacketAssembler refMatrix = new PacketAssembler();
+    PacketAssembler scanConf = new PacketAssembler();
+
+    //Scan and reference calibration information variables
+    int scanConfIndexSize;
+    int scanConfIndex;
+    int storedSDScanSize;
+    private String scanName;
+    private byte[] storedScanName;
+    private String scanType;
+    private String scanDate;
+    private String scanPktFmtVer;
+
+    //Device information variables
+    private String manufName;
+    private String modelNum;
+    private String serialNum;
+    private String hardwareRev;
+    private String tivaRev;
+    private String spectrumRev;
+
+    //Device status variables
+    private int battLevel;
+    private float temp;
+    private float humidity;
+    private String devStatus;
+    private String errStatus;
+    private int devStatusBits;
+    private int errStatusBits;
+    private byte[] tempThresh;
+    private byte[] humidThresh;
+
+    //Logic control flags
+    private boolean readingStoredScans = false;
+    private boolean scanStarted = false;
+    private boolean activeConfRequested = false;
+
+    //Array list that will hold all of the GATT characteristics retrieved from the connected device
+    private ArrayList<byte[]> scanConfList = new ArrayList<>();
+    private ArrayList<byte[]> scanConfPending = new ArrayList<>();
+    private ArrayList<byte[]> scanConfDeviceIndices = new ArrayList<>();
+    private ArrayList<byte[]> storedScanList = new ArrayList<>();
+
+    //Initialize the current scan index to a four-byte zero array
+    private byte scanIndex[] = {0x00, 0x00, 0x00, 0x00};
+
+    //Connection to the device, either a real Nano or a SimulatedNano
+    private NanoGatt mNanoGatt;
+
+    //Serialized queue for every GATT operation issued on mNanoGatt
+    private final GattOperationQueue mGattQueue = new GattOperationQueue();
+
+    //Nano requests, issued through mGattQueue
+    private final NanoCommands mCommands = new NanoCommands(mGattQueue);
+
+    //True while connected. Operations dropped on disconnect still complete, and check this first
+    private volatile boolean mConnected;
+
+    //Throughput and latency counters for every notifying characteristic
+    private final TransferMetrics mTransferMetrics = new TransferMetrics();
+
+    //MTU and connection priority used for the bulk transfers
+    private final TransferProfile mTransferProfile = new TransferProfile(mGattQueue);
+
+    //Deadlines and retries for the chunked transfers
+    private final TransferWatchdog mWatchdog;
+
+    //Periodic device status samples
+    private final TelemetrySampler mTelemetry = new TelemetrySampler(this);
+
+    //Reference calibrations of previously connected devices, and the serial number of the
+    //device whose reference calibration is being downloaded
+    private final RefCalCache mRefCalCache;
+    private String mRefCalSerial;
+
+    //Fingerprint of the cached reference calibration that the download in progress is checked
+    //against, null if the download is not a check
+    private Long mRefCalVerifying;
+
+    //Service maps and remembered subscriptions of previously connected devices, null if fast
+    //reconnection is off
+    private GattServiceCache mServiceCache;
+
+    //Device information of previously connected devices, null if it is always read from the
+    //device, and whether the cached entry was checked against the device on this connection
+    private DeviceInfoCache mDeviceInfoCache;
+    private boolean mDeviceInfoChecked;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    //Scan configurations of the device, and the index of the configuration being downloaded
+    private ScanConfCatalogue mScanConfCatalogue;
+    private byte[] mScanConfDownloading;
+
+    //Names and dates of the SD card scans of the device
+    private StoredScanStore mStoredScanStore;
+
+    //Bulk download of SD card scans, and the index of the scan being downloaded
+    private StoredScanDownloader mStoredScanDownloader;
+    private byte[] mDownloadingIndex;
+
+    //Reference calibration of the device, used to interpret downloaded SD card scans
+    private byte[] mRefCoeff;
+    private byte[] mRefMatrix;
+
+    /**
+     * @param context     the context used for broadcasts, settings and per-device files
+     * @param address     the Bluetooth address of the device
+     * @param refCalCache the reference calibration cache shared by all sessions
+     * @param broadcast   true to also send the results as local broadcasts. Only the primary
+     *                    session of the service should do so
+     */
+    public NanoSession(Context context, String address, RefCalCache refCalCache, boolean broadcast) {
+        mContext = context.getApplicationContext();
+        mAddress = address;
+        mRefCalCache = refCalCache;
+        mBroadcast = broadcast;
+        mWatchdog = new TransferWatchdog(mHandler, mTransferMetrics, mWatchdogListener);
+    }
+
+    /**
+     * @return the Bluetooth address of the device
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return true if this session sends local broadcasts
+     */
+    public boolean isBroadcasting() {
+        return mBroadcast;
+    }
+
+    /**
+     * Get the transfer metrics of the current connection. The metrics are reset on every
+     * connection
+     *
+     * @return the {@link TransferMetrics} of this session
+     */
+    public TransferMetrics getTransferMetrics() {
+        return mTransferMetrics;
+    }
+
+    /**
+     * @return the {@link TransferWatchdog} of this session, to adjust its timeouts and retries
+     */
+    public TransferWatchdog getTransferWatchdog() {
+        return mWatchdog;
+    }
+
+    /**
+     * @return true while a sequence of requests is running: a GATT operation is queued or in
+     * flight, a request has not been answered yet, or a chunked transfer is running
+     */
+    public boolean isBusy() {
+        return !mGattQueue.isIdle() || mCommands.isAwaitingResponse()
+                || mWatchdog.getState() != TransferWatchdog.State.IDLE;
+    }
+
+    /**
+     * @return the {@link TelemetrySampler} of this session, to start sampling and read the
+     * recorded device status
+     */
+    public TelemetrySampler getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Turn fast reconnection on or off. With a cache, the GATT cache of the stack is kept after a
+     * disconnection, the services of a reconnected device are reused if they match the recorded
+     * service map, and the CCCDs a bonded device remembers are not written again. Without one,
+     * the GATT cache is cleared on every disconnection and every reconnection starts from a full
+     * service discovery
+     *
+     * @param cache the cache shared by the sessions of the service, or null to turn fast
+     *              reconnection off
+     */
+    public void setServiceCache(GattServiceCache cache) {
+        mServiceCache = cache;
+    }
+
+    /**
+     * Set the cache of device information values. With a cache, device information requests and
+     * the serial number lookup of the reference calibration are answered without reading the
+     * device information service, once the device has been read in full
+     *
+     * @param cache the cache shared by the sessions of the service, or null to always read the
+     *              device
+     */
+    public void setDeviceInfoCache(DeviceInfoCache cache) {
+        mDeviceInfoCache = cache;
+    }
+
+    /**
+     * Print the address, transfer metrics and telemetry of this session
+     *
+     * @param writer the writer to print to
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Session " + mAddress + (mBroadcast ? " (primary)" : ""));
+        mTransferMetrics.dump(writer);
+        mTelemetry.getHistory().dump(writer);
+    }
+
+    /**
+     * Connect to a device. The connection is reported through the GATT callback of the session
+     *
+     * @param device the device to connect to, which must have the address of the session
+     * @return true if the connection was initiated
+     */
+    public boolean connect(BluetoothDevice device) {
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        BluetoothGatt gatt;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Log.d(TAG, "Using LE Transport");
+            gatt = device.connectGatt(mContext, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            gatt = device.connectGatt(mContext, false, mGattCallback);
+        }
+        if (gatt == null) {
+            Log.w(TAG, "Unable to connect to " + mAddress);
+            return false;
+        }
+        mNanoGatt = new BluetoothNanoGatt(gatt);
+        if (debug)
+            Log.d(TAG, "Trying to create a new connection to " + mAddress);
+        return true;
+    }
+
+    /**
+     * Reconnect the existing connection to a real device
+     *
+     * @return true if the reconnection was initiated, false if there is no connection to reuse
+     */
+    public boolean reconnect() {
+        if (!(mNanoGatt instanceof BluetoothNanoGatt)) {
+            return false;
+        }
+        if (debug)
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for " + mAddress);
+        return ((BluetoothNanoGatt) mNanoGatt).getGatt().connect();
+    }
+
+    /**
+     * Connect to a {@link SimulatedNano} instead of a device. Everything after the connection
+     * takes the same path as for a real Nano
+     *
+     * @param nano the simulated device to connect to
+     */
+    public void connect(SimulatedNano nano) {
+        if (debug)
+            Log.d(TAG, "Connecting to simulated Nano at " + nano.getAddress());
+        mNanoGatt = nano;
+        nano.connect(mGattCallback);
+    }
+
+    /**
+     * Connect to a {@link CaptureReplay} instead of a device
+     *
+     * @param replay the capture to replay
+     * @throws IOException if the capture could not be opened
+     */
+    public void connect(CaptureReplay replay) throws IOException {
+        replay.connect(mGattCallback);
+        if (debug)
+            Log.d(TAG, "Replaying capture as " + replay.getAddress());
+        mNanoGatt = replay;
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection. The disconnection result
+     * is reported asynchronously through the GATT callback
+     */
+    public void disconnect() {
+        if (mNanoGatt == null) {
+            Log.w(TAG, "BluetoothGatt is null");
+            return;
+        }
+        mNanoGatt.disconnect();
+    }
+
+    /**
+     * Release the connection and the files kept open for the device
+     */
+    public void close() {
+        mTelemetry.stop();
+        mTelemetry.onDisconnected();
+        if (mNanoGatt != null) {
+            mNanoGatt.close();
+            mNanoGatt = null;
+        }
+        if (mStoredScanDownloader != null) {
+            mStoredScanDownloader.close();
+            mStoredScanDownloader = null;
+        }
+    }
+
+    /**
+     * Start a scan with the scan name stub already on the device
+     *
+     * @param saveToSd true to also store the scan on the SD card of the device
+     */
+    public void startScan(boolean saveToSd) {
+        if (debug)
+            Log.d(TAG, "Starting Scan, save to SD:" + saveToSd);
+        byte[] data = {(byte) (saveToSd ? 0x01 : 0x00)};
+        scanData.reset();
+        refConf.reset();
+        refMatrix.reset();
+
+        mCommands.startScan(data);
+    }
+
+    /**
+     * Write the scan name stub from the settings, then start a scan once the stub is written
+     */
+    public void prepareScan() {
+        scanStarted = true;
+        String dataString = SettingsManager.getStringPref(mContext, SettingsManager.SharedPreferencesKeys.prefix, "Nano");
+        if (dataString.equals("")) {
+            dataString = "Nano";
+        }
+        byte[] data = new StringBuilder(dataString).reverse().toString().getBytes();
+        if (debug)
+            Log.d(TAG, "Writing scan stub to:" + dataString);
+        mCommands.setStub(data);
+    }
+
+    /**
+     * Write the current phone time to the device. Once written, the scan name stub is set and
+     * the reference calibration is loaded
+     */
+    public void setTime() {
+        if (debug)
+            Log.d(TAG, "writing time to nano");
+        mCommands.setTime();
+    }
+
+    /**
+     * Request the number of stored scan configurations, which starts the configuration sync
+     */
+    public void requestScanConfigurations() {
+        mCommands.getNumberStoredConfigurations();
+    }
+
+    /**
+     * Request the number of SD card scans, which starts the SD card scan sync
+     */
+    public void requestStoredScans() {
+        mCommands.getNumberStoredScans();
+    }
+
+    /**
+     * Delete a scan from the SD card of the device and from the {@link StoredScanStore}
+     *
+     * @param index the four byte index of the scan
+     */
+    public void deleteScan(byte[] index) {
+        if (debug)
+            Log.d(TAG, "deleting index:" + index[0] + "-" + index[1] + "-" + index[2] + "-" + index[3]);
+        mCommands.deleteScan(index);
+        StoredScanStore store = getStoredScanStore();
+        store.remove(index);
+        store.save();
+    }
+
+    /**
+     * Read the index of the active scan configuration
+     */
+    public void readActiveConf() {
+        mCommands.getActiveConf();
+    }
+
+    /**
+     * Read the active scan configuration, sending the configuration itself rather than its index
+     */
+    public void requestActiveConf() {
+        activeConfRequested = true;
+        mCommands.getActiveConf();
+    }
+
+    /**
+     * @param confIndex the index of the scan configuration to make active
+     */
+    public void setActiveConf(byte[] confIndex) {
+        mCommands.setActiveConf(confIndex);
+    }
+
+    /**
+     * Write the temperature threshold, followed by the humidity threshold
+     */
+    public void setThresholds(byte[] temperature, byte[] humidity) {
+        tempThresh = temperature;
+        humidThresh = humidity;
+        mCommands.setTemperatureThreshold(tempThresh);
+    }
+
+    /**
+     * Start or resume a bulk download of SD card scans
+     *
+     * @param indices the four byte indices of the scans to add, or null to resume an interrupted
+     *                download
+     */
+    public void downloadStoredScans(ArrayList<byte[]> indices) {
+        if (indices != null) {
+            getStoredScanDownloader().add(indices);
+        }
+        if (mDownloadingIndex == null) {
+            downloadNextStoredScan();
+        }
+    }
+
+    /**
+     * Implements callback methods for GATT events that the app cares about.  These include
+     * connection/disconnection, services discovered, and characteristic read/write/notify.
+     */
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        /**
+         * Callback handler for connection state changes. If the new state is connected, a call to
+         * discover services is made immediately
+         *
+         * @param gatt the Gatt of the Bluetooth Device that we care about
+         * @param status The returned value of the connect/disconnect operation
+         * @param newState The new connection state of the Bluetooth Device
+         */
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            String intentAction;
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                if (debug) {
+                    Log.i(TAG, "Connected to GATT server.");
+                }
+                mConnected = true;
+                mCommands.setGatt(mNanoGatt);
+                mGattQueue.setGatt(mNanoGatt);
+                mTransferProfile.setGatt(mNanoGatt);
+                mTransferMetrics.reset();
+                mTelemetry.onConnected();
+                if (useCachedServices()) {
+                    if (debug)
+                        Log.d(TAG, "Reusing the services of the previous connection");
+                    onServicesReady();
+                } else {
+                    // Attempts to discover services after successful connection.
+                    Log.i(TAG, "Attempting to start service discovery:" +
+                            mNanoGatt.discoverServices());
+                }
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                intentAction = KSTNanoSDK.ACTION_GATT_DISCONNECTED;
+                mConnected = false;
+                mCommands.setGatt(null);
+                mGattQueue.setGatt(null);
+                mTransferProfile.setGatt(null);
+                mWatchdog.cancel();
+                mTelemetry.onDisconnected();
+                mRefCalSerial = null;
+                mRefCalVerifying = null;
+                mDeviceInfoChecked = false;
+                mScanConfDownloading = null;
+                scanConfPending.clear();
+                storedScanList.clear();
+                readingStoredScans = false;
+                mDownloadingIndex = null;
+                mRefCoeff = null;
+                mRefMatrix = null;
+                mHandler.removeCallbacks(mRediscover);
+                if (mServiceCache == null) {
+                    refresh();
+                }
+                if (debug) {
+                    Log.i(TAG, "Disconnected from GATT server.");
+                }
+                NanoEventBus.getDefault().post(new NanoEventBus.ConnectionEvent(mAddress, false));
+                broadcastUpdate(intentAction);
+            }
+        }
+
+        /**
+         * Callback handler for Gatt enumeration
+         * @param gatt the Gatt profile that was enumerated after connection
+         * @param status The status of the enumeration operation
+         */
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+
+            boolean enumerated = mNanoGatt != null && mNanoGatt.enumerateServices();
+
+            /*If enumeration was a success, send a broadcast to indicate that the enumeration is
+             * complete. This should also kick off the process of subscribing to characteristic
+             * notifications.
+             *
+             * If enumeration is not a success, print a warning if debug is enabled
+             */
+            if (status == BluetoothGatt.GATT_SUCCESS && enumerated) {
+                if (debug)
+                    Log.d(TAG, "Services discovered:SUCCESS");
+                if (checkServices()) {
+                    onServicesReady();
+                }
+            } else {
+                if (debug)
+                    Log.e(TAG, "onServicesDiscovered received: " + status);
+            }
+        }
+
+        /*
+         * Handle descriptor write events.
+         *
+         * Notification subscriptions are issued as a single batch through the
+         * {@link GattOperationQueue} when the GATT enumeration is complete. The queue starts the
+         * next subscription as soon as this callback is forwarded to it.
+         */
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorWrite(gatt, descriptor, status);
+            if (debug)
+                Log.d("__onDescriptorWrite", "descriptor: " + descriptor.getUuid() + ". characteristic: " + descriptor.getCharacteristic().getUuid() + ". status: " + status);
+
+            mGattQueue.onDescriptorWrite(descriptor, status);
+        }
+
+        /**
+         * Callback handler for MTU changes. The MTU exchange is issued through the
+         * {@link GattOperationQueue} by the {@link TransferProfile} after enumeration
+         *
+         * @param gatt the Gatt of the connected device
+         * @param mtu the new MTU of the connection
+         * @param status the status of the MTU exchange
+         */
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            if (debug)
+                Log.d(TAG, "MTU changed:" + mtu + " status=" + status);
+            mGattQueue.onMtuChanged(mtu, status);
+        }
+
+        /**
+         * Callback handler for characteristic reads
+         *
+         * It is important to note that some characteristic reads will kick off others. This is
+         * because the calling activity requires more information, and the number of broadcasts
+         * needed is reduced if all of the needed information is attached to a single broadcast.
+         * The device information and device status reads are issued as batches through the
+         * {@link GattOperationQueue}, which broadcasts the results once the batch is complete
+         *
+         * @param gatt the Gatt of the connected device
+         * @param characteristic the characteristic that was written
+         * @param status the returned value of the read operation
+         */
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                NanoLog.trace(PacketTrace.DIR_READ, characteristic.getUuid(), characteristic.getValue());
+                if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_MANUF_NAME)) {
+                    manufName = new String(characteristic.getValue());
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_MODEL_NUMBER)) {
+                    modelNum = new String(characteristic.getValue());
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_SERIAL_NUMBER)) {
+                    serialNum = new String(characteristic.getValue());
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_HW_REV)) {
+                    hardwareRev = new String(characteristic.getValue());
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_TIVA_FW_REV)) {
+                    tivaRev = new String(characteristic.getValue());
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.DIS_SPECC_REV)) {
+                    spectrumRev = new String(characteristic.getValue());
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.BAS_BATT_LVL)) {
+                    byte[] data = characteristic.getValue();
+                    NanoLog.d(TAG, "batt level:", data);
+                    battLevel = data[0];
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_TEMP_MEASUREMENT)) {
+                    byte[] data = characteristic.getValue();
+                    NanoLog.d(TAG, "temp level string:", data);
+                    temp = (float) (data[1] << 8 | (data[0] & 0xff)) / 100;
+                    if (debug)
+                        Log.d(TAG, "temp level int:" + temp);
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_HUMID_MEASUREMENT)) {
+                    byte[] data = characteristic.getValue();
+                    NanoLog.d(TAG, "humid level:", data);
+                    humidity = (float) (data[1] << 8 | (data[0] & 0xff)) / 100;
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_DEV_STATUS)) {
+                    byte[] data = characteristic.getValue();
+                    devStatus = NanoLog.toHex(data, false);
+                    devStatusBits = TelemetryHistory.statusBits(data);
+                    if (debug)
+                        Log.d(TAG, "dev status:" + devStatus);
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_ERR_STATUS)) {
+                    byte[] data = characteristic.getValue();
+                    errStatus = NanoLog.toHex(data, false);
+                    errStatusBits = TelemetryHistory.statusBits(data);
+                    if (debug)
+                        Log.d(TAG, "error status:" + errStatus);
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_NUM_STORED_CONF)) {
+                    byte[] data = characteristic.getValue();
+
+                    scanConfIndex = 0;
+                    scanConfList.clear();
+                    scanConfIndexSize = (((data[1]) << 8) | (data[0] & 0xFF));
+                    Intent scanConfSizeIntent = new Intent(KSTNanoSDK.SCAN_CONF_SIZE);
+                    scanConfSizeIntent.putExtra(KSTNanoSDK.EXTRA_CONF_SIZE, scanConfIndexSize);
+                    sendBroadcast(scanConfSizeIntent);
+                    if (debug)
+                        Log.d(TAG, "Num stored scan configs:" + scanConfIndexSize);
+
+                    mCommands.requestStoredConfigurationList();
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_NUM_SD_STORED_SCANS)) {
+                    byte[] data = characteristic.getValue();
+
+                    storedScanList.clear();
+                    storedSDScanSize = (((data[1]) << 8) | (data[0] & 0xFF));
+                    if (debug)
+                        Log.d(TAG, "Num stored SD scans:" + storedSDScanSize);
+                    Intent sdScanSizeIntent = new Intent(KSTNanoSDK.SD_SCAN_SIZE);
+                    sdScanSizeIntent.putExtra(KSTNanoSDK.EXTRA_INDEX_SIZE, storedSDScanSize);
+                    sendBroadcast(sdScanSizeIntent);
+                    mCommands.requestScanIndicesList();
+                } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF)) {
+                    byte[] data = characteristic.getValue();
+                    if (!activeConfRequested) {
+                        NanoLog.d(TAG, "Active scan conf index:", data);
+                        NanoEventBus.getDefault().post(new NanoEventBus.ActiveConfEvent(mAddress, data));
+                        Intent sendActiveConfIntent = new Intent(KSTNanoSDK.SEND_ACTIVE_CONF);
+                        sendActiveConfIntent.putExtra(KSTNanoSDK.EXTRA_ACTIVE_CONF, data);
+                        sendBroadcast(sendActiveConfIntent);
+                    } else {
+                        byte[] confIndex = {data[0], data[1]};
+                        byte[] cached = getScanConfCatalogue().getRaw(confIndex);
+                        if (cached != null) {
+                            if (debug)
+                                Log.d(TAG, "Using cached active scan conf at index:" + confIndex[0] + "-" + confIndex[1]);
+                            activeConfRequested = false;
+                            broadcastScanConfig(KSTNanoSDK.SCAN_CONF_DATA, cached);
+                        } else {
+                            requestScanConfiguration(confIndex);
+                        }
+                    }
+                }
+            }
+            mGattQueue.onCharacteristicRead(characteristic, status);
+        }
+
+        /**
+         * Callback handler for characteristic notify/indicate updates
+         *
+         * It is important to note that some characteristic reads will kick off others. This is
+         * because the calling activity requires more information, and the number of broadcasts
+         * needed is reduced if all of the needed information is attached to a single broadcast
+         *
+         * @param gatt the Gatt profile of the connected device
+         * @param characteristic the characteristic that provided the notify/indicate
+         */
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            NanoLog.trace(PacketTrace.DIR_NOTIFY, characteristic.getUuid(), characteristic.getValue());
+            mCommands.onResponse();
+            byte[] value = characteristic.getValue();
+            mTransferMetrics.onNotification(characteristic.getUuid(), value == null ? 0 : value.length);
+            if (NanoLog.isLoggable(NanoLog.VERBOSE))
+                Log.v(TAG, "onCharacteristic changed for characteristic:" + characteristic.getUuid().toString());
+
+            if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN)) {
+                Intent scanStartedIntent = new Intent(NanoBLEService.ACTION_SCAN_STARTED);
+                sendBroadcast(scanStartedIntent);
+                scanData.reset();
+                refConf.reset();
+                refMatrix.reset();
+                final byte[] data = characteristic.getValue();
+                if (data[0] == (byte) 0xff) {
+                    if (debug)
+                        Log.d(TAG, "Scan data is ready to be read");
+                    scanIndex[0] = data[1];
+                    scanIndex[1] = data[2];
+                    scanIndex[2] = data[3];
+                    scanIndex[3] = data[4];
+                    if (debug)
+                        Log.d(TAG, "the scan index is:" + scanIndex[0] + " " + scanIndex[1] + " " + scanIndex[2] + " " + scanIndex[3]);
+
+                    mCommands.requestScanName(scanIndex);
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_NAME)) {
+                final byte[] data = characteristic.getValue();
+
+                if (debug)
+                    Log.d(TAG, "Received scan name:" + new String(data));
+                scanName = new String(data);
+
+                if (readingStoredScans) {
+                    storedScanName = data;
+                    mCommands.requestScanDate(storedScanList.get(0));
+                } else {
+                    mCommands.requestScanType(scanIndex);
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_TYPE)) {
+                final byte[] data = characteristic.getValue();
+                scanType = NanoLog.toHex(data, false);
+                if (debug)
+                    Log.d(TAG, "Received scan type:" + scanType);
+                mCommands.requestScanDate(scanIndex);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_DATE)) {
+                final byte[] data = characteristic.getValue();
+                final StringBuilder stringBuilder = new StringBuilder(data.length * 2);
+                for (byte byteChar : data)
+                    stringBuilder.append(String.format("%02d", byteChar));
+                scanDate = stringBuilder.toString();
+                if (debug)
+                    Log.d(TAG, "Received scan date:" + scanDate);
+                if (readingStoredScans) {
+                    byte[] index = storedScanList.remove(0);
+                    getStoredScanStore().put(index, storedScanName, scanDate);
+                    broadcastUpdate(KSTNanoSDK.STORED_SCAN_DATA, storedScanName, scanDate, index);
+                    nextStoredScan();
+                } else {
+                    mCommands.requestPacketFormatVersion(scanIndex);
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_RET_PKT_FMT_VER)) {
+                final byte[] data = characteristic.getValue();
+                scanPktFmtVer = NanoLog.toHex(data, true);
+                if (debug)
+                    Log.d(TAG, "Received Packet Format Version:" + scanPktFmtVer);
+                mTransferProfile.begin(TransferProfile.Transfer.SCAN_DATA);
+                mWatchdog.start(TransferWatchdog.Phase.SCAN_DATA);
+                mCommands.requestSerializedScanDataStruct(scanIndex);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_RET_SER_SCAN_DATA_STRUCT)) {
+                final byte[] data = characteristic.getValue();
+                NanoLog.v(TAG, "Received Serialized Scan Data Struct:", data);
+                mWatchdog.onPacket(TransferWatchdog.Phase.SCAN_DATA);
+                if (data[0] == 0x00) {
+                    scanData.begin(PacketAssembler.parseSize(data));
+                } else if (!acceptPacket(scanData, TransferWatchdog.Phase.SCAN_DATA, data)) {
+                    return;
+                }
+
+                if (debug)
+                    Log.d("__SIZE", "new ScanData size:" + scanData.size());
+                byte[] scan;
+                long checksum;
+                synchronized (scanData) {
+                    scan = scanData.detachIfComplete();
+                    checksum = scanData.getChecksum();
+                }
+                if (scan != null) {
+                    mWatchdog.complete(TransferWatchdog.Phase.SCAN_DATA);
+                    mTransferProfile.end(TransferProfile.Transfer.SCAN_DATA);
+                    if (mDownloadingIndex != null) {
+                        if (debug)
+                            Log.d(TAG, "Done collecting stored scan data");
+                        getStoredScanDownloader().onScanData(mDownloadingIndex, scan);
+                        mDownloadingIndex = null;
+                        downloadNextStoredScan();
+                    } else {
+                        if (debug)
+                            Log.d(TAG, "Done collecting scan data, sending broadcast");
+                        broadcastUpdate(KSTNanoSDK.SCAN_DATA, scan, checksum);
+                    }
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_COEFF)) {
+                final byte[] data = characteristic.getValue();
+                NanoLog.v(TAG, "Received Reference calibration coefficients:", data);
+                mWatchdog.onPacket(TransferWatchdog.Phase.REF_COEFFICIENTS);
+
+                if (data[0] == 0x00) {
+                    refConf.begin(PacketAssembler.parseSize(data));
+                    Intent requestCalCoef = new Intent(KSTNanoSDK.ACTION_REQ_CAL_COEFF);
+                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE, refConf.expected());
+                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE_PACKET, true);
+                    sendBroadcast(requestCalCoef);
+                } else {
+                    int received = refConf.size();
+                    if (!acceptPacket(refConf, TransferWatchdog.Phase.REF_COEFFICIENTS, data)) {
+                        return;
+                    }
+                    Intent requestCalCoef = new Intent(KSTNanoSDK.ACTION_REQ_CAL_COEFF);
+                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE, refConf.size() - received);
+                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_COEFF_SIZE_PACKET, false);
+                    sendBroadcast(requestCalCoef);
+                }
+
+                if (refConf.isComplete()) {
+                    if (debug)
+                        Log.d(TAG, "Done collecting reference, sending broadcast");
+                    mWatchdog.start(TransferWatchdog.Phase.REF_MATRIX);
+                    mCommands.requestRefCalMatrix();
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_MATRIX)) {
+                final byte[] data = characteristic.getValue();
+                NanoLog.v(TAG, "Received Reference calibration matrix:", data);
+                mWatchdog.onPacket(TransferWatchdog.Phase.REF_MATRIX);
+
+                if (data[0] == 0x00) {
+                    refMatrix.begin(PacketAssembler.parseSize(data));
+                    Intent requestCalMatrix = new Intent(KSTNanoSDK.ACTION_REQ_CAL_MATRIX);
+                    requestCalMatrix.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE, refMatrix.expected());
+                    requestCalMatrix.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE_PACKET, true);
+                    sendBroadcast(requestCalMatrix);
+                } else {
+                    int received = refMatrix.size();
+                    if (!acceptPacket(refMatrix, TransferWatchdog.Phase.REF_MATRIX, data)) {
+                        return;
+                    }
+                    Intent requestCalCoef = new Intent(KSTNanoSDK.ACTION_REQ_CAL_MATRIX);
+                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE, refMatrix.size() - received);
+                    requestCalCoef.putExtra(KSTNanoSDK.EXTRA_REF_CAL_MATRIX_SIZE_PACKET, false);
+                    sendBroadcast(requestCalCoef);
+                }
+
+                byte[] coeff = null;
+                byte[] matrix;
+                synchronized (refMatrix) {
+                    matrix = refMatrix.detachIfComplete();
+                    if (matrix != null) {
+                        coeff = refConf.detach();
+                    }
+                }
+                if (matrix != null) {
+                    if (debug)
+                        Log.d(TAG, "Done collecting reference Matrix, sending broadcast");
+                    mWatchdog.complete(TransferWatchdog.Phase.REF_MATRIX);
+                    mTransferProfile.end(TransferProfile.Transfer.REFERENCE);
+                    long fingerprint = RefCalCache.fingerprint(coeff, matrix);
+                    Long cached = mRefCalVerifying;
+                    mRefCalVerifying = null;
+                    if (cached != null && cached == fingerprint) {
+                        if (debug)
+                            Log.d(TAG, "Cached reference calibration is current");
+                        mRefCalSerial = null;
+                        return;
+                    }
+                    if (mRefCalSerial != null) {
+                        if (cached != null) {
+                            Log.i(TAG, "Reference calibration of " + mRefCalSerial + " changed, replacing cached entry");
+                            mRefCalCache.invalidate(mRefCalSerial);
+                        }
+                        mRefCalCache.put(mRefCalSerial, coeff, matrix);
+                        mRefCalSerial = null;
+                    }
+                    onReferenceCalibration(coeff, matrix, fingerprint, false);
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_RET_STORED_CONF_LIST)) {
+                final byte[] data = characteristic.getValue();
+                NanoLog.v(TAG, "Received Scan Conf index:", data);
+
+                scanConfIndex++;
+                scanConfList.add(data);
+
+                if ((scanConfIndexSize == 1 && scanConfList.size() > 1)
+                        || (scanConfIndex == scanConfIndexSize && scanConfIndexSize != 1)) {
+                    syncScanConfigurations();
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST_DATA)) {
+                final byte[] data = characteristic.getValue();
+                NanoLog.v(TAG, "Received SD scan indices list:", data);
+                int index;
+                for (index = 0; index < data.length / 4; index++) {
+                    byte[] sdIndex = {data[index * 4], data[(index * 4) + 1], data[(index * 4) + 2], data[(index * 4) + 3]};
+
+                    storedScanList.add(sdIndex);
+                    if (debug)
+                        Log.d(TAG, "new storedScanList size:" + storedScanList.size());
+                }
+                if (storedScanList.size() == storedSDScanSize) {
+                    syncStoredScans();
+                }
+
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_RET_SCAN_CONF_DATA)) {
+                final byte[] data = characteristic.getValue();
+                NanoLog.v(TAG, "Received Scan Conf Data:", data);
+                mWatchdog.onPacket(TransferWatchdog.Phase.SCAN_CONF);
+
+                if (data[0] == 0x00) {
+                    scanConf.begin(PacketAssembler.parseSize(data));
+                } else if (!acceptPacket(scanConf, TransferWatchdog.Phase.SCAN_CONF, data)) {
+                    return;
+                }
+
+                byte[] conf = scanConf.detachIfComplete();
+                if (conf != null) {
+                    mWatchdog.complete(TransferWatchdog.Phase.SCAN_CONF);
+                    mTransferProfile.end(TransferProfile.Transfer.SCAN_CONF);
+                    if (mScanConfDownloading != null) {
+                        getScanConfCatalogue().put(mScanConfDownloading, conf);
+                        mScanConfDownloading = null;
+                    }
+
+                    if (!activeConfRequested) {
+                        if (debug)
+                            Log.d(TAG, "Done collecting scanConfiguration, sending broadcast");
+                        broadcastScanConfig(KSTNanoSDK.SCAN_CONF_DATA, conf);
+
+                        if (!scanConfPending.isEmpty()) {
+                            scanConfPending.remove(0);
+                        }
+                        nextScanConfiguration();
+                    } else {
+                        if (debug)
+                            Log.d(TAG, "Done collecting active scanConfiguration");
+                        getScanConfCatalogue().save();
+                        broadcastScanConfig(KSTNanoSDK.SCAN_CONF_DATA, conf);
+                        scanConfIndex = 0;
+                        activeConfRequested = false;
+                    }
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN)) {
+                final byte[] data = characteristic.getValue();
+                NanoLog.v(TAG, "Received status from clear scan:", data);
+            } else {
+                if (debug)
+                    Log.d(TAG, "Received notify/indicate from unknown characteristic:" + characteristic.getUuid().toString());
+            }
+        }
+
+        /**
+         * Callback handler for characteristic writes
+         *
+         * It is important to note that some characteristic reads will kick off others. This is
+         * because the calling activity requires more information, and the number of broadcasts
+         * needed is reduced if all of the needed information is attached to a single broadcast
+         *
+         * @param gatt the Gatt profile of the connected device
+         * @param characteristic the characteristic that was written
+         * @param status the status of the write operation
+         */
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicWrite(gatt, characteristic, status);
+            NanoLog.trace(PacketTrace.DIR_WRITE, characteristic.getUuid(), characteristic.getValue());
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mTransferMetrics.onRequestWritten(characteristic.getUuid());
+            }
+            mGattQueue.onCharacteristicWrite(characteristic, status);
+
+            if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN)) {
+                if (debug)
+                    Log.d(TAG, "Wrote start scan! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SER_SCAN_DATA_STRUCT)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Scan Data Struct! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_TYPE)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Scan Type! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_NAME)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Scan Name! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_DATE)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Scan Date! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_PKT_FMT_VER)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Packet Format Version! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_COEFF)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Reference Calibration Coefficients! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_MATRIX)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Reference Calibration Matrix! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_REQ_STORED_CONF_LIST)) {
+                Log.d(TAG, "Wrote Request for Scan configuration list! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for SD Stored scan indices list! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_REQ_SCAN_CONF_DATA)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Request for Scan Conf data! Status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GDTS_TIME)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Time! Status=" + status);
+                String dataString = SettingsManager.getStringPref(mContext, SettingsManager.SharedPreferencesKeys.prefix, "Data");
+                if (dataString.equals("")) {
+                    dataString = "Data";
+                }
+                byte[] data = new StringBuilder(dataString).reverse().toString().getBytes();
+                if (debug)
+                    Log.d(TAG, "Writing scan stub to:" + dataString);
+                mCommands.setStub(data);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_SET_SCAN_NAME_STUB)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Scan Name Stub! Status=" + status);
+                if (!scanStarted) {
+                    loadReferenceCalibration();
+                } else {
+                    scanStarted = false;
+                    if (debug)
+                        Log.d(TAG, "Starting Scan");
+                    byte[] data = {0x00};
+                    if (SettingsManager.getBooleanPref(mContext, SettingsManager.SharedPreferencesKeys.saveSD, false)) {
+                        data[0] = 0x01;
+                        if (debug)
+                            Log.d(TAG, "Save to SD selected, writing 1");
+                    } else {
+                        data[0] = 0x00;
+                        if (debug)
+                            Log.d(TAG, "Save to SD not selected, writing 0");
+                    }
+                    scanData.reset();
+                    refConf.reset();
+                    refMatrix.reset();
+
+                    mCommands.startScan(data);
+                }
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN)) {
+                if (debug)
+                    Log.d(TAG, "wrote clear scan! status=" + status);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF)) {
+                if (debug)
+                    Log.d(TAG, "Wrote set active scan conf! status=" + status);
+                mCommands.getActiveConf();
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_TEMP_THRESH)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Temperature threshold! status=" + status);
+                mCommands.setHumidityThreshold(humidThresh);
+            } else if (characteristic.getUuid().equals(KSTNanoSDK.NanoGATT.GGIS_HUMID_THRESH)) {
+                if (debug)
+                    Log.d(TAG, "Wrote Humidity threshold! status=" + status);
+            } else {
+                if (debug)
+                    Log.d(TAG, "Unknown characteristic");
+            }
+        }
+    };
+
+    /**
+     * Sends the desired broadcast action without any extras
+     *
+     * @param action the action to broadcast
+     */
+    private void broadcastUpdate(final String action) {
+        sendBroadcast(new Intent(action));
+    }
+
+    /**
+     * Sends the desired broadcast action with the data read from the specified characteristic as
+     * an extra. If a particular characteristic has a particular format, the characteristic can be
+     * examined to determine how to properly format and send the data from the characteristic
+     *
+     * @param action         the action to broadcast
+     * @param characteristic the characteristic to retrieve data from to send
+     */
+    private void broadcastUpdate(final String action,
+                                 final BluetoothGattCharacteristic characteristic) {
+        final Intent intent = new Intent(action);
+
+        // For all other profiles, writes the data formatted in HEX.
+        final byte[] data = characteristic.getValue();
+        if (data != null && data.length > 0) {
+            final String hexData = NanoLog.toHex(data, true);
+            if (debug)
+                Log.d(TAG, "Notify characteristic:" + characteristic.getUuid().toString() + " -- Notify data:" + hexData);
+            intent.putExtra(KSTNanoSDK.EXTRA_DATA, hexData);
+        }
+
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Sends the desired broadcast action with the data provided by scanData. The data is also
+     * posted to the {@link NanoEventBus} as a {@link NanoEventBus.ScanDataEvent}
+     *
+     * @param action   the action to broadcast
+     * @param scanData the data to add to the broadcast
+     * @param checksum the CRC32 of the data, a content fingerprint for caching
+     */
+    private void broadcastUpdate(final String action,
+                                 byte[] scanData, long checksum) {
+        NanoEventBus.getDefault().post(new NanoEventBus.ScanDataEvent(mAddress, scanData, scanName, scanType, scanDate, scanPktFmtVer, checksum));
+        final Intent intent = new Intent(action);
+        intent.putExtra(KSTNanoSDK.EXTRA_DATA, scanData);
+        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_NAME, scanName);
+        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_TYPE, scanType);
+        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_DATE, scanDate);
+        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_FMT_VER, scanPktFmtVer);
+        intent.putExtra(NanoBLEService.EXTRA_CHECKSUM, checksum);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Sends the desired broadcast action with the data provided parameters. The data is also
+     * posted to the {@link NanoEventBus} as a {@link NanoEventBus.ScanConfEvent}
+     *
+     * @param action   the action to broadcast
+     * @param scanData byte array of data to broadcast
+     */
+    private void broadcastScanConfig(final String action,
+                                     byte[] scanData) {
+        NanoEventBus.getDefault().post(new NanoEventBus.ScanConfEvent(mAddress, scanData));
+        final Intent intent = new Intent(action);
+        intent.putExtra(KSTNanoSDK.EXTRA_DATA, scanData);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Sends the desired broadcast action with the data provided parameters. The data is also
+     * posted to the {@link NanoEventBus} as a {@link NanoEventBus.RefCalEvent}
+     *
+     * @param action    the action to broadcast
+     * @param refCoeff  byte array of reference coefficients
+     * @param refMatrix byte array of reference calibration matrix
+     * @param checksum  the {@link RefCalCache#fingerprint(byte[], byte[])} of the reference calibration
+     * @param cached    true if the reference calibration was loaded from the {@link RefCalCache}
+     */
+    private void broadcastUpdate(final String action,
+                                 byte[] refCoeff, byte[] refMatrix, long checksum, boolean cached) {
+        NanoEventBus.getDefault().post(new NanoEventBus.RefCalEvent(mAddress, refCoeff, refMatrix, checksum, cached));
+        final Intent intent = new Intent(action);
+        intent.putExtra(KSTNanoSDK.EXTRA_REF_COEF_DATA, refCoeff);
+        intent.putExtra(KSTNanoSDK.EXTRA_REF_MATRIX_DATA, refMatrix);
+        intent.putExtra(NanoBLEService.EXTRA_CHECKSUM, checksum);
+        intent.putExtra(NanoBLEService.EXTRA_REF_CAL_CACHED, cached);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Sends the desired broadcast action with the data provided parameters. The data is also
+     * posted to the {@link NanoEventBus} as a {@link NanoEventBus.StoredScanEvent}
+     *
+     * @param action   the action to broadcast
+     * @param name     the scan name to be added to the broadcast
+     * @param scanDate the scan date to be added to the broadcast
+     * @param index    the scan index to be added to the broadcast
+     */
+    private void broadcastUpdate(final String action, byte[] name, String scanDate, byte[] index) {
+        String scanName = nameToUTF8(name);
+        NanoEventBus.getDefault().post(new NanoEventBus.StoredScanEvent(mAddress, index, scanName, scanDate));
+        final Intent intent = new Intent(action);
+        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_NAME, scanName);
+        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_DATE, scanDate);
+        intent.putExtra(KSTNanoSDK.EXTRA_SCAN_INDEX, index);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Subscribe to every Nano notification as a single batch. When all subscriptions are complete,
+     * send a broadcast to indicate that an activity can now kick off another process.
+     *
+     * With fast reconnection, the CCCDs a bonded device is known to keep enabled are not written
+     * again, and notifications are only enabled locally for them
+     */
+    private void subscribeAll() {
+        final boolean bonded = mServiceCache != null && mNanoGatt instanceof BluetoothNanoGatt
+                && ((BluetoothNanoGatt) mNanoGatt).isBonded();
+        GattServiceCache.Entry entry = bonded ? mServiceCache.get(mAddress) : null;
+        Set<UUID> remembered = entry != null ? entry.getSubscribed() : Collections.<UUID>emptySet();
+        if (mServiceCache != null && !bonded) {
+            mServiceCache.clearSubscribed(mAddress);
+        }
+
+        final Set<UUID> subscribed = Collections.synchronizedSet(new HashSet<UUID>());
+        GattOperationQueue.OperationCallback record = new GattOperationQueue.OperationCallback() {
+            @Override
+            public void onOperationComplete(GattOperationQueue.Operation operation, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    subscribed.add(operation.getUuid());
+                }
+            }
+        };
+
+        ArrayList<GattOperationQueue.Operation> operations = new ArrayList<>();
+        int skipped = 0;
+        for (BluetoothGattCharacteristic characteristic : Arrays.asList(
+                characteristic(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_COEFF),
+                characteristic(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_MATRIX),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_NAME),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_TYPE),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_DATE),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_PKT_FMT_VER),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SER_SCAN_DATA_STRUCT),
+                characteristic(KSTNanoSDK.NanoGATT.GSCIS_RET_STORED_CONF_LIST),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST_DATA),
+                characteristic(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN),
+                characteristic(KSTNanoSDK.NanoGATT.GSCIS_RET_SCAN_CONF_DATA))) {
+            if (characteristic != null && remembered.contains(characteristic.getUuid())
+                    && mNanoGatt.setCharacteristicNotification(characteristic, true)) {
+                skipped++;
+                continue;
+            }
+            GattOperationQueue.Operation operation = GattOperationQueue.Operation.notify(characteristic);
+            if (bonded) {
+                operation.setCallback(record);
+            }
+            operations.add(operation);
+        }
+
+        if (operations.isEmpty()) {
+            if (debug)
+                Log.d(TAG, "All " + skipped + " notifications remembered by the device");
+            onSubscribed();
+            return;
+        }
+        final int remembers = skipped;
+        mGattQueue.enqueueBatch("subscribe all", operations, new GattOperationQueue.BatchCallback() {
+            @Override
+            public void onBatchComplete(String name, int count, int failures, long elapsedMs) {
+                if (!mConnected) {
+                    return;
+                }
+                if (debug)
+                    Log.d(TAG, "Subscribed to " + (count - failures) + " of " + count + " notifications in " + elapsedMs
+                            + "ms, " + remembers + " remembered by the device");
+                if (bonded) {
+                    mServiceCache.setSubscribed(mAddress, subscribed);
+                }
+                onSubscribed();
+            }
+        });
+    }
+
+    /**
+     * Tell the activities and the {@link NanoEventBus} subscribers that requests can be sent
+     */
+    private void onSubscribed() {
+        NanoEventBus.getDefault().post(new NanoEventBus.ConnectionEvent(mAddress, true));
+        broadcastUpdate(KSTNanoSDK.ACTION_NOTIFY_DONE);
+    }
+
+    /**
+     * Start using the services of the connection: negotiate the MTU and subscribe to the
+     * notifications
+     */
+    private void onServicesReady() {
+        broadcastUpdate(KSTNanoSDK.ACTION_GATT_SERVICES_DISCOVERED);
+        mTransferProfile.negotiateMtu();
+        subscribeAll();
+    }
+
+    /**
+     * @return true if fast reconnection is on and the services of the previous connection to the
+     * device are still held by the connection and match its recorded service map
+     */
+    private boolean useCachedServices() {
+        if (mServiceCache == null || !(mNanoGatt instanceof BluetoothNanoGatt) || mServiceCache.get(mAddress) == null) {
+            return false;
+        }
+        List<BluetoothGattService> services = ((BluetoothNanoGatt) mNanoGatt).getGatt().getServices();
+        return services != null && !services.isEmpty() && mNanoGatt.enumerateServices()
+                && mServiceCache.validate(mAddress, services);
+    }
+
+    /**
+     * Check discovered services against the recorded service map of the device. If they do not
+     * match, the GATT cache was stale: it is cleared and the services are discovered again from
+     * the device, and the new map is recorded then
+     *
+     * @return true if the services can be used
+     */
+    private boolean checkServices() {
+        if (mServiceCache == null || !(mNanoGatt instanceof BluetoothNanoGatt)) {
+            return true;
+        }
+        if (mServiceCache.validate(mAddress, ((BluetoothNanoGatt) mNanoGatt).getGatt().getServices())) {
+            return true;
+        }
+        refresh();
+        mHandler.postDelayed(mRediscover, REFRESH_DELAY_MS);
+        return false;
+    }
+
+    private final Runnable mRediscover = new Runnable() {
+        @Override
+        public void run() {
+            if (mNanoGatt != null) {
+                Log.i(TAG, "Attempting to start service rediscovery:" + mNanoGatt.discoverServices());
+            }
+        }
+    };
+
+    /**
+     * Get the device information of the device. With a {@link DeviceInfoCache} entry for the
+     * device, the cached values are sent right away, and the firmware revisions are read once per
+     * connection to check them. Otherwise, or if the firmware has changed, every device
+     * information characteristic is read in a single batch, and the values are sent once the
+     * batch is complete
+     */
+    public void readDeviceInfo() {
+        final DeviceInfoCache.Entry entry = mDeviceInfoCache != null ? mDeviceInfoCache.get(mAddress) : null;
+        if (entry == null) {
+            readAllDeviceInfo();
+            return;
+        }
+        onDeviceInfo(entry, true);
+        if (mDeviceInfoChecked) {
+            return;
+        }
+
+        ArrayList<GattOperationQueue.Operation> operations = new ArrayList<>();
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_TIVA_FW_REV)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_SPECC_REV)));
+        mGattQueue.enqueueBatch("check device info", operations, new GattOperationQueue.BatchCallback() {
+            @Override
+            public void onBatchComplete(String name, int count, int failures, long elapsedMs) {
+                if (failures > 0 || !mConnected) {
+                    return;
+                }
+                mDeviceInfoChecked = true;
+                if (!entry.hasFirmware(tivaRev, spectrumRev)) {
+                    Log.i(TAG, "Firmware of " + mAddress + " changed to " + tivaRev + "/" + spectrumRev
+                            + ", reading the device information again");
+                    readAllDeviceInfo();
+                }
+            }
+        });
+    }
+
+    /**
+     * Read all of the device information characteristics as a single batch, and store them in the
+     * {@link DeviceInfoCache} if every read succeeded
+     */
+    private void readAllDeviceInfo() {
+        ArrayList<GattOperationQueue.Operation> operations = new ArrayList<>();
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_MANUF_NAME)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_MODEL_NUMBER)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_SERIAL_NUMBER)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_HW_REV)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_TIVA_FW_REV)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_SPECC_REV)));
+
+        mGattQueue.enqueueBatch("read device info", operations, new GattOperationQueue.BatchCallback() {
+            @Override
+            public void onBatchComplete(String name, int count, int failures, long elapsedMs) {
+                if (!mConnected) {
+                    return;
+                }
+                DeviceInfoCache.Entry entry =
+                        new DeviceInfoCache.Entry(manufName, modelNum, serialNum, hardwareRev, tivaRev, spectrumRev);
+                if (mDeviceInfoCache != null && failures == 0) {
+                    mDeviceInfoCache.put(mAddress, entry);
+                    mDeviceInfoChecked = true;
+                }
+                onDeviceInfo(entry, false);
+            }
+        });
+    }
+
+    /**
+     * Sends the device information as {@code KSTNanoSDK.ACTION_INFO}, and posts it to the
+     * {@link NanoEventBus} as a {@link NanoEventBus.DeviceInfoEvent}
+     *
+     * @param entry  the device information values
+     * @param cached true if the values were loaded from the {@link DeviceInfoCache}
+     */
+    private void onDeviceInfo(DeviceInfoCache.Entry entry, boolean cached) {
+        NanoEventBus.getDefault().post(new NanoEventBus.DeviceInfoEvent(mAddress, entry, cached));
+        final Intent intent = new Intent(KSTNanoSDK.ACTION_INFO);
+        intent.putExtra(KSTNanoSDK.EXTRA_MANUF_NAME, entry.getManufName());
+        intent.putExtra(KSTNanoSDK.EXTRA_MODEL_NUM, entry.getModelNum());
+        intent.putExtra(KSTNanoSDK.EXTRA_SERIAL_NUM, entry.getSerialNum());
+        intent.putExtra(KSTNanoSDK.EXTRA_HW_REV, entry.getHardwareRev());
+        intent.putExtra(KSTNanoSDK.EXTRA_TIVA_REV, entry.getTivaRev());
+        intent.putExtra(KSTNanoSDK.EXTRA_SPECTRUM_REV, entry.getSpectrumRev());
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Load the reference calibration of the connected device. The serial number is taken from the
+     * {@link DeviceInfoCache}, or read first, and if the {@link RefCalCache} holds a calibration
+     * for that serial number it is broadcast right away. The coefficients and matrix are then
+     * downloaded, and stored in the cache once the matrix is complete. When a cached calibration
+     * was broadcast, the download only checks it: it is broadcast again, and the cache entry
+     * replaced, only if its fingerprint differs, as after the reference scan was re-run
+     */
+    private void loadReferenceCalibration() {
+        DeviceInfoCache.Entry info = mDeviceInfoCache != null ? mDeviceInfoCache.get(mAddress) : null;
+        if (info != null) {
+            loadReferenceCalibration(info.getSerialNum());
+            return;
+        }
+        GattOperationQueue.Operation readSerial =
+                GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.DIS_SERIAL_NUMBER));
+        readSerial.setCallback(new GattOperationQueue.OperationCallback() {
+            @Override
+            public void onOperationComplete(GattOperationQueue.Operation operation, int status) {
+                if (!mConnected) {
+                    return;
+                }
+                loadReferenceCalibration(status == BluetoothGatt.GATT_SUCCESS ? serialNum : null);
+            }
+        });
+        mGattQueue.enqueue(readSerial);
+    }
+
+    /**
+     * Load the reference calibration of the connected device from the {@link RefCalCache}, and
+     * download it to fill or check the cache
+     *
+     * @param serial the serial number of the device, or null if it is unknown
+     */
+    private void loadReferenceCalibration(String serial) {
+        RefCalCache.Entry entry = mRefCalCache.get(serial);
+        if (entry != null) {
+            if (debug)
+                Log.d(TAG, "Using cached reference calibration for " + serial);
+            onReferenceCalibration(entry.getCoefficients(), entry.getMatrix(), entry.getFingerprint(), true);
+        }
+
+        if (debug)
+            Log.d(TAG, "Requesting Calibration Data");
+        mRefCalSerial = serial;
+        mRefCalVerifying = entry != null ? entry.getFingerprint() : null;
+        mTransferProfile.begin(TransferProfile.Transfer.REFERENCE);
+        mWatchdog.start(TransferWatchdog.Phase.REF_COEFFICIENTS);
+        mCommands.requestRefCalCoefficients();
+    }
+
+    /**
+     * Get the scan configuration catalogue of the device, opening it on the first call
+     *
+     * @return the catalogue of the device
+     */
+    private ScanConfCatalogue getScanConfCatalogue() {
+        if (mScanConfCatalogue == null) {
+            mScanConfCatalogue = new ScanConfCatalogue(mContext, mAddress);
+        }
+        return mScanConfCatalogue;
+    }
+
+    /**
+     * Build the list of configuration indices from the stored configuration list received from
+     * the device, then send the configurations in order. Configurations already in the
+     * {@link ScanConfCatalogue} are sent from the catalogue, and only the others are downloaded
+     */
+    private void syncScanConfigurations() {
+        scanConfDeviceIndices.clear();
+        byte[] list = scanConfList.get(1);
+        for (int i = 1; i <= scanConfIndexSize; i++) {
+            int offset = i == 1 ? 1 : i + 1;
+            if (offset + 1 >= list.length) {
+                break;
+            }
+            scanConfDeviceIndices.add(new byte[]{list[offset], list[offset + 1]});
+        }
+        if (debug)
+            Log.d(TAG, "Syncing " + scanConfDeviceIndices.size() + " scan configurations");
+
+        getScanConfCatalogue().retain(scanConfDeviceIndices);
+        scanConfPending.clear();
+        scanConfPending.addAll(scanConfDeviceIndices);
+        nextScanConfiguration();
+    }
+
+    /**
+     * Send the pending configurations that are in the catalogue, up to the first one that is
+     * not. That configuration is requested from the device, and this is called again once it has
+     * been received. When no configurations are pending, the catalogue is saved
+     */
+    private void nextScanConfiguration() {
+        ScanConfCatalogue catalogue = getScanConfCatalogue();
+        while (!scanConfPending.isEmpty()) {
+            byte[] confIndex = scanConfPending.get(0);
+            byte[] cached = catalogue.getRaw(confIndex);
+            if (cached == null) {
+                requestScanConfiguration(confIndex);
+                return;
+            }
+            if (debug)
+                Log.d(TAG, "Using cached scan conf at index:" + confIndex[0] + "-" + confIndex[1]);
+            scanConfPending.remove(0);
+            broadcastScanConfig(KSTNanoSDK.SCAN_CONF_DATA, cached);
+        }
+        scanConfIndex = 0;
+        catalogue.save();
+    }
+
+    /**
+     * Get the SD card scan store of the device, opening it on the first call
+     *
+     * @return the store of the device
+     */
+    private StoredScanStore getStoredScanStore() {
+        if (mStoredScanStore == null) {
+            mStoredScanStore = new StoredScanStore(mContext, mAddress);
+        }
+        return mStoredScanStore;
+    }
+
+    /**
+     * Compare the SD card index list received from the device with the {@link StoredScanStore}.
+     * Scans that are no longer on the device are evicted from the store, and the scans in the
+     * index list are then sent in order
+     */
+    private void syncStoredScans() {
+        StoredScanStore store = getStoredScanStore();
+        store.retain(storedScanList);
+        if (debug)
+            Log.d(TAG, "Syncing " + storedScanList.size() + " stored scans");
+        readingStoredScans = true;
+        nextStoredScan();
+    }
+
+    /**
+     * Send the pending SD card scans that are in the store, up to the first one that is not.
+     * The name and date of that scan are requested from the device, and this is called again
+     * once the date has been received. When no scans are pending, the store is saved
+     */
+    private void nextStoredScan() {
+        StoredScanStore store = getStoredScanStore();
+        while (!storedScanList.isEmpty()) {
+            byte[] index = storedScanList.get(0);
+            StoredScanStore.Entry entry = store.get(index);
+            if (entry == null) {
+                mCommands.requestScanName(index);
+                return;
+            }
+            storedScanList.remove(0);
+            broadcastUpdate(KSTNanoSDK.STORED_SCAN_DATA, entry.getName(), entry.getDate(), index);
+        }
+        readingStoredScans = false;
+        store.save();
+    }
+
+    /**
+     * Keep the reference calibration of the connected device for interpreting downloaded SD
+     * card scans, and broadcast it to the activities
+     *
+     * @param coeff  the serialized reference calibration coefficients
+     * @param matrix   the serialized reference calibration matrix
+     * @param checksum the fingerprint of the reference calibration
+     * @param cached   true if the reference calibration was loaded from the {@link RefCalCache}
+     */
+    private void onReferenceCalibration(byte[] coeff, byte[] matrix, long checksum, boolean cached) {
+        mRefCoeff = coeff;
+        mRefMatrix = matrix;
+        broadcastUpdate(KSTNanoSDK.REF_CONF_DATA, coeff, matrix, checksum, cached);
+    }
+
+    /**
+     * Check the sequence number of a data packet of a chunked transfer. A repeated packet is
+     * ignored. A lost or reordered packet ends the transfer, and only that transfer is requested
+     * again, without waiting for its deadline
+     *
+     * @param assembler the assembler of the transfer
+     * @param phase     the transfer the packet belongs to
+     * @param data      the data packet
+     * @return true if the payload was appended
+     */
+    private boolean acceptPacket(PacketAssembler assembler, TransferWatchdog.Phase phase, byte[] data) {
+        PacketAssembler.Sequence sequence = assembler.accept(data);
+        switch (sequence) {
+            case IN_ORDER:
+                return true;
+            case DUPLICATE:
+                mTransferMetrics.onDuplicate(phase.uuid);
+                break;
+            case GAP:
+            case OUT_OF_ORDER:
+                Log.w(TAG, phase + " " + sequence + " at packet " + (data[0] & 0xFF) + ", requesting it again");
+                mTransferMetrics.onSequenceError(phase.uuid);
+                assembler.reset();
+                mWatchdog.retryNow(phase);
+                break;
+            case NO_TRANSFER:
+                //Rest of a transfer that was already given up
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * Get the SD card scan downloader of the device, creating it on the first call. Creating the
+     * downloader loads any checkpoint left by an interrupted download
+     *
+     * @return the downloader of the device
+     */
+    private StoredScanDownloader getStoredScanDownloader() {
+        if (mStoredScanDownloader == null) {
+            mStoredScanDownloader = new StoredScanDownloader(mContext, mAddress, new StoredScanDownloader.Listener() {
+                @Override
+                public void onScanSaved(byte[] index, File csv) {
+                    Intent intent = new Intent(NanoBLEService.ACTION_STORED_SCAN_SAVED);
+                    intent.putExtra(KSTNanoSDK.EXTRA_SCAN_INDEX, index);
+                    if (csv != null) {
+                        intent.putExtra(NanoBLEService.EXTRA_CSV_PATH, csv.getAbsolutePath());
+                    }
+                    intent.putExtra(NanoBLEService.EXTRA_DOWNLOAD_REMAINING, mStoredScanDownloader.remaining());
+                    sendBroadcast(intent);
+                }
+            });
+        }
+        return mStoredScanDownloader;
+    }
+
+    /**
+     * Request the serialized scan data of the next SD card scan in the download. The data is
+     * reassembled by the same path as a new scan, and handed to the
+     * {@link StoredScanDownloader} instead of being broadcast
+     */
+    private void downloadNextStoredScan() {
+        StoredScanDownloader downloader = getStoredScanDownloader();
+        downloader.setReference(mRefCoeff, mRefMatrix);
+        byte[] index = downloader.next();
+        if (index == null) {
+            if (debug)
+                Log.d(TAG, "SD card download complete");
+            return;
+        }
+        if (debug)
+            Log.d(TAG, "Downloading stored scan " + NanoLog.toHex(index, false) + ", remaining:" + downloader.remaining());
+        mDownloadingIndex = index;
+        scanData.reset();
+        mTransferProfile.begin(TransferProfile.Transfer.SCAN_DATA);
+        mWatchdog.start(TransferWatchdog.Phase.SCAN_DATA);
+        mCommands.requestSerializedScanDataStruct(index);
+    }
+
+    /**
+     * Download a single scan configuration from the device
+     *
+     * @param confIndex the index of the configuration to download
+     */
+    private void requestScanConfiguration(byte[] confIndex) {
+        if (debug)
+            Log.d(TAG, "Writing request for scan conf at index:" + confIndex[0] + "-" + confIndex[1]);
+        mScanConfDownloading = confIndex;
+        mTransferProfile.begin(TransferProfile.Transfer.SCAN_CONF);
+        mWatchdog.start(TransferWatchdog.Phase.SCAN_CONF);
+        mCommands.requestScanConfiguration(confIndex);
+    }
+
+    /**
+     * Re-issues the request of a transfer that timed out, and gives up the operation the
+     * transfer belonged to once its retries are used up
+     */
+    private final TransferWatchdog.Listener mWatchdogListener = new TransferWatchdog.Listener() {
+        @Override
+        public void onRetry(TransferWatchdog.Phase phase, int attempt) {
+            switch (phase) {
+                case SCAN_DATA:
+                    scanData.reset();
+                    mCommands.requestSerializedScanDataStruct(mDownloadingIndex != null ? mDownloadingIndex : scanIndex);
+                    break;
+                case REF_COEFFICIENTS:
+                    refConf.reset();
+                    mCommands.requestRefCalCoefficients();
+                    break;
+                case REF_MATRIX:
+                    refMatrix.reset();
+                    mCommands.requestRefCalMatrix();
+                    break;
+                case SCAN_CONF:
+                    scanConf.reset();
+                    if (mScanConfDownloading != null) {
+                        mCommands.requestScanConfiguration(mScanConfDownloading);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void onFailed(TransferWatchdog.Phase phase) {
+            switch (phase) {
+                case SCAN_DATA:
+                    scanData.reset();
+                    mTransferProfile.end(TransferProfile.Transfer.SCAN_DATA);
+                    //The scan stays in the download checkpoint, and is downloaded again when the
+                    //download is resumed
+                    mDownloadingIndex = null;
+                    break;
+                case REF_COEFFICIENTS:
+                case REF_MATRIX:
+                    refConf.reset();
+                    refMatrix.reset();
+                    mRefCalSerial = null;
+                    mTransferProfile.end(TransferProfile.Transfer.REFERENCE);
+                    if (mRefCalVerifying != null) {
+                        //The cached calibration was already broadcast and stays in use
+                        mRefCalVerifying = null;
+                        Log.w(TAG, "Unable to check the cached reference calibration");
+                        return;
+                    }
+                    break;
+                case SCAN_CONF:
+                    scanConf.reset();
+                    mScanConfDownloading = null;
+                    scanConfPending.clear();
+                    activeConfRequested = false;
+                    mTransferProfile.end(TransferProfile.Transfer.SCAN_CONF);
+                    break;
+            }
+            NanoEventBus.getDefault().post(new NanoEventBus.TransferFailedEvent(mAddress, phase));
+            Intent intent = new Intent(NanoBLEService.ACTION_TRANSFER_FAILED);
+            intent.putExtra(NanoBLEService.EXTRA_TRANSFER, phase.name());
+            sendBroadcast(intent);
+        }
+    };
+
+    /**
+     * Read all of the device status characteristics as a single batch. When the batch is
+     * complete, the device status is sent in one broadcast and recorded by the
+     * {@link TelemetrySampler}
+     */
+    public void readDeviceStatus() {
+        ArrayList<GattOperationQueue.Operation> operations = new ArrayList<>();
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.BAS_BATT_LVL)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.GGIS_TEMP_MEASUREMENT)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.GGIS_HUMID_MEASUREMENT)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.GGIS_DEV_STATUS)));
+        operations.add(GattOperationQueue.Operation.read(characteristic(KSTNanoSDK.NanoGATT.GGIS_ERR_STATUS)));
+
+        mGattQueue.enqueueBatch("read device status", operations, new GattOperationQueue.BatchCallback() {
+            @Override
+            public void onBatchComplete(String name, int count, int failures, long elapsedMs) {
+                if (failures == 0) {
+                    mTelemetry.onStatus(battLevel, temp, humidity, devStatusBits, errStatusBits);
+                } else {
+                    mTelemetry.onStatusFailed();
+                }
+                if (!mConnected) {
+                    return;
+                }
+                final Intent intent = new Intent(KSTNanoSDK.ACTION_STATUS);
+                intent.putExtra(KSTNanoSDK.EXTRA_BATT, battLevel);
+                intent.putExtra(KSTNanoSDK.EXTRA_TEMP, temp);
+                intent.putExtra(KSTNanoSDK.EXTRA_HUMID, humidity);
+                intent.putExtra(KSTNanoSDK.EXTRA_DEV_STATUS, devStatus);
+                intent.putExtra(KSTNanoSDK.EXTRA_ERR_STATUS, errStatus);
+                sendBroadcast(intent);
+            }
+        });
+    }
+
+    /**
+     * @param uuid one of the {@code KSTNanoSDK.NanoGATT} characteristic UUIDs
+     * @return the characteristic of the connected device, or null if not connected
+     */
+    private BluetoothGattCharacteristic characteristic(UUID uuid) {
+        NanoGatt gatt = mNanoGatt;
+        return gatt == null ? null : gatt.getCharacteristic(uuid);
+    }
+
+    /**
+     * Send a local broadcast tagged with the address of the device, if this session broadcasts
+     *
+     * @param intent the broadcast to send
+     */
+    private void sendBroadcast(Intent intent) {
+        if (!mBroadcast) {
+            return;
+        }
+        intent.putExtra(NanoBLEService.EXTRA_DEVICE_ADDRESS, mAddress);
+        LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+    }
+
+    /**
+     * Convert byte array of name to UTF8 string
+     *
+     * @param data the scan name as a byte array
+     * @return String in UTF8 of scan name bytes
+     */
+    private String nameToUTF8(byte[] data) {
+
+        byte[] byteChars = new byte[data.length];
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (byte b : byteChars) {
+            byteChars[b] = 0x00;
+        }
+        String s = null;
+        for (int i = 0; i < data.length; i++) {
+
+            byteChars[i] = data[i];
+
+            if (data[i] == 0x00) {
+                break;
+            }
+
+            os.write(data[i]);
+        }
+
+        try {
+            s = new String(os.toByteArray(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+        return s;
+    }
+
+    /**
+     * @param gatt the Bluetooth GATT object to call the refresh reflection method on
+     * @return Boolean status of refresh operation; true = success, false = failure.
+     */
+    private boolean refreshDeviceCache(BluetoothGatt gatt) {
+        try {
+            BluetoothGatt localBluetoothGatt = gatt;
+            Method localMethod = localBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
+            if (localMethod != null) {
+                boolean bool = ((Boolean) localMethod.invoke(localBluetoothGatt, new Object[0])).booleanValue();
+                return bool;
+            }
+        } catch (Exception localException) {
+            Log.e(TAG, "An exception occurred while refreshing device");
+        }
+        return false;
+    }
+
+    /**
+     * Method to refresh the GATT device cache of the connection, if it is to a real device
+     */
+    private void refresh() {
+        if (mNanoGatt instanceof BluetoothNanoGatt) {
+            refreshDeviceCache(((BluetoothNanoGatt) mNanoGatt).getGatt());
+        }
+    }
+}
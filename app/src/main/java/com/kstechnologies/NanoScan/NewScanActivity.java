@@ -6,11 +6,8 @@ import android.app.AlertDialog;
 import android.app.FragmentTransaction;
 import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -123,15 +120,15 @@ public class NewScanActivity extends Activity {
 
     private NanoBLEService mNanoBLEService;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeScanner mBluetoothLeScanner;
+    private NanoDiscovery mDiscovery;
     private Handler mHandler;
-    private static final String DEVICE_NAME = "NIRScanNano";
     private boolean connected;
     private AlertDialog alertDialog;
     private TextView tv_scan_conf;
     private String preferredDevice;
     private LinearLayout ll_conf;
     private KSTNanoSDK.ScanConfiguration activeConf;
+    private ContinuousScanEngine mContinuousScan;
 
     private Menu mMenu;
 
@@ -223,6 +220,13 @@ public class NewScanActivity extends Activity {
             @Override
             public void onClick(View view) {
                 SettingsManager.storeStringPref(mContext, SettingsManager.SharedPreferencesKeys.prefix, filePrefix.getText().toString());
+                if (mContinuousScan != null && mContinuousScan.isRunning()) {
+                    stopContinuousScan();
+                    return;
+                }
+                if (btn_continuous.isChecked() && startContinuousScan()) {
+                    return;
+                }
                 LocalBroadcastManager.getInstance(mContext).sendBroadcast(new Intent(KSTNanoSDK.START_SCAN));
                 calProgress.setVisibility(View.VISIBLE);
                 btn_scan.setText(getString(R.string.scanning));
@@ -295,6 +299,12 @@ public class NewScanActivity extends Activity {
         LocalBroadcastManager.getInstance(mContext).unregisterReceiver(scanConfReceiver);
 
         mHandler.removeCallbacksAndMessages(null);
+        if (mDiscovery != null) {
+            mDiscovery.stop();
+        }
+        if (mContinuousScan != null) {
+            mContinuousScan.stop();
+        }
 
         SettingsManager.storeBooleanPref(mContext, SettingsManager.SharedPreferencesKeys.saveOS, btn_os.isChecked());
         SettingsManager.storeBooleanPref(mContext, SettingsManager.SharedPreferencesKeys.saveSD, btn_sd.isChecked());
@@ -700,6 +710,10 @@ public class NewScanActivity extends Activity {
     public class scanDataReadyReceiver extends BroadcastReceiver {
 
         public void onReceive(Context context, Intent intent) {
+            //Scans of a continuous scan are handled by the engine
+            if (mContinuousScan != null && mContinuousScan.isRunning()) {
+                return;
+            }
             calProgress.setVisibility(View.GONE);
             btn_scan.setText(getString(R.string.scan));
             byte[] scanData = intent.getByteArrayExtra(KSTNanoSDK.EXTRA_DATA);
@@ -720,90 +734,162 @@ public class NewScanActivity extends Activity {
             KSTNanoSDK.ReferenceCalibration ref = KSTNanoSDK.ReferenceCalibration.currentCalibration.get(0);
             results = KSTNanoSDK.KSTNanoSDK_dlpSpecScanInterpReference(scanData, ref.getRefCalCoefficients(), ref.getRefCalMatrix());
 
-            mXValues.clear();
-            mIntensityFloat.clear();
-            mAbsorbanceFloat.clear();
-            mReflectanceFloat.clear();
-            mWavelengthFloat.clear();
-
-            int index;
-            for (index = 0; index < results.getLength(); index++) {
-                mXValues.add(String.format("%.02f", KSTNanoSDK.ScanResults.getSpatialFreq(mContext, results.getWavelength()[index])));
-                mIntensityFloat.add(new Entry((float) results.getUncalibratedIntensity()[index], index));
-                mAbsorbanceFloat.add(new Entry((-1) * (float) Math.log10((double) results.getUncalibratedIntensity()[index] / (double) results.getIntensity()[index]), index));
-                mReflectanceFloat.add(new Entry((float) results.getUncalibratedIntensity()[index] / results.getIntensity()[index], index));
-                mWavelengthFloat.add((float) results.getWavelength()[index]);
-            }
-
-            float minWavelength = mWavelengthFloat.get(0);
-            float maxWavelength = mWavelengthFloat.get(0);
+            plotResults(results);
 
-            for (Float f : mWavelengthFloat) {
-                if (f < minWavelength) minWavelength = f;
-                if (f > maxWavelength) maxWavelength = f;
-            }
+            String ts = timestamp(System.currentTimeMillis());
+            setScanTitle(filePrefix(), ts);
 
-            float minAbsorbance = mAbsorbanceFloat.get(0).getVal();
-            float maxAbsorbance = mAbsorbanceFloat.get(0).getVal();
+            writeScanFiles(filePrefix(), ts, scanType, scanDate, results, btn_os.isChecked());
 
-            for (Entry e : mAbsorbanceFloat) {
-                if (e.getVal() < minAbsorbance) minAbsorbance = e.getVal();
-                if (e.getVal() > maxAbsorbance) maxAbsorbance = e.getVal();
-            }
+            SettingsManager.storeStringPref(mContext, SettingsManager.SharedPreferencesKeys.prefix, filePrefix.getText().toString());
+        }
+    }
 
-            float minReflectance = mReflectanceFloat.get(0).getVal();
-            float maxReflectance = mReflectanceFloat.get(0).getVal();
+    /**
+     * Start a continuous scan on the connected Nano. The next scan is started as soon as the
+     * previous one has been received, while the received scans are interpreted and saved in the
+     * background
+     *
+     * @return true if the continuous scan was started, false if there is no connection or no
+     * reference calibration to interpret scans with
+     */
+    private boolean startContinuousScan() {
+        NanoSession session = mNanoBLEService == null ? null : mNanoBLEService.getSession();
+        if (session == null || KSTNanoSDK.ReferenceCalibration.currentCalibration == null
+                || KSTNanoSDK.ReferenceCalibration.currentCalibration.isEmpty()) {
+            return false;
+        }
+        KSTNanoSDK.ReferenceCalibration ref = KSTNanoSDK.ReferenceCalibration.currentCalibration.get(0);
 
-            for (Entry e : mReflectanceFloat) {
-                if (e.getVal() < minReflectance) minReflectance = e.getVal();
-                if (e.getVal() > maxReflectance) maxReflectance = e.getVal();
-            }
+        //Settings are read once here, since the files are written off the main thread
+        final String prefix = filePrefix();
+        final boolean saveOS = btn_os.isChecked();
 
-            float minIntensity = mIntensityFloat.get(0).getVal();
-            float maxIntensity = mIntensityFloat.get(0).getVal();
+        mContinuousScan = new ContinuousScanEngine(session, ref.getRefCalCoefficients(), ref.getRefCalMatrix(),
+                new ContinuousScanEngine.Listener() {
+                    @Override
+                    public void onScanProcessed(NanoEventBus.ScanDataEvent event, KSTNanoSDK.ScanResults scanResults, long receivedAt) {
+                        writeScanFiles(prefix, timestamp(receivedAt), event.type, event.date, scanResults, saveOS);
+                    }
 
-            for (Entry e : mIntensityFloat) {
-                if (e.getVal() < minIntensity) minIntensity = e.getVal();
-                if (e.getVal() > maxIntensity) maxIntensity = e.getVal();
-            }
+                    @Override
+                    public void onScanDisplayed(NanoEventBus.ScanDataEvent event, KSTNanoSDK.ScanResults scanResults, long receivedAt) {
+                        results = scanResults;
+                        plotResults(scanResults);
+                        setScanTitle(prefix, timestamp(receivedAt));
+                    }
 
-            mViewPager.setAdapter(mViewPager.getAdapter());
-            mViewPager.invalidate();
+                    @Override
+                    public void onScanFailed() {
+                        stopContinuousScan();
+                        Toast.makeText(mContext, R.string.continuous_scan_failed, Toast.LENGTH_SHORT).show();
+                    }
+                });
+        mContinuousScan.start(btn_sd.isChecked());
+        calProgress.setVisibility(View.VISIBLE);
+        btn_scan.setText(getString(R.string.stop_scanning));
+        return true;
+    }
 
-            if (scanType.equals("00")) {
-                scanType = "Column 1";
-            } else {
-                scanType = "Hadamard";
-            }
+    /**
+     * Stop a continuous scan. A scan that is still running on the device is handled like a single
+     * scan when it arrives
+     */
+    private void stopContinuousScan() {
+        if (mContinuousScan != null) {
+            mContinuousScan.stop();
+            mContinuousScan = null;
+        }
+        calProgress.setVisibility(View.GONE);
+        btn_scan.setText(getString(R.string.scan));
+    }
 
-            SimpleDateFormat simpleDateFormat = new SimpleDateFormat("ddMMyyhhmmss", java.util.Locale.getDefault());
-            String ts = simpleDateFormat.format(new Date());
+    /**
+     * Fill the chart data with a scan and redraw the charts
+     *
+     * @param results the {@link KSTNanoSDK.ScanResults} structure to plot
+     */
+    private void plotResults(KSTNanoSDK.ScanResults results) {
+        mXValues.clear();
+        mIntensityFloat.clear();
+        mAbsorbanceFloat.clear();
+        mReflectanceFloat.clear();
+        mWavelengthFloat.clear();
+
+        int index;
+        for (index = 0; index < results.getLength(); index++) {
+            mXValues.add(String.format("%.02f", KSTNanoSDK.ScanResults.getSpatialFreq(mContext, results.getWavelength()[index])));
+            mIntensityFloat.add(new Entry((float) results.getUncalibratedIntensity()[index], index));
+            mAbsorbanceFloat.add(new Entry((-1) * (float) Math.log10((double) results.getUncalibratedIntensity()[index] / (double) results.getIntensity()[index]), index));
+            mReflectanceFloat.add(new Entry((float) results.getUncalibratedIntensity()[index] / results.getIntensity()[index], index));
+            mWavelengthFloat.add((float) results.getWavelength()[index]);
+        }
 
-            ActionBar ab = getActionBar();
-            if (ab != null) {
+        mViewPager.setAdapter(mViewPager.getAdapter());
+        mViewPager.invalidate();
+    }
 
-                if (filePrefix.getText().toString().equals("")) {
-                    ab.setTitle("Nano" + ts);
-                } else {
-                    ab.setTitle(filePrefix.getText().toString() + ts);
-                }
-                ab.setSelectedNavigationItem(0);
-            }
+    /**
+     * @return the file prefix entered by the user, or the default prefix if none was entered
+     */
+    private String filePrefix() {
+        String prefix = filePrefix.getText().toString();
+        if (prefix.equals("")) {
+            prefix = "Nano";
+        }
+        return prefix;
+    }
 
-            boolean saveOS = btn_os.isChecked();
-            boolean continuous = btn_continuous.isChecked();
+    /**
+     * @param timeMs the wall clock time to format
+     * @return the timestamp used in file names and the title
+     */
+    private static String timestamp(long timeMs) {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("ddMMyyhhmmss", java.util.Locale.getDefault());
+        return simpleDateFormat.format(new Date(timeMs));
+    }
 
-            writeCSV(ts, results, saveOS);
-            writeCSVDict(ts, scanType, scanDate, String.valueOf(minWavelength), String.valueOf(maxWavelength), String.valueOf(results.getLength()), String.valueOf(results.getLength()), "1", "2.00", saveOS);
+    /**
+     * Show the name of the latest scan in the action bar and select the first chart
+     *
+     * @param prefix the file prefix of the scan
+     * @param ts     the timestamp of the scan
+     */
+    private void setScanTitle(String prefix, String ts) {
+        ActionBar ab = getActionBar();
+        if (ab != null) {
+            ab.setTitle(prefix + ts);
+            ab.setSelectedNavigationItem(0);
+        }
+    }
 
-            SettingsManager.storeStringPref(mContext, SettingsManager.SharedPreferencesKeys.prefix, filePrefix.getText().toString());
+    /**
+     * Write the CSV file and its dictionary for a scan. Safe to call off the main thread
+     *
+     * @param prefix      the file prefix to save with
+     * @param currentTime the timestamp to save with
+     * @param scanType    the scan type reported by the device
+     * @param scanDate    the scan date reported by the device
+     * @param scanResults the {@link KSTNanoSDK.ScanResults} structure to save
+     * @param saveOS      boolean indicating if the files should be saved to the OS
+     */
+    private static void writeScanFiles(String prefix, String currentTime, String scanType, String scanDate, KSTNanoSDK.ScanResults scanResults, boolean saveOS) {
+        if (scanType.equals("00")) {
+            scanType = "Column 1";
+        } else {
+            scanType = "Hadamard";
+        }
 
-            if (continuous) {
-                calProgress.setVisibility(View.VISIBLE);
-                btn_scan.setText(getString(R.string.scanning));
-                LocalBroadcastManager.getInstance(mContext).sendBroadcast(new Intent(KSTNanoSDK.SEND_DATA));
-            }
+        double minWavelength = scanResults.getWavelength()[0];
+        double maxWavelength = scanResults.getWavelength()[0];
+        for (int index = 0; index < scanResults.getLength(); index++) {
+            double wavelength = scanResults.getWavelength()[index];
+            if (wavelength < minWavelength) minWavelength = wavelength;
+            if (wavelength > maxWavelength) maxWavelength = wavelength;
         }
+
+        writeCSV(prefix, currentTime, scanResults, saveOS);
+        writeCSVDict(prefix, currentTime, scanType, scanDate, String.valueOf((float) minWavelength), String.valueOf((float) maxWavelength), String.valueOf(scanResults.getLength()), String.valueOf(scanResults.getLength()), "1", "2.00", saveOS);
     }
 
     /**
@@ -818,6 +904,11 @@ public class NewScanActivity extends Activity {
             refCal.add(new KSTNanoSDK.ReferenceCalibration(refCoeff, refMatrix));
             KSTNanoSDK.ReferenceCalibration.writeRefCalFile(mContext, refCal);
             calProgress.setVisibility(View.GONE);
+
+            //A cached calibration skips the download progress, so request the active configuration here
+            if (intent.getBooleanExtra(NanoBLEService.EXTRA_REF_CAL_CACHED, false)) {
+                LocalBroadcastManager.getInstance(mContext).sendBroadcast(new Intent(KSTNanoSDK.REQUEST_ACTIVE_CONF));
+            }
         }
     }
 
@@ -828,7 +919,9 @@ public class NewScanActivity extends Activity {
 
         public void onReceive(Context context, Intent intent) {
             calProgress.setVisibility(View.VISIBLE);
-            btn_scan.setText(getString(R.string.scanning));
+            if (mContinuousScan == null || !mContinuousScan.isRunning()) {
+                btn_scan.setText(getString(R.string.scanning));
+            }
         }
     }
 
@@ -845,16 +938,12 @@ public class NewScanActivity extends Activity {
 
     /**
      * Write scan data to CSV file
+     * @param prefix the file prefix to save with
      * @param currentTime the current time to save
      * @param scanResults the {@link KSTNanoSDK.ScanResults} structure to save
      * @param saveOS boolean indicating if the CSV file should be saved to the OS
      */
-    private void writeCSV(String currentTime, KSTNanoSDK.ScanResults scanResults, boolean saveOS) {
-
-        String prefix = filePrefix.getText().toString();
-        if (prefix.equals("")) {
-            prefix = "Nano";
-        }
+    private static void writeCSV(String prefix, String currentTime, KSTNanoSDK.ScanResults scanResults, boolean saveOS) {
 
         if (saveOS) {
             String csvOS = android.os.Environment.getExternalStorageDirectory().getAbsolutePath() + "/" + prefix + currentTime + ".csv";
@@ -870,7 +959,7 @@ public class NewScanActivity extends Activity {
                     double waves = scanResults.getWavelength()[csvIndex];
                     int intens = scanResults.getUncalibratedIntensity()[csvIndex];
                     float absorb = (-1) * (float) Math.log10((double) scanResults.getUncalibratedIntensity()[csvIndex] / (double) scanResults.getIntensity()[csvIndex]);
-                    float reflect = (float) results.getUncalibratedIntensity()[csvIndex] / results.getIntensity()[csvIndex];
+                    float reflect = (float) scanResults.getUncalibratedIntensity()[csvIndex] / scanResults.getIntensity()[csvIndex];
                     data.add(new String[]{String.valueOf(waves), String.valueOf(intens), String.valueOf(absorb), String.valueOf(reflect)});
                 }
                 writer.writeAll(data);
@@ -883,6 +972,7 @@ public class NewScanActivity extends Activity {
 
     /**
      * Write the dictionary for a CSV files
+     * @param prefix the file prefix to save with
      * @param currentTime the current time to be saved
      * @param scanType the scan type to be saved
      * @param timeStamp the timestamp to be saved
@@ -894,12 +984,7 @@ public class NewScanActivity extends Activity {
      * @param measTime the total measurement time
      * @param saveOS boolean indicating if this file should be saved to the OS
      */
-    private void writeCSVDict(String currentTime, String scanType, String timeStamp, String spectStart, String spectEnd, String numPoints, String resolution, String numAverages, String measTime, boolean saveOS) {
-
-        String prefix = filePrefix.getText().toString();
-        if (prefix.equals("")) {
-            prefix = "Nano";
-        }
+    private static void writeCSVDict(String prefix, String currentTime, String scanType, String timeStamp, String spectStart, String spectEnd, String numPoints, String resolution, String numAverages, String measTime, boolean saveOS) {
 
         if (saveOS) {
             String csv = android.os.Environment.getExternalStorageDirectory().getAbsolutePath() + "/" + prefix + currentTime + ".dict";
@@ -940,16 +1025,20 @@ public class NewScanActivity extends Activity {
                 finish();
             }
 
-            //Start scanning for devices that match DEVICE_NAME
+            //Start scanning for devices that advertise the Nano name
             final BluetoothManager bluetoothManager =
                     (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             mBluetoothAdapter = bluetoothManager.getAdapter();
-            mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
-            if(mBluetoothLeScanner == null){
+            mDiscovery = new NanoDiscovery(mBluetoothAdapter, mDiscoveryListener);
+            //Connect to the first Nano found, without waiting for a batch of results
+            mDiscovery.setReportDelay(0);
+            mDiscovery.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            mHandler = new Handler();
+            if (!mDiscovery.isAvailable()) {
                 finish();
                 Toast.makeText(NewScanActivity.this, "Please ensure Bluetooth is enabled and try again", Toast.LENGTH_SHORT).show();
+                return;
             }
-            mHandler = new Handler();
             if (SettingsManager.getStringPref(mContext, SettingsManager.SharedPreferencesKeys.preferredDevice, null) != null) {
                 preferredDevice = SettingsManager.getStringPref(mContext, SettingsManager.SharedPreferencesKeys.preferredDevice, null);
                 scanPreferredLeDevice(true);
@@ -965,120 +1054,65 @@ public class NewScanActivity extends Activity {
     };
 
     /**
-     * Callback function for Bluetooth scanning. This function provides the instance of the
-     * Bluetooth device {@link BluetoothDevice} that was found, it's rssi, and advertisement
-     * data (scanRecord).
+     * Listener for Nano discovery. When a Nano is found, a call is made to connect to it, and
+     * the scan is stopped, even if the {@link NanoBLEService#SCAN_PERIOD} has not expired.
      * <p>
-     * When a Bluetooth device with the advertised name matching the
-     * string DEVICE_NAME {@link NewScanActivity#DEVICE_NAME} is found, a call is made to connect
-     * to the device. Also, the Bluetooth should stop scanning, even if
-     * the {@link NanoBLEService#SCAN_PERIOD} has not expired
+     * While scanning for the preferred Nano, only the preferred Nano is reported. If it is not
+     * found before the period expires, any Nano is scanned for instead
      */
-    private final ScanCallback mLeScanCallback = new ScanCallback() {
+    private final NanoDiscovery.Listener mDiscoveryListener = new NanoDiscovery.Listener() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            super.onScanResult(callbackType, result);
-            BluetoothDevice device = result.getDevice();
-            String name = device.getName();
-            if (name != null) {
-                if (device.getName().equals(DEVICE_NAME)) {
-                    mNanoBLEService.connect(device.getAddress());
-                    connected = true;
-                    scanLeDevice(false);
-                }
+        public void onDevicesChanged(List<KSTNanoSDK.NanoDevice> devices, List<KSTNanoSDK.NanoDevice> changed) {
+            if (connected) {
+                return;
             }
+            mDiscovery.stop();
+            mNanoBLEService.connect(devices.get(0).getNanoMac());
+            connected = true;
         }
-    };
 
-    /**
-     * Callback function for preferred Nano scanning. This function provides the instance of the
-     * Bluetooth device {@link BluetoothDevice} that was found, it's rssi, and advertisement
-     * data (scanRecord).
-     * <p>
-     * When a Bluetooth device with the advertised name matching the
-     * string DEVICE_NAME {@link NewScanActivity#DEVICE_NAME} is found, a call is made to connect
-     * to the device. Also, the Bluetooth should stop scanning, even if
-     * the {@link NanoBLEService#SCAN_PERIOD} has not expired
-     */
-    private final ScanCallback mPreferredLeScanCallback = new ScanCallback() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            super.onScanResult(callbackType, result);
-            BluetoothDevice device = result.getDevice();
-            String name = device.getName();
-            if (name != null) {
-                if (device.getName().equals(DEVICE_NAME)) {
-                    if (device.getAddress().equals(preferredDevice)) {
-                        mNanoBLEService.connect(device.getAddress());
-                        connected = true;
-                        scanPreferredLeDevice(false);
-                    }
-                }
+        public void onDiscoveryFinished(List<KSTNanoSDK.NanoDevice> devices) {
+            if (connected) {
+                return;
+            }
+            if (preferredDevice != null && preferredDevice.equals(mDiscovery.getAddress())) {
+                scanLeDevice(true);
+            } else {
+                notConnectedDialog();
             }
         }
     };
 
     /**
-     * Scans for Bluetooth devices on the specified interval {@link NanoBLEService#SCAN_PERIOD}.
-     * This function uses the handler {@link NewScanActivity#mHandler} to delay call to stop
-     * scanning until after the interval has expired. The start and stop functions take an
-     * LeScanCallback parameter that specifies the callback function when a Bluetooth device
-     * has been found {@link NewScanActivity#mLeScanCallback}
+     * Scans for any Nano on the specified interval {@link NanoBLEService#SCAN_PERIOD}, using
+     * {@link NewScanActivity#mDiscovery}. The scan stops by itself once the interval has expired
      *
-     * @param enable Tells the Bluetooth adapter {@link KSTNanoSDK#mBluetoothAdapter} if
-     *               it should start or stop scanning
+     * @param enable Tells the discovery {@link NewScanActivity#mDiscovery} if it should start or
+     *               stop scanning
      */
     private void scanLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if(mBluetoothLeScanner != null) {
-                        mBluetoothLeScanner.stopScan(mLeScanCallback);
-                        if (!connected) {
-                            notConnectedDialog();
-                        }
-                    }
-                }
-            }, NanoBLEService.SCAN_PERIOD);
-            if(mBluetoothLeScanner != null) {
-                mBluetoothLeScanner.startScan(mLeScanCallback);
-            }else{
-                finish();
-                Toast.makeText(NewScanActivity.this, "Please ensure Bluetooth is enabled and try again", Toast.LENGTH_SHORT).show();
-            }
+            mDiscovery.setAddress(null);
+            mDiscovery.start(NanoBLEService.SCAN_PERIOD);
         } else {
-            mBluetoothLeScanner.stopScan(mLeScanCallback);
+            mDiscovery.stop();
         }
     }
 
     /**
-     * Scans for preferred Nano devices on the specified interval {@link NanoBLEService#SCAN_PERIOD}.
-     * This function uses the handler {@link NewScanActivity#mHandler} to delay call to stop
-     * scanning until after the interval has expired. The start and stop functions take an
-     * LeScanCallback parameter that specifies the callback function when a Bluetooth device
-     * has been found {@link NewScanActivity#mPreferredLeScanCallback}
+     * Scans for the preferred Nano on the specified interval {@link NanoBLEService#SCAN_PERIOD},
+     * using {@link NewScanActivity#mDiscovery} filtered on the address of the preferred Nano
      *
-     * @param enable Tells the Bluetooth adapter {@link KSTNanoSDK#mBluetoothAdapter} if
-     *               it should start or stop scanning
+     * @param enable Tells the discovery {@link NewScanActivity#mDiscovery} if it should start or
+     *               stop scanning
      */
     private void scanPreferredLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mBluetoothLeScanner.stopScan(mPreferredLeScanCallback);
-                    if (!connected) {
-
-                        scanLeDevice(true);
-                    }
-                }
-            }, NanoBLEService.SCAN_PERIOD);
-            mBluetoothLeScanner.startScan(mPreferredLeScanCallback);
+            mDiscovery.setAddress(preferredDevice);
+            mDiscovery.start(NanoBLEService.SCAN_PERIOD);
         } else {
-            mBluetoothLeScanner.stopScan(mPreferredLeScanCallback);
+            mDiscovery.stop();
         }
     }
 
@@ -1181,7 +1215,9 @@ public class NewScanActivity extends Activity {
 
             activeConf = scanConf;
 
-            barProgressDialog.dismiss();
+            if (barProgressDialog != null) {
+                barProgressDialog.dismiss();
+            }
             btn_scan.setClickable(true);
             btn_scan.setBackgroundColor(ContextCompat.getColor(mContext, R.color.kst_red));
             mMenu.findItem(R.id.action_settings).setEnabled(true);
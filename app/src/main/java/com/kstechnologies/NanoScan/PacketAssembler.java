@@ -0,0 +1,270 @@
+package com.kstechnologies.NanoScan;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reassembly buffer for the chunked transfers sent by the Nano (serialized scan data, reference
+ * calibration coefficients and matrix, and scan configurations).
+ *
+ * Each transfer starts with a header packet where data[0] is 0x00 and data[1..2] carry the total
+ * length of the transfer, little endian. Every following packet carries a one byte prefix that is
+ * followed by payload bytes. The buffer is allocated once from the length in the header, and the
+ * payload of each notification is appended with a single bulk copy.
+ *
+ * The prefix of a data packet is its sequence number, which starts at 1 after the header and
+ * wraps from 255 back to 1. Packets passed to {@link #accept(byte[])} are checked against the
+ * expected sequence number, so a lost, repeated or reordered notification is detected as soon as
+ * it arrives instead of leaving garbage in the transfer. A CRC32 of the accepted payload is kept
+ * as it is appended. It is not a check of the transfer, which is left to the sequence numbers,
+ * but a content fingerprint for downstream caching.
+ *
+ * Once a transfer is complete, the data can either be viewed in place through
+ * {@link #view()}, or handed off with {@link #detach()}. Detaching gives the backing array to the
+ * caller without a copy, and the next transfer will use a new buffer.
+ *
+ * Packets are appended on the BLE callback thread, while a timed out transfer is reset from the
+ * thread of the {@link TransferWatchdog}, so every method is synchronized. A completed transfer
+ * should be taken with {@link #detachIfComplete()}, which checks and detaches in one step.
+ */
+public class PacketAssembler {
+
+    private static final String TAG = "__PACKET_ASSEMBLER";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Number of bytes preceding the payload in every data packet
+    public static final int PACKET_HEADER_LENGTH = 1;
+
+    //Sequence number of the first data packet, and of the packet following the last sequence number
+    public static final int FIRST_SEQUENCE = 1;
+
+    //Highest sequence number of a data packet
+    public static final int LAST_SEQUENCE = 255;
+
+    private static final int SEQUENCE_COUNT = LAST_SEQUENCE - FIRST_SEQUENCE + 1;
+
+    /**
+     * Result of checking the sequence number of a data packet
+     */
+    public enum Sequence {
+        //The expected packet, which was appended
+        IN_ORDER,
+        //A repeat of the last accepted packet, which was ignored
+        DUPLICATE,
+        //A packet from later in the transfer, so at least one packet was lost
+        GAP,
+        //A packet from earlier in the transfer that is not the last accepted one
+        OUT_OF_ORDER,
+        //A packet received while no transfer is active, as after an error, which was ignored
+        NO_TRANSFER
+    }
+
+    private byte[] mBuffer;
+    private int mExpected = -1;
+    private int mPosition;
+    private int mNextSequence;
+    private int mLastSequence;
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Compute the content fingerprint carried with a reassembled transfer
+     *
+     * @param data the reassembled bytes
+     * @return the CRC32 of the bytes
+     */
+    public static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Read the transfer length from a header packet
+     *
+     * @param header the header packet, where data[0] is 0x00
+     * @return the total number of payload bytes in the transfer
+     */
+    public static int parseSize(byte[] header) {
+        return ((header[2] & 0xFF) << 8) | (header[1] & 0xFF);
+    }
+
+    /**
+     * Start a new transfer. The existing buffer is reused if it is large enough, otherwise a new
+     * buffer of exactly the transfer size is allocated
+     *
+     * @param size the number of payload bytes in the transfer
+     */
+    public synchronized void begin(int size) {
+        if (mBuffer == null || mBuffer.length < size) {
+            mBuffer = new byte[size];
+        }
+        mExpected = size;
+        mPosition = 0;
+        mNextSequence = FIRST_SEQUENCE;
+        mLastSequence = -1;
+        mCrc.reset();
+    }
+
+    /**
+     * Check the sequence number of a data packet and append its payload if it is the expected
+     * packet. Nothing is appended otherwise. After a {@link Sequence#GAP} or
+     * {@link Sequence#OUT_OF_ORDER} the transfer cannot complete, and should be reset and
+     * requested again
+     *
+     * @param packet the data packet as received from the characteristic
+     * @return the result of the check
+     */
+    public synchronized Sequence accept(byte[] packet) {
+        if (mExpected < 0) {
+            return Sequence.NO_TRANSFER;
+        }
+        int sequence = packet[0] & 0xFF;
+        if (sequence == mNextSequence) {
+            append(packet);
+            mLastSequence = sequence;
+            mNextSequence = sequence == LAST_SEQUENCE ? FIRST_SEQUENCE : sequence + 1;
+            return Sequence.IN_ORDER;
+        }
+        if (sequence == mLastSequence) {
+            return Sequence.DUPLICATE;
+        }
+        //Distance ahead of the expected packet, modulo the sequence period. Packets up to half a
+        //period ahead are taken as lost packets, the others as late ones
+        int ahead = (sequence - mNextSequence + SEQUENCE_COUNT) % SEQUENCE_COUNT;
+        if (sequence >= FIRST_SEQUENCE && ahead < SEQUENCE_COUNT / 2) {
+            if (debug)
+                Log.w(TAG, "Expected packet " + mNextSequence + ", received " + sequence);
+            return Sequence.GAP;
+        }
+        if (debug)
+            Log.w(TAG, "Expected packet " + mNextSequence + ", received late packet " + sequence);
+        return Sequence.OUT_OF_ORDER;
+    }
+
+    /**
+     * Append the payload of a data packet, skipping the one byte packet prefix
+     *
+     * @param packet the data packet as received from the characteristic
+     * @return the number of payload bytes that were appended
+     */
+    public synchronized int append(byte[] packet) {
+        return append(packet, PACKET_HEADER_LENGTH, packet.length - PACKET_HEADER_LENGTH);
+    }
+
+    /**
+     * Append a range of bytes to the transfer. Bytes beyond the length announced by the header
+     * are dropped
+     *
+     * @param data   the source array
+     * @param offset the offset of the first byte to append
+     * @param length the number of bytes to append
+     * @return the number of bytes that were appended
+     */
+    public synchronized int append(byte[] data, int offset, int length) {
+        if (mExpected < 0 || length <= 0) {
+            return 0;
+        }
+        int count = Math.min(length, mExpected - mPosition);
+        if (count < length) {
+            if (debug)
+                Log.w(TAG, "Dropping " + (length - count) + " bytes past the end of the transfer");
+        }
+        System.arraycopy(data, offset, mBuffer, mPosition, count);
+        mCrc.update(data, offset, count);
+        mPosition += count;
+        return count;
+    }
+
+    /**
+     * @return the number of payload bytes received so far
+     */
+    public synchronized int size() {
+        return mPosition;
+    }
+
+    /**
+     * @return the number of payload bytes announced by the header, or -1 if no transfer is active
+     */
+    public synchronized int expected() {
+        return mExpected;
+    }
+
+    /**
+     * @return true if a transfer is active and all of its bytes have been received
+     */
+    public synchronized boolean isComplete() {
+        return mExpected >= 0 && mPosition == mExpected;
+    }
+
+    /**
+     * @return the CRC32 of the payload bytes received so far, as computed while they were
+     * appended. This is the same value as {@link #checksum(byte[])} of the reassembled bytes
+     */
+    public synchronized long getChecksum() {
+        return mCrc.getValue();
+    }
+
+    /**
+     * Get a read-only view of the bytes received so far. No data is copied, so the view is only
+     * valid until the next call to {@link #begin(int)} or {@link #reset()}
+     *
+     * @return read-only buffer positioned at the start of the transfer
+     */
+    public synchronized ByteBuffer view() {
+        if (mBuffer == null) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(mBuffer, 0, mPosition).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Hand the received bytes off to the caller and end the transfer. If the buffer is exactly
+     * the size of the transfer, the backing array is returned without a copy and the assembler
+     * will allocate a new buffer for the next transfer
+     *
+     * @return the bytes received in this transfer
+     */
+    public synchronized byte[] detach() {
+        byte[] data;
+        if (mBuffer != null && mBuffer.length == mPosition) {
+            data = mBuffer;
+            mBuffer = null;
+        } else {
+            data = toByteArray();
+        }
+        mExpected = -1;
+        mPosition = 0;
+        return data;
+    }
+
+    /**
+     * Hand the received bytes off to the caller and end the transfer, if the transfer is complete.
+     * See {@link #detach()}
+     *
+     * @return the bytes received in this transfer, or null if it is not complete
+     */
+    public synchronized byte[] detachIfComplete() {
+        return isComplete() ? detach() : null;
+    }
+
+    /**
+     * @return a copy of the bytes received so far
+     */
+    public synchronized byte[] toByteArray() {
+        if (mBuffer == null) {
+            return new byte[0];
+        }
+        return Arrays.copyOf(mBuffer, mPosition);
+    }
+
+    /**
+     * End the current transfer and discard any bytes received. The buffer is kept for reuse
+     */
+    public synchronized void reset() {
+        mExpected = -1;
+        mPosition = 0;
+    }
+}
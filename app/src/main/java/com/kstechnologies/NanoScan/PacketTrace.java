@@ -0,0 +1,244 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Compact binary trace of the BLE packet stream.
+ *
+ * Records are staged in a fixed size buffer and written to the file when the buffer fills up,
+ * so tracing a packet does not allocate. All values are little endian.
+ *
+ * File header:
+ * <pre>
+ *   4 bytes  magic "NTRC"
+ *   1 byte   format version
+ *   8 bytes  wall clock time of the start of the trace, in ms since the epoch
+ * </pre>
+ *
+ * Record:
+ * <pre>
+ *   1 byte   direction ({@link #DIR_NOTIFY}, {@link #DIR_READ}, {@link #DIR_WRITE})
+ *   4 bytes  ms since the start of the trace
+ *   2 bytes  16-bit short form of the characteristic UUID
+ *   2 bytes  payload length
+ *   n bytes  payload
+ * </pre>
+ *
+ * The 16-bit short form is bits 32-47 of the UUID, which is unique for both the Bluetooth SIG
+ * characteristics and the Nano custom characteristics in {@code KSTNanoSDK.NanoGATT}.
+ *
+ * Traces are read back with {@link Reader}, for example by {@link CaptureReplay}.
+ */
+public class PacketTrace {
+
+    private static final String TAG = "__PACKET_TRACE";
+
+    public static final int DIR_NOTIFY = 0;
+    public static final int DIR_READ = 1;
+    public static final int DIR_WRITE = 2;
+
+    private static final byte[] MAGIC = {'N', 'T', 'R', 'C'};
+    private static final byte VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 13;
+    private static final int RECORD_HEADER_LENGTH = 9;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * A single packet read from a trace
+     */
+    public static class Record {
+        public final int direction;
+        public final long timeMs;
+        public final int shortUuid;
+        public final byte[] data;
+
+        Record(int direction, long timeMs, int shortUuid, byte[] data) {
+            this.direction = direction;
+            this.timeMs = timeMs;
+            this.shortUuid = shortUuid;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Sequential reader for trace files
+     */
+    public static class Reader implements Closeable {
+        private final InputStream mIn;
+        private final byte[] mHeader = new byte[RECORD_HEADER_LENGTH];
+        private final long mStartTime;
+
+        /**
+         * Open a trace file and read the file header
+         *
+         * @param file the trace file
+         * @throws IOException if the file could not be read or is not a trace
+         */
+        public Reader(File file) throws IOException {
+            mIn = new BufferedInputStream(new FileInputStream(file));
+            byte[] header = new byte[FILE_HEADER_LENGTH];
+            try {
+                readFully(header);
+            } catch (IOException e) {
+                mIn.close();
+                throw e;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.get() != MAGIC[0] || buffer.get() != MAGIC[1] || buffer.get() != MAGIC[2]
+                    || buffer.get() != MAGIC[3] || buffer.get() != VERSION) {
+                mIn.close();
+                throw new IOException("Not a version " + VERSION + " packet trace: " + file);
+            }
+            mStartTime = buffer.getLong();
+        }
+
+        /**
+         * @return the wall clock time the trace was started, in ms since the epoch
+         */
+        public long getStartTime() {
+            return mStartTime;
+        }
+
+        /**
+         * Read the next record
+         *
+         * @return the record, or null at the end of the trace
+         * @throws IOException if the file could not be read or ends inside a record
+         */
+        public Record next() throws IOException {
+            int first = mIn.read();
+            if (first < 0) {
+                return null;
+            }
+            mHeader[0] = (byte) first;
+            readFully(mHeader, 1, RECORD_HEADER_LENGTH - 1);
+            ByteBuffer buffer = ByteBuffer.wrap(mHeader).order(ByteOrder.LITTLE_ENDIAN);
+            int direction = buffer.get();
+            long timeMs = buffer.getInt() & 0xFFFFFFFFL;
+            int shortUuid = buffer.getShort() & 0xFFFF;
+            byte[] data = new byte[buffer.getShort() & 0xFFFF];
+            readFully(data);
+            return new Record(direction, timeMs, shortUuid, data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private void readFully(byte[] data) throws IOException {
+            readFully(data, 0, data.length);
+        }
+
+        private void readFully(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int read = mIn.read(data, offset, length);
+                if (read < 0) {
+                    throw new EOFException("Truncated packet trace");
+                }
+                offset += read;
+                length -= read;
+            }
+        }
+    }
+
+    private final FileOutputStream mOut;
+    private final ByteBuffer mBuffer;
+    private final long mStart;
+    private boolean mClosed;
+
+    /**
+     * Open a new trace file and write the file header
+     *
+     * @param file the file to write the trace to. An existing file is overwritten
+     * @throws IOException if the file could not be opened
+     */
+    public PacketTrace(File file) throws IOException {
+        mOut = new FileOutputStream(file);
+        mBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mStart = SystemClock.elapsedRealtime();
+        mBuffer.put(MAGIC);
+        mBuffer.put(VERSION);
+        mBuffer.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Convert a UUID to the 16-bit form stored in the trace
+     *
+     * @param uuid the characteristic UUID
+     * @return bits 32-47 of the UUID
+     */
+    public static int shortUuid(UUID uuid) {
+        return (int) (uuid.getMostSignificantBits() >>> 32) & 0xFFFF;
+    }
+
+    /**
+     * Add a packet to the trace
+     *
+     * @param direction the direction of the packet
+     * @param uuid      the characteristic the packet belongs to
+     * @param data      the packet payload
+     */
+    public synchronized void record(int direction, UUID uuid, byte[] data) {
+        if (mClosed) {
+            return;
+        }
+        int length = data == null ? 0 : Math.min(data.length, BUFFER_SIZE - RECORD_HEADER_LENGTH);
+        if (mBuffer.remaining() < RECORD_HEADER_LENGTH + length && !flush()) {
+            return;
+        }
+        mBuffer.put((byte) direction);
+        mBuffer.putInt((int) (SystemClock.elapsedRealtime() - mStart));
+        mBuffer.putShort((short) shortUuid(uuid));
+        mBuffer.putShort((short) length);
+        if (length > 0) {
+            mBuffer.put(data, 0, length);
+        }
+    }
+
+    /**
+     * Flush any buffered records and close the file
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        flush();
+        mClosed = true;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close trace file");
+        }
+    }
+
+    /**
+     * Write the buffered records to the file
+     *
+     * @return true if the buffer was written
+     */
+    private boolean flush() {
+        try {
+            mOut.write(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.clear();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write trace file, stopping trace");
+            mClosed = true;
+            return false;
+        }
+    }
+}
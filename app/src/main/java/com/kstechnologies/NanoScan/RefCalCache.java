@@ -0,0 +1,204 @@
+package com.kstechnologies.NanoScan;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of the reference calibration coefficients and matrix of each Nano, keyed by the
+ * device serial number.
+ *
+ * The reference calibration is the largest transfer made when connecting to a Nano. Since the
+ * calibration is set at the factory (or when the user re-runs the reference scan), it rarely
+ * changes and can be reused across connections. Each device gets its own file, so calibrations
+ * for several devices are kept at once. The least recently used files are removed once more than
+ * {@link #MAX_DEVICES} devices are cached.
+ *
+ * Every entry stores a CRC32 fingerprint of the coefficients and matrix. The fingerprint is
+ * checked on every load, and an entry that does not match is deleted and treated as a miss.
+ */
+public class RefCalCache {
+
+    private static final String TAG = "__REF_CAL_CACHE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Directory inside the app files directory holding one file per device
+    private static final String CACHE_DIR = "refcal_cache";
+    private static final String FILE_SUFFIX = ".refcal";
+
+    private static final int MAGIC = 0x4E524346; //"NRCF"
+    private static final int VERSION = 1;
+
+    //Maximum number of devices kept in the cache
+    public static final int MAX_DEVICES = 16;
+
+    /**
+     * A cached reference calibration
+     */
+    public static class Entry {
+        private final byte[] coefficients;
+        private final byte[] matrix;
+        private final long fingerprint;
+
+        Entry(byte[] coefficients, byte[] matrix, long fingerprint) {
+            this.coefficients = coefficients;
+            this.matrix = matrix;
+            this.fingerprint = fingerprint;
+        }
+
+        public byte[] getCoefficients() {
+            return coefficients;
+        }
+
+        public byte[] getMatrix() {
+            return matrix;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+    }
+
+    private final File mDir;
+
+    /**
+     * @param context the context used to locate the app files directory
+     */
+    public RefCalCache(Context context) {
+        mDir = new File(context.getFilesDir(), CACHE_DIR);
+    }
+
+    /**
+     * Compute the fingerprint of a reference calibration
+     *
+     * @param coefficients the serialized reference calibration coefficients
+     * @param matrix       the serialized reference calibration matrix
+     * @return the CRC32 of the coefficients followed by the matrix
+     */
+    public static long fingerprint(byte[] coefficients, byte[] matrix) {
+        CRC32 crc = new CRC32();
+        crc.update(coefficients);
+        crc.update(matrix);
+        return crc.getValue();
+    }
+
+    /**
+     * Load the cached reference calibration of a device
+     *
+     * @param serial the serial number of the device
+     * @return the cached calibration, or null if there is no valid entry for the device
+     */
+    public synchronized Entry get(String serial) {
+        File file = fileFor(serial);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown cache file format");
+            }
+            long fingerprint = in.readLong();
+            byte[] coefficients = new byte[in.readInt()];
+            in.readFully(coefficients);
+            byte[] matrix = new byte[in.readInt()];
+            in.readFully(matrix);
+            if (fingerprint(coefficients, matrix) != fingerprint) {
+                throw new IOException("Fingerprint mismatch");
+            }
+            file.setLastModified(System.currentTimeMillis());
+            if (debug)
+                Log.d(TAG, "Cache hit for " + serial + ", fingerprint:" + Long.toHexString(fingerprint));
+            return new Entry(coefficients, matrix, fingerprint);
+        } catch (IOException | NegativeArraySizeException e) {
+            Log.w(TAG, "Discarding cache entry for " + serial + ": " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Store the reference calibration of a device, replacing any existing entry
+     *
+     * @param serial       the serial number of the device
+     * @param coefficients the serialized reference calibration coefficients
+     * @param matrix       the serialized reference calibration matrix
+     * @return the fingerprint of the stored calibration
+     */
+    public synchronized long put(String serial, final byte[] coefficients, final byte[] matrix) {
+        final long fingerprint = fingerprint(coefficients, matrix);
+        File file = fileFor(serial);
+        if (file == null || (!mDir.exists() && !mDir.mkdirs())) {
+            return fingerprint;
+        }
+
+        try {
+            FileHelper.writeAtomically(file, new FileHelper.Writer() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(stream);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(fingerprint);
+                    out.writeInt(coefficients.length);
+                    out.write(coefficients);
+                    out.writeInt(matrix.length);
+                    out.write(matrix);
+                    out.flush();
+                }
+            });
+            if (debug)
+                Log.d(TAG, "Cached reference calibration for " + serial + ", fingerprint:" + Long.toHexString(fingerprint));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to cache reference calibration for " + serial + ": " + e.getMessage());
+        }
+        FileHelper.trim(mDir, MAX_DEVICES);
+        return fingerprint;
+    }
+
+    /**
+     * Remove the cached reference calibration of a device, so the next connection downloads it
+     *
+     * @param serial the serial number of the device
+     */
+    public synchronized void invalidate(String serial) {
+        File file = fileFor(serial);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Remove every cached reference calibration
+     */
+    public synchronized void clear() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Map a serial number to its cache file. Characters that are not safe in a file name are
+     * replaced, since the serial number is read from the device
+     */
+    private File fileFor(String serial) {
+        if (serial == null || serial.trim().isEmpty()) {
+            return null;
+        }
+        return new File(mDir, serial.trim().replaceAll("[^A-Za-z0-9_-]", "_") + FILE_SUFFIX);
+    }
+}
@@ -4,15 +4,10 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
-import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
@@ -24,6 +19,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
 import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
 import com.kstechnologies.nirscannanolibrary.SettingsManager;
 
@@ -34,10 +30,8 @@ import com.kstechnologies.nirscannanolibrary.SettingsManager;
  */
 public class ScanActivity extends Activity {
 
-    private Handler mHandler;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeScanner mBluetoothLeScanner;
-    private static final String DEVICE_NAME = "NIRScanNano";
+    private NanoDiscovery mDiscovery;
     private ArrayList<KSTNanoSDK.NanoDevice> nanoDeviceList = new ArrayList<>();
     private NanoScanAdapter nanoScanAdapter;
     private static Context mContext;
@@ -57,11 +51,11 @@ public class ScanActivity extends Activity {
         }
         ListView lv_nanoDevices = (ListView) findViewById(R.id.lv_nanoDevices);
 
-        //Start scanning for devices that match DEVICE_NAME
+        //Start scanning for devices that advertise the Nano name
         final BluetoothManager bluetoothManager =
                 (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = bluetoothManager.getAdapter();
-        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        mDiscovery = new NanoDiscovery(mBluetoothAdapter, mDiscoveryListener);
 
         //Create adapter for the NanoDevice objects returned from a BLE scan
         nanoScanAdapter = new NanoScanAdapter(this, nanoDeviceList);
@@ -75,10 +69,18 @@ public class ScanActivity extends Activity {
             }
         });
 
-        mHandler = new Handler();
         scanLeDevice(true);
     }
 
+    /*
+     * Stop scanning when the activity is destroyed
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mDiscovery.stop();
+    }
+
     /**
      * Provide user with a dialog that asks if they are sure they want to use the Nano with the
      * specified mac as their preferred device
@@ -113,40 +115,24 @@ public class ScanActivity extends Activity {
     }
 
     /**
-     * Callback function for Bluetooth scanning. This function provides the instance of the
-     * Bluetooth device {@link BluetoothDevice} that was found, it's rssi, and advertisement
-     * data (scanRecord).
-     * <p>
-     * When a Bluetooth device with the advertised name matching the
-     * string DEVICE_NAME {@link ScanActivity#DEVICE_NAME} is found, a call is made to connect
-     * to the device. Also, the Bluetooth should stop scanning, even if
-     * the {@link NanoBLEService#SCAN_PERIOD} has not expired
+     * Listener for Nano discovery. The list is refreshed at most once per frame with the devices
+     * found so far, each with its smoothed RSSI
      */
-    private ScanCallback mLeScanCallback = new ScanCallback() {
+    private final NanoDiscovery.Listener mDiscoveryListener = new NanoDiscovery.Listener() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            super.onScanResult(callbackType, result);
-
-            BluetoothDevice device = result.getDevice();
-            String name = device.getName();
-            if (name != null && name.equals(DEVICE_NAME) && result.getScanRecord() != null) {
-                Boolean isDeviceInList = false;
-                KSTNanoSDK.NanoDevice nanoDevice = new KSTNanoSDK.NanoDevice(device, result.getRssi(), result.getScanRecord().getBytes());
-                for (KSTNanoSDK.NanoDevice d : nanoDeviceList) {
-                    if (d.getNanoMac().equals(device.getAddress())) {
-                        isDeviceInList = true;
-                        d.setRssi(result.getRssi());
-                        nanoScanAdapter.notifyDataSetChanged();
-                    }
-                }
-                if (!isDeviceInList) {
-                    nanoDeviceList.add(nanoDevice);
-                    nanoScanAdapter.notifyDataSetChanged();
-                }
-            }
+        public void onDevicesChanged(List<KSTNanoSDK.NanoDevice> devices, List<KSTNanoSDK.NanoDevice> changed) {
+            nanoDeviceList.clear();
+            nanoDeviceList.addAll(devices);
+            nanoScanAdapter.notifyDataSetChanged();
         }
-    };
 
+        @Override
+        public void onDiscoveryFinished(List<KSTNanoSDK.NanoDevice> devices) {
+            nanoDeviceList.clear();
+            nanoDeviceList.addAll(devices);
+            nanoScanAdapter.notifyDataSetChanged();
+        }
+    };
 
     /*
      * Handle the selection of a menu item.
@@ -164,30 +150,21 @@ public class ScanActivity extends Activity {
     }
 
     /**
-     * Scans for Bluetooth devices on the specified interval {@link NanoBLEService#SCAN_PERIOD}.
-     * This function uses the handler {@link ScanActivity#mHandler} to delay call to stop
-     * scanning until after the interval has expired. The start and stop functions take an
-     * LeScanCallback parameter that specifies the callback function when a Bluetooth device
-     * has been found {@link NewScanActivity#mLeScanCallback}
+     * Scans for Nano devices on the specified interval {@link NanoBLEService#SCAN_PERIOD}, using
+     * {@link ScanActivity#mDiscovery}. Results are batched, and the scan stops by itself once the
+     * interval has expired
      *
-     * @param enable Tells the Bluetooth adapter {@link ScanActivity#mBluetoothAdapter} if
-     *               it should start or stop scanning
+     * @param enable Tells the discovery {@link ScanActivity#mDiscovery} if it should start or
+     *               stop scanning
      */
     private void scanLeDevice(final boolean enable) {
-        if(mBluetoothLeScanner == null){
+        if (!mDiscovery.isAvailable()) {
             Toast.makeText(ScanActivity.this, "Could not open LE scanner", Toast.LENGTH_SHORT).show();
-        }else {
+        } else {
             if (enable) {
-                // Stops scanning after a pre-defined scan period.
-                mHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        mBluetoothLeScanner.stopScan(mLeScanCallback);
-                    }
-                }, NanoBLEService.SCAN_PERIOD);
-                mBluetoothLeScanner.startScan(mLeScanCallback);
+                mDiscovery.start(NanoBLEService.SCAN_PERIOD);
             } else {
-                mBluetoothLeScanner.stopScan(mLeScanCallback);
+                mDiscovery.stop();
             }
         }
     }
@@ -0,0 +1,218 @@
+package com.kstechnologies.NanoScan;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Persistent catalogue of the scan configurations stored on a Nano.
+ *
+ * Each configuration is kept as the serialized bytes received from the device along with the
+ * {@link KSTNanoSDK.ScanConfiguration} parsed from them, keyed by the configuration index on the
+ * device. One catalogue file is kept per device address.
+ *
+ * The {@link NanoBLEService} still reads the number of stored configurations and the index list
+ * from the device on every sync, since both are small. Only configurations whose index is not in
+ * the catalogue are downloaded, and indices that are no longer on the device are removed with
+ * {@link #retain(Collection)}.
+ */
+public class ScanConfCatalogue {
+
+    private static final String TAG = "__SCAN_CONF_CATALOGUE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Directory inside the app files directory holding one catalogue per device
+    private static final String CATALOGUE_DIR = "scanconf_catalogue";
+    private static final String FILE_SUFFIX = ".conf";
+
+    /**
+     * A scan configuration as stored in the catalogue
+     */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] raw;
+        private final KSTNanoSDK.ScanConfiguration configuration;
+
+        Entry(byte[] raw, KSTNanoSDK.ScanConfiguration configuration) {
+            this.raw = raw;
+            this.configuration = configuration;
+        }
+
+        /**
+         * @return the serialized configuration as received from the device
+         */
+        public byte[] getRaw() {
+            return raw;
+        }
+
+        /**
+         * @return the parsed configuration
+         */
+        public KSTNanoSDK.ScanConfiguration getConfiguration() {
+            return configuration;
+        }
+    }
+
+    private final File mFile;
+    private final String mAddress;
+    private LinkedHashMap<Integer, Entry> mEntries;
+    private boolean mDirty;
+
+    /**
+     * Open the catalogue of a device. The catalogue file is read on first access
+     *
+     * @param context the context used to locate the app files directory
+     * @param address the Bluetooth address of the device
+     */
+    public ScanConfCatalogue(Context context, String address) {
+        mAddress = address;
+        mFile = new File(new File(context.getFilesDir(), CATALOGUE_DIR),
+                address.replaceAll("[^A-Za-z0-9]", "") + FILE_SUFFIX);
+    }
+
+    /**
+     * Convert the two byte configuration index used in requests to the catalogue key
+     *
+     * @param confIndex the configuration index as sent to the device
+     * @return the catalogue key
+     */
+    public static int key(byte[] confIndex) {
+        return (confIndex[0] & 0xFF) | ((confIndex[1] & 0xFF) << 8);
+    }
+
+    /**
+     * @return the Bluetooth address of the device this catalogue belongs to
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Get the serialized configuration stored at an index
+     *
+     * @param confIndex the configuration index as sent to the device
+     * @return the serialized configuration, or null if it is not in the catalogue
+     */
+    public synchronized byte[] getRaw(byte[] confIndex) {
+        Entry entry = entries().get(key(confIndex));
+        return entry == null ? null : entry.getRaw();
+    }
+
+    /**
+     * @return the parsed configurations in the order they were added
+     */
+    public synchronized List<KSTNanoSDK.ScanConfiguration> getConfigurations() {
+        ArrayList<KSTNanoSDK.ScanConfiguration> configurations = new ArrayList<>();
+        for (Entry entry : entries().values()) {
+            configurations.add(entry.getConfiguration());
+        }
+        return configurations;
+    }
+
+    /**
+     * Add a downloaded configuration to the catalogue, replacing any configuration at the same
+     * index
+     *
+     * @param confIndex the configuration index as sent to the device
+     * @param raw       the serialized configuration received from the device
+     */
+    public synchronized void put(byte[] confIndex, byte[] raw) {
+        KSTNanoSDK.ScanConfiguration configuration = KSTNanoSDK.KSTNanoSDK_dlpSpecScanReadConfiguration(raw);
+        entries().put(key(confIndex), new Entry(raw, configuration));
+        mDirty = true;
+    }
+
+    /**
+     * Remove every configuration whose index is not in the given list
+     *
+     * @param confIndices the configuration indices currently stored on the device
+     */
+    public synchronized void retain(Collection<byte[]> confIndices) {
+        ArrayList<Integer> keys = new ArrayList<>();
+        for (byte[] confIndex : confIndices) {
+            keys.add(key(confIndex));
+        }
+        if (entries().keySet().retainAll(keys)) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Write the catalogue to disk if it has changed since it was loaded
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        File dir = mFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + dir);
+            return;
+        }
+
+        try {
+            FileHelper.writeAtomically(mFile, new FileHelper.Writer() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    ObjectOutputStream out = new ObjectOutputStream(stream);
+                    out.writeObject(mEntries);
+                    out.flush();
+                }
+            });
+            mDirty = false;
+            if (debug)
+                Log.d(TAG, "Saved " + mEntries.size() + " configurations for " + mAddress);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save catalogue for " + mAddress + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove every configuration from the catalogue and delete the catalogue file
+     */
+    public synchronized void clear() {
+        entries().clear();
+        mDirty = false;
+        mFile.delete();
+    }
+
+    @SuppressWarnings("unchecked")
+    private LinkedHashMap<Integer, Entry> entries() {
+        if (mEntries != null) {
+            return mEntries;
+        }
+        mEntries = new LinkedHashMap<>();
+        if (!mFile.exists()) {
+            return mEntries;
+        }
+
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new FileInputStream(mFile));
+            mEntries = (LinkedHashMap<Integer, Entry>) in.readObject();
+            if (debug)
+                Log.d(TAG, "Loaded " + mEntries.size() + " configurations for " + mAddress);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(TAG, "Discarding catalogue for " + mAddress + ": " + e.getMessage());
+            mEntries = new LinkedHashMap<>();
+            mFile.delete();
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+        return mEntries;
+    }
+}
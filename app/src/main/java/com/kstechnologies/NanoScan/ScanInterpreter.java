@@ -0,0 +1,409 @@
+package com.kstechnologies.NanoScan;
+
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+ * Scan interpretation through the direct buffer entry point of the Spectrum C library.
+ *
+ * {@link KSTNanoSDK#KSTNanoSDK_dlpSpecScanInterpReference(byte[], byte[], byte[])} pins its three
+ * input arrays and allocates three new result arrays for every scan. An interpreter instead keeps
+ * the reference calibration and the scan data in direct buffers, which the library reads in
+ * place, and has the library write the results into direct buffers it owns. Once the buffers are
+ * sized, interpreting a scan allocates nothing. The buffers only grow when a larger scan comes in.
+ *
+ * The results of the last scan are read with {@link #getWavelength(int)} and the other getters,
+ * copied to arrays supplied by the caller with {@link #copyTo(double[], int[], int[])}, or
+ * wrapped in new SDK results with {@link #toScanResults()}.
+ *
+ * Many scans interpreted with the same reference calibration, as when archived scans are
+ * interpreted again after a reference update, are best passed to {@link #interpretAll(List)},
+ * which interprets them in a single native call and packs all of the results into one
+ * {@link BatchResults}. The library parses the reference calibration once for the whole batch,
+ * instead of once per scan as {@link #interpret(byte[])} does.
+ *
+ * The entry point is registered by the native library when it is loaded. It is missing from
+ * builds of the library that predate it, so {@link #isAvailable()} must be checked first. An
+ * interpreter is not thread safe, each thread interpreting scans should use its own.
+ */
+public class ScanInterpreter {
+
+    private static final String TAG = "__SCAN_INTERPRETER";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Errors returned by the native interpretation
+    private static final int ERROR_BUFFER = -1;
+    private static final int ERROR_INTERPRET = -2;
+
+    //Largest number of points of an interpreted scan, or 0 if the entry point is missing
+    private static final int sMaxPoints;
+
+    static {
+        int maxPoints = 0;
+        try {
+            System.loadLibrary("dlpspectrum");
+            maxPoints = nativeMaxPoints();
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Direct interpretation is not available: " + e.getMessage());
+        }
+        sMaxPoints = maxPoints;
+    }
+
+    private final ByteBuffer mWavelength;
+    private final ByteBuffer mIntensity;
+    private final ByteBuffer mUncalibratedIntensity;
+    private final DoubleBuffer mWavelengthView;
+    private final IntBuffer mIntensityView;
+    private final IntBuffer mUncalibratedIntensityView;
+
+    private ByteBuffer mData;
+    private ByteBuffer mCoefficients;
+    private ByteBuffer mMatrix;
+    private int mCoefficientsLength;
+    private int mMatrixLength;
+    private int mLength;
+
+    //Scans of the last batch back to back, and the offset of each scan followed by the end
+    private ByteBuffer mBatchData;
+    private ByteBuffer mBatchOffsets;
+
+    //Results of the last batch, reused for the next batches until a larger one comes in
+    private BatchResults mBatchResults;
+
+    /**
+     * Results of a batch of scans, packed in direct buffers with a slot of
+     * {@link #getMaxPoints()} points per scan. The buffers are sized for the largest batch seen
+     * by the interpreter and are reused, so the results are only valid until the next batch
+     */
+    public static class BatchResults {
+        private final int capacity;
+        private final IntBuffer lengths;
+        private final DoubleBuffer wavelength;
+        private final IntBuffer intensity;
+        private final IntBuffer uncalibratedIntensity;
+        private final ByteBuffer[] buffers;
+        private int count;
+
+        BatchResults(int capacity) {
+            int slots = capacity * sMaxPoints;
+            ByteBuffer lengthsBuffer = allocate(capacity * 4);
+            ByteBuffer wavelengthBuffer = allocate(slots * 8);
+            ByteBuffer intensityBuffer = allocate(slots * 4);
+            ByteBuffer uncalibratedBuffer = allocate(slots * 4);
+            this.capacity = capacity;
+            this.lengths = lengthsBuffer.asIntBuffer();
+            this.wavelength = wavelengthBuffer.asDoubleBuffer();
+            this.intensity = intensityBuffer.asIntBuffer();
+            this.uncalibratedIntensity = uncalibratedBuffer.asIntBuffer();
+            this.buffers = new ByteBuffer[]{lengthsBuffer, wavelengthBuffer, intensityBuffer, uncalibratedBuffer};
+        }
+
+        /**
+         * @return the number of scans of the batch
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @param scan the position of the scan in the batch
+         * @return true if the library interpreted the scan
+         */
+        public boolean isInterpreted(int scan) {
+            return lengths.get(checkScan(scan)) >= 0;
+        }
+
+        /**
+         * @param scan the position of the scan in the batch
+         * @return the number of points of the scan, 0 if it was not interpreted
+         */
+        public int getLength(int scan) {
+            return Math.max(lengths.get(checkScan(scan)), 0);
+        }
+
+        public double getWavelength(int scan, int index) {
+            return wavelength.get(slot(scan, index));
+        }
+
+        public int getIntensity(int scan, int index) {
+            return intensity.get(slot(scan, index));
+        }
+
+        public int getUncalibratedIntensity(int scan, int index) {
+            return uncalibratedIntensity.get(slot(scan, index));
+        }
+
+        /**
+         * Wrap the results of a scan for the code working with the SDK results. This allocates
+         * new arrays
+         *
+         * @param scan the position of the scan in the batch
+         * @return the results of the scan, or null if it was not interpreted
+         */
+        public KSTNanoSDK.ScanResults toScanResults(int scan) {
+            if (!isInterpreted(scan)) {
+                return null;
+            }
+            int length = getLength(scan);
+            double[] wavelengths = new double[length];
+            int[] intensities = new int[length];
+            int[] uncalibratedIntensities = new int[length];
+            int offset = scan * sMaxPoints;
+            wavelength.position(offset);
+            wavelength.get(wavelengths);
+            intensity.position(offset);
+            intensity.get(intensities);
+            uncalibratedIntensity.position(offset);
+            uncalibratedIntensity.get(uncalibratedIntensities);
+            return new KSTNanoSDK.ScanResults(wavelengths, intensities, uncalibratedIntensities, length);
+        }
+
+        private int checkScan(int scan) {
+            if (scan < 0 || scan >= count) {
+                throw new IndexOutOfBoundsException("Scan " + scan + ", count " + count);
+            }
+            return scan;
+        }
+
+        private int slot(int scan, int index) {
+            if (index < 0 || index >= getLength(scan)) {
+                throw new IndexOutOfBoundsException("Index " + index + ", length " + getLength(scan));
+            }
+            return scan * sMaxPoints + index;
+        }
+    }
+
+    /**
+     * @return true if the native library has the direct buffer entry point
+     */
+    public static boolean isAvailable() {
+        return sMaxPoints > 0;
+    }
+
+    /**
+     * @return the largest number of points of an interpreted scan
+     */
+    public static int getMaxPoints() {
+        return sMaxPoints;
+    }
+
+    /**
+     * @throws IllegalStateException if the native library has no direct buffer entry point
+     */
+    public ScanInterpreter() {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Direct interpretation is not available");
+        }
+        mWavelength = allocate(sMaxPoints * 8);
+        mIntensity = allocate(sMaxPoints * 4);
+        mUncalibratedIntensity = allocate(sMaxPoints * 4);
+        mWavelengthView = mWavelength.asDoubleBuffer();
+        mIntensityView = mIntensity.asIntBuffer();
+        mUncalibratedIntensityView = mUncalibratedIntensity.asIntBuffer();
+    }
+
+    /**
+     * Set the reference calibration to interpret scans with. It is copied once into direct
+     * buffers, and used for every following scan
+     *
+     * @param coefficients the serialized reference calibration coefficients
+     * @param matrix       the serialized reference calibration matrix
+     */
+    public void setReference(byte[] coefficients, byte[] matrix) {
+        mCoefficients = fill(mCoefficients, coefficients);
+        mCoefficientsLength = coefficients.length;
+        mMatrix = fill(mMatrix, matrix);
+        mMatrixLength = matrix.length;
+    }
+
+    /**
+     * Interpret a scan with the reference calibration. The scan data is copied into a direct
+     * buffer reused for every scan
+     *
+     * @param scanData the serialized scan data
+     * @return true if the scan was interpreted, false if the library could not interpret it
+     */
+    public boolean interpret(byte[] scanData) {
+        mData = fill(mData, scanData);
+        return interpret(mData, scanData.length);
+    }
+
+    /**
+     * Interpret a scan held in a direct buffer with the reference calibration, without copying it
+     *
+     * @param scanData direct buffer holding the serialized scan data from its first byte
+     * @param length   the number of bytes of scan data
+     * @return true if the scan was interpreted, false if the library could not interpret it
+     * @throws IllegalArgumentException if the buffer is not direct or shorter than the length
+     * @throws IllegalStateException    if no reference calibration was set
+     */
+    public boolean interpret(ByteBuffer scanData, int length) {
+        if (mCoefficients == null || mMatrix == null) {
+            throw new IllegalStateException("No reference calibration");
+        }
+        if (!scanData.isDirect() || length > scanData.capacity()) {
+            throw new IllegalArgumentException("Scan data must be a direct buffer of at least " + length + " bytes");
+        }
+        int result = nativeInterpReference(scanData, length, mCoefficients, mCoefficientsLength, mMatrix, mMatrixLength,
+                mWavelength, mIntensity, mUncalibratedIntensity);
+        if (result < 0) {
+            mLength = 0;
+            Log.e(TAG, result == ERROR_INTERPRET ? "Unable to interpret " + length + " bytes of scan data"
+                    : "Invalid buffers for " + length + " bytes of scan data");
+            return false;
+        }
+        mLength = result;
+        if (debug)
+            Log.d(TAG, "Interpreted " + length + " bytes of scan data, " + mLength + " points");
+        return true;
+    }
+
+    /**
+     * Interpret many scans with the reference calibration in a single native call. The library
+     * parses the reference calibration once for the batch, then only interprets each scan. The
+     * scans are copied back to back into a direct buffer reused for every batch. The results of
+     * each scan take {@link #getMaxPoints()} points of the packed results, so very large batches
+     * should be split
+     *
+     * @param scans the serialized scan data of each scan
+     * @return the packed results of every scan, in the order of the scans. They are overwritten
+     * by the next batch
+     * @throws IllegalStateException if no reference calibration was set
+     */
+    public BatchResults interpretAll(List<byte[]> scans) {
+        if (mCoefficients == null || mMatrix == null) {
+            throw new IllegalStateException("No reference calibration");
+        }
+        int count = scans.size();
+        int size = 0;
+        for (byte[] scan : scans) {
+            size += scan.length;
+        }
+        if (mBatchData == null || mBatchData.capacity() < size) {
+            mBatchData = allocate(size);
+        }
+        if (mBatchOffsets == null || mBatchOffsets.capacity() < (count + 1) * 4) {
+            mBatchOffsets = allocate((count + 1) * 4);
+        }
+        mBatchData.clear();
+        mBatchOffsets.clear();
+        for (byte[] scan : scans) {
+            mBatchOffsets.putInt(mBatchData.position());
+            mBatchData.put(scan);
+        }
+        mBatchOffsets.putInt(mBatchData.position());
+
+        if (mBatchResults == null || mBatchResults.capacity < count) {
+            mBatchResults = new BatchResults(count);
+        }
+        BatchResults results = mBatchResults;
+        results.count = count;
+        int interpreted = nativeInterpReferenceBatch(mBatchData, mBatchOffsets, count, mCoefficients, mCoefficientsLength,
+                mMatrix, mMatrixLength, results.buffers[1], results.buffers[2], results.buffers[3], results.buffers[0]);
+        if (interpreted < 0) {
+            throw new IllegalStateException("Invalid buffers for a batch of " + count + " scans");
+        }
+        if (interpreted < count) {
+            Log.w(TAG, "Unable to interpret " + (count - interpreted) + " of " + count + " scans");
+        }
+        if (debug)
+            Log.d(TAG, "Interpreted a batch of " + interpreted + " scans, " + size + " bytes");
+        return results;
+    }
+
+    /**
+     * @return the number of points of the last interpreted scan
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    public double getWavelength(int index) {
+        return mWavelengthView.get(checkIndex(index));
+    }
+
+    public int getIntensity(int index) {
+        return mIntensityView.get(checkIndex(index));
+    }
+
+    public int getUncalibratedIntensity(int index) {
+        return mUncalibratedIntensityView.get(checkIndex(index));
+    }
+
+    /**
+     * Copy the results of the last interpreted scan to arrays supplied by the caller, which can
+     * be reused for every scan
+     *
+     * @param wavelength            receives the wavelengths, at least {@link #getLength()} long
+     * @param intensity             receives the intensities, at least {@link #getLength()} long
+     * @param uncalibratedIntensity receives the uncalibrated intensities, at least
+     *                              {@link #getLength()} long
+     */
+    public void copyTo(double[] wavelength, int[] intensity, int[] uncalibratedIntensity) {
+        mWavelengthView.position(0);
+        mWavelengthView.get(wavelength, 0, mLength);
+        mIntensityView.position(0);
+        mIntensityView.get(intensity, 0, mLength);
+        mUncalibratedIntensityView.position(0);
+        mUncalibratedIntensityView.get(uncalibratedIntensity, 0, mLength);
+    }
+
+    /**
+     * Wrap the results of the last interpreted scan for the code working with the SDK results.
+     * This allocates new arrays
+     *
+     * @return the results, with the same contents as the SDK interpretation of the scan
+     */
+    public KSTNanoSDK.ScanResults toScanResults() {
+        double[] wavelength = new double[mLength];
+        int[] intensity = new int[mLength];
+        int[] uncalibratedIntensity = new int[mLength];
+        copyTo(wavelength, intensity, uncalibratedIntensity);
+        return new KSTNanoSDK.ScanResults(wavelength, intensity, uncalibratedIntensity, mLength);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("Index " + index + ", length " + mLength);
+        }
+        return index;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Copy bytes into a direct buffer, replacing it with a larger one if they do not fit
+     */
+    private static ByteBuffer fill(ByteBuffer buffer, byte[] bytes) {
+        if (buffer == null || buffer.capacity() < bytes.length) {
+            buffer = allocate(bytes.length);
+        }
+        buffer.clear();
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static native int nativeInterpReference(ByteBuffer data, int dataLength,
+                                                    ByteBuffer coefficients, int coefficientsLength,
+                                                    ByteBuffer matrix, int matrixLength,
+                                                    ByteBuffer wavelength, ByteBuffer intensity,
+                                                    ByteBuffer uncalibratedIntensity);
+
+    private static native int nativeInterpReferenceBatch(ByteBuffer data, ByteBuffer offsets, int count,
+                                                         ByteBuffer coefficients, int coefficientsLength,
+                                                         ByteBuffer matrix, int matrixLength,
+                                                         ByteBuffer wavelength, ByteBuffer intensity,
+                                                         ByteBuffer uncalibratedIntensity, ByteBuffer lengths);
+
+    private static native int nativeMaxPoints();
+}
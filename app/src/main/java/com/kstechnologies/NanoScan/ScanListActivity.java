@@ -2,7 +2,9 @@ package com.kstechnologies.NanoScan;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.content.ContextCompat;
@@ -19,11 +21,13 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.RelativeLayout;
+import android.widget.Toast;
 
 import com.baoyz.swipemenulistview.SwipeMenu;
 import com.baoyz.swipemenulistview.SwipeMenuCreator;
 import com.baoyz.swipemenulistview.SwipeMenuItem;
 import com.baoyz.swipemenulistview.SwipeMenuListView;
+import com.kstechnologies.nirscannanolibrary.SettingsManager;
 
 
 import java.io.File;
@@ -36,7 +40,9 @@ import java.util.ArrayList;
  * file list view
  *
  * From this activity, the user can begin the scan process {@link NewScanActivity},
- * Go to the info view {@link InfoActivity}, or view old scan data {@link GraphActivity}
+ * Go to the info view {@link InfoActivity}, or view old scan data {@link GraphActivity}.
+ * A scheduled acquisition on the preferred Nano can also be started in the
+ * {@link AcquisitionService}
  *
  * @author collinmast
  */
@@ -223,9 +229,61 @@ public class ScanListActivity extends Activity {
             graphIntent.putExtra("file_name", getString(R.string.newScan));
             startActivity(graphIntent);
         }
+
+        else if (id == R.id.action_acquisition) {
+            acquisitionDialog();
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Dialog for starting a scheduled acquisition on the preferred Nano. The acquisition runs in
+     * the {@link AcquisitionService}, and keeps going after the app is closed
+     */
+    private void acquisitionDialog() {
+        final String address = SettingsManager.getStringPref(mContext, SettingsManager.SharedPreferencesKeys.preferredDevice, null);
+        if (address == null) {
+            Toast.makeText(mContext, R.string.acquisition_no_nano, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        final View view = getLayoutInflater().inflate(R.layout.dialog_acquisition, null);
+        AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(mContext);
+        alertDialogBuilder.setTitle(getString(R.string.acquisition_title));
+        alertDialogBuilder.setView(view);
+
+        alertDialogBuilder.setPositiveButton(getString(R.string.acquisition_start), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                long minutes;
+                int repetitions;
+                try {
+                    minutes = Long.parseLong(((EditText) view.findViewById(R.id.et_interval)).getText().toString());
+                    repetitions = Integer.parseInt(((EditText) view.findViewById(R.id.et_repetitions)).getText().toString());
+                } catch (NumberFormatException e) {
+                    minutes = -1;
+                    repetitions = 0;
+                }
+                if (minutes < 0 || repetitions <= 0) {
+                    Toast.makeText(mContext, R.string.acquisition_invalid, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                AcquisitionService.start(mContext, new AcquisitionScheduler.Job(address, minutes * 60 * 1000,
+                        repetitions, new ArrayList<byte[]>()));
+            }
+        });
+
+        alertDialogBuilder.setNegativeButton(getString(R.string.cancel), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.dismiss();
+            }
+        });
+
+        alertDialogBuilder.create().show();
+    }
+
     /**
      * Populate the stored scan listview with included files in the raw directory as well as
      * stored CSV files
@@ -23,8 +23,8 @@ import com.kstechnologies.nirscannanolibrary.SettingsManager;
  * This activity controls the view for global settings. These settings do not require a Nano
  * to be connected.
  *
- * The user can change temperature and spatial frequency units, as well as set and clear a
- * preferred Nano device
+ * The user can change temperature and spatial frequency units, set and clear a preferred Nano
+ * device, and turn periodic device status sampling and fast reconnection on or off
  *
  * @author collinmast
  */
@@ -33,6 +33,8 @@ public class SettingsActivity extends Activity {
     private TextView tv_version;
     private ToggleButton tb_temp;
     private ToggleButton tb_spatial;
+    private ToggleButton tb_telemetry;
+    private ToggleButton tb_fast_reconnect;
     private Button btn_set;
     private Button btn_forget;
     private AlertDialog alertDialog;
@@ -58,6 +60,8 @@ public class SettingsActivity extends Activity {
         tv_version = (TextView) findViewById(R.id.tv_version);
         tb_temp = (ToggleButton) findViewById(R.id.tb_temp);
         tb_spatial = (ToggleButton) findViewById(R.id.tb_spatial);
+        tb_telemetry = (ToggleButton) findViewById(R.id.tb_telemetry);
+        tb_fast_reconnect = (ToggleButton) findViewById(R.id.tb_fast_reconnect);
         btn_set = (Button) findViewById(R.id.btn_set);
         btn_forget = (Button) findViewById(R.id.btn_forget);
         tv_pref_nano = (TextView) findViewById(R.id.tv_pref_nano);
@@ -83,6 +87,8 @@ public class SettingsActivity extends Activity {
         //Initialize UI toggle element states, and create event listeners
         tb_temp.setChecked(SettingsManager.getBooleanPref(this, SettingsManager.SharedPreferencesKeys.tempUnits, SettingsManager.CELSIUS));
         tb_spatial.setChecked(SettingsManager.getBooleanPref(this, SettingsManager.SharedPreferencesKeys.spatialFreq, SettingsManager.WAVELENGTH));
+        tb_telemetry.setChecked(SettingsManager.getBooleanPref(this, NanoBLEService.PREF_TELEMETRY, false));
+        tb_fast_reconnect.setChecked(SettingsManager.getBooleanPref(this, NanoBLEService.PREF_FAST_RECONNECT, false));
 
         tb_temp.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
@@ -98,6 +104,20 @@ public class SettingsActivity extends Activity {
             }
         });
 
+        tb_telemetry.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
+                SettingsManager.storeBooleanPref(mContext, NanoBLEService.PREF_TELEMETRY, b);
+            }
+        });
+
+        tb_fast_reconnect.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
+                SettingsManager.storeBooleanPref(mContext, NanoBLEService.PREF_FAST_RECONNECT, b);
+            }
+        });
+
         btn_set.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
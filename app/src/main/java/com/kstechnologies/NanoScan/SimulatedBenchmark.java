@@ -0,0 +1,148 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Benchmark run of the {@link NanoBLEService} against a {@link SimulatedNano}.
+ *
+ * The simulator is connected as the primary session with
+ * {@link NanoBLEService#connectSimulated(SimulatedNano)}. Once it is connected, the session
+ * goes through the same start up as with a device (time, scan name stub and reference
+ * calibration), then runs a number of scans back to back. When the last scan has arrived, or a
+ * transfer was given up, the elapsed time and the {@link TransferMetrics} of the session are
+ * logged and the session is closed.
+ *
+ * All events are handled on the main thread.
+ */
+public class SimulatedBenchmark {
+
+    private static final String TAG = "__BENCHMARK";
+
+    //Number of scans run when none is given
+    public static final int DEFAULT_SCANS = 20;
+
+    private final NanoBLEService mService;
+    private final SimulatedNano mNano;
+    private final int mScans;
+
+    private int mReceived;
+    private long mStartedAt;
+    private long mFirstScanAt;
+    private boolean mRunning;
+
+    private final NanoEventBus.Subscriber<NanoEventBus.ConnectionEvent> mConnectionSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.ConnectionEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.ConnectionEvent event) {
+                    if (!isOwn(event.address)) {
+                        return;
+                    }
+                    if (!event.connected) {
+                        finish("disconnected");
+                        return;
+                    }
+                    mService.getSession().setTime();
+                }
+            };
+
+    private final NanoEventBus.Subscriber<NanoEventBus.RefCalEvent> mRefCalSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.RefCalEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.RefCalEvent event) {
+                    //A changed calibration is broadcast again after the cached one
+                    if (!isOwn(event.address) || mFirstScanAt != 0) {
+                        return;
+                    }
+                    Log.i(TAG, "Connected and calibrated in " + (SystemClock.elapsedRealtime() - mStartedAt) + "ms");
+                    mFirstScanAt = SystemClock.elapsedRealtime();
+                    mService.getSession().startScan(false);
+                }
+            };
+
+    private final NanoEventBus.Subscriber<NanoEventBus.ScanDataEvent> mScanSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.ScanDataEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.ScanDataEvent event) {
+                    if (!isOwn(event.address)) {
+                        return;
+                    }
+                    mReceived++;
+                    if (mReceived >= mScans) {
+                        finish("done");
+                    } else {
+                        mService.getSession().startScan(false);
+                    }
+                }
+            };
+
+    private final NanoEventBus.Subscriber<NanoEventBus.TransferFailedEvent> mFailureSubscriber =
+            new NanoEventBus.Subscriber<NanoEventBus.TransferFailedEvent>() {
+                @Override
+                public void onEvent(NanoEventBus.TransferFailedEvent event) {
+                    if (isOwn(event.address)) {
+                        finish(event.phase + " failed");
+                    }
+                }
+            };
+
+    /**
+     * @param service the service to connect the simulator to
+     * @param nano    the simulated device, with its link already shaped
+     * @param scans   the number of scans to run
+     */
+    public SimulatedBenchmark(NanoBLEService service, SimulatedNano nano, int scans) {
+        mService = service;
+        mNano = nano;
+        mScans = scans;
+    }
+
+    /**
+     * Connect the simulator, replacing the primary session, and start the run
+     */
+    public void start() {
+        NanoEventBus bus = NanoEventBus.getDefault();
+        bus.register(NanoEventBus.ConnectionEvent.class, mConnectionSubscriber, NanoEventBus.ThreadMode.MAIN);
+        bus.register(NanoEventBus.RefCalEvent.class, mRefCalSubscriber, NanoEventBus.ThreadMode.MAIN);
+        bus.register(NanoEventBus.ScanDataEvent.class, mScanSubscriber, NanoEventBus.ThreadMode.MAIN);
+        bus.register(NanoEventBus.TransferFailedEvent.class, mFailureSubscriber, NanoEventBus.ThreadMode.MAIN);
+        mRunning = true;
+        mStartedAt = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Running " + mScans + " scans against " + mNano.getAddress());
+        mService.connectSimulated(mNano);
+    }
+
+    /**
+     * @return true until the run has finished
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private boolean isOwn(String address) {
+        return mRunning && mNano.getAddress().equals(address)
+                && mService.getSession() != null && mService.getSession().getAddress().equals(address);
+    }
+
+    /**
+     * Log the results of the run and close the session
+     */
+    private void finish(String reason) {
+        mRunning = false;
+        NanoEventBus.getDefault().unregister(mConnectionSubscriber);
+        NanoEventBus.getDefault().unregister(mRefCalSubscriber);
+        NanoEventBus.getDefault().unregister(mScanSubscriber);
+        NanoEventBus.getDefault().unregister(mFailureSubscriber);
+
+        long now = SystemClock.elapsedRealtime();
+        long scanMs = mFirstScanAt != 0 ? now - mFirstScanAt : 0;
+        Log.i(TAG, "Benchmark " + reason + ": " + mReceived + " of " + mScans + " scans in " + scanMs + "ms"
+                + (mReceived > 0 ? ", " + (scanMs / mReceived) + "ms per scan" : "")
+                + ", " + mNano.getSentPackets() + " packets sent, " + mNano.getDroppedPackets() + " dropped");
+        NanoSession session = mService.getSession();
+        if (session != null) {
+            Log.i(TAG, session.getTransferMetrics().dump());
+        }
+        mService.close();
+    }
+}
@@ -0,0 +1,740 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A simulated NIRScan Nano, used to benchmark the transfer paths of a {@link NanoSession}
+ * without a device.
+ *
+ * Each simulator has its own set of characteristics with the Nano UUIDs, so that several
+ * simulators can be connected at the same time. The reads, writes and requests of the session
+ * are answered through the same {@link BluetoothGattCallback} as a real device. Scan data,
+ * reference calibration and scan configurations are sent as a size header followed by numbered
+ * packets, like the Nano does.
+ *
+ * {@link SimulatedBenchmark} runs a series of scans against a simulator through the
+ * {@link NanoBLEService}, see {@link NanoBLEService#ACTION_BENCHMARK}.
+ *
+ * The link can be shaped with:
+ * <ul>
+ * <li>{@link #setLatencyMs(int)}: the time from a request to the first packet of its response</li>
+ * <li>{@link #setPacketIntervalMs(int)}: the time between two packets of the same response</li>
+ * <li>{@link #setPacketSize(int)}: the largest notification payload, further limited by the
+ * negotiated MTU</li>
+ * <li>{@link #setDropRate(double)}: the fraction of notifications that are never delivered</li>
+ * </ul>
+ *
+ * The default payloads are random bytes of the {@code DEFAULT_*_SIZE} lengths. They exercise every
+ * transfer path but cannot be interpreted by the SDK; payloads captured from a device can be set
+ * with {@link #setScanData(byte[])}, {@link #setReferenceCalibration(byte[], byte[])} and
+ * {@link #setScanConfiguration(byte[])} for end to end runs.
+ *
+ * All callbacks are made on a background thread owned by the simulator, with a null
+ * {@link BluetoothGatt}.
+ */
+public class SimulatedNano implements NanoGatt {
+
+    private static final String TAG = "__SIMULATED_NANO";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    public static final String DEFAULT_ADDRESS = "00:00:00:00:00:00";
+
+    public static final int DEFAULT_SCAN_DATA_SIZE = 3822;
+    public static final int DEFAULT_REF_COEFF_SIZE = 1211;
+    public static final int DEFAULT_REF_MATRIX_SIZE = 6732;
+    public static final int DEFAULT_SCAN_CONF_SIZE = 155;
+
+    private final String mAddress;
+    private final Object mLock = new Object();
+    private final Random mRandom = new Random();
+    private final HashSet<UUID> mNotifying = new HashSet<>();
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics = createCharacteristics();
+
+    private int mLatencyMs = 20;
+    private int mPacketIntervalMs = 8;
+    private int mPacketSize = TransferProfile.DEFAULT_MTU - 3;
+    private double mDropRate;
+    private int mScanTimeMs = 1500;
+    private int mMaxMtu = TransferProfile.PREFERRED_MTU;
+
+    private byte[] mScanData;
+    private byte[] mRefCoefficients;
+    private byte[] mRefMatrix;
+    private byte[] mScanConf;
+    private int mScanConfCount = 3;
+    private byte[] mActiveConf = {0x00, 0x00};
+    private final ArrayList<Integer> mStoredScans = new ArrayList<>();
+    private int mNextScanIndex = 1;
+    private String mSerial = "SIM0000001";
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private BluetoothGattCallback mCallback;
+    private int mMtu = TransferProfile.DEFAULT_MTU;
+    private int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private long mSentPackets;
+    private long mDroppedPackets;
+
+    public SimulatedNano() {
+        this(DEFAULT_ADDRESS);
+    }
+
+    /**
+     * @param address the Bluetooth address reported for the simulated device. Files kept per
+     *                device by the service are stored under this address
+     */
+    public SimulatedNano(String address) {
+        mAddress = address;
+        mScanData = randomBytes(DEFAULT_SCAN_DATA_SIZE);
+        mRefCoefficients = randomBytes(DEFAULT_REF_COEFF_SIZE);
+        mRefMatrix = randomBytes(DEFAULT_REF_MATRIX_SIZE);
+        mScanConf = randomBytes(DEFAULT_SCAN_CONF_SIZE);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @param latencyMs the time from a request to the first packet of its response
+     */
+    public void setLatencyMs(int latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * @param intervalMs the time between two packets of the same response
+     */
+    public void setPacketIntervalMs(int intervalMs) {
+        mPacketIntervalMs = intervalMs;
+    }
+
+    /**
+     * @param packetSize the largest notification payload. Payloads are also limited to the
+     *                   negotiated MTU less the three byte ATT header
+     */
+    public void setPacketSize(int packetSize) {
+        mPacketSize = packetSize;
+    }
+
+    /**
+     * @param dropRate the fraction of notifications that are dropped, from 0 to 1
+     */
+    public void setDropRate(double dropRate) {
+        mDropRate = dropRate;
+    }
+
+    /**
+     * @param seed the seed of the drop decisions, for reproducible runs
+     */
+    public void setSeed(long seed) {
+        mRandom.setSeed(seed);
+    }
+
+    /**
+     * @param scanTimeMs the time from a start scan request to the scan complete notification
+     */
+    public void setScanTimeMs(int scanTimeMs) {
+        mScanTimeMs = scanTimeMs;
+    }
+
+    /**
+     * @param maxMtu the largest MTU the simulated device accepts
+     */
+    public void setMaxMtu(int maxMtu) {
+        mMaxMtu = maxMtu;
+    }
+
+    /**
+     * @param serial the serial number reported by the device information service
+     */
+    public void setSerialNumber(String serial) {
+        mSerial = serial;
+    }
+
+    /**
+     * @param data the serialized scan data sent for every scan
+     */
+    public void setScanData(byte[] data) {
+        mScanData = data;
+    }
+
+    /**
+     * @param coefficients the serialized reference calibration coefficients
+     * @param matrix       the serialized reference calibration matrix
+     */
+    public void setReferenceCalibration(byte[] coefficients, byte[] matrix) {
+        mRefCoefficients = coefficients;
+        mRefMatrix = matrix;
+    }
+
+    /**
+     * @param data the serialized scan configuration sent for every configuration index
+     */
+    public void setScanConfiguration(byte[] data) {
+        mScanConf = data;
+    }
+
+    /**
+     * @param count the number of scan configurations stored on the device
+     */
+    public void setScanConfigurationCount(int count) {
+        mScanConfCount = count;
+    }
+
+    /**
+     * Add scans to the SD card of the device
+     *
+     * @param count the number of scans to add
+     */
+    public void addStoredScans(int count) {
+        synchronized (mLock) {
+            for (int i = 0; i < count; i++) {
+                mStoredScans.add(mNextScanIndex++);
+            }
+        }
+    }
+
+    /**
+     * @return the number of notifications delivered since the connection was made
+     */
+    public long getSentPackets() {
+        synchronized (mLock) {
+            return mSentPackets;
+        }
+    }
+
+    /**
+     * @return the number of notifications dropped since the connection was made
+     */
+    public long getDroppedPackets() {
+        synchronized (mLock) {
+            return mDroppedPackets;
+        }
+    }
+
+    /**
+     * @return the last connection priority requested by the session
+     */
+    public int getConnectionPriority() {
+        synchronized (mLock) {
+            return mPriority;
+        }
+    }
+
+    /**
+     * Connect to the simulated device. The connection is reported through
+     * {@code onConnectionStateChange}
+     *
+     * @param callback the callback to report GATT events to
+     */
+    public void connect(BluetoothGattCallback callback) {
+        synchronized (mLock) {
+            mCallback = callback;
+            mMtu = TransferProfile.DEFAULT_MTU;
+            mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            mSentPackets = 0;
+            mDroppedPackets = 0;
+            mNotifying.clear();
+            if (mThread == null) {
+                mThread = new HandlerThread(TAG);
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+            }
+        }
+        post(mLatencyMs, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return post(mLatencyMs, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+    }
+
+    /**
+     * The characteristics are created with the simulator, so there is nothing left to enumerate
+     */
+    @Override
+    public boolean enumerateServices() {
+        return true;
+    }
+
+    @Override
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        return mCharacteristics.get(uuid);
+    }
+
+    @Override
+    public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        return post(mLatencyMs, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    characteristic.setValue(readValue(characteristic.getUuid()));
+                    callback.onCharacteristicRead(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue() == null ? new byte[0] : characteristic.getValue().clone();
+        return post(mPacketIntervalMs, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onCharacteristicWrite(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+                    respond(characteristic.getUuid(), value);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        final BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        final byte[] value = descriptor.getValue();
+        return post(mPacketIntervalMs, new Runnable() {
+            @Override
+            public void run() {
+                if (characteristic != null && value != null) {
+                    setNotifying(characteristic.getUuid(), value.length > 0 && value[0] != 0);
+                }
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onDescriptorWrite(null, descriptor, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return characteristic != null;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        final int accepted = Math.min(mtu, mMaxMtu);
+        return post(mLatencyMs, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mMtu = accepted;
+                }
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onMtuChanged(null, accepted, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        synchronized (mLock) {
+            mPriority = priority;
+        }
+        return true;
+    }
+
+    /**
+     * Drop every pending response and report the disconnection
+     */
+    @Override
+    public void disconnect() {
+        synchronized (mLock) {
+            if (mHandler != null) {
+                mHandler.removeCallbacksAndMessages(null);
+            }
+        }
+        post(0, new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGattCallback callback = callback();
+                if (callback != null) {
+                    callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            mCallback = null;
+            if (mThread != null) {
+                mThread.quit();
+                mThread = null;
+                mHandler = null;
+            }
+        }
+    }
+
+    /**
+     * Queue the response to a characteristic write
+     *
+     * @param uuid  the characteristic that was written
+     * @param value the value that was written
+     */
+    private void respond(UUID uuid, byte[] value) {
+        if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN)) {
+            final int index;
+            synchronized (mLock) {
+                index = mNextScanIndex++;
+                if (value.length > 0 && value[0] == 0x01) {
+                    mStoredScans.add(index);
+                }
+            }
+            byte[] indexBytes = indexBytes(index);
+            sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN), mScanTimeMs,
+                    new byte[]{(byte) 0xff, indexBytes[0], indexBytes[1], indexBytes[2], indexBytes[3]});
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_NAME)) {
+            sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_NAME), mLatencyMs,
+                    ("sim" + StoredScanStore.key(value) + "\0").getBytes());
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_TYPE)) {
+            sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_TYPE), mLatencyMs, new byte[]{0x00});
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_DATE)) {
+            Calendar calendar = Calendar.getInstance();
+            sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_DATE), mLatencyMs, new byte[]{
+                    (byte) (calendar.get(Calendar.YEAR) - 2000),
+                    (byte) (calendar.get(Calendar.MONTH) + 1),
+                    (byte) calendar.get(Calendar.DAY_OF_MONTH),
+                    (byte) (calendar.get(Calendar.DAY_OF_WEEK) - 1),
+                    (byte) calendar.get(Calendar.HOUR_OF_DAY),
+                    (byte) calendar.get(Calendar.MINUTE),
+                    (byte) calendar.get(Calendar.SECOND)});
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_PKT_FMT_VER)) {
+            sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_PKT_FMT_VER), mLatencyMs, new byte[]{0x01});
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_REQ_SER_SCAN_DATA_STRUCT)) {
+            sendTransfer(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_RET_SER_SCAN_DATA_STRUCT), mScanData);
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_COEFF)) {
+            sendTransfer(getCharacteristic(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_COEFF), mRefCoefficients);
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_MATRIX)) {
+            sendTransfer(getCharacteristic(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_MATRIX), mRefMatrix);
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSCIS_REQ_SCAN_CONF_DATA)) {
+            sendTransfer(getCharacteristic(KSTNanoSDK.NanoGATT.GSCIS_RET_SCAN_CONF_DATA), mScanConf);
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSCIS_REQ_STORED_CONF_LIST)) {
+            sendConfList();
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST)) {
+            sendScanIndices();
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN)) {
+            synchronized (mLock) {
+                mStoredScans.remove(Integer.valueOf(StoredScanStore.key(value)));
+            }
+            sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN), mLatencyMs, new byte[]{0x00});
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF)) {
+            synchronized (mLock) {
+                mActiveConf = value;
+            }
+        }
+    }
+
+    /**
+     * @return the value of a characteristic read
+     */
+    private byte[] readValue(UUID uuid) {
+        if (uuid.equals(KSTNanoSDK.NanoGATT.DIS_MANUF_NAME)) {
+            return "Simulated".getBytes();
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.DIS_MODEL_NUMBER)) {
+            return "NIRScanNano".getBytes();
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.DIS_SERIAL_NUMBER)) {
+            return mSerial.getBytes();
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.DIS_HW_REV)
+                || uuid.equals(KSTNanoSDK.NanoGATT.DIS_TIVA_FW_REV)
+                || uuid.equals(KSTNanoSDK.NanoGATT.DIS_SPECC_REV)) {
+            return "sim".getBytes();
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.BAS_BATT_LVL)) {
+            return new byte[]{100};
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GGIS_TEMP_MEASUREMENT)) {
+            return shortBytes(2500);
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GGIS_HUMID_MEASUREMENT)) {
+            return shortBytes(4000);
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GGIS_DEV_STATUS)
+                || uuid.equals(KSTNanoSDK.NanoGATT.GGIS_ERR_STATUS)) {
+            return new byte[4];
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSCIS_NUM_STORED_CONF)) {
+            return shortBytes(mScanConfCount);
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSDIS_NUM_SD_STORED_SCANS)) {
+            synchronized (mLock) {
+                return shortBytes(mStoredScans.size());
+            }
+        } else if (uuid.equals(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF)) {
+            synchronized (mLock) {
+                return mActiveConf;
+            }
+        }
+        return new byte[]{0x00};
+    }
+
+    /**
+     * Send a payload as a size header followed by numbered packets
+     */
+    private void sendTransfer(BluetoothGattCharacteristic characteristic, byte[] data) {
+        List<byte[]> packets = new ArrayList<>();
+        packets.add(new byte[]{0x00, (byte) data.length, (byte) (data.length >> 8)});
+        int chunk = payloadSize() - 1;
+        int sequence = 1;
+        for (int offset = 0; offset < data.length; offset += chunk) {
+            int length = Math.min(chunk, data.length - offset);
+            byte[] packet = new byte[length + 1];
+            packet[0] = (byte) sequence;
+            System.arraycopy(data, offset, packet, 1, length);
+            packets.add(packet);
+            sequence = sequence == 0xFF ? 1 : sequence + 1;
+        }
+        sendPackets(characteristic, packets);
+    }
+
+    /**
+     * Send the stored configuration list. The service counts one packet per configuration, and
+     * reads the configuration indices from the second packet
+     */
+    private void sendConfList() {
+        int count = mScanConfCount;
+        List<byte[]> packets = new ArrayList<>();
+        packets.add(new byte[]{0x00, (byte) count});
+        byte[] list = new byte[Math.min(payloadSize(), 1 + 2 * count)];
+        list[0] = 0x01;
+        for (int i = 0; 2 * i + 2 < list.length; i++) {
+            list[2 * i + 1] = (byte) i;
+        }
+        packets.add(list);
+        for (int i = 2; i < count; i++) {
+            packets.add(new byte[]{(byte) i});
+        }
+        sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSCIS_RET_STORED_CONF_LIST), packets);
+    }
+
+    /**
+     * Send the SD card scan indices, as many four byte indices per packet as fit
+     */
+    private void sendScanIndices() {
+        ArrayList<Integer> indices;
+        synchronized (mLock) {
+            indices = new ArrayList<>(mStoredScans);
+        }
+        int perPacket = Math.max(1, payloadSize() / 4);
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < indices.size(); i += perPacket) {
+            int count = Math.min(perPacket, indices.size() - i);
+            byte[] packet = new byte[count * 4];
+            for (int j = 0; j < count; j++) {
+                System.arraycopy(indexBytes(indices.get(i + j)), 0, packet, j * 4, 4);
+            }
+            packets.add(packet);
+        }
+        sendPackets(getCharacteristic(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST_DATA), packets);
+    }
+
+    private void sendPackets(BluetoothGattCharacteristic characteristic, int delayMs, byte[] value) {
+        sendPackets(characteristic, Arrays.asList(value), delayMs);
+    }
+
+    private void sendPackets(BluetoothGattCharacteristic characteristic, List<byte[]> packets) {
+        sendPackets(characteristic, packets, mLatencyMs);
+    }
+
+    /**
+     * Schedule a sequence of notifications, the first after {@code delayMs} and the others one
+     * packet interval apart. Each notification is dropped with the configured probability
+     */
+    private void sendPackets(final BluetoothGattCharacteristic characteristic, List<byte[]> packets, int delayMs) {
+        for (int i = 0; i < packets.size(); i++) {
+            final byte[] packet = packets.get(i);
+            post(delayMs + (long) i * mPacketIntervalMs, new Runnable() {
+                @Override
+                public void run() {
+                    BluetoothGattCallback callback = callback();
+                    if (callback == null || !isNotifying(characteristic.getUuid())) {
+                        return;
+                    }
+                    synchronized (mLock) {
+                        if (mDropRate > 0 && mRandom.nextDouble() < mDropRate) {
+                            mDroppedPackets++;
+                            if (debug)
+                                Log.d(TAG, "Dropping notification on " + characteristic.getUuid());
+                            return;
+                        }
+                        mSentPackets++;
+                    }
+                    characteristic.setValue(packet);
+                    callback.onCharacteristicChanged(null, characteristic);
+                }
+            });
+        }
+    }
+
+    private boolean post(long delayMs, Runnable runnable) {
+        synchronized (mLock) {
+            return mHandler != null && mHandler.postDelayed(runnable, delayMs);
+        }
+    }
+
+    private BluetoothGattCallback callback() {
+        synchronized (mLock) {
+            return mCallback;
+        }
+    }
+
+    private int payloadSize() {
+        synchronized (mLock) {
+            return Math.max(2, Math.min(mPacketSize, mMtu - 3));
+        }
+    }
+
+    private boolean isNotifying(UUID uuid) {
+        synchronized (mLock) {
+            return mNotifying.contains(uuid);
+        }
+    }
+
+    private void setNotifying(UUID uuid, boolean enable) {
+        synchronized (mLock) {
+            if (enable) {
+                mNotifying.add(uuid);
+            } else {
+                mNotifying.remove(uuid);
+            }
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] shortBytes(int value) {
+        return new byte[]{(byte) value, (byte) (value >> 8)};
+    }
+
+    private static byte[] indexBytes(int index) {
+        return new byte[]{(byte) index, (byte) (index >> 8), (byte) (index >> 16), (byte) (index >> 24)};
+    }
+
+    /**
+     * Create the characteristics of a simulated device. Start scan and clear scan are written
+     * and notify on the same characteristic
+     *
+     * @return the characteristics by UUID
+     */
+    static HashMap<UUID, BluetoothGattCharacteristic> createCharacteristics() {
+        HashMap<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+        add(characteristics, read(KSTNanoSDK.NanoGATT.DIS_MANUF_NAME));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.DIS_MODEL_NUMBER));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.DIS_SERIAL_NUMBER));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.DIS_HW_REV));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.DIS_TIVA_FW_REV));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.DIS_SPECC_REV));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.BAS_BATT_LVL));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_TEMP_MEASUREMENT));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_HUMID_MEASUREMENT));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_DEV_STATUS));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_ERR_STATUS));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GGIS_TEMP_THRESH));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GGIS_HUMID_THRESH));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_HOURS_OF_USE));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_NUM_BATT_RECHARGE));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_LAMP_HOURS));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GGIS_ERR_LOG));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GDTS_TIME));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GCIS_REQ_SPEC_CAL_COEFF));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GCIS_RET_SPEC_CAL_COEFF));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_COEFF));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_COEFF));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GCIS_REQ_REF_CAL_MATRIX));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_MATRIX));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GSCIS_NUM_STORED_CONF));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSCIS_REQ_STORED_CONF_LIST));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSCIS_RET_STORED_CONF_LIST));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSCIS_REQ_SCAN_CONF_DATA));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSCIS_RET_SCAN_CONF_DATA));
+        add(characteristics, characteristic(KSTNanoSDK.NanoGATT.GSCIS_ACTIVE_SCAN_CONF,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE));
+        add(characteristics, read(KSTNanoSDK.NanoGATT.GSDIS_NUM_SD_STORED_SCANS));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSDIS_SD_STORED_SCAN_IND_LIST_DATA));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSDIS_SET_SCAN_NAME_STUB));
+        BluetoothGattCharacteristic startScan = characteristic(KSTNanoSDK.NanoGATT.GSDIS_START_SCAN,
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+        add(characteristics, startScan);
+        BluetoothGattCharacteristic clearScan = characteristic(KSTNanoSDK.NanoGATT.GSDIS_CLEAR_SCAN,
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+        add(characteristics, clearScan);
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_NAME));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_NAME));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_TYPE));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_TYPE));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSDIS_REQ_SCAN_DATE));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSDIS_RET_SCAN_DATE));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSDIS_REQ_PKT_FMT_VER));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSDIS_RET_PKT_FMT_VER));
+        add(characteristics, write(KSTNanoSDK.NanoGATT.GSDIS_REQ_SER_SCAN_DATA_STRUCT));
+        add(characteristics, notifying(KSTNanoSDK.NanoGATT.GSDIS_RET_SER_SCAN_DATA_STRUCT));
+        return characteristics;
+    }
+
+    private static void add(HashMap<UUID, BluetoothGattCharacteristic> characteristics,
+                            BluetoothGattCharacteristic characteristic) {
+        characteristics.put(characteristic.getUuid(), characteristic);
+    }
+
+    private static BluetoothGattCharacteristic read(UUID uuid) {
+        return characteristic(uuid, BluetoothGattCharacteristic.PROPERTY_READ);
+    }
+
+    private static BluetoothGattCharacteristic write(UUID uuid) {
+        return characteristic(uuid, BluetoothGattCharacteristic.PROPERTY_WRITE);
+    }
+
+    private static BluetoothGattCharacteristic notifying(UUID uuid) {
+        return characteristic(uuid, BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+    }
+
+    private static BluetoothGattCharacteristic characteristic(UUID uuid, int properties) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid, properties,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            characteristic.addDescriptor(new BluetoothGattDescriptor(GattOperationQueue.CCCD_UUID,
+                    BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        }
+        return characteristic;
+    }
+}
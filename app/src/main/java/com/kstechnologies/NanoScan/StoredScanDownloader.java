@@ -0,0 +1,499 @@
+package com.kstechnologies.NanoScan;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bookkeeping for a bulk download of the scans stored on the SD card of a Nano.
+ *
+ * The {@link NanoBLEService} requests the serialized scan data of each pending index in turn and
+ * passes the reassembled data to {@link #onScanData(byte[], byte[])}. The raw data is written to
+ * disk right away and the index is removed from the checkpoint file, so a session that is
+ * interrupted (disconnect, app killed) resumes at the first scan that was not saved. Interpreting
+ * the scan against the reference calibration and writing the CSV file is done on a background
+ * thread so that it never holds up the BLE callbacks.
+ *
+ * Files are written per device address under {@code files/sd_downloads/<address>/}:
+ * <pre>
+ *   pending          checkpoint, the four byte indices still to download
+ *   &lt;index&gt;.dat     serialized scan data struct as received from the device
+ *   &lt;index&gt;.csv     interpreted scan, in the same columns as the scans saved by NewScanActivity
+ * </pre>
+ */
+public class StoredScanDownloader {
+
+    private static final String TAG = "__SD_DOWNLOADER";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    private static final String DOWNLOAD_DIR = "sd_downloads";
+    private static final String CHECKPOINT_FILE = "pending";
+    private static final String RAW_SUFFIX = ".dat";
+    private static final String CSV_SUFFIX = ".csv";
+
+    //Number of scans interpreted per native call when reinterpreting the downloaded scans
+    private static final int REINTERPRET_BATCH = 64;
+
+    /**
+     * Callback for scans that have been interpreted and saved. Called on the background thread
+     */
+    public interface Listener {
+        /**
+         * @param index the four byte index of the scan on the SD card
+         * @param csv   the CSV file the interpreted scan was written to, or null if the scan could
+         *              not be interpreted
+         */
+        void onScanSaved(byte[] index, File csv);
+    }
+
+    private final File mDir;
+    private final File mCheckpoint;
+    private final String mAddress;
+    private final ArrayList<byte[]> mPending = new ArrayList<>();
+    private final Listener mListener;
+    private final InterpretationCache mInterpretationCache;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private byte[] mRefCoefficients;
+    private byte[] mRefMatrix;
+
+    /**
+     * Open the download state of a device. Any checkpoint left by an earlier session is loaded,
+     * and can be continued with {@link #next()}
+     *
+     * @param context  the context used to locate the app files directory
+     * @param address  the Bluetooth address of the device
+     * @param listener the listener for saved scans, may be null
+     */
+    public StoredScanDownloader(Context context, String address, Listener listener) {
+        mAddress = address;
+        mListener = listener;
+        mInterpretationCache = InterpretationCache.getDefault(context);
+        mDir = new File(new File(context.getFilesDir(), DOWNLOAD_DIR), address.replaceAll("[^A-Za-z0-9]", ""));
+        mCheckpoint = new File(mDir, CHECKPOINT_FILE);
+        loadCheckpoint();
+    }
+
+    /**
+     * @return the Bluetooth address of the device this download belongs to
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Set the reference calibration used to interpret the downloaded scans
+     *
+     * @param coefficients the serialized reference calibration coefficients
+     * @param matrix       the serialized reference calibration matrix
+     */
+    public synchronized void setReference(byte[] coefficients, byte[] matrix) {
+        mRefCoefficients = coefficients;
+        mRefMatrix = matrix;
+    }
+
+    /**
+     * Add scans to the download. Indices that are already pending, or that have already been
+     * downloaded, are skipped
+     *
+     * @param indices the four byte indices of the scans to download
+     */
+    public synchronized void add(List<byte[]> indices) {
+        for (byte[] index : indices) {
+            if (!isPending(index) && !rawFile(index).exists()) {
+                mPending.add(index.clone());
+            }
+        }
+        saveCheckpoint();
+    }
+
+    /**
+     * @return the index of the next scan to download, or null if the download is complete
+     */
+    public synchronized byte[] next() {
+        return mPending.isEmpty() ? null : mPending.get(0);
+    }
+
+    /**
+     * @return the number of scans still to download
+     */
+    public synchronized int remaining() {
+        return mPending.size();
+    }
+
+    /**
+     * Save the data of a downloaded scan and advance the checkpoint. The scan is interpreted in
+     * the background
+     *
+     * @param index the index the data was requested for
+     * @param data  the reassembled serialized scan data struct
+     */
+    public synchronized void onScanData(final byte[] index, final byte[] data) {
+        File raw = rawFile(index);
+        if (!writeRaw(raw, data)) {
+            return;
+        }
+        removePending(index);
+        saveCheckpoint();
+
+        final byte[] coefficients = mRefCoefficients;
+        final byte[] matrix = mRefMatrix;
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                File csv = interpret(index, data, coefficients, matrix);
+                if (mListener != null) {
+                    mListener.onScanSaved(index, csv);
+                }
+            }
+        });
+    }
+
+    /**
+     * Interpret every downloaded scan again with the current reference calibration and rewrite its
+     * CSV file, as after a reference update. This is done in the background, and the listener is
+     * called for every scan. Scans already interpreted with the reference calibration are taken
+     * from the {@link InterpretationCache}. Where the native library has it, the others are
+     * interpreted in batches of {@link #REINTERPRET_BATCH} through
+     * {@link ScanInterpreter#interpretAll(List)}, which parses the reference calibration once
+     * per batch instead of once per scan
+     */
+    public synchronized void reinterpretAll() {
+        final byte[] coefficients = mRefCoefficients;
+        final byte[] matrix = mRefMatrix;
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                reinterpret(coefficients, matrix);
+            }
+        });
+    }
+
+    /**
+     * Drop every pending scan and delete the checkpoint. Scans already saved are kept
+     */
+    public synchronized void cancel() {
+        mPending.clear();
+        mCheckpoint.delete();
+    }
+
+    /**
+     * Stop the background thread. Interpretations that have not started yet are dropped, but
+     * the raw data of those scans is already on disk
+     */
+    public synchronized void close() {
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    private Handler handler() {
+        if (mHandler == null) {
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        return mHandler;
+    }
+
+    /**
+     * Interpret a scan and write it as CSV
+     *
+     * @return the CSV file, or null if the scan could not be interpreted
+     */
+    private File interpret(byte[] index, byte[] data, byte[] coefficients, byte[] matrix) {
+        if (coefficients == null || matrix == null) {
+            Log.w(TAG, "No reference calibration, only the raw data was saved for " + name(index));
+            return null;
+        }
+        KSTNanoSDK.ScanResults results = mInterpretationCache.interpret(data, coefficients, matrix);
+        if (results == null) {
+            Log.w(TAG, "Unable to interpret " + name(index));
+            return null;
+        }
+        return save(index, results);
+    }
+
+    /**
+     * Interpret every downloaded scan and write it as CSV
+     */
+    private void reinterpret(byte[] coefficients, byte[] matrix) {
+        if (coefficients == null || matrix == null) {
+            Log.w(TAG, "No reference calibration, unable to reinterpret the scans of " + mAddress);
+            return;
+        }
+        File[] raws = mDir.listFiles();
+        if (raws == null) {
+            return;
+        }
+        Arrays.sort(raws);
+        long refFingerprint = RefCalCache.fingerprint(coefficients, matrix);
+        ScanInterpreter interpreter = null;
+        if (ScanInterpreter.isAvailable()) {
+            interpreter = new ScanInterpreter();
+            interpreter.setReference(coefficients, matrix);
+        }
+
+        ArrayList<byte[]> indices = new ArrayList<>();
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<byte[]> batch = new ArrayList<>();
+        for (File raw : raws) {
+            String name = raw.getName();
+            if (!name.endsWith(RAW_SUFFIX)) {
+                continue;
+            }
+            byte[] index = index(name.substring(0, name.length() - RAW_SUFFIX.length()));
+            byte[] data = readRaw(raw);
+            if (index == null || data == null) {
+                continue;
+            }
+            if (interpreter == null) {
+                saved(index, mInterpretationCache.interpret(data, coefficients, matrix, refFingerprint));
+                continue;
+            }
+            String key = InterpretationCache.key(data, refFingerprint);
+            KSTNanoSDK.ScanResults cached = mInterpretationCache.get(key);
+            if (cached != null) {
+                saved(index, cached);
+                continue;
+            }
+            indices.add(index);
+            keys.add(key);
+            batch.add(data);
+            if (batch.size() == REINTERPRET_BATCH) {
+                saveBatch(interpreter, indices, keys, batch);
+            }
+        }
+        if (!batch.isEmpty()) {
+            saveBatch(interpreter, indices, keys, batch);
+        }
+    }
+
+    /**
+     * Interpret a batch of scans in a single native call, cache and save them, and clear the
+     * batch
+     */
+    private void saveBatch(ScanInterpreter interpreter, List<byte[]> indices, List<String> keys, List<byte[]> batch) {
+        ScanInterpreter.BatchResults results = interpreter.interpretAll(batch);
+        for (int i = 0; i < indices.size(); i++) {
+            KSTNanoSDK.ScanResults scanResults = results.toScanResults(i);
+            if (scanResults != null) {
+                mInterpretationCache.put(keys.get(i), scanResults);
+            }
+            saved(indices.get(i), scanResults);
+        }
+        indices.clear();
+        keys.clear();
+        batch.clear();
+    }
+
+    /**
+     * Write a reinterpreted scan as CSV and notify the listener
+     *
+     * @param results the interpreted scan, or null if it could not be interpreted
+     */
+    private void saved(byte[] index, KSTNanoSDK.ScanResults results) {
+        File csv = null;
+        if (results == null) {
+            Log.w(TAG, "Unable to interpret " + name(index));
+        } else {
+            csv = save(index, results);
+        }
+        if (mListener != null) {
+            mListener.onScanSaved(index, csv);
+        }
+    }
+
+    /**
+     * Write an interpreted scan as CSV
+     *
+     * @return the CSV file, or null if it could not be written
+     */
+    private File save(byte[] index, KSTNanoSDK.ScanResults results) {
+        File csv = new File(mDir, name(index) + CSV_SUFFIX);
+        return writeCsv(csv, results) ? csv : null;
+    }
+
+    /**
+     * Write an interpreted scan as CSV, in the same columns as the scans saved by NewScanActivity
+     *
+     * @param csv     the file to write
+     * @param results the interpreted scan
+     * @return true if the file was written
+     */
+    static boolean writeCsv(File csv, KSTNanoSDK.ScanResults results) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(csv);
+            writer.write("Wavelength,Intensity,Absorbance,Reflectance\n");
+            for (int i = 0; i < results.getLength(); i++) {
+                int intensity = results.getUncalibratedIntensity()[i];
+                int reference = results.getIntensity()[i];
+                float absorb = (-1) * (float) Math.log10((double) intensity / (double) reference);
+                float reflect = (float) intensity / reference;
+                writer.write(results.getWavelength()[i] + "," + intensity + "," + absorb + "," + reflect + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (debug)
+                Log.d(TAG, "Saved " + csv);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + csv + ": " + e.getMessage());
+            return false;
+        } finally {
+            FileHelper.closeQuietly(writer);
+        }
+    }
+
+    private boolean writeRaw(File file, byte[] data) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDir);
+            return false;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data);
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + file + ": " + e.getMessage());
+            file.delete();
+            return false;
+        } finally {
+            FileHelper.closeQuietly(out);
+        }
+    }
+
+    private void loadCheckpoint() {
+        if (!mCheckpoint.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mCheckpoint));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] index = new byte[4];
+                in.readFully(index);
+                mPending.add(index);
+            }
+            if (debug)
+                Log.d(TAG, "Resuming download of " + count + " scans for " + mAddress);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding download checkpoint for " + mAddress + ": " + e.getMessage());
+            mPending.clear();
+            mCheckpoint.delete();
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+    }
+
+    private void saveCheckpoint() {
+        if (mPending.isEmpty()) {
+            mCheckpoint.delete();
+            return;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDir);
+            return;
+        }
+        try {
+            FileHelper.writeAtomically(mCheckpoint, new FileHelper.Writer() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(stream);
+                    out.writeInt(mPending.size());
+                    for (byte[] index : mPending) {
+                        out.write(index, 0, 4);
+                    }
+                    out.flush();
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save download checkpoint: " + e.getMessage());
+        }
+    }
+
+    private boolean isPending(byte[] index) {
+        int key = StoredScanStore.key(index);
+        for (byte[] pending : mPending) {
+            if (StoredScanStore.key(pending) == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removePending(byte[] index) {
+        int key = StoredScanStore.key(index);
+        for (int i = 0; i < mPending.size(); i++) {
+            if (StoredScanStore.key(mPending.get(i)) == key) {
+                mPending.remove(i);
+                return;
+            }
+        }
+    }
+
+    private byte[] readRaw(File file) {
+        DataInputStream in = null;
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(data);
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file + ": " + e.getMessage());
+            return null;
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+    }
+
+    private File rawFile(byte[] index) {
+        return new File(mDir, name(index) + RAW_SUFFIX);
+    }
+
+    private static String name(byte[] index) {
+        return NanoLog.toHex(index, false);
+    }
+
+    /**
+     * Map a file name back to the index it was named after
+     *
+     * @return the four byte index, or null if the name is not a scan name
+     */
+    private static byte[] index(String name) {
+        if (name.length() != 8) {
+            return null;
+        }
+        byte[] index = new byte[4];
+        try {
+            for (int i = 0; i < 4; i++) {
+                index[i] = (byte) Integer.parseInt(name.substring(i * 2, i * 2 + 2), 16);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return index;
+    }
+}
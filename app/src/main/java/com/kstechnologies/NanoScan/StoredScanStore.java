@@ -0,0 +1,220 @@
+package com.kstechnologies.NanoScan;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Local store of the metadata of the scans saved on the SD card of a Nano.
+ *
+ * Listing the SD card takes two round trips per scan (name, then date), which adds up to minutes
+ * for a device holding a few hundred scans. Since the scans on the SD card do not change once
+ * they are written, the name and date of each scan are kept here keyed by the four byte scan
+ * index, and only indices that are not in the store are read from the device. Indices that are
+ * no longer reported by the device are evicted with {@link #retain(Collection)}.
+ *
+ * One store file is kept per device address.
+ */
+public class StoredScanStore {
+
+    private static final String TAG = "__STORED_SCAN_STORE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Directory inside the app files directory holding one store per device
+    private static final String STORE_DIR = "stored_scans";
+    private static final String FILE_SUFFIX = ".scans";
+
+    /**
+     * The metadata of a scan stored on the SD card
+     */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] index;
+        private final byte[] name;
+        private final String date;
+
+        Entry(byte[] index, byte[] name, String date) {
+            this.index = index;
+            this.name = name;
+            this.date = date;
+        }
+
+        /**
+         * @return the four byte index of the scan on the SD card
+         */
+        public byte[] getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the scan name as received from the device
+         */
+        public byte[] getName() {
+            return name;
+        }
+
+        /**
+         * @return the scan date in the format sent with {@code KSTNanoSDK.STORED_SCAN_DATA}
+         */
+        public String getDate() {
+            return date;
+        }
+    }
+
+    private final File mFile;
+    private final String mAddress;
+    private LinkedHashMap<Integer, Entry> mEntries;
+    private boolean mDirty;
+
+    /**
+     * Open the store of a device. The store file is read on first access
+     *
+     * @param context the context used to locate the app files directory
+     * @param address the Bluetooth address of the device
+     */
+    public StoredScanStore(Context context, String address) {
+        mAddress = address;
+        mFile = new File(new File(context.getFilesDir(), STORE_DIR),
+                address.replaceAll("[^A-Za-z0-9]", "") + FILE_SUFFIX);
+    }
+
+    /**
+     * Convert a four byte SD scan index to the store key
+     *
+     * @param index the scan index as sent to the device
+     * @return the store key
+     */
+    public static int key(byte[] index) {
+        return (index[0] & 0xFF) | ((index[1] & 0xFF) << 8) | ((index[2] & 0xFF) << 16) | ((index[3] & 0xFF) << 24);
+    }
+
+    /**
+     * @return the Bluetooth address of the device this store belongs to
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Get the metadata of a scan
+     *
+     * @param index the scan index as sent to the device
+     * @return the metadata, or null if the scan is not in the store
+     */
+    public synchronized Entry get(byte[] index) {
+        return entries().get(key(index));
+    }
+
+    /**
+     * @return the metadata of every scan in the store, in the order the scans were added
+     */
+    public synchronized List<Entry> getAll() {
+        return new ArrayList<>(entries().values());
+    }
+
+    /**
+     * Add the metadata of a scan read from the device
+     *
+     * @param index the scan index as sent to the device
+     * @param name  the scan name as received from the device
+     * @param date  the scan date
+     */
+    public synchronized void put(byte[] index, byte[] name, String date) {
+        entries().put(key(index), new Entry(index.clone(), name, date));
+        mDirty = true;
+    }
+
+    /**
+     * Remove a scan from the store, for example after it has been deleted from the SD card
+     *
+     * @param index the scan index as sent to the device
+     */
+    public synchronized void remove(byte[] index) {
+        if (entries().remove(key(index)) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Remove every scan whose index is not in the given list
+     *
+     * @param indices the scan indices currently stored on the device
+     */
+    public synchronized void retain(Collection<byte[]> indices) {
+        ArrayList<Integer> keys = new ArrayList<>();
+        for (byte[] index : indices) {
+            keys.add(key(index));
+        }
+        if (entries().keySet().retainAll(keys)) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Write the store to disk if it has changed since it was loaded
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        File dir = mFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + dir);
+            return;
+        }
+
+        try {
+            FileHelper.writeAtomically(mFile, new FileHelper.Writer() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    ObjectOutputStream out = new ObjectOutputStream(stream);
+                    out.writeObject(mEntries);
+                    out.flush();
+                }
+            });
+            mDirty = false;
+            if (debug)
+                Log.d(TAG, "Saved " + mEntries.size() + " stored scans for " + mAddress);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save stored scans for " + mAddress + ": " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private LinkedHashMap<Integer, Entry> entries() {
+        if (mEntries != null) {
+            return mEntries;
+        }
+        mEntries = new LinkedHashMap<>();
+        if (!mFile.exists()) {
+            return mEntries;
+        }
+
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new FileInputStream(mFile));
+            mEntries = (LinkedHashMap<Integer, Entry>) in.readObject();
+            if (debug)
+                Log.d(TAG, "Loaded " + mEntries.size() + " stored scans for " + mAddress);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(TAG, "Discarding stored scans for " + mAddress + ": " + e.getMessage());
+            mEntries = new LinkedHashMap<>();
+            mFile.delete();
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+        return mEntries;
+    }
+}
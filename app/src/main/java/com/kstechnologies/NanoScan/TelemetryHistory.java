@@ -0,0 +1,361 @@
+package com.kstechnologies.NanoScan;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Fixed-size history of device status samples.
+ *
+ * Samples are kept in two rings of primitive arrays, so recording a sample never allocates:
+ * <ul>
+ * <li>the recent ring holds every sample</li>
+ * <li>the history ring holds one bucket for every {@code downsample} samples, with the minimum,
+ * maximum and average of each channel, and the status bits of all samples in the bucket
+ * combined</li>
+ * </ul>
+ * Once the recent ring is full the oldest samples are only found in the history ring, so a window
+ * over a long period is answered at bucket resolution for its older part and at full resolution
+ * for its recent part.
+ */
+public class TelemetryHistory {
+
+    //Number of samples kept at full resolution
+    public static final int DEFAULT_CAPACITY = 720;
+
+    //Number of samples combined into one history bucket
+    public static final int DEFAULT_DOWNSAMPLE = 12;
+
+    /**
+     * The measured values of a sample
+     */
+    public enum Channel {
+        BATTERY,
+        TEMPERATURE,
+        HUMIDITY
+    }
+
+    private static final int CHANNELS = Channel.values().length;
+
+    /**
+     * Minimum, maximum and average of a channel over a time window
+     */
+    public static class Window {
+        public final Channel channel;
+        public final long fromMs;
+        public final long toMs;
+        public final int count;
+        public final float min;
+        public final float max;
+        public final float average;
+
+        Window(Channel channel, long fromMs, long toMs, int count, float min, float max, float average) {
+            this.channel = channel;
+            this.fromMs = fromMs;
+            this.toMs = toMs;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.average = average;
+        }
+    }
+
+    /**
+     * A ring of buckets. A bucket of the recent ring holds a single sample
+     */
+    private static class Ring {
+        final long[] first;
+        final long[] last;
+        final int[] count;
+        final float[][] min;
+        final float[][] max;
+        final float[][] sum;
+        final int[] devStatus;
+        final int[] errStatus;
+        int head;
+        int size;
+
+        Ring(int capacity) {
+            first = new long[capacity];
+            last = new long[capacity];
+            count = new int[capacity];
+            min = new float[CHANNELS][capacity];
+            max = new float[CHANNELS][capacity];
+            sum = new float[CHANNELS][capacity];
+            devStatus = new int[capacity];
+            errStatus = new int[capacity];
+        }
+
+        int capacity() {
+            return first.length;
+        }
+
+        /**
+         * @param i the position from the oldest bucket
+         * @return the array index of the bucket
+         */
+        int index(int i) {
+            return (head - size + i + capacity()) % capacity();
+        }
+
+        /**
+         * Start a new bucket, dropping the oldest one if the ring is full
+         *
+         * @return the array index of the new bucket
+         */
+        int open(long timeMs) {
+            int i = head;
+            head = (head + 1) % capacity();
+            if (size < capacity()) {
+                size++;
+            }
+            first[i] = timeMs;
+            last[i] = timeMs;
+            count[i] = 0;
+            devStatus[i] = 0;
+            errStatus[i] = 0;
+            return i;
+        }
+
+        void add(int i, long timeMs, float[] values, int dev, int err) {
+            last[i] = timeMs;
+            for (int c = 0; c < CHANNELS; c++) {
+                if (count[i] == 0) {
+                    min[c][i] = values[c];
+                    max[c][i] = values[c];
+                    sum[c][i] = values[c];
+                } else {
+                    min[c][i] = Math.min(min[c][i], values[c]);
+                    max[c][i] = Math.max(max[c][i], values[c]);
+                    sum[c][i] += values[c];
+                }
+            }
+            devStatus[i] |= dev;
+            errStatus[i] |= err;
+            count[i]++;
+        }
+    }
+
+    private final Ring mRecent;
+    private final Ring mHistory;
+    private final int mDownsample;
+    private final float[] mValues = new float[CHANNELS];
+    private int mBucket = -1;
+
+    public TelemetryHistory() {
+        this(DEFAULT_CAPACITY, DEFAULT_CAPACITY, DEFAULT_DOWNSAMPLE);
+    }
+
+    /**
+     * @param capacity        the number of samples kept at full resolution
+     * @param historyCapacity the number of history buckets kept
+     * @param downsample      the number of samples combined into one history bucket
+     */
+    public TelemetryHistory(int capacity, int historyCapacity, int downsample) {
+        mRecent = new Ring(capacity);
+        mHistory = new Ring(historyCapacity);
+        mDownsample = downsample;
+    }
+
+    /**
+     * Read the status bits from the first four bytes of a status characteristic
+     *
+     * @param data the value of the device or error status characteristic
+     * @return the status bits, little endian
+     */
+    public static int statusBits(byte[] data) {
+        int bits = 0;
+        if (data != null) {
+            for (int i = 0; i < Math.min(4, data.length); i++) {
+                bits |= (data[i] & 0xff) << (8 * i);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Record a sample
+     *
+     * @param timeMs      the wall clock time of the sample
+     * @param battery     the battery level in percent
+     * @param temperature the temperature in degrees Celsius
+     * @param humidity    the relative humidity in percent
+     * @param devStatus   the device status bits
+     * @param errStatus   the error status bits
+     */
+    public synchronized void add(long timeMs, int battery, float temperature, float humidity, int devStatus, int errStatus) {
+        mValues[Channel.BATTERY.ordinal()] = battery;
+        mValues[Channel.TEMPERATURE.ordinal()] = temperature;
+        mValues[Channel.HUMIDITY.ordinal()] = humidity;
+
+        mRecent.add(mRecent.open(timeMs), timeMs, mValues, devStatus, errStatus);
+
+        if (mBucket < 0 || mHistory.count[mBucket] >= mDownsample) {
+            mBucket = mHistory.open(timeMs);
+        }
+        mHistory.add(mBucket, timeMs, mValues, devStatus, errStatus);
+    }
+
+    /**
+     * Remove every sample
+     */
+    public synchronized void clear() {
+        mRecent.size = 0;
+        mHistory.size = 0;
+        mBucket = -1;
+    }
+
+    /**
+     * @return the number of samples kept at full resolution
+     */
+    public synchronized int size() {
+        return mRecent.size;
+    }
+
+    /**
+     * @return the time of the newest sample, or 0 if there is none
+     */
+    public synchronized long getLatestTime() {
+        return mRecent.size == 0 ? 0 : mRecent.last[mRecent.index(mRecent.size - 1)];
+    }
+
+    /**
+     * @param channel the channel to read
+     * @return the value of the newest sample, or NaN if there is none
+     */
+    public synchronized float getLatest(Channel channel) {
+        return mRecent.size == 0 ? Float.NaN : mRecent.sum[channel.ordinal()][mRecent.index(mRecent.size - 1)];
+    }
+
+    /**
+     * @return the device status bits of the newest sample
+     */
+    public synchronized int getLatestDeviceStatus() {
+        return mRecent.size == 0 ? 0 : mRecent.devStatus[mRecent.index(mRecent.size - 1)];
+    }
+
+    /**
+     * @return the error status bits of the newest sample
+     */
+    public synchronized int getLatestErrorStatus() {
+        return mRecent.size == 0 ? 0 : mRecent.errStatus[mRecent.index(mRecent.size - 1)];
+    }
+
+    /**
+     * Minimum, maximum and average of a channel over a time window. The part of the window older
+     * than the oldest full resolution sample is taken from the history buckets
+     *
+     * @param channel the channel to summarize
+     * @param fromMs  the start of the window, inclusive
+     * @param toMs    the end of the window, inclusive
+     * @return the summary, with a count of 0 and NaN values if there are no samples in the window
+     */
+    public synchronized Window getWindow(Channel channel, long fromMs, long toMs) {
+        int c = channel.ordinal();
+        int count = 0;
+        float min = Float.NaN;
+        float max = Float.NaN;
+        double sum = 0;
+
+        long oldestRecent = mRecent.size == 0 ? Long.MAX_VALUE : mRecent.first[mRecent.index(0)];
+        for (int i = 0; i < mHistory.size; i++) {
+            int b = mHistory.index(i);
+            if (mHistory.last[b] >= oldestRecent) {
+                break;
+            }
+            if (mHistory.first[b] < fromMs || mHistory.last[b] > toMs) {
+                continue;
+            }
+            min = count == 0 ? mHistory.min[c][b] : Math.min(min, mHistory.min[c][b]);
+            max = count == 0 ? mHistory.max[c][b] : Math.max(max, mHistory.max[c][b]);
+            sum += mHistory.sum[c][b];
+            count += mHistory.count[b];
+        }
+        for (int i = 0; i < mRecent.size; i++) {
+            int s = mRecent.index(i);
+            if (mRecent.first[s] < fromMs || mRecent.first[s] > toMs) {
+                continue;
+            }
+            min = count == 0 ? mRecent.min[c][s] : Math.min(min, mRecent.min[c][s]);
+            max = count == 0 ? mRecent.max[c][s] : Math.max(max, mRecent.max[c][s]);
+            sum += mRecent.sum[c][s];
+            count++;
+        }
+        return new Window(channel, fromMs, toMs, count, min, max, count == 0 ? Float.NaN : (float) (sum / count));
+    }
+
+    /**
+     * Combined error status bits of every sample in a time window, so that a short error between
+     * two history buckets is not lost
+     *
+     * @param fromMs the start of the window, inclusive
+     * @param toMs   the end of the window, inclusive
+     * @return the error status bits of all samples in the window combined
+     */
+    public synchronized int getErrorStatus(long fromMs, long toMs) {
+        int bits = 0;
+        for (int i = 0; i < mHistory.size; i++) {
+            int b = mHistory.index(i);
+            if (mHistory.last[b] >= fromMs && mHistory.first[b] <= toMs) {
+                bits |= mHistory.errStatus[b];
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Copy the full resolution samples of a channel, oldest first
+     *
+     * @param channel the channel to copy
+     * @param times   receives the sample times, at least {@link #size()} long
+     * @param values  receives the sample values, at least {@link #size()} long
+     * @return the number of samples copied
+     */
+    public synchronized int getSamples(Channel channel, long[] times, float[] values) {
+        int n = Math.min(mRecent.size, Math.min(times.length, values.length));
+        int offset = mRecent.size - n;
+        for (int i = 0; i < n; i++) {
+            int s = mRecent.index(offset + i);
+            times[i] = mRecent.first[s];
+            values[i] = mRecent.sum[channel.ordinal()][s];
+        }
+        return n;
+    }
+
+    /**
+     * Copy the averages of the history buckets of a channel, oldest first
+     *
+     * @param channel  the channel to copy
+     * @param times    receives the start time of each bucket
+     * @param averages receives the average of each bucket
+     * @return the number of buckets copied
+     */
+    public synchronized int getHistory(Channel channel, long[] times, float[] averages) {
+        int n = Math.min(mHistory.size, Math.min(times.length, averages.length));
+        int offset = mHistory.size - n;
+        for (int i = 0; i < n; i++) {
+            int b = mHistory.index(offset + i);
+            times[i] = mHistory.first[b];
+            averages[i] = mHistory.sum[channel.ordinal()][b] / mHistory.count[b];
+        }
+        return n;
+    }
+
+    /**
+     * Print the newest sample and the summary of every channel over all kept samples
+     *
+     * @param writer the writer to print to
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.printf(Locale.US, "Telemetry, %d samples, %d history buckets%n", mRecent.size, mHistory.size);
+        if (mRecent.size > 0) {
+            writer.printf(Locale.US, "%-12s %8s %8s %8s %8s%n", "channel", "latest", "min", "max", "avg");
+            for (Channel channel : Channel.values()) {
+                Window window = getWindow(channel, 0, Long.MAX_VALUE);
+                writer.printf(Locale.US, "%-12s %8.2f %8.2f %8.2f %8.2f%n", channel.name().toLowerCase(Locale.US),
+                        getLatest(channel), window.min, window.max, window.average);
+            }
+            writer.printf(Locale.US, "status %08X, errors %08X%n", getLatestDeviceStatus(), getErrorStatus(0, Long.MAX_VALUE));
+        }
+        writer.flush();
+    }
+}
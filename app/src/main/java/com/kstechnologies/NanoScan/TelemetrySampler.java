@@ -0,0 +1,162 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Periodic device status sampling for a {@link NanoSession}.
+ *
+ * Every period, the battery, temperature, humidity, device status and error status are read in
+ * the single queued batch of {@link NanoSession#readDeviceStatus()}, and the result is recorded
+ * in a {@link TelemetryHistory}. Screens read the history instead of polling the device
+ * themselves. Status reads requested by a screen are recorded as well.
+ *
+ * Sampling is off until {@link #start(long)} is called. A sample is skipped while the session is
+ * {@link NanoSession#isBusy() busy} with a sequence of requests or a chunked transfer, so that
+ * sampling never interleaves with a scan or a download, and while the previous sample has not
+ * completed. The sampler pauses while the device is disconnected and resumes with the next
+ * connection.
+ */
+public class TelemetrySampler {
+
+    private static final String TAG = "__TELEMETRY";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Suggested time between two samples, for callers that turn sampling on
+    public static final long DEFAULT_PERIOD_MS = 60 * 1000;
+
+    //Shortest time allowed between two samples
+    public static final long MIN_PERIOD_MS = 5 * 1000;
+
+    private final NanoSession mSession;
+    private final TelemetryHistory mHistory = new TelemetryHistory();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private long mPeriodMs;
+    private boolean mConnected;
+    private boolean mPending;
+    private int mSkipped;
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+
+    /**
+     * @param session the session to sample
+     */
+    public TelemetrySampler(NanoSession session) {
+        mSession = session;
+    }
+
+    /**
+     * @return the recorded samples
+     */
+    public TelemetryHistory getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * Start sampling, or change the period of a running sampler
+     *
+     * @param periodMs the time between two samples, at least {@link #MIN_PERIOD_MS}
+     */
+    public synchronized void start(long periodMs) {
+        mPeriodMs = Math.max(periodMs, MIN_PERIOD_MS);
+        if (debug)
+            Log.d(TAG, "Sampling " + mSession.getAddress() + " every " + mPeriodMs + "ms");
+        schedule();
+    }
+
+    /**
+     * Stop sampling. The recorded samples are kept
+     */
+    public synchronized void stop() {
+        mPeriodMs = 0;
+        mHandler.removeCallbacks(mSample);
+    }
+
+    /**
+     * @return true if the sampler has been started
+     */
+    public synchronized boolean isRunning() {
+        return mPeriodMs > 0;
+    }
+
+    /**
+     * @return the time between two samples, or 0 if the sampler is stopped
+     */
+    public synchronized long getPeriod() {
+        return mPeriodMs;
+    }
+
+    /**
+     * @return the number of samples skipped because the device was busy
+     */
+    public synchronized int getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Called by the session once the device is connected
+     */
+    synchronized void onConnected() {
+        mConnected = true;
+        mPending = false;
+        schedule();
+    }
+
+    /**
+     * Called by the session once the device is disconnected
+     */
+    synchronized void onDisconnected() {
+        mConnected = false;
+        mPending = false;
+        mHandler.removeCallbacks(mSample);
+    }
+
+    /**
+     * Called by the session for every completed status read, whether or not it was started by the
+     * sampler
+     */
+    void onStatus(int battery, float temperature, float humidity, int devStatus, int errStatus) {
+        mHistory.add(System.currentTimeMillis(), battery, temperature, humidity, devStatus, errStatus);
+        synchronized (this) {
+            mPending = false;
+        }
+    }
+
+    /**
+     * Called by the session for a status read that did not complete. Nothing is recorded
+     */
+    synchronized void onStatusFailed() {
+        mPending = false;
+    }
+
+    private void schedule() {
+        mHandler.removeCallbacks(mSample);
+        if (mConnected && mPeriodMs > 0) {
+            mHandler.postDelayed(mSample, mPeriodMs);
+        }
+    }
+
+    private void sample() {
+        synchronized (this) {
+            if (!mConnected || mPeriodMs == 0) {
+                return;
+            }
+            mHandler.postDelayed(mSample, mPeriodMs);
+            if (mPending || mSession.isBusy()) {
+                mSkipped++;
+                if (debug)
+                    Log.d(TAG, "Device busy, skipping sample");
+                return;
+            }
+            mPending = true;
+        }
+        mSession.readDeviceStatus();
+    }
+}
@@ -0,0 +1,330 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Per-characteristic throughput and latency counters for the {@link NanoBLEService}.
+ *
+ * For every characteristic that sends notifications, the metrics record the number of packets and
+ * bytes, the gaps between consecutive packets, and the wall time spent transferring. Packets that
+ * arrive within {@link #BURST_GAP_NS} of each other are counted as one transfer, so the idle time
+ * between transfers does not lower the measured throughput.
+ *
+ * Request latency is measured from the completion of a characteristic write
+ * ({@link #onRequestWritten(UUID)}) to the first notification that follows it. The Nano answers
+ * every request with a notification before the next request is written, so the first
+ * notification after a write is the response to that write.
+ *
+ * Transfers that time out are counted per characteristic by the {@link TransferWatchdog}, as
+ * retries and as failures once the last retry has timed out. Data packets that arrive out of
+ * sequence are counted as duplicates, which are ignored, and as sequence errors, which make the
+ * transfer be requested again.
+ *
+ * All times are measured with {@link SystemClock#elapsedRealtimeNanos()}. The metrics can be read
+ * with {@link #getStats()} or printed with {@link #dump(PrintWriter)}.
+ */
+public class TransferMetrics {
+
+    //Largest gap between two packets of the same transfer
+    public static final long BURST_GAP_NS = 500 * 1000000L;
+
+    /**
+     * Counters for a single characteristic
+     */
+    public static class Stats {
+        private final UUID uuid;
+        private long packets;
+        private long bytes;
+        private long transfers;
+        private long transferNs;
+        private long lastPacketNs;
+        private long minGapNs = Long.MAX_VALUE;
+        private long maxGapNs;
+        private long totalGapNs;
+        private long gaps;
+        private long requests;
+        private long minLatencyNs = Long.MAX_VALUE;
+        private long maxLatencyNs;
+        private long totalLatencyNs;
+        private long retries;
+        private long failures;
+        private long duplicates;
+        private long sequenceErrors;
+
+        Stats(UUID uuid) {
+            this.uuid = uuid;
+        }
+
+        Stats(Stats other) {
+            uuid = other.uuid;
+            packets = other.packets;
+            bytes = other.bytes;
+            transfers = other.transfers;
+            transferNs = other.transferNs;
+            lastPacketNs = other.lastPacketNs;
+            minGapNs = other.minGapNs;
+            maxGapNs = other.maxGapNs;
+            totalGapNs = other.totalGapNs;
+            gaps = other.gaps;
+            requests = other.requests;
+            minLatencyNs = other.minLatencyNs;
+            maxLatencyNs = other.maxLatencyNs;
+            totalLatencyNs = other.totalLatencyNs;
+            retries = other.retries;
+            failures = other.failures;
+            duplicates = other.duplicates;
+            sequenceErrors = other.sequenceErrors;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public long getPackets() {
+            return packets;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the number of bursts of packets seen on this characteristic
+         */
+        public long getTransfers() {
+            return transfers;
+        }
+
+        /**
+         * @return the total time from the first to the last packet of every transfer, in ms
+         */
+        public double getTransferMs() {
+            return transferNs / 1e6;
+        }
+
+        /**
+         * @return the bytes received divided by the transfer time, in bytes per second
+         */
+        public double getThroughput() {
+            return transferNs == 0 ? 0 : bytes * 1e9 / transferNs;
+        }
+
+        public double getMinGapMs() {
+            return gaps == 0 ? 0 : minGapNs / 1e6;
+        }
+
+        public double getMaxGapMs() {
+            return maxGapNs / 1e6;
+        }
+
+        public double getAvgGapMs() {
+            return gaps == 0 ? 0 : totalGapNs / 1e6 / gaps;
+        }
+
+        /**
+         * @return the number of requests answered on this characteristic
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        public double getMinLatencyMs() {
+            return requests == 0 ? 0 : minLatencyNs / 1e6;
+        }
+
+        public double getMaxLatencyMs() {
+            return maxLatencyNs / 1e6;
+        }
+
+        public double getAvgLatencyMs() {
+            return requests == 0 ? 0 : totalLatencyNs / 1e6 / requests;
+        }
+
+        /**
+         * @return the number of transfers on this characteristic that timed out and were requested
+         * again
+         */
+        public long getRetries() {
+            return retries;
+        }
+
+        /**
+         * @return the number of transfers on this characteristic that were given up
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the number of repeated data packets on this characteristic that were ignored
+         */
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * @return the number of lost or reordered data packets on this characteristic
+         */
+        public long getSequenceErrors() {
+            return sequenceErrors;
+        }
+
+        private void onPacket(long now, int length) {
+            if (packets == 0 || now - lastPacketNs > BURST_GAP_NS) {
+                transfers++;
+            } else {
+                long gap = now - lastPacketNs;
+                gaps++;
+                totalGapNs += gap;
+                minGapNs = Math.min(minGapNs, gap);
+                maxGapNs = Math.max(maxGapNs, gap);
+                transferNs += gap;
+            }
+            packets++;
+            bytes += length;
+            lastPacketNs = now;
+        }
+
+        private void onResponse(long latency) {
+            requests++;
+            totalLatencyNs += latency;
+            minLatencyNs = Math.min(minLatencyNs, latency);
+            maxLatencyNs = Math.max(maxLatencyNs, latency);
+        }
+    }
+
+    private final LinkedHashMap<UUID, Stats> mStats = new LinkedHashMap<>();
+    private UUID mRequestUuid;
+    private long mRequestNs;
+    private long mStartNs = SystemClock.elapsedRealtimeNanos();
+
+    /**
+     * Record that a request was written to the device
+     *
+     * @param uuid the characteristic the request was written to
+     */
+    public synchronized void onRequestWritten(UUID uuid) {
+        mRequestUuid = uuid;
+        mRequestNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Record a notification received from the device
+     *
+     * @param uuid   the characteristic that sent the notification
+     * @param length the length of the notification payload
+     */
+    public synchronized void onNotification(UUID uuid, int length) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        Stats stats = stats(uuid);
+        stats.onPacket(now, length);
+        if (mRequestUuid != null) {
+            stats.onResponse(now - mRequestNs);
+            mRequestUuid = null;
+        }
+    }
+
+    /**
+     * Record a transfer that timed out and was requested again
+     *
+     * @param uuid the characteristic the transfer is received on
+     */
+    public synchronized void onRetry(UUID uuid) {
+        stats(uuid).retries++;
+    }
+
+    /**
+     * Record a transfer that was given up after its last retry
+     *
+     * @param uuid the characteristic the transfer is received on
+     */
+    public synchronized void onFailure(UUID uuid) {
+        stats(uuid).failures++;
+    }
+
+    /**
+     * Record a repeated data packet that was ignored
+     *
+     * @param uuid the characteristic the packet was received on
+     */
+    public synchronized void onDuplicate(UUID uuid) {
+        stats(uuid).duplicates++;
+    }
+
+    /**
+     * Record a lost or reordered data packet
+     *
+     * @param uuid the characteristic the packet was received on
+     */
+    public synchronized void onSequenceError(UUID uuid) {
+        stats(uuid).sequenceErrors++;
+    }
+
+    /**
+     * @return a copy of the counters of every characteristic, in the order they were first seen
+     */
+    public synchronized List<Stats> getStats() {
+        ArrayList<Stats> stats = new ArrayList<>();
+        for (Stats s : mStats.values()) {
+            stats.add(new Stats(s));
+        }
+        return stats;
+    }
+
+    /**
+     * Clear all counters
+     */
+    public synchronized void reset() {
+        mStats.clear();
+        mRequestUuid = null;
+        mStartNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Print the counters as a table, one characteristic per line. Characteristics are printed
+     * with the 16-bit short UUID used by {@link PacketTrace}
+     *
+     * @param writer the writer to print to
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.printf(Locale.US, "Transfer metrics, %.1f s since reset%n",
+                (SystemClock.elapsedRealtimeNanos() - mStartNs) / 1e9);
+        writer.printf(Locale.US, "%-6s %8s %10s %5s %10s %10s %8s %8s %8s %6s %8s %8s %8s %5s %5s %5s %5s%n",
+                "uuid", "packets", "bytes", "xfers", "xfer_ms", "B/s",
+                "gap_min", "gap_avg", "gap_max", "reqs", "lat_min", "lat_avg", "lat_max", "retry", "fail", "dup", "seq");
+        for (Stats s : mStats.values()) {
+            writer.printf(Locale.US, "%04X   %8d %10d %5d %10.1f %10.0f %8.2f %8.2f %8.2f %6d %8.2f %8.2f %8.2f %5d %5d %5d %5d%n",
+                    PacketTrace.shortUuid(s.uuid), s.packets, s.bytes, s.transfers, s.getTransferMs(),
+                    s.getThroughput(), s.getMinGapMs(), s.getAvgGapMs(), s.getMaxGapMs(),
+                    s.requests, s.getMinLatencyMs(), s.getAvgLatencyMs(), s.getMaxLatencyMs(),
+                    s.retries, s.failures, s.duplicates, s.sequenceErrors);
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return the table printed by {@link #dump(PrintWriter)}
+     */
+    public String dump() {
+        StringWriter out = new StringWriter();
+        dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    private Stats stats(UUID uuid) {
+        Stats stats = mStats.get(uuid);
+        if (stats == null) {
+            stats = new Stats(uuid);
+            mStats.put(uuid, stats);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,167 @@
+package com.kstechnologies.NanoScan;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.util.EnumSet;
+
+/**
+ * Connection profile for the bulk transfers of the {@link NanoBLEService}.
+ *
+ * The serialized scan data, reference calibration coefficients and matrix, and scan
+ * configurations are sent by the Nano as a long run of notifications. At the default ATT MTU and
+ * connection interval these transfers take several seconds, so the profile raises the MTU once
+ * after connecting and requests a high priority connection for as long as a bulk transfer is
+ * running. When the last transfer ends, the connection drops back to the idle priority.
+ *
+ * Transfers are tracked by type, so overlapping transfers (for example a reference calibration
+ * download followed directly by a configuration download) keep the high priority until both
+ * have ended.
+ */
+public class TransferProfile {
+
+    private static final String TAG = "__TRANSFER_PROFILE";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //ATT MTU of a connection before any MTU exchange
+    public static final int DEFAULT_MTU = 23;
+
+    //MTU requested after connecting. The stack settles on the largest value both sides support
+    public static final int PREFERRED_MTU = 247;
+
+    //Number of bytes of ATT overhead in every notification
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    /**
+     * Types of bulk transfers
+     */
+    public enum Transfer {
+        SCAN_DATA,
+        REFERENCE,
+        SCAN_CONF
+    }
+
+    private final GattOperationQueue mQueue;
+    private final EnumSet<Transfer> mActive = EnumSet.noneOf(Transfer.class);
+    private NanoGatt mGatt;
+    private int mMtu = DEFAULT_MTU;
+    private int mIdlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    /**
+     * @param queue the queue used to serialize the MTU request with the other GATT operations
+     */
+    public TransferProfile(GattOperationQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Set the GATT connection to apply the profile to. All transfers are ended and the MTU is
+     * reset to the default, since a new connection starts with the default parameters
+     *
+     * @param gatt the GATT connection, or null when disconnected
+     */
+    public synchronized void setGatt(NanoGatt gatt) {
+        mGatt = gatt;
+        mActive.clear();
+        mMtu = DEFAULT_MTU;
+        mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
+    /**
+     * Set the connection priority used while no bulk transfer is running
+     *
+     * @param priority {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED} or
+     *                 {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+     */
+    public synchronized void setIdlePriority(int priority) {
+        mIdlePriority = priority;
+        if (mActive.isEmpty()) {
+            applyPriority(priority);
+        }
+    }
+
+    /**
+     * Queue the MTU exchange for the connection. This should be done right after service
+     * discovery, before any notifications are expected
+     */
+    public void negotiateMtu() {
+        GattOperationQueue.Operation operation = GattOperationQueue.Operation.requestMtu(PREFERRED_MTU);
+        operation.setCallback(new GattOperationQueue.OperationCallback() {
+            @Override
+            public void onOperationComplete(GattOperationQueue.Operation operation, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    synchronized (TransferProfile.this) {
+                        mMtu = operation.getMtu();
+                    }
+                }
+                if (debug)
+                    Log.d(TAG, "MTU exchange status:" + status + ", MTU is now " + getMtu());
+            }
+        });
+        mQueue.enqueue(operation);
+    }
+
+    /**
+     * @return the negotiated ATT MTU of the connection
+     */
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the largest notification payload the connection can carry
+     */
+    public synchronized int getMaxPayload() {
+        return mMtu - ATT_HEADER_LENGTH;
+    }
+
+    /**
+     * Mark the start of a bulk transfer. The first active transfer raises the connection priority
+     *
+     * @param transfer the transfer that is starting
+     */
+    public synchronized void begin(Transfer transfer) {
+        if (mActive.add(transfer) && debug)
+            Log.d(TAG, "Transfer started:" + transfer);
+        applyPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+
+    /**
+     * Mark the end of a bulk transfer. When no transfers remain, the connection drops back to
+     * the idle priority
+     *
+     * @param transfer the transfer that has ended
+     */
+    public synchronized void end(Transfer transfer) {
+        if (!mActive.remove(transfer)) {
+            return;
+        }
+        if (debug)
+            Log.d(TAG, "Transfer ended:" + transfer);
+        if (mActive.isEmpty()) {
+            applyPriority(mIdlePriority);
+        }
+    }
+
+    /**
+     * @return true if any bulk transfer is running
+     */
+    public synchronized boolean isTransferring() {
+        return !mActive.isEmpty();
+    }
+
+    private void applyPriority(int priority) {
+        if (mGatt == null || mPriority == priority) {
+            return;
+        }
+        if (mGatt.requestConnectionPriority(priority)) {
+            mPriority = priority;
+            if (debug)
+                Log.d(TAG, "Connection priority set to " + priority);
+        } else {
+            if (debug)
+                Log.e(TAG, "Connection priority request failed");
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.kstechnologies.NanoScan;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.kstechnologies.nirscannanolibrary.KSTNanoSDK;
+
+import java.util.UUID;
+
+/**
+ * Deadlines and bounded retries for the chunked transfers of a {@link NanoSession}.
+ *
+ * A chunked transfer is only complete once every byte announced by its header has been
+ * received, so a single lost notification leaves it waiting forever. The watchdog tracks the one
+ * transfer that is running, which moves through these states:
+ * <pre>
+ *   IDLE --start--&gt; REQUESTED --packet--&gt; RECEIVING --complete--&gt; IDLE
+ *                      |                     |
+ *                      +------timeout--------+--&gt; BACKOFF --&gt; REQUESTED (retry)
+ *                                                    |
+ *                                                    +--&gt; IDLE (failed, retries used up)
+ * </pre>
+ * A requested transfer must send its first packet within the response timeout, and a receiving
+ * transfer must send each following packet within the packet timeout. On a timeout, the request
+ * is issued again after a backoff that doubles with every attempt, and the whole transfer is
+ * resent by the device. A transfer found to be corrupt, as when a packet is lost, is requested
+ * again through {@link #retryNow(Phase)} without waiting for its deadline, and counts against the
+ * same retries. Every retry and every failed transfer is recorded in the
+ * {@link TransferMetrics} of the session, under the characteristic that carries the transfer.
+ *
+ * All listener calls are made on the thread of the handler the watchdog was created with.
+ */
+public class TransferWatchdog {
+
+    private static final String TAG = "__TRANSFER_WATCHDOG";
+    private static final boolean debug = BuildConfig.DEBUG;
+
+    //Time from a request to the first packet of its response
+    public static final long DEFAULT_RESPONSE_TIMEOUT_MS = 3000;
+
+    //Largest gap between two packets of the same transfer
+    public static final long DEFAULT_PACKET_TIMEOUT_MS = 1500;
+
+    //Number of times a transfer is requested again before it fails
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    //Delay before the first retry. Every further retry waits twice as long as the previous one
+    public static final long DEFAULT_BACKOFF_MS = 250;
+
+    /**
+     * The chunked transfers, with the characteristic each one is received on
+     */
+    public enum Phase {
+        SCAN_DATA(KSTNanoSDK.NanoGATT.GSDIS_RET_SER_SCAN_DATA_STRUCT),
+        REF_COEFFICIENTS(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_COEFF),
+        REF_MATRIX(KSTNanoSDK.NanoGATT.GCIS_RET_REF_CAL_MATRIX),
+        SCAN_CONF(KSTNanoSDK.NanoGATT.GSCIS_RET_SCAN_CONF_DATA);
+
+        public final UUID uuid;
+
+        Phase(UUID uuid) {
+            this.uuid = uuid;
+        }
+    }
+
+    /**
+     * States of the running transfer
+     */
+    public enum State {
+        IDLE,
+        REQUESTED,
+        RECEIVING,
+        BACKOFF
+    }
+
+    /**
+     * Callback for transfers that have timed out
+     */
+    public interface Listener {
+        /**
+         * Issue the request of a transfer again. The partial data of the interrupted transfer
+         * should be discarded
+         *
+         * @param phase   the transfer to request
+         * @param attempt the number of the retry, starting at 1
+         */
+        void onRetry(Phase phase, int attempt);
+
+        /**
+         * A transfer timed out or was corrupt after its last retry and has been given up
+         *
+         * @param phase the transfer that failed
+         */
+        void onFailed(Phase phase);
+    }
+
+    private final Handler mHandler;
+    private final TransferMetrics mMetrics;
+    private final Listener mListener;
+
+    private long mResponseTimeoutMs = DEFAULT_RESPONSE_TIMEOUT_MS;
+    private long mPacketTimeoutMs = DEFAULT_PACKET_TIMEOUT_MS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mBackoffMs = DEFAULT_BACKOFF_MS;
+
+    private State mState = State.IDLE;
+    private Phase mPhase;
+    private int mAttempt;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            retry();
+        }
+    };
+
+    /**
+     * @param handler  the handler deadlines are scheduled on and listener calls are made from
+     * @param metrics  the metrics to record retries and failures in
+     * @param listener the listener that re-issues requests
+     */
+    public TransferWatchdog(Handler handler, TransferMetrics metrics, Listener listener) {
+        mHandler = handler;
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    /**
+     * @param responseTimeoutMs the time from a request to the first packet of its response
+     * @param packetTimeoutMs   the largest gap between two packets of the same transfer
+     */
+    public synchronized void setTimeouts(long responseTimeoutMs, long packetTimeoutMs) {
+        mResponseTimeoutMs = responseTimeoutMs;
+        mPacketTimeoutMs = packetTimeoutMs;
+    }
+
+    /**
+     * @param maxRetries the number of times a transfer is requested again before it fails
+     * @param backoffMs  the delay before the first retry
+     */
+    public synchronized void setRetries(int maxRetries, long backoffMs) {
+        mMaxRetries = maxRetries;
+        mBackoffMs = backoffMs;
+    }
+
+    /**
+     * @return the state of the running transfer
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return the running transfer, or null if none is running
+     */
+    public synchronized Phase getPhase() {
+        return mPhase;
+    }
+
+    /**
+     * Track a transfer that has just been requested. Any transfer that was running is replaced
+     *
+     * @param phase the transfer that was requested
+     */
+    public synchronized void start(Phase phase) {
+        if (phase != mPhase) {
+            mAttempt = 0;
+        }
+        mPhase = phase;
+        arm(State.REQUESTED, mResponseTimeoutMs);
+    }
+
+    /**
+     * Record a packet of a transfer, which restarts the packet deadline. Packets of other
+     * transfers are ignored
+     *
+     * @param phase the transfer the packet belongs to
+     */
+    public synchronized void onPacket(Phase phase) {
+        if (phase != mPhase || mState == State.BACKOFF) {
+            return;
+        }
+        arm(State.RECEIVING, mPacketTimeoutMs);
+    }
+
+    /**
+     * Stop tracking a transfer that has been received completely
+     *
+     * @param phase the transfer that is complete
+     */
+    public synchronized void complete(Phase phase) {
+        if (phase != mPhase) {
+            return;
+        }
+        if (debug && mAttempt > 0)
+            Log.d(TAG, phase + " complete after " + mAttempt + " retries");
+        cancel();
+    }
+
+    /**
+     * Stop tracking the running transfer, if any, without a retry
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mRetry);
+        mState = State.IDLE;
+        mPhase = null;
+        mAttempt = 0;
+    }
+
+    /**
+     * Request a corrupt transfer again right away, instead of waiting for its deadline. Calls for
+     * a transfer that is already waiting for its retry are ignored, so the rest of the corrupt
+     * transfer does not use up further retries. This is called from the BLE callback thread, so
+     * the retry is posted to the handler like a timeout
+     *
+     * @param phase the transfer that is corrupt
+     */
+    public void retryNow(final Phase phase) {
+        synchronized (this) {
+            if (phase != mPhase || mState == State.BACKOFF) {
+                return;
+            }
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (TransferWatchdog.this) {
+                    if (phase != mPhase) {
+                        return;
+                    }
+                }
+                expire(phase + " corrupt", 0);
+            }
+        });
+    }
+
+    private void arm(State state, long timeoutMs) {
+        mState = state;
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mRetry);
+        mHandler.postDelayed(mTimeout, timeoutMs);
+    }
+
+    private void onTimeout() {
+        Phase phase;
+        synchronized (this) {
+            phase = mPhase;
+        }
+        expire(phase + " timed out", -1);
+    }
+
+    /**
+     * Schedule a retry of the running transfer, or give it up once its retries are used up
+     *
+     * @param reason    the reason for the retry, for the log
+     * @param backoffMs the delay before the retry, or -1 for the doubling backoff
+     */
+    private void expire(String reason, long backoffMs) {
+        Phase phase;
+        synchronized (this) {
+            phase = mPhase;
+            if (phase == null || (mState != State.REQUESTED && mState != State.RECEIVING)) {
+                return;
+            }
+            mHandler.removeCallbacks(mTimeout);
+            if (mAttempt < mMaxRetries) {
+                long backoff = backoffMs >= 0 ? backoffMs : mBackoffMs << mAttempt;
+                mAttempt++;
+                mState = State.BACKOFF;
+                mMetrics.onRetry(phase.uuid);
+                Log.w(TAG, reason + ", retry " + mAttempt + " of " + mMaxRetries + " in " + backoff + "ms");
+                mHandler.postDelayed(mRetry, backoff);
+                return;
+            }
+            Log.e(TAG, phase + " failed after " + mAttempt + " retries");
+            mMetrics.onFailure(phase.uuid);
+            mState = State.IDLE;
+            mPhase = null;
+            mAttempt = 0;
+        }
+        mListener.onFailed(phase);
+    }
+
+    private void retry() {
+        Phase phase;
+        int attempt;
+        synchronized (this) {
+            if (mState != State.BACKOFF) {
+                return;
+            }
+            phase = mPhase;
+            attempt = mAttempt;
+            arm(State.REQUESTED, mResponseTimeoutMs);
+        }
+        mListener.onRetry(phase, attempt);
+    }
+}
@@ -1,6 +1,8 @@
 #include <string.h>
 #include <stdio.h>
+#include <stdlib.h>
 #include <jni.h>
+#include "dlpspec.h"
 #include "dlpspec_scan.h"
 #include "dlpspec_helper.h"
 
@@ -13,8 +15,10 @@
  * and returns jobjects, but makes C function calls internally. The data returned from the
  * C functions must be converted into JNI types.
  *
- * The following functions search for the classes used return the jobjects. The class path has to match
- * the actual java class location exactly or an error will occur.
+ * The classes of the returned jobjects and their constructors are resolved once in JNI_OnLoad and kept
+ * as global references, and the native methods are registered on the KSTNanoSDK class with
+ * RegisterNatives, so no lookup is made when a scan is interpreted. The class paths and constructor
+ * signatures have to match the actual java classes exactly or the library will fail to load.
  */
 
 #define  LOG_TAG    "SCAN"
@@ -23,11 +27,30 @@
 #define  LOGD(...)  __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
+#define  SDK_CLASS              "com/kstechnologies/nirscannanolibrary/KSTNanoSDK"
+#define  SCAN_RESULTS_CLASS     "com/kstechnologies/nirscannanolibrary/KSTNanoSDK$ScanResults"
+#define  SCAN_CONF_CLASS        "com/kstechnologies/nirscannanolibrary/KSTNanoSDK$ScanConfiguration"
+#define  INTERPRETER_CLASS      "com/kstechnologies/NanoScan/ScanInterpreter"
+
+//Number of points a scanResults structure can hold
+#define  MAX_POINTS             ((jint)(sizeof(((scanResults *)0)->intensity) / sizeof(((scanResults *)0)->intensity[0])))
+
+//Errors returned by the direct buffer interpretation
+#define  ERROR_BUFFER           -1
+#define  ERROR_INTERPRET        -2
+
+//Classes and constructors of the returned jobjects, resolved in JNI_OnLoad
+static jclass scanResultsClass;
+static jmethodID scanResultsConstructor;
+static jclass scanConfClass;
+static jmethodID scanConfConstructor;
+static jmethodID slewScanConfConstructor;
+
 /**
  * @brief Function for interpreting scan data along with reference calibration data.
  * This function requires two Spectrum C Library calls  dlpspec_scan_interpret and dlpspec_scan_interpReference.
  *
- * WARNING: The prefix of this function must exactly it's project location to work properly
+ * Registered as KSTNanoSDK.dlpSpecScanInterpReference in JNI_OnLoad
  *
  * @param[in] data      The serialzed scan data
  * @param[in] coeff     The serialized calibration coefficients
@@ -37,21 +60,7 @@
  * The constructor for the class must be mapped to JNI parameters. It must be cast to the
  * appropriate data type inside the application
  */
-JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_dlpSpecScanInterpReference(JNIEnv* env, jobject thiz,jbyteArray data, jbyteArray coeff, jbyteArray matrix){
-    
-    
-    if(env == NULL){
-        LOGE("ENV is null");
-    }
-    
-    jclass clazz = (*env)->FindClass(env, "com/kstechnologies/nirscannanolibrary/KSTNanoSDK$ScanResults");
-    if(clazz == NULL){
-        LOGE("results is null!");
-    }
-    jmethodID constructorz = (*env)->GetMethodID(env,clazz,"<init>","([D[I[II)V");
-    if(constructorz == NULL){
-        LOGE("contructorz is null!");
-    }
+static jobject dlpSpecScanInterpReference(JNIEnv* env, jclass clazz,jbyteArray data, jbyteArray coeff, jbyteArray matrix){
     
     jbyte* bufferPtr = (*env)->GetByteArrayElements(env, data, NULL);
     jsize lengthOfArray = (*env)->GetArrayLength(env, data);
@@ -81,8 +90,12 @@ JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_
     jintArray uncalibIntensity = (*env)->NewIntArray(env, dataSize);
     (*env)->SetIntArrayRegion(env, uncalibIntensity, 0, dataSize, pResults.intensity);
     
+    //The inputs are only read, so any copy made when pinning them is dropped without writing back
+    (*env)->ReleaseByteArrayElements(env, data, bufferPtr, JNI_ABORT);
+    (*env)->ReleaseByteArrayElements(env, coeff, coeffBuff, JNI_ABORT);
+    (*env)->ReleaseByteArrayElements(env, matrix, matrixBuff, JNI_ABORT);
     
-    jobject returnStruct = (*env)->NewObject(env, clazz, constructorz, resultWavelength, resultIntensity,uncalibIntensity,pResults.length);
+    jobject returnStruct = (*env)->NewObject(env, scanResultsClass, scanResultsConstructor, resultWavelength, resultIntensity,uncalibIntensity,pResults.length);
     
     
     if(returnStruct == NULL){
@@ -96,7 +109,7 @@ JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_
  *
  *  This function requires one Spectrum C Library call dlpspec_scan_read_configuration
  *
- * WARNING: The prefix of this function must exactly it's project location to work properly
+ * Registered as KSTNanoSDK.dlpSpecScanReadConfiguration in JNI_OnLoad
  *
  * @param[in] data      The serialzed scan data
  *
@@ -104,13 +117,7 @@ JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_
  * The constructor for the class must be mapped to JNI parameters. It must be cast to the
  * appropriate data type inside the application
  */
-JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_dlpSpecScanReadConfiguration(JNIEnv* env, jobject thiz,jbyteArray data){
-    
-    if(env == NULL){
-        LOGE("ENV is null");
-    }
-    
-    
+static jobject dlpSpecScanReadConfiguration(JNIEnv* env, jclass clazz,jbyteArray data){
     
     jbyte* bufferPtr = (*env)->GetByteArrayElements(env, data, NULL);
     jsize lengthOfArray = (*env)->GetArrayLength(env, data);
@@ -124,16 +131,6 @@ JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_
     
     if(dlpspec_is_slewcfgtype((void *)bufferPtr,lengthOfArray)){
         
-        jclass clazz = (*env)->FindClass(env, "com/kstechnologies/nirscannanolibrary/KSTNanoSDK$ScanConfiguration");
-        if(clazz == NULL){
-            LOGE("scan configuration class is null!");
-        }
-        jmethodID constructorz = (*env)->GetMethodID(env,clazz,"<init>","(II[B[BB[B[B[I[I[I[I[I)V");
-        if(constructorz == NULL){
-            LOGE("contructorz is null!");
-        }
-        
-        
         uScanConfig pConfig;
         
         jint  result= dlpspec_scan_read_configuration(bufferPtr,lengthOfArray);
@@ -173,19 +170,10 @@ JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_
         }
         
         
-        returnStruct = (*env)->NewObject(env, clazz, constructorz, pConfig.scanCfg.scan_type, pConfig.scanCfg.scanConfigIndex,serialNumber, configName,pConfig.slewScanCfg.head.num_sections, sectionScanTypes,sectionWidths,sectionWavelengthStartNm,sectionWavelengthEndNm,sectionNumPatterns,sectionNumRepeats,sectionExposureTime);
+        returnStruct = (*env)->NewObject(env, scanConfClass, slewScanConfConstructor, pConfig.scanCfg.scan_type, pConfig.scanCfg.scanConfigIndex,serialNumber, configName,pConfig.slewScanCfg.head.num_sections, sectionScanTypes,sectionWidths,sectionWavelengthStartNm,sectionWavelengthEndNm,sectionNumPatterns,sectionNumRepeats,sectionExposureTime);
         
     }else{
         
-        jclass clazz = (*env)->FindClass(env, "com/kstechnologies/nirscannanolibrary/KSTNanoSDK$ScanConfiguration");
-        if(clazz == NULL){
-            LOGE("scan configuration is null!");
-        }
-        jmethodID constructorz = (*env)->GetMethodID(env,clazz,"<init>","(II[B[BIIIII)V");
-        if(constructorz == NULL){
-            LOGE("contructorz is null!");
-        }
-        
         uScanConfig pConfig;
         
         jint  result= dlpspec_scan_read_configuration(bufferPtr,lengthOfArray);
@@ -199,7 +187,7 @@ JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_
         (*env)->SetByteArrayRegion(env, serialNumber, 0, serialNumberSize, pConfig.scanCfg.ScanConfig_serial_number);
         
         
-        returnStruct = (*env)->NewObject(env, clazz, constructorz,
+        returnStruct = (*env)->NewObject(env, scanConfClass, scanConfConstructor,
                                          pConfig.scanCfg.scan_type,
                                          pConfig.scanCfg.scanConfigIndex,
                                          serialNumber,
@@ -211,8 +199,336 @@ JNIEXPORT jobject JNICALL Java_com_kstechnologies_nirscannanolibrary_KSTNanoSDK_
                                          pConfig.scanCfg.num_repeats);
     }
     
+    (*env)->ReleaseByteArrayElements(env, data, bufferPtr, JNI_ABORT);
+    
     if(returnStruct == NULL){
         return NULL;
     }
     return returnStruct;
 }
+
+/**
+ * @brief Interpret one scan with a reference calibration into caller supplied memory.
+ *
+ * @param[in] wavelength        Receives the wavelengths, room for MAX_POINTS doubles
+ * @param[in] intensity         Receives the intensities, room for MAX_POINTS ints
+ * @param[in] uncalibIntensity  Receives the uncalibrated intensities, room for MAX_POINTS ints
+ *
+ * @param[out] length   The number of points written, or ERROR_INTERPRET if the library could not
+ * interpret the data
+ */
+static jint interpretScan(void* data, jint dataLength, void* coeff, jint coeffLength, void* matrix, jint matrixLength,
+                          double* wavelength, jint* intensity, jint* uncalibIntensity){
+    
+    scanResults pResults;
+    jint result = dlpspec_scan_interpret(data,dataLength,&pResults);
+    if(result < 0){
+        return ERROR_INTERPRET;
+    }
+    
+    scanResults pRefResults;
+    result = dlpspec_scan_interpReference(coeff,coeffLength,matrix,matrixLength,&pResults,&pRefResults);
+    if(result < 0 || pRefResults.length < 0 || pRefResults.length > MAX_POINTS){
+        return ERROR_INTERPRET;
+    }
+    
+    jint dataSize = pRefResults.length;
+    memcpy(wavelength, pRefResults.wavelength, dataSize * sizeof(double));
+    memcpy(intensity, pRefResults.intensity, dataSize * sizeof(jint));
+    memcpy(uncalibIntensity, pResults.intensity, dataSize * sizeof(jint));
+    return dataSize;
+}
+
+/**
+ * @brief Check that a buffer is direct and holds at least a number of bytes.
+ *
+ * @param[out] address  The address of the buffer, or NULL if it is not direct or too small
+ */
+static void* directBuffer(JNIEnv* env, jobject buffer, jlong bytes){
+    
+    void* address = (*env)->GetDirectBufferAddress(env, buffer);
+    if(address == NULL || bytes < 0 || (*env)->GetDirectBufferCapacity(env, buffer) < bytes){
+        return NULL;
+    }
+    return address;
+}
+
+/**
+ * @brief Function for interpreting scan data along with reference calibration data, without copies.
+ * This function requires the same two Spectrum C Library calls as dlpSpecScanInterpReference.
+ *
+ * The inputs are read from direct buffers in place, and the results are written to direct buffers
+ * supplied by the caller, which can be reused for every scan. Nothing is pinned, copied or
+ * allocated through JNI.
+ *
+ * Registered as ScanInterpreter.nativeInterpReference in JNI_OnLoad
+ *
+ * @param[in] data              Direct buffer of the serialzed scan data
+ * @param[in] dataLength        Number of bytes of scan data
+ * @param[in] coeff             Direct buffer of the serialized calibration coefficients
+ * @param[in] coeffLength       Number of bytes of calibration coefficients
+ * @param[in] matrix            Direct buffer of the serialized calibration matrix
+ * @param[in] matrixLength      Number of bytes of calibration matrix
+ * @param[in] wavelength        Direct buffer receiving the wavelengths as MAX_POINTS native order doubles
+ * @param[in] intensity         Direct buffer receiving the intensities as MAX_POINTS native order ints
+ * @param[in] uncalibIntensity  Direct buffer receiving the uncalibrated intensities as MAX_POINTS native order ints
+ *
+ * @param[out] length   The number of points written, ERROR_BUFFER if a buffer is not direct or is
+ * too small, or ERROR_INTERPRET if the library could not interpret the data
+ */
+static jint dlpSpecScanInterpReferenceDirect(JNIEnv* env, jclass clazz,
+                                             jobject data, jint dataLength,
+                                             jobject coeff, jint coeffLength,
+                                             jobject matrix, jint matrixLength,
+                                             jobject wavelength, jobject intensity, jobject uncalibIntensity){
+    
+    void* bufferPtr = directBuffer(env, data, dataLength);
+    void* coeffBuff = directBuffer(env, coeff, coeffLength);
+    void* matrixBuff = directBuffer(env, matrix, matrixLength);
+    double* wavelengthBuff = (double *)directBuffer(env, wavelength, MAX_POINTS * sizeof(double));
+    jint* intensityBuff = (jint *)directBuffer(env, intensity, MAX_POINTS * sizeof(jint));
+    jint* uncalibBuff = (jint *)directBuffer(env, uncalibIntensity, MAX_POINTS * sizeof(jint));
+    if(bufferPtr == NULL || coeffBuff == NULL || matrixBuff == NULL
+            || wavelengthBuff == NULL || intensityBuff == NULL || uncalibBuff == NULL){
+        LOGE("buffer is not direct or is too small!");
+        return ERROR_BUFFER;
+    }
+    
+    return interpretScan(bufferPtr, dataLength, coeffBuff, coeffLength, matrixBuff, matrixLength,
+                         wavelengthBuff, intensityBuff, uncalibBuff);
+}
+
+/**
+ * @brief Function for interpreting many scans with one reference calibration in a single call.
+ *
+ * dlpspec_scan_interpReference interprets the reference scan held in the coefficients and
+ * deserializes the matrix on every call, before recomputing the reference intensities for the
+ * scan. Here those two steps are done once for the whole batch, and only
+ * dlpspec_scan_interpret and dlpspec_scan_recomputeRefIntensities run for every scan.
+ *
+ * The scans are packed back to back in one direct buffer, and the results of every scan are
+ * written to a slot of MAX_POINTS points of the packed output buffers, so a whole batch costs one
+ * JNI transition and no JNI allocation.
+ *
+ * Registered as ScanInterpreter.nativeInterpReferenceBatch in JNI_OnLoad
+ *
+ * @param[in] data              Direct buffer of the serialzed scans, back to back
+ * @param[in] offsets           Direct buffer of count + 1 native order ints, scan i spans the bytes
+ *                              from offsets[i] to offsets[i + 1] of data
+ * @param[in] count             Number of scans
+ * @param[in] coeff             Direct buffer of the serialized calibration coefficients
+ * @param[in] coeffLength       Number of bytes of calibration coefficients
+ * @param[in] matrix            Direct buffer of the serialized calibration matrix
+ * @param[in] matrixLength      Number of bytes of calibration matrix
+ * @param[in] wavelength        Direct buffer receiving count * MAX_POINTS native order doubles
+ * @param[in] intensity         Direct buffer receiving count * MAX_POINTS native order ints
+ * @param[in] uncalibIntensity  Direct buffer receiving count * MAX_POINTS native order ints
+ * @param[in] lengths           Direct buffer receiving count native order ints, the number of points
+ *                              of each scan, or ERROR_INTERPRET for a scan that could not be interpreted
+ *
+ * @param[out] interpreted  The number of scans interpreted, or ERROR_BUFFER if a buffer is not
+ * direct or is too small, or an offset is out of the data. If the reference calibration cannot be
+ * parsed, every length is ERROR_INTERPRET and no scan is interpreted
+ */
+static jint dlpSpecScanInterpReferenceBatch(JNIEnv* env, jclass clazz,
+                                            jobject data, jobject offsets, jint count,
+                                            jobject coeff, jint coeffLength,
+                                            jobject matrix, jint matrixLength,
+                                            jobject wavelength, jobject intensity, jobject uncalibIntensity,
+                                            jobject lengths){
+    
+    if(count < 0){
+        return ERROR_BUFFER;
+    }
+    jlong slots = (jlong)count * MAX_POINTS;
+    jbyte* bufferPtr = (jbyte *)(*env)->GetDirectBufferAddress(env, data);
+    jint* offsetsBuff = (jint *)directBuffer(env, offsets, (count + 1) * (jlong)sizeof(jint));
+    void* coeffBuff = directBuffer(env, coeff, coeffLength);
+    void* matrixBuff = directBuffer(env, matrix, matrixLength);
+    double* wavelengthBuff = (double *)directBuffer(env, wavelength, slots * sizeof(double));
+    jint* intensityBuff = (jint *)directBuffer(env, intensity, slots * sizeof(jint));
+    jint* uncalibBuff = (jint *)directBuffer(env, uncalibIntensity, slots * sizeof(jint));
+    jint* lengthsBuff = (jint *)directBuffer(env, lengths, count * (jlong)sizeof(jint));
+    if(bufferPtr == NULL || offsetsBuff == NULL || coeffBuff == NULL || matrixBuff == NULL
+            || wavelengthBuff == NULL || intensityBuff == NULL || uncalibBuff == NULL || lengthsBuff == NULL){
+        LOGE("buffer is not direct or is too small!");
+        return ERROR_BUFFER;
+    }
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, data);
+    int i;
+    for(i = 0; i < count; i++){
+        if(offsetsBuff[i] < 0 || offsetsBuff[i + 1] < offsetsBuff[i] || offsetsBuff[i + 1] > capacity){
+            LOGE("scan %d is out of the data!", i);
+            return ERROR_BUFFER;
+        }
+    }
+    
+    //Parse the reference once: the reference scan, and the matrix deserialized in place in a copy
+    //large enough for the deserialized structure
+    scanResults refScan;
+    size_t matrixSize = matrixLength > (jint)sizeof(refCalMatrix) ? (size_t)matrixLength : sizeof(refCalMatrix);
+    void* refMatrix = malloc(matrixSize);
+    if(refMatrix != NULL){
+        memcpy(refMatrix, matrixBuff, matrixLength);
+    }
+    if(refMatrix == NULL || dlpspec_scan_interpret(coeffBuff,coeffLength,&refScan) < 0
+            || dlpspec_deserialize(refMatrix, matrixSize, REF_CAL_MATRIX_TYPE) < 0){
+        LOGE("unable to parse the reference calibration!");
+        free(refMatrix);
+        for(i = 0; i < count; i++){
+            lengthsBuff[i] = ERROR_INTERPRET;
+        }
+        return 0;
+    }
+    
+    jint interpreted = 0;
+    for(i = 0; i < count; i++){
+        jint start = offsetsBuff[i];
+        jint dataSize = ERROR_INTERPRET;
+        scanResults pResults;
+        scanResults pRefResults;
+        if(dlpspec_scan_interpret(bufferPtr + start, offsetsBuff[i + 1] - start, &pResults) >= 0){
+            //The reference intensities are recomputed in place from a copy of the parsed reference scan
+            pRefResults = refScan;
+            if(dlpspec_scan_recomputeRefIntensities(&pRefResults, &pResults, (refCalMatrix *)refMatrix) >= 0
+                    && pRefResults.length >= 0 && pRefResults.length <= MAX_POINTS){
+                dataSize = pRefResults.length;
+            }
+        }
+        lengthsBuff[i] = dataSize;
+        if(dataSize < 0){
+            continue;
+        }
+        memcpy(wavelengthBuff + (jlong)i * MAX_POINTS, pRefResults.wavelength, dataSize * sizeof(double));
+        memcpy(intensityBuff + (jlong)i * MAX_POINTS, pRefResults.intensity, dataSize * sizeof(jint));
+        memcpy(uncalibBuff + (jlong)i * MAX_POINTS, pResults.intensity, dataSize * sizeof(jint));
+        interpreted++;
+    }
+    free(refMatrix);
+    return interpreted;
+}
+
+/**
+ * @brief Function for sizing the output buffers of dlpSpecScanInterpReferenceDirect.
+ *
+ * Registered as ScanInterpreter.nativeMaxPoints in JNI_OnLoad
+ *
+ * @param[out] maxPoints    The largest number of points of an interpreted scan
+ */
+static jint dlpSpecScanMaxPoints(JNIEnv* env, jclass clazz){
+    return MAX_POINTS;
+}
+
+static const JNINativeMethod sdkMethods[] = {
+    {"dlpSpecScanInterpReference", "([B[B[B)Ljava/lang/Object;", (void *)dlpSpecScanInterpReference},
+    {"dlpSpecScanReadConfiguration", "([B)Ljava/lang/Object;", (void *)dlpSpecScanReadConfiguration},
+};
+
+static const JNINativeMethod interpreterMethods[] = {
+    {"nativeInterpReference",
+     "(Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)I",
+     (void *)dlpSpecScanInterpReferenceDirect},
+    {"nativeInterpReferenceBatch",
+     "(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)I",
+     (void *)dlpSpecScanInterpReferenceBatch},
+    {"nativeMaxPoints", "()I", (void *)dlpSpecScanMaxPoints},
+};
+
+/**
+ * @brief Resolve a class as a global reference, so it can be used across calls and threads.
+ *
+ * @param[in] name      The fully qualified name of the class
+ *
+ * @param[out] clazz    The global reference of the class, or NULL if it was not found
+ */
+static jclass findGlobalClass(JNIEnv* env, const char* name){
+    
+    jclass local = (*env)->FindClass(env, name);
+    if(local == NULL){
+        LOGE("class %s not found!", name);
+        return NULL;
+    }
+    jclass clazz = (jclass)(*env)->NewGlobalRef(env, local);
+    (*env)->DeleteLocalRef(env, local);
+    return clazz;
+}
+
+/**
+ * @brief Called by the VM when the library is loaded by KSTNanoSDK.
+ *
+ * Resolves the classes and constructors of the returned jobjects once, and registers the native
+ * methods of KSTNanoSDK. The native methods of the ScanInterpreter class of the app are registered
+ * too when the app has that class.
+ *
+ * @param[out] version  The JNI version needed by the library, or JNI_ERR if a class, constructor
+ * or native method could not be resolved
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved){
+    
+    JNIEnv* env;
+    if((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK){
+        LOGE("ENV is null");
+        return JNI_ERR;
+    }
+    
+    scanResultsClass = findGlobalClass(env, SCAN_RESULTS_CLASS);
+    scanConfClass = findGlobalClass(env, SCAN_CONF_CLASS);
+    if(scanResultsClass == NULL || scanConfClass == NULL){
+        return JNI_ERR;
+    }
+    
+    scanResultsConstructor = (*env)->GetMethodID(env, scanResultsClass, "<init>", "([D[I[II)V");
+    scanConfConstructor = (*env)->GetMethodID(env, scanConfClass, "<init>", "(II[B[BIIIII)V");
+    slewScanConfConstructor = (*env)->GetMethodID(env, scanConfClass, "<init>", "(II[B[BB[B[B[I[I[I[I[I)V");
+    if(scanResultsConstructor == NULL || scanConfConstructor == NULL || slewScanConfConstructor == NULL){
+        LOGE("contructorz is null!");
+        return JNI_ERR;
+    }
+    
+    jclass sdkClass = (*env)->FindClass(env, SDK_CLASS);
+    if(sdkClass == NULL){
+        LOGE("class %s not found!", SDK_CLASS);
+        return JNI_ERR;
+    }
+    jint result = (*env)->RegisterNatives(env, sdkClass, sdkMethods, sizeof(sdkMethods) / sizeof(sdkMethods[0]));
+    (*env)->DeleteLocalRef(env, sdkClass);
+    if(result != JNI_OK){
+        LOGE("unable to register natives!");
+        return JNI_ERR;
+    }
+    
+    jclass interpreterClass = (*env)->FindClass(env, INTERPRETER_CLASS);
+    if(interpreterClass == NULL){
+        (*env)->ExceptionClear(env);
+        LOGD("class %s not found, direct interpretation is not available", INTERPRETER_CLASS);
+    }else{
+        result = (*env)->RegisterNatives(env, interpreterClass, interpreterMethods, sizeof(interpreterMethods) / sizeof(interpreterMethods[0]));
+        (*env)->DeleteLocalRef(env, interpreterClass);
+        if(result != JNI_OK){
+            LOGE("unable to register natives!");
+            return JNI_ERR;
+        }
+    }
+    
+    return JNI_VERSION_1_6;
+}
+
+/**
+ * @brief Called by the VM when the class loader of the library is collected. Releases the global
+ * references taken in JNI_OnLoad.
+ */
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* reserved){
+    
+    JNIEnv* env;
+    if((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK){
+        return;
+    }
+    if(scanResultsClass != NULL){
+        (*env)->DeleteGlobalRef(env, scanResultsClass);
+        scanResultsClass = NULL;
+    }
+    if(scanConfClass != NULL){
+        (*env)->DeleteGlobalRef(env, scanConfClass);
+        scanConfClass = NULL;
+    }
+}